@@ -93,6 +93,17 @@
 #define SPE_FE                   9
 #define SPE_BI                  10
 
+/*
+	The event loop hands the events of one wakeup to
+	RXTXPort.sendEvents() together, each the event type with
+	EVENT_STATE_TRUE set for a true state.
+*/
+#define EVENT_BATCH		64
+#define EVENT_STATE_TRUE	0x100
+
+/* RXTXPort.LOCK_FLOCK, claim the port on its fd instead of a lock file */
+#define PORT_LOCK_FLOCK		1
+
 #define PORT_SERIAL		 1
 #define PORT_PARALLEL		 2
 #define PORT_I2C		 3
@@ -136,6 +147,14 @@ struct event_info_struct
 	int has_tiocsergetlsr;
 	int has_tiocgicount;
 	int eventloop_interrupted;
+	/* bytes left after the last DATA_AVAILABLE, -1 if not known */
+	int unread;
+	/* port_context.delivered when the last DATA_AVAILABLE was sent */
+	int delivered;
+	/* events queued since the last RXTXPort.sendEvents() */
+	jint batch[ EVENT_BATCH ];
+	int batched;
+	jintArray jbatch;
 	JNIEnv *env;
 	jobject *jobj;
 	jclass jclazz;
@@ -145,6 +164,10 @@ struct event_info_struct
 	fd_set rfds;
 	struct timeval tv_sleep;
 	int closing;
+	/* port_context.wakeup[ 0 ], -1 if there is none */
+	int wakeup;
+	/* the line events were polled in the last pass of the loop */
+	int polling;
 #if !defined(TIOCSERGETLSR) && !defined(WIN32)
 	int writing;
 	int output_buffer_empty_flag;
@@ -156,6 +179,113 @@ struct event_info_struct
 #endif /* TIOCGICOUNT */
 };
 
+/*
+	Per port state owned by the native code.  open() allocates it and
+	stores the pointer in RXTXPort.ctx so the read and write paths get
+	the fd and receive timeout without looking up java fields.
+*/
+struct port_context
+{
+	int fd;
+	int timeout;
+	/* microseconds DATA_AVAILABLE waits for more bytes */
+	int coalesce;
+	/*
+	   input a terminated read got past the end of its record, handed
+	   out first by every read.  carry_size bytes are allocated.
+	*/
+	unsigned char *carry;
+	int carry_start;
+	int carry_len;
+	int carry_size;
+	/*
+	   held while the carry is changed, as reads of several threads and
+	   nativeClearCommInput may get to it at once
+	*/
+#ifndef WIN32
+	pthread_mutex_t carry_lock;
+#else
+	CRITICAL_SECTION carry_lock;
+#endif /* WIN32 */
+	/* calls the read and write paths retried after EINTR */
+	jlong eintr;
+	/*
+	   DATA_AVAILABLE events the listener has returned from and the
+	   bytes it left unread, -1 if not known
+	*/
+	volatile int delivered;
+	volatile int unread;
+	/*
+	   eventfd, or a pipe where there is none, the event loop waits on
+	   with the port.  Written by interruptEventLoop, when the event
+	   flags change and when a DATA_AVAILABLE was delivered.
+	*/
+	int wakeup[ 2 ];
+	/*
+	   the same for reads and writes waiting in poll(), written once
+	   close() starts so they return without waiting for the timeout
+	*/
+	int release[ 2 ];
+};
+
+#ifndef WIN32
+/*
+	State behind a SerialSelector handle.  The self pipe lets wakeup()
+	interrupt a select in progress.  Linux uses epoll, other systems
+	keep a poll() set with the wakeup pipe in slot 0.
+*/
+struct selector_info
+{
+	int wakeup[ 2 ];
+#if defined(__linux__)
+	int epfd;
+#else
+	pthread_mutex_t lock;
+	struct pollfd *pfds;
+	int nfds;
+	int size;
+#endif /* __linux__ */
+};
+#endif /* WIN32 */
+
+/* SerialSelectionKey.OP_READ and OP_WRITE (java.nio.channels.SelectionKey) */
+#define SELECTOR_OP_READ	1
+#define SELECTOR_OP_WRITE	4
+/* most ports reported by one SerialSelector.nativeSelect() call */
+#define SELECTOR_MAX_EVENTS	256
+
+/* bits returned by RXTXPort.nativeGetModemLines() */
+#define MODEM_LINE_CTS	1
+#define MODEM_LINE_DSR	2
+#define MODEM_LINE_RI	4
+#define MODEM_LINE_CD	8
+/*
+	RXTXPort.nativeGetICount() stores cts, dsr, rng, dcd, rx, tx,
+	frame, overrun, parity, brk and buf_overrun in that order
+*/
+#define ICOUNT_FIELDS	11
+
+/*
+	readArray and writeArray copy the java array slice through a stack
+	buffer of this size.  Larger transfers are malloc()ed.
+*/
+#define STACK_BUFFER_SIZE 1024
+
+/*
+	nativeWriteVector and nativeReadVector hand at most IOV_MAX parts to
+	one writev or readv.  Win32 has neither, the parts go one at a time.
+*/
+#ifdef WIN32
+struct iovec
+{
+	void *iov_base;
+	size_t iov_len;
+};
+#endif /* WIN32 */
+#ifndef IOV_MAX
+#define IOV_MAX 16
+#endif /* IOV_MAX */
+
 /*  Ports known on the OS */
 #if defined(__linux__)
 /*
@@ -476,10 +606,32 @@ int translate_parity( JNIEnv *, tcflag_t *, jint );
 void system_wait();
 void finalize_event_info_struct( struct event_info_struct * );
 int read_byte_array( JNIEnv *, jobject *, int, unsigned char *, int, int );
+int write_byte_array( JNIEnv *, jobject *, int, unsigned char *, int, jboolean );
 long get_java_var_long( JNIEnv *, jobject, char *, char * );
 size_t get_java_var( JNIEnv *, jobject, char *, char * );
+int create_port_context( JNIEnv *, jobject, int );
+void free_port_context( struct port_context * );
+struct port_context *get_port_context( JNIEnv *, jobject );
+int take_carry( struct port_context *, unsigned char *, int );
+int put_back_carry( struct port_context *, unsigned char *, int );
+int bytes_ready( struct port_context *, int, int * );
+long get_monotonic_ms( void );
+int interrupted_call( struct port_context * );
+void count_interrupted( JNIEnv *, jobject );
+int open_wakeup( int * );
+void signal_wakeup( int * );
+void drain_wakeup( int * );
+void close_wakeup( int * );
+int wait_port( struct port_context *, int, short, int );
+int claim_port( int );
+int read_terminated( JNIEnv *, jobject *, struct port_context *,
+	unsigned char *, int, unsigned char *, int, int );
+int get_port_fd( JNIEnv *, jobject );
+struct event_info_struct *get_port_eis( JNIEnv *, jobject );
 jboolean is_interrupted( struct event_info_struct * );
 int send_event(struct event_info_struct *, jint, int );
+void queue_event( struct event_info_struct *, jint, int );
+int flush_events( struct event_info_struct * );
 void dump_termios(char *,struct termios *);
 void report_verbose(char *);
 void report_error(char *);
@@ -72,6 +72,7 @@
 #include <stdlib.h>
 #include <errno.h>
 #include <limits.h>
+#include <stdint.h>
 #include <sys/stat.h>
 #ifndef WIN32
 #include <unistd.h>
@@ -79,6 +80,12 @@
 #include <sys/param.h>
 #include <sys/utsname.h>
 #include <pthread.h>
+#include <poll.h>
+#include <sys/uio.h>
+#if defined(__linux__)
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#endif /* __linux__ */
 #else
 #	include "win32termios.h"
 /*  FIXME  returns 0 in all cases on win32
@@ -118,6 +125,7 @@
 #	include <linux/types.h> /* fix for linux-2.3.4? kernels */
 #	include <linux/serial.h>
 #	include <linux/version.h>
+#	include <sys/sysmacros.h> /* major(), minor() of newer glibc */
 #endif /* __linux__ */
 #if defined(__sun__)
 #	include <sys/filio.h>
@@ -153,6 +161,16 @@ extern int errno;
 
 JavaVM *javaVM = NULL;
 
+/*
+	RXTXPort field and method ids.  These are resolved once in
+	RXTXPort.Initialize() and stay valid while the class is loaded.
+*/
+static jfieldID jfield_ctx = NULL;
+static jfieldID jfield_eis = NULL;
+static jmethodID jmethod_send_event = NULL;
+static jmethodID jmethod_send_events = NULL;
+static jmethodID jmethod_monitor_started = NULL;
+
 
 struct preopened *preopened_port = NULL;
 
@@ -162,6 +180,7 @@ struct preopened *preopened_port = NULL;
 #define RXTXPort(foo) Java_ac_bali_serial_RXTXPort_ ## foo
 #define RXTXVersion(foo) Java_ac_bali_serial_RXTXVersion_ ## foo
 #define RXTXCommDriver(foo) Java_ac_bali_serial_RXTXCommDriver_ ## foo
+#define SerialSelector(foo) Java_ac_bali_serial_SerialSelector_ ## foo
 
 #if defined(__sun__) || defined(__hpux__)
 /*----------------------------------------------------------
@@ -229,13 +248,8 @@ struct event_info_struct build_threadsafe_eis(
 	myeis.env = env;
 	myeis.jclazz = (*env)->GetObjectClass( env, *jobj );
 	myeis.jobj = jobj;
-	myeis.fd = get_java_var( env, *jobj, "fd", "I" );
-	myeis.send_event = (*env)->GetMethodID(
-		env,
-		myeis.jclazz,
-		"sendEvent",
-		"(IZ)Z"
-	);
+	myeis.fd = get_port_fd( env, *jobj );
+	myeis.send_event = jmethod_send_event;
 	return( myeis );
 }
 
@@ -251,6 +265,10 @@ RXTXPort.Initialize
 
 		It also allows for some sanity checks on linux boxes if DEBUG
 		is enabled.
+
+		The RXTXPort field and method ids used on every read and
+		write are looked up here once.  If one is missing the
+		NoSuchFieldError is left pending so the class fails to load.
 ----------------------------------------------------------*/
 JNIEXPORT void JNICALL RXTXPort(Initialize)(
 	JNIEnv *env,
@@ -285,6 +303,19 @@ JNIEXPORT void JNICALL RXTXPort(Initialize)(
 	}
 #endif /* !WIN32 */
 	ENTER( "RXTXPort:Initialize" );
+	jfield_ctx = (*env)->GetFieldID( env, jclazz, "ctx", "J" );
+	if( !jfield_ctx ) return;
+	jfield_eis = (*env)->GetFieldID( env, jclazz, "eis", "J" );
+	if( !jfield_eis ) return;
+	jmethod_send_event = (*env)->GetMethodID( env, jclazz, "sendEvent",
+		"(IZ)Z" );
+	if( !jmethod_send_event ) return;
+	jmethod_send_events = (*env)->GetMethodID( env, jclazz, "sendEvents",
+		"([II)Z" );
+	if( !jmethod_send_events ) return;
+	jmethod_monitor_started = (*env)->GetMethodID( env, jclazz,
+		"monitorThreadStarted", "()V" );
+	if( !jmethod_monitor_started ) return;
 #ifdef PRERELEASE
 	/*  this is just for avoiding confusion while testing new libraries */
 	printf("RXTX Prerelease for testing  Thu Feb 21 19:31:38\n");
@@ -601,10 +632,281 @@ cf{get,set}{i,o}speed and shouldn't be provided or used.
 	(*env)->SetIntField(env, jobj, jfstopBits, ( jint ) stop_bits );
 	(*env)->SetIntField(env, jobj, jfparity, ( jint ) jparity );
 }
+/*----------------------------------------------------------
+open_wakeup
+
+   accept:      fds, two ints
+   perform:     create a wakeup, an eventfd in both slots on Linux and a
+		pipe elsewhere, both ends non blocking
+   return:      0 on success, -1 with both slots -1 on error
+   exceptions:  none
+   comments:    signal_wakeup() makes fds[ 0 ] readable until
+		drain_wakeup(), so a wait that starts late still returns.
+----------------------------------------------------------*/
+int open_wakeup( int *fds )
+{
+#ifndef WIN32
+#if defined(__linux__)
+	fds[ 0 ] = fds[ 1 ] = eventfd( 0, EFD_NONBLOCK | EFD_CLOEXEC );
+	if( fds[ 0 ] >= 0 )
+		return 0;
+#else
+	int i;
+
+	if( !pipe( fds ) )
+	{
+		for( i = 0; i < 2; i++ )
+		{
+			fcntl( fds[ i ], F_SETFL,
+				fcntl( fds[ i ], F_GETFL ) | O_NONBLOCK );
+			fcntl( fds[ i ], F_SETFD, FD_CLOEXEC );
+		}
+		return 0;
+	}
+#endif /* __linux__ */
+#endif /* WIN32 */
+	fds[ 0 ] = fds[ 1 ] = -1;
+	return -1;
+}
+
+/*----------------------------------------------------------
+signal_wakeup
+
+   accept:      fds from open_wakeup()
+   perform:     make fds[ 0 ] readable
+   return:      none
+   exceptions:  none
+   comments:    a full pipe or counter is signalled already
+----------------------------------------------------------*/
+void signal_wakeup( int *fds )
+{
+	uint64_t one = 1;
+
+	if( fds[ 1 ] < 0 )
+		return;
+	while( WRITE( fds[ 1 ], &one, sizeof( one ) ) < 0 && errno == EINTR );
+}
+
+/*----------------------------------------------------------
+drain_wakeup
+
+   accept:      fds from open_wakeup()
+   perform:     read fds[ 0 ] until it no longer is readable
+   return:      none
+   exceptions:  none
+   comments:
+----------------------------------------------------------*/
+void drain_wakeup( int *fds )
+{
+	uint64_t buf[ 8 ];
+	int n;
+
+	if( fds[ 0 ] < 0 )
+		return;
+	do {
+		n = READ( fds[ 0 ], buf, sizeof( buf ) );
+	} while( n > 0 || ( n < 0 && errno == EINTR ) );
+}
+
+/*----------------------------------------------------------
+close_wakeup
+
+   accept:      fds from open_wakeup()
+   perform:     close them
+   return:      none
+   exceptions:  none
+   comments:
+----------------------------------------------------------*/
+void close_wakeup( int *fds )
+{
+	if( fds[ 0 ] >= 0 )
+		close( fds[ 0 ] );
+	if( fds[ 1 ] >= 0 && fds[ 1 ] != fds[ 0 ] )
+		close( fds[ 1 ] );
+	fds[ 0 ] = fds[ 1 ] = -1;
+}
+
+/*----------------------------------------------------------
+wait_port
+
+   accept:      ctx (may be NULL), fd, POLLIN or POLLOUT, timeout in ms
+		or -1 to wait for ever
+   perform:     poll() the port together with ctx->release
+   return:      1 if the port is ready, 0 if the timeout passed or close()
+		released the wait, -1 with errno set on error
+   exceptions:  none
+   comments:    EINTR is retried and counted.  A closing port is not
+		waited on even if it is ready, see nativeInterruptIO().
+----------------------------------------------------------*/
+int wait_port( struct port_context *ctx, int fd, short events, int timeout )
+{
+#ifndef WIN32
+	struct pollfd pfd[ 2 ];
+	int n = 1, ret;
+
+	pfd[ 0 ].fd = fd;
+	pfd[ 0 ].events = events;
+	pfd[ 0 ].revents = 0;
+	if( ctx && ctx->release[ 0 ] >= 0 )
+	{
+		pfd[ 1 ].fd = ctx->release[ 0 ];
+		pfd[ 1 ].events = POLLIN;
+		pfd[ 1 ].revents = 0;
+		n = 2;
+	}
+	do {
+		ret = poll( pfd, n, timeout );
+	} while( ret < 0 && interrupted_call( ctx ) );
+	if( ret <= 0 )
+		return ret;
+	if( n == 2 && pfd[ 1 ].revents )
+		return 0;
+	if( pfd[ 0 ].revents & POLLNVAL )
+	{
+		errno = EBADF;
+		return -1;
+	}
+#endif /* WIN32 */
+	return 1;
+}
+
+/*----------------------------------------------------------
+create_port_context
+
+   accept:      env, jobj (java RXTXPort object), the opened fd
+   perform:     allocate the native port context and store it in
+		RXTXPort.ctx
+   return:      0 on success, 1 on error
+   exceptions:  IOException
+   comments:    the receive timeout starts disabled (-1) to match the
+		java default.  See NativeEnableReceiveTimeoutThreshold.
+----------------------------------------------------------*/
+int create_port_context( JNIEnv *env, jobject jobj, int fd )
+{
+	struct port_context *ctx =
+		(struct port_context *) malloc( sizeof( struct port_context ) );
+
+	if( !ctx )
+	{
+		throw_java_exception( env, IO_EXCEPTION, "open",
+			strerror( errno ) );
+		return 1;
+	}
+	ctx->fd = fd;
+	ctx->timeout = -1;
+	ctx->coalesce = 0;
+	ctx->delivered = 0;
+	ctx->unread = -1;
+	ctx->carry = NULL;
+	ctx->carry_start = 0;
+	ctx->carry_len = 0;
+	ctx->carry_size = 0;
+#ifndef WIN32
+	pthread_mutex_init( &ctx->carry_lock, NULL );
+#else
+	InitializeCriticalSection( &ctx->carry_lock );
+#endif /* WIN32 */
+	ctx->eintr = 0;
+	/* without them the waits fall back to their timeouts */
+	open_wakeup( ctx->wakeup );
+	open_wakeup( ctx->release );
+	(*env)->SetLongField( env, jobj, jfield_ctx, ( jlong ) ( size_t ) ctx );
+	return 0;
+}
+
+/*----------------------------------------------------------
+interrupted_call
+
+   accept:      ctx, may be NULL
+   perform:     count a call that failed with EINTR
+   return:      1 if errno is EINTR and the call should be retried
+   exceptions:  none
+   comments:    RXTXPort.nativeGetEintrCount() reports the count
+----------------------------------------------------------*/
+int interrupted_call( struct port_context *ctx )
+{
+	if( errno != EINTR )
+		return 0;
+	if( ctx )
+		ctx->eintr++;
+	return 1;
+}
+
+/*----------------------------------------------------------
+count_interrupted
+
+   accept:      env, jobj (java RXTXPort object)
+   perform:     count a call that failed with EINTR where the caller
+		has no port context at hand
+   return:      none
+   exceptions:  none
+----------------------------------------------------------*/
+void count_interrupted( JNIEnv *env, jobject jobj )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	if( ctx )
+		ctx->eintr++;
+}
+
+/*----------------------------------------------------------
+free_port_context
+
+   accept:      ctx, may be NULL
+   perform:     free the native port context and what it holds
+   return:      none
+   exceptions:  none
+   comments:    called from nativeRelease once the fd is no longer used
+----------------------------------------------------------*/
+void free_port_context( struct port_context *ctx )
+{
+	if( !ctx )
+		return;
+	free( ctx->carry );
+#ifndef WIN32
+	pthread_mutex_destroy( &ctx->carry_lock );
+#else
+	DeleteCriticalSection( &ctx->carry_lock );
+#endif /* WIN32 */
+	close_wakeup( ctx->wakeup );
+	close_wakeup( ctx->release );
+	free( ctx );
+}
+
+#ifndef WIN32
+/*----------------------------------------------------------
+claim_port
+
+   accept:      fd of a port just opened
+   perform:     take an exclusive flock on the device and set TIOCEXCL
+   return:      0 on success, -1 with errno set if another open file
+		holds the flock
+   exceptions:  none
+   comments:    used instead of LOCK() for RXTXPort.LOCK_FLOCK.  The
+		flock keeps out other processes and other opens in this
+		one, and is gone with the last fd, so a crash leaves
+		nothing behind.  TIOCEXCL keeps out programs that only
+		know lock files.  Devices without flock are taken anyway,
+		as they would be with no lock directory.
+----------------------------------------------------------*/
+int claim_port( int fd )
+{
+#ifdef LOCK_EX
+	if( flock( fd, LOCK_EX | LOCK_NB ) < 0 && errno == EWOULDBLOCK )
+		return -1;
+#endif /* LOCK_EX */
+#ifdef TIOCEXCL
+	ioctl( fd, TIOCEXCL );
+#endif /* TIOCEXCL */
+	return 0;
+}
+#endif /* WIN32 */
+
 /*----------------------------------------------------------
 RXTXPort.open
 
-   accept:      The device to open.  ie "/dev/ttyS0"
+   accept:      The device to open.  ie "/dev/ttyS0" and how to lock it,
+		RXTXPort.LOCK_FILES or LOCK_FLOCK
    perform:     open the device, set the termios struct to sane settings and
                 return the filedescriptor
    return:      fd
@@ -616,7 +918,8 @@ RXTXPort.open
 JNIEXPORT jint JNICALL RXTXPort(open)(
 	JNIEnv *env,
 	jobject jobj,
-	jstring jstr
+	jstring jstr,
+	jint locking
 	)
 {
 	int fd;
@@ -635,7 +938,8 @@ JNIEXPORT jint JNICALL RXTXPort(open)(
 	}
 
 #ifndef WIN32
-	pid = getpid();
+	/* a port claimed with flock has no lock file */
+	pid = ( locking == PORT_LOCK_FLOCK ) ? 0 : getpid();
 #endif /* WIN32 */
 
 	(*env)->SetIntField(env, jobj, jfid, ( jint ) pid );
@@ -653,7 +957,7 @@ JNIEXPORT jint JNICALL RXTXPort(open)(
 
 	ENTER( "RXTXPort:open" );
 	//report_warning("\nopen() Attempting to lock: ");
-	if ( LOCK( filename, pid ) )
+	if ( pid && LOCK( filename, pid ) )
 	{
 		sprintf( message, "open: locking has failed for %s\n",
 			filename );
@@ -670,7 +974,22 @@ JNIEXPORT jint JNICALL RXTXPort(open)(
 	if( fd )
 	{
 		report_warning( "open: port is open already" );
+#ifndef WIN32
+		if( !pid && claim_port( fd ) )
+		{
+			sprintf( message, "open: %s is in use\n", filename );
+			report_error( message );
+			goto fail;
+		}
+#endif /* WIN32 */
 		set_java_vars( env, jobj, fd );
+		if( create_port_context( env, jobj, fd ) )
+		{
+			if( pid )
+				UNLOCK( filename, pid );
+			(*env)->ReleaseStringUTFChars( env, jstr, filename );
+			return -1;
+		}
 		(*env)->ReleaseStringUTFChars( env, jstr, filename );
 		return (jint)fd;
 	}
@@ -713,8 +1032,28 @@ JNIEXPORT jint JNICALL RXTXPort(open)(
                goto fail;
        }
 #endif /* OPEN_EXCL */
+#ifndef WIN32
+	if( fd >= 0 && !pid && claim_port( fd ) )
+	{
+		int err = errno;
+		sprintf( message, "open: %s is in use\n", filename );
+		report_error( message );
+		close( fd );
+		errno = err;
+		goto fail;
+	}
+#endif /* WIN32 */
 
 	if( configure_port( fd ) ) goto fail;
+	if( create_port_context( env, jobj, fd ) )
+	{
+		localClose( fd );
+		if( pid )
+			UNLOCK( filename, pid );
+		(*env)->ReleaseStringUTFChars( env, jstr, filename );
+		LEAVE( "RXTXPort:open" );
+		return -1;
+	}
 	(*env)->ReleaseStringUTFChars( env, jstr, filename );
 	sprintf( message, "open: fd returned is %i\n", fd );
 	report( message );
@@ -732,80 +1071,62 @@ fail:
 
 
 /*----------------------------------------------------------
-RXTXPort.nativeClose
+RXTXPort.nativeRelease
 
-   accept:      none
-   perform:     get the fd from the java end and close it
+   accept:      fd, port context, name and pid of the lock of a port, 0
+		if it was claimed with flock
+   perform:     close the fd, remove the lock and free the port context
    return:      none
    exceptions:  none
+   comments:    static so SerialCleaner can call it for a port that is
+		unreachable already.  close() clears RXTXPort.ctx first.
 ----------------------------------------------------------*/
-JNIEXPORT void JNICALL RXTXPort(nativeClose)( JNIEnv *env,
-	jobject jobj,jstring jstr )
+JNIEXPORT void JNICALL RXTXPort(nativeRelease)( JNIEnv *env,
+	jclass jclazz, jint fd, jlong jctx, jstring jstr, jint pid )
 {
-	int result, pid;
-	int fd = get_java_var( env, jobj,"fd","I" );
-	const char *filename = (*env)->GetStringUTFChars( env, jstr, 0 );
-	jclass jclazz = (*env)->GetObjectClass( env, jobj );
-	report_time_start( );
-	pid = get_java_var( env, jobj,"pid","I" );
-
-	//report_warning("nativeClose() Attempting Close pid\n");
-
-	/*
-	usleep(10000);
-	*/
-	if( !pid ) {
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		(*env)->DeleteLocalRef( env, jclazz );
-		report_warning("nativeClose(): Close not detecting thread pid");
-		return;
-	}
-	report("<nativeClose: pid\n");
-
-	/*
-		UNLOCK is one of three functions defined in SerialImp.h
-
-			uucp_unlock		Solaris
-			fhs_unlock		Linux
-			system_does_not_unlock	Win32
-	*/
+	int result, x = 0;
+	const char *filename;
 
-	ENTER( "RXTXPort:nativeClose" );
-	if (fd > 0)
+	report_time_start( );
+	ENTER( "RXTXPort:nativeRelease" );
+	if( fd > 0 )
 	{
-		//report_warning("nativeClose: discarding remaining data (tcflush)\n");
-		report("nativeClose: discarding remaining data (tcflush)\n");
+		report("nativeRelease: discarding remaining data (tcflush)\n");
 		/* discard any incoming+outgoing data not yet read/sent */
-		tcflush(fd, TCIOFLUSH);
-		int x=0;
- 		do {
-
- 			//report_warning("nativeClose: Attempting to close\n");
-			report("nativeClose:  calling close\n");
-			result=localClose(fd);
-			//report_warning("nativeClose: Close OK\n");
-			x++;
-			if(x>10){
-				report_error("\nnativeClose(): Close failed 10 times!");
-				report_error( strerror(errno) );
-				return;
+		tcflush( fd, TCIOFLUSH );
+#ifdef TIOCNXCL
+		/* the tty may outlive the fd, a pty does while its master is open */
+		if( !pid )
+			ioctl( fd, TIOCNXCL );
+#endif /* TIOCNXCL */
+		do {
+			report("nativeRelease:  calling close\n");
+			result = localClose( fd );
+			if( ++x > 10 )
+			{
+				report_error("\nnativeRelease(): Close failed 10 times!");
+				report_error( strerror( errno ) );
+				break;
 			}
 		}  while ( result < 0 && errno == EINTR );
- 		//report_warning("nativeClose() Attempt to unlock\n");
- 		UNLOCK( filename, pid );
- 		//report_warning("nativeClose() Unlock OK\n");
-	}else{
-		//report_warning("nativeClose(): Close not detecting File Descriptor");
-	}
-	//report_warning("nativeClose() Attempt OK\n");
-	report("nativeClose: Delete jclazz\n");
-	(*env)->DeleteLocalRef( env, jclazz );
-	report("nativeClose: release filename\n");
-	(*env)->ReleaseStringUTFChars( env, jstr, filename );
-	LEAVE( "RXTXPort:nativeClose" );
+		/*
+			UNLOCK is one of three functions defined in SerialImp.h
+
+				uucp_unlock		Solaris
+				fhs_unlock		Linux
+				system_does_not_unlock	Win32
+		*/
+		if( pid )
+		{
+			filename = (*env)->GetStringUTFChars( env, jstr, 0 );
+			UNLOCK( filename, pid );
+			(*env)->ReleaseStringUTFChars( env, jstr, filename );
+		}
+		/* else the flock went with the fd */
+	}
+	free_port_context( (struct port_context *) ( size_t ) jctx );
+	LEAVE( "RXTXPort:nativeRelease" );
 	report_time_end( );
-	return;
 }
 
 /*----------------------------------------------------------
@@ -951,7 +1272,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(nativeSetSerialPortParams)(
 	JNIEnv *env, jobject jobj, jint speed, jint dataBits, jint stopBits,
 	jint parity )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	int cspeed = translate_speed( env, speed );
 
 	ENTER( "RXTXPort:nativeSetSerialPortParams" );
@@ -1406,7 +1727,6 @@ init_threads( )
 ----------------------------------------------------------*/
 int init_threads( struct event_info_struct *eis )
 {
-	jfieldID jeis;
 #if !defined(TIOCSERGETLSR) & !defined(WIN32)
 	sigset_t newmask, oldmask;
 	struct sigaction newaction, oldaction;
@@ -1453,10 +1773,9 @@ int init_threads( struct event_info_struct *eis )
 	eis->drain_tid = tid;
 	eis->drain_loop_running = 1;
 #endif /* TIOCSERGETLSR */
-	report("init_threads: get eis\n");
-	jeis  = (*eis->env)->GetFieldID( eis->env, eis->jclazz, "eis", "J" );
 	report("init_threads: set eis\n");
-	(*eis->env)->SetLongField(eis->env, *eis->jobj, jeis, ( size_t ) eis );
+	(*eis->env)->SetLongField( eis->env, *eis->jobj, jfield_eis,
+		( jlong ) ( size_t ) eis );
 	report("init_threads:  stop\n");
 	report_time_end( );
 	return( 1 );
@@ -1471,6 +1790,76 @@ int localWrite(int fd,unsigned char * bytes,int len){
 	return ret;
 }
 
+/*----------------------------------------------------------
+write_byte_array
+
+   accept:      env, jobj (java RXTXPort object), fd, bytes to write,
+                length of bytes, jboolean interrupted (no events if true)
+   perform:     write all of the bytes to the port
+   return:      bytes written or -1 on error
+   exceptions:  none
+   comments:    Once nativeSetNonBlocking() was called write(2) can take
+		part of the buffer or fail with EAGAIN while the output
+		queue is full.  Wait in poll() for room instead of dropping
+		the rest.  Shared by writeByte, writeArray and writeDirect.
+----------------------------------------------------------*/
+int write_byte_array( JNIEnv *env, jobject *jobj, int fd,
+	unsigned char *buffer, int length, jboolean interrupted )
+{
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	struct event_info_struct *eis;
+#endif /* !TIOCSERGETLSR !WIN32 */
+	int result, total = 0;
+
+	while( total < length )
+	{
+		result = WRITE( fd, buffer + total, length - total );
+		if( result > 0 )
+		{
+			total += result;
+			continue;
+		}
+		if( result == 0 )
+			break;
+		if( errno == EINTR )
+		{
+			count_interrupted( env, *jobj );
+			continue;
+		}
+#ifndef WIN32
+		if( errno == EAGAIN )
+		{
+			result = wait_port( get_port_context( env, *jobj ), fd,
+				POLLOUT, -1 );
+			if( result < 0 )
+				return -1;
+			if( result == 0 )
+			{
+				/* close() released the wait */
+				errno = EBADF;
+				return -1;
+			}
+			continue;
+		}
+#endif /* WIN32 */
+		report_error( "Write action failed! " );
+		report_error( strerror( errno ) );
+		return -1;
+	}
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	if( !interrupted )
+	{
+		eis = get_port_eis( env, *jobj );
+		if( eis )
+		{
+			eis->writing = 1;
+			report( "write_byte_array:  eis->writing = 1" );
+		}
+	}
+#endif /* !TIOCSERGETLSR !WIN32 */
+	return total;
+}
+
 /*----------------------------------------------------------
 RXTXPort.writeByte
 
@@ -1483,50 +1872,16 @@ RXTXPort.writeByte
 JNIEXPORT void JNICALL RXTXPort(writeByte)( JNIEnv *env,
 	jobject jobj, jint ji, jboolean interrupted )
 {
-#ifndef TIOCSERGETLSR
-	struct event_info_struct *index = master_index;
-#endif
 	unsigned char byte = (unsigned char)ji;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	int result;
 	char msg[80];
-#if defined ( __sun__ )
-	int count;
-#endif /* __sun__ */
 
 	report_time_start();
 	ENTER( "RXTXPort:writeByte" );
-	do {
-		sprintf( msg, "writeByte %c>>\n", byte );
-		report( msg );
-		result=localWrite(fd, (void * ) &byte, sizeof(unsigned char));
-	}  while (result < 0 && errno==EINTR);
-	if( result < 0 )
-	{
-		goto fail;
-	}
-/*
-	This makes write for win32, glinux and Sol behave the same
-#if defined ( __sun__ )
-	do {
-		report_verbose( "nativeDrain: trying tcdrain\n" );
-		result=tcdrain(fd);
-		count++;
-	}  while (result && errno==EINTR && count <3);
-#endif */ /* __sun __ */
-#ifndef TIOCSERGETLSR
-	if( ! interrupted )
-	{
-		index = master_index;
-		if( index )
-		{
-			while( index->fd != fd &&
-				index->next ) index = index->next;
-		}
-		index->writing = 1;
-		report( "writeByte:  index->writing = 1" );
-	}
-#endif
+	sprintf( msg, "writeByte %c>>\n", byte );
+	report( msg );
+	result = write_byte_array( env, &jobj, fd, &byte, 1, interrupted );
 	sprintf( msg, "RXTXPort:writeByte %i\n", result );
 	report( msg );
 	LEAVE( "RXTXPort:writeByte" );
@@ -1535,7 +1890,6 @@ JNIEXPORT void JNICALL RXTXPort(writeByte)( JNIEnv *env,
 		report_time_end();
 		return;
 	}
-fail:
 	throw_java_exception( env, IO_EXCEPTION, "writeByte",
 		strerror( errno ) );
 }
@@ -1550,93 +1904,554 @@ RXTXPort.writeArray
    perform:     write length bytes of jbarray
    return:      none
    exceptions:  IOException
+   comments:    only the offset/count slice is copied out of the java
+		array, on the stack when it fits.
 ----------------------------------------------------------*/
 JNIEXPORT void JNICALL RXTXPort(writeArray)( JNIEnv *env,
 	jobject jobj, jbyteArray jbarray, jint offset, jint count,
 		jboolean interrupted )
 {
-#ifndef TIOCSERGETLSR
-	struct event_info_struct *index = master_index;
-#endif /* TIOCSERGETLSR */
-	int fd;
-	int result=0,total=0;
-	jbyte *body;
-#if defined ( __sun__ )
-	int icount;
-#endif /* __sun__ */
-	/*
-	char message[1000];
-	*/
-#if defined ( __sun__ )
-	struct timespec retspec;
-
-	retspec.tv_sec = 0;
-	retspec.tv_nsec = 50000;
-#endif /* __sun__ */
-	fd = get_java_var( env, jobj,"fd","I" );
-	body = (*env)->GetByteArrayElements( env, jbarray, 0 );
-	/* result=WRITE (fd, body + total + offset, count - total);
-	(*env)->ReleaseByteArrayElements( env, jbarray, body, 0 ); */
-/* return; OH CRAP */
+	int fd = get_port_fd( env, jobj );
+	int result = 0;
+	unsigned char stackbuf[ STACK_BUFFER_SIZE ];
+	unsigned char *body = stackbuf;
 
 	report_time_start();
 	ENTER( "writeArray" );
-	/* warning Roy Rogers */
-	/*
-	sprintf( message, "::::RXTXPort:writeArray(%s);\n", (char *) body );
-	report_verbose( message );
-	*/
-
-	do {
-		result=localWrite(fd, (void * ) ((char *) body + total + offset), count - total); /* dima */
-		if(result >0){
-			total += result;
+	if( count > STACK_BUFFER_SIZE )
+	{
+		body = (unsigned char *) malloc( count );
+		if( !body )
+		{
+			result = -1;
+			errno = ENOMEM;
+			goto fail;
 		}
-		report("writeArray()\n");
-	}  while ( ( total < count ) && (result < 0 && errno==EINTR ) );
+	}
+	(*env)->GetByteArrayRegion( env, jbarray, offset, count,
+		(jbyte *) body );
+	if( !(*env)->ExceptionCheck( env ) )
+		result = write_byte_array( env, &jobj, fd, body, count,
+			interrupted );
+	if( body != stackbuf ) free( body );
+	LEAVE( "RXTXPort:writeArray" );
+	report_time_end();
+fail:
+	if( result < 0 ) throw_java_exception( env, IO_EXCEPTION,
+		"writeArray", strerror( errno ) );
+}
+
+/*----------------------------------------------------------
+RXTXPort.writeDirect
+
+   accept:      jbuffer: direct java.nio.ByteBuffer holding the bytes
+                offset: offset in the buffer to start writing
+                count: Number of bytes to write
+                jboolean interrupted (no events if true)
+   perform:     write count bytes straight from the buffer memory
+   return:      bytes written
+   exceptions:  IOException
+   comments:    RXTXPort.write(ByteBuffer) checks the bounds.
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(writeDirect)( JNIEnv *env,
+	jobject jobj, jobject jbuffer, jint offset, jint count,
+		jboolean interrupted )
+{
+	int fd = get_port_fd( env, jobj );
+	unsigned char *body =
+		(unsigned char *) (*env)->GetDirectBufferAddress( env, jbuffer );
+	int result;
+
+	if( !body )
+	{
+		throw_java_exception( env, IO_EXCEPTION, "writeDirect",
+			"not a direct buffer" );
+		return -1;
+	}
+	result = write_byte_array( env, &jobj, fd, body + offset, count,
+		interrupted );
 	if( result < 0 )
 	{
-		goto fail;
+		throw_java_exception( env, IO_EXCEPTION, "writeDirect",
+			strerror( errno ) );
+		return -1;
 	}
-/*
-	This makes write for win32, glinux and Sol behave the same
-#if defined ( __sun__ )
-	do {
-		report_verbose( "nativeDrain: trying tcdrain\n" );
-		result=tcdrain(fd);
-		icount++;
-	}  while (result && errno==EINTR && icount <3);
-#endif */ /* __sun__ */
-	(*env)->ReleaseByteArrayElements( env, jbarray, body, 0 );
-#ifndef TIOCSERGETLSR
-	if( !interrupted )
+	return (jint) result;
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeWriteNow
+
+   accept:      jbuffer: direct java.nio.ByteBuffer holding the bytes
+                offset: offset in the buffer to start writing
+                count: most bytes to write
+                jboolean interrupted (no events if true)
+   perform:     write what the output queue has room for, with one write
+   return:      bytes written, 0 if the output queue is full
+   exceptions:  IOException
+   comments:    Used by AsyncSerialPort, which waits for room in a
+                SerialSelector rather than in poll() as write_byte_array
+                does.
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(nativeWriteNow)( JNIEnv *env,
+	jobject jobj, jobject jbuffer, jint offset, jint count,
+		jboolean interrupted )
+{
+	int fd = get_port_fd( env, jobj );
+	unsigned char *body =
+		(unsigned char *) (*env)->GetDirectBufferAddress( env, jbuffer );
+	int result;
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	struct event_info_struct *eis;
+#endif /* !TIOCSERGETLSR !WIN32 */
+
+	if( !body )
 	{
-		if( index )
+		throw_java_exception( env, IO_EXCEPTION, "nativeWriteNow",
+			"not a direct buffer" );
+		return -1;
+	}
+	while( ( result = WRITE( fd, body + offset, count ) ) < 0 &&
+		errno == EINTR )
+		count_interrupted( env, jobj );
+	if( result < 0 )
+	{
+		if( errno == EAGAIN )
+			return 0;
+		throw_java_exception( env, IO_EXCEPTION, "nativeWriteNow",
+			strerror( errno ) );
+		return -1;
+	}
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	if( result > 0 && !interrupted )
+	{
+		eis = get_port_eis( env, jobj );
+		if( eis )
+			eis->writing = 1;
+	}
+#endif /* !TIOCSERGETLSR !WIN32 */
+	return (jint) result;
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeSetNonBlocking
+
+   accept:      none
+   perform:     set O_NONBLOCK on the port
+   return:      none
+   exceptions:  IOException
+   comments:    configure_port() leaves the port blocking.  AsyncSerialPort
+                and parking writes take what the output queue has room
+                for and wait for the rest outside write(2), which needs
+                O_NONBLOCK.  The other paths work either way, so it is
+                not cleared again.
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL RXTXPort(nativeSetNonBlocking)( JNIEnv *env,
+	jobject jobj )
+{
+#ifndef WIN32
+	int fd = get_port_fd( env, jobj );
+	int flags = fcntl( fd, F_GETFL );
+
+	if( flags < 0 || fcntl( fd, F_SETFL, flags | O_NONBLOCK ) < 0 )
+		throw_java_exception( env, IO_EXCEPTION, "nativeSetNonBlocking",
+			strerror( errno ) );
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+advance_iovec
+
+   accept:      the iovec array and count, bytes done
+   perform:     step past the bytes done, shortening a part done one
+   return:      none
+   exceptions:  none
+----------------------------------------------------------*/
+static void advance_iovec( struct iovec **iov, int *count, int n )
+{
+	while( n > 0 && *count > 0 )
+	{
+		if( (size_t) n < (*iov)->iov_len )
 		{
-			while( index->fd != fd &&
-				index->next ) index = index->next;
+			(*iov)->iov_base = (char *) (*iov)->iov_base + n;
+			(*iov)->iov_len -= n;
+			return;
 		}
-		index->writing = 1;
-		report( "writeArray:  index->writing = 1" );
+		n -= (*iov)->iov_len;
+		(*iov)++;
+		(*count)--;
 	}
-#endif /* TIOCSERGETLSR */
-	/*
-		50 ms sleep to make sure read can get in
+}
+
+/*----------------------------------------------------------
+build_iovec
+
+   accept:      jbufs: direct ByteBuffers or byte arrays
+                offs, lens: where in each the bytes are, count of them
+                iov: room for count entries
+                stackbuf: scratch of STACK_BUFFER_SIZE bytes
+                copy_in: fill the scratch from the arrays
+   perform:     point an iovec at each part.  Direct buffers are used
+                in place, the parts of arrays share one scratch area.
+   return:      the scratch, stackbuf or malloc()ed, NULL with errno set
+                on failure
+   exceptions:  none
+   comments:    RXTXPort checks the bounds.  The caller frees a scratch
+                other than stackbuf.
+----------------------------------------------------------*/
+static unsigned char *build_iovec( JNIEnv *env, jobjectArray jbufs,
+	jint *offs, jint *lens, int count, struct iovec *iov,
+	unsigned char *stackbuf, int copy_in )
+{
+	jclass array_class = (*env)->FindClass( env, "[B" );
+	unsigned char *scratch = stackbuf;
+	jobject buf;
+	int i, used = 0, arrays = 0;
 
-		what I think is happening here is the data writen is causing
-		signals, the event loop can't select with data available
+	if( !array_class )
+	{
+		errno = EINVAL;
+		return NULL;
+	}
+	for( i = 0; i < count; i++ )
+	{
+		buf = (*env)->GetObjectArrayElement( env, jbufs, i );
+		if( (*env)->IsInstanceOf( env, buf, array_class ) )
+			arrays += lens[i];
+		(*env)->DeleteLocalRef( env, buf );
+	}
+	if( arrays > STACK_BUFFER_SIZE )
+	{
+		scratch = (unsigned char *) malloc( arrays );
+		if( !scratch )
+		{
+			errno = ENOMEM;
+			return NULL;
+		}
+	}
+	for( i = 0; i < count; i++ )
+	{
+		buf = (*env)->GetObjectArrayElement( env, jbufs, i );
+		if( (*env)->IsInstanceOf( env, buf, array_class ) )
+		{
+			iov[i].iov_base = scratch + used;
+			if( copy_in )
+				(*env)->GetByteArrayRegion( env,
+					(jbyteArray) buf, offs[i], lens[i],
+					(jbyte *) scratch + used );
+			used += lens[i];
+		}
+		else
+		{
+			iov[i].iov_base = (char *)
+				(*env)->GetDirectBufferAddress( env, buf ) +
+				offs[i];
+		}
+		iov[i].iov_len = lens[i];
+		(*env)->DeleteLocalRef( env, buf );
+	}
+	(*env)->DeleteLocalRef( env, array_class );
+	return scratch;
+}
 
-		I think things like BlackBox with 2 ports open are getting
-		signals for both the reciever and transmitter since they
-		are the same PID.
+/*----------------------------------------------------------
+RXTXPort.nativeWriteVector
 
-		Things just start spinning out of control after that.
-	*/
-	LEAVE( "RXTXPort:writeArray" );
-	report_time_end();
-fail:
-	if( result < 0 ) throw_java_exception( env, IO_EXCEPTION,
-		"writeArray", strerror( errno ) );
+   accept:      jbufs: direct ByteBuffers or byte arrays
+                joffs, jlens: where in each the bytes are
+                count: number of parts
+                wait: wait for room in the output queue
+                jboolean interrupted (no events if true)
+   perform:     write the parts with writev(2), one after the other
+   return:      bytes written, all of them if wait is set
+   exceptions:  IOException
+   comments:    One call hands a header, payload and trailer to the
+                driver together.  Without wait it writes what the output
+                queue takes and returns, for parking writes.  Win32 has
+                no writev, the parts are written one at a time.
+----------------------------------------------------------*/
+JNIEXPORT jlong JNICALL RXTXPort(nativeWriteVector)( JNIEnv *env,
+	jobject jobj, jobjectArray jbufs, jintArray joffs, jintArray jlens,
+	jint count, jboolean wait, jboolean interrupted )
+{
+	int fd = get_port_fd( env, jobj );
+	struct iovec stackiov[ 16 ];
+	struct iovec *iov = stackiov, *cur;
+	jint stackints[ 32 ];
+	jint *offs = stackints, *lens = stackints + 16;
+	unsigned char stackbuf[ STACK_BUFFER_SIZE ];
+	unsigned char *scratch = NULL;
+	int left = count, n;
+	jlong total = 0;
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	struct event_info_struct *eis;
+#endif /* !TIOCSERGETLSR !WIN32 */
+
+	if( count > 16 )
+	{
+		iov = (struct iovec *) malloc( count * sizeof( struct iovec ) );
+		offs = (jint *) malloc( 2 * count * sizeof( jint ) );
+		if( !iov || !offs )
+		{
+			errno = ENOMEM;
+			total = -1;
+			goto done;
+		}
+		lens = offs + count;
+	}
+	(*env)->GetIntArrayRegion( env, joffs, 0, count, offs );
+	(*env)->GetIntArrayRegion( env, jlens, 0, count, lens );
+	scratch = build_iovec( env, jbufs, offs, lens, count, iov, stackbuf, 1 );
+	if( !scratch )
+	{
+		total = -1;
+		goto done;
+	}
+	cur = iov;
+	while( left > 0 )
+	{
+		if( !cur->iov_len )
+		{
+			cur++;
+			left--;
+			continue;
+		}
+#ifndef WIN32
+		n = writev( fd, cur, left < IOV_MAX ? left : IOV_MAX );
+#else
+		n = WRITE( fd, cur->iov_base, cur->iov_len );
+#endif /* WIN32 */
+		if( n < 0 )
+		{
+			if( errno == EINTR )
+			{
+				count_interrupted( env, jobj );
+				continue;
+			}
+#ifndef WIN32
+			if( errno == EAGAIN )
+			{
+				if( !wait )
+					break;
+				n = wait_port( get_port_context( env, jobj ), fd,
+					POLLOUT, -1 );
+				if( n <= 0 )
+				{
+					/* 0: close() released the wait */
+					if( n == 0 )
+						errno = EBADF;
+					total = -1;
+					break;
+				}
+				continue;
+			}
+#endif /* WIN32 */
+			total = -1;
+			break;
+		}
+		if( n == 0 )
+			break;
+		total += n;
+		advance_iovec( &cur, &left, n );
+	}
+#if !defined(TIOCSERGETLSR) && !defined(WIN32)
+	if( total > 0 && !interrupted )
+	{
+		eis = get_port_eis( env, jobj );
+		if( eis )
+			eis->writing = 1;
+	}
+#endif /* !TIOCSERGETLSR !WIN32 */
+done:
+	if( scratch && scratch != stackbuf ) free( scratch );
+	if( iov != stackiov ) free( iov );
+	if( offs != stackints ) free( offs );
+	if( total < 0 )
+		throw_java_exception( env, IO_EXCEPTION, "nativeWriteVector",
+			strerror( errno ) );
+	return total;
+}
+
+#ifndef WIN32
+/*----------------------------------------------------------
+read_vector_waiting
+
+   accept:      fd, the iovec array and count
+   perform:     readv(2) no more bytes than the driver has, so a VMIN
+                set by the receive threshold cannot hold the read
+   return:      as readv(2)
+   exceptions:  none
+   comments:    The part where those bytes end is shortened for the
+                call only.
+----------------------------------------------------------*/
+static ssize_t read_vector_waiting( int fd, struct iovec *iov, int count )
+{
+	struct iovec *last;
+	size_t saved;
+	ssize_t n;
+	int waiting, i;
+
+	if( ioctl( fd, FIONREAD, &waiting ) < 0 || waiting <= 0 )
+		waiting = 1;
+	for( i = 0; i < count - 1 && iov[ i ].iov_len < (size_t) waiting; i++ )
+		waiting -= iov[ i ].iov_len;
+	last = iov + i;
+	saved = last->iov_len;
+	if( (size_t) waiting < saved )
+		last->iov_len = waiting;
+	n = readv( fd, iov, i + 1 );
+	last->iov_len = saved;
+	return n;
+}
+#endif /* WIN32 */
+
+/*----------------------------------------------------------
+RXTXPort.nativeReadVector
+
+   accept:      jbufs: direct ByteBuffers or byte arrays
+                joffs, jlens: where in each the bytes go
+                count: number of parts
+                minimum: bytes to wait for
+   perform:     fill the parts one after the other with readv(2) until
+                minimum bytes came or the receive timeout passed
+   return:      bytes read, 0 on timeout
+   exceptions:  IOException
+   comments:    Waits as read_byte_array does and takes the carry
+                first.  A readv may bring more than minimum bytes, up to
+                the room in the parts.
+----------------------------------------------------------*/
+JNIEXPORT jlong JNICALL RXTXPort(nativeReadVector)( JNIEnv *env,
+	jobject jobj, jobjectArray jbufs, jintArray joffs, jintArray jlens,
+	jint count, jint minimum )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+	struct event_info_struct *eis = get_port_eis( env, jobj );
+	struct iovec stackiov[ 16 ];
+	struct iovec *iov = stackiov, *cur;
+	jint stackints[ 32 ];
+	jint *offs = stackints, *lens = stackints + 16;
+	unsigned char stackbuf[ STACK_BUFFER_SIZE ];
+	unsigned char *scratch = NULL;
+	jclass array_class;
+	jobject buf;
+	int left = count, n, i, flag = 0, used = 0;
+	long timeLeft = -1, deadline = 0;
+	jlong total = 0, copied = 0;
+
+	if( !ctx )
+	{
+		throw_java_exception( env, IO_EXCEPTION, "nativeReadVector",
+			strerror( EBADF ) );
+		return -1;
+	}
+	if( count > 16 )
+	{
+		iov = (struct iovec *) malloc( count * sizeof( struct iovec ) );
+		offs = (jint *) malloc( 2 * count * sizeof( jint ) );
+		if( !iov || !offs )
+		{
+			errno = ENOMEM;
+			total = -1;
+			goto done;
+		}
+		lens = offs + count;
+	}
+	(*env)->GetIntArrayRegion( env, joffs, 0, count, offs );
+	(*env)->GetIntArrayRegion( env, jlens, 0, count, lens );
+	scratch = build_iovec( env, jbufs, offs, lens, count, iov, stackbuf, 0 );
+	if( !scratch )
+	{
+		total = -1;
+		goto done;
+	}
+	if( eis )
+	{
+		flag = eis->eventflags[SPE_DATA_AVAILABLE];
+		eis->eventflags[SPE_DATA_AVAILABLE] = 0;
+	}
+	cur = iov;
+	/* what a terminated read left over comes first */
+	while( ctx->carry_len && left > 0 )
+	{
+		n = take_carry( ctx, (unsigned char *) cur->iov_base,
+			cur->iov_len );
+		total += n;
+		advance_iovec( &cur, &left, n );
+		if( left > 0 && !cur->iov_len )
+		{
+			cur++;
+			left--;
+		}
+	}
+	if( ctx->timeout >= 0 )
+		deadline = get_monotonic_ms() + ctx->timeout;
+	while( total < minimum && left > 0 )
+	{
+		if( !cur->iov_len )
+		{
+			cur++;
+			left--;
+			continue;
+		}
+		if( ctx->timeout >= 0 )
+		{
+			timeLeft = deadline - get_monotonic_ms();
+			if( timeLeft <= 0 )
+				break;
+		}
+#ifndef WIN32
+		n = wait_port( ctx, ctx->fd, POLLIN, (int) timeLeft );
+		if( n < 0 )
+		{
+			total = -1;
+			break;
+		}
+		if( n == 0 )
+			break;
+		n = read_vector_waiting( ctx->fd, cur,
+			left < IOV_MAX ? left : IOV_MAX );
+#else
+		n = READ( ctx->fd, cur->iov_base, cur->iov_len );
+#endif /* WIN32 */
+		if( n < 0 )
+		{
+			if( interrupted_call( ctx ) || errno == EAGAIN )
+				continue;
+			total = -1;
+			break;
+		}
+		/* readable but no data: the line hung up */
+		if( n == 0 )
+			break;
+		total += n;
+		advance_iovec( &cur, &left, n );
+	}
+	if( eis )
+		eis->eventflags[SPE_DATA_AVAILABLE] = flag;
+	/* hand the bytes read for arrays back to them */
+	array_class = (*env)->FindClass( env, "[B" );
+	for( i = 0; total > 0 && i < count && copied < total; i++ )
+	{
+		n = ( total - copied < lens[i] ) ? (int) ( total - copied ) : lens[i];
+		buf = (*env)->GetObjectArrayElement( env, jbufs, i );
+		if( (*env)->IsInstanceOf( env, buf, array_class ) )
+		{
+			(*env)->SetByteArrayRegion( env, (jbyteArray) buf,
+				offs[i], n, (jbyte *) scratch + used );
+			used += lens[i];
+		}
+		(*env)->DeleteLocalRef( env, buf );
+		copied += n;
+	}
+	(*env)->DeleteLocalRef( env, array_class );
+done:
+	if( scratch && scratch != stackbuf ) free( scratch );
+	if( iov != stackiov ) free( iov );
+	if( offs != stackints ) free( offs );
+	if( total < 0 )
+		throw_java_exception( env, IO_EXCEPTION, "nativeReadVector",
+			strerror( errno ) );
+	return total;
 }
 
 /*----------------------------------------------------------
@@ -1655,8 +2470,8 @@ RXTXPort.nativeDrain
 JNIEXPORT jboolean JNICALL RXTXPort(nativeDrain)( JNIEnv *env,
 	jobject jobj, jboolean interrupted )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
-	struct event_info_struct *eis = ( struct event_info_struct * ) get_java_var_long( env, jobj, "eis", "J" );
+	int fd = get_port_fd( env, jobj );
+	struct event_info_struct *eis = get_port_eis( env, jobj );
 	int result, count=0;
 
 	char message[80];
@@ -1707,7 +2522,7 @@ RXTXPort.sendBreak
 JNIEXPORT void JNICALL RXTXPort(sendBreak)( JNIEnv *env,
 	jobject jobj, jint duration )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	report_time_start( );
 	ENTER( "RXTXPort:sendBreak()" );
 	tcsendbreak( fd, (int)( duration / 250 ) );
@@ -1728,7 +2543,7 @@ JNIEXPORT jint JNICALL RXTXPort(NativegetReceiveTimeout)(
 	jobject jobj
 	)
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct termios ttyset;
 
 	ENTER( "RXTXPort:nativegetRecieveTimeout()" );
@@ -1755,7 +2570,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(NativeisReceiveTimeoutEnabled)(
 	jobject jobj
 	)
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct termios ttyset;
 	ENTER( "RXTXPort:NativeisRecieveTimeoutEnabled()" );
 	if( tcgetattr( fd, &ttyset ) < 0 ) goto fail;
@@ -1782,7 +2597,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isDSR)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isDSR" );
@@ -1812,7 +2627,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isCD)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isCD" );
@@ -1837,7 +2652,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isCTS)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isCTS" );
@@ -1863,7 +2678,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isRI)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isRI" );
@@ -1875,6 +2690,89 @@ JNIEXPORT jboolean JNICALL RXTXPort(isRI)( JNIEnv *env,
 	else return JNI_FALSE;
 }
 
+/*----------------------------------------------------------
+RXTXPort.nativeGetModemLines
+
+   accept:      none
+   perform:     read CTS, DSR, RI and CD with a single TIOCMGET
+   return:      MODEM_LINE_* bits of the lines that are set, -1 if the
+		driver has no modem lines
+   exceptions:  none
+   comments:    used by SerialEventReactor to poll for line changes
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(nativeGetModemLines)( JNIEnv *env,
+	jobject jobj )
+{
+	unsigned int status = 0;
+	int fd = get_port_fd( env, jobj );
+	jint lines = 0;
+
+	if( ioctl( fd, TIOCMGET, &status ) )
+		return -1;
+	if( status & TIOCM_CTS ) lines |= MODEM_LINE_CTS;
+	if( status & TIOCM_DSR ) lines |= MODEM_LINE_DSR;
+	if( status & TIOCM_RNG ) lines |= MODEM_LINE_RI;
+	if( status & TIOCM_CD ) lines |= MODEM_LINE_CD;
+	return lines;
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeGetICount
+
+   accept:      int array of at least ICOUNT_FIELDS elements
+   perform:     read the driver's interrupt counters with TIOCGICOUNT
+   return:      JNI_FALSE if the driver does not keep counters
+   exceptions:  none
+   comments:    the order of the fields is given in SerialImp.h
+----------------------------------------------------------*/
+JNIEXPORT jboolean JNICALL RXTXPort(nativeGetICount)( JNIEnv *env,
+	jobject jobj, jintArray jcounts )
+{
+#if defined(TIOCGICOUNT)
+	struct serial_icounter_struct sis;
+	int fd = get_port_fd( env, jobj );
+	jint counts[ ICOUNT_FIELDS ];
+
+	if( (*env)->GetArrayLength( env, jcounts ) < ICOUNT_FIELDS )
+		return JNI_FALSE;
+	memset( &sis, 0, sizeof( sis ) );
+	if( ioctl( fd, TIOCGICOUNT, &sis ) )
+		return JNI_FALSE;
+	counts[ 0 ] = sis.cts;
+	counts[ 1 ] = sis.dsr;
+	counts[ 2 ] = sis.rng;
+	counts[ 3 ] = sis.dcd;
+	counts[ 4 ] = sis.rx;
+	counts[ 5 ] = sis.tx;
+	counts[ 6 ] = sis.frame;
+	counts[ 7 ] = sis.overrun;
+	counts[ 8 ] = sis.parity;
+	counts[ 9 ] = sis.brk;
+	counts[ 10 ] = sis.buf_overrun;
+	(*env)->SetIntArrayRegion( env, jcounts, 0, ICOUNT_FIELDS, counts );
+	return JNI_TRUE;
+#else
+	return JNI_FALSE;
+#endif /* TIOCGICOUNT */
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeGetEintrCount
+
+   accept:      none
+   perform:     read the count of calls retried after EINTR
+   return:      the count since the port was opened, 0 if closed
+   exceptions:  none
+   comments:    used by SerialPortMetrics
+----------------------------------------------------------*/
+JNIEXPORT jlong JNICALL RXTXPort(nativeGetEintrCount)( JNIEnv *env,
+	jobject jobj )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	return ctx ? ctx->eintr : 0;
+}
+
 /*----------------------------------------------------------
 RXTXPort.isRTS
 
@@ -1889,7 +2787,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isRTS)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isRTS" );
@@ -1916,7 +2814,7 @@ JNIEXPORT void JNICALL RXTXPort(setRTS)( JNIEnv *env,
 	jobject jobj, jboolean state )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:setRTS" );
@@ -1945,7 +2843,7 @@ JNIEXPORT void JNICALL RXTXPort(setDSR)( JNIEnv *env,
 	jobject jobj, jboolean state )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:setDSR()" );
@@ -1975,7 +2873,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(isDTR)( JNIEnv *env,
 	jobject jobj )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:isDTR" );
@@ -2001,7 +2899,7 @@ JNIEXPORT void JNICALL RXTXPort(setDTR)( JNIEnv *env,
 	jobject jobj, jboolean state )
 {
 	unsigned int result = 0;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	char message[80];
 
 	ENTER( "RXTXPort:setDTR" );
@@ -2090,7 +2988,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(nativeSetBaudBase)(
 
 #if defined(TIOCGSERIAL)
 
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct serial_struct sstruct;
 
 	if ( ioctl( fd, TIOCGSERIAL, &sstruct ) < 0 )
@@ -2136,7 +3034,7 @@ JNIEXPORT jint JNICALL RXTXPort(nativeGetBaudBase)(
 
 #if defined(TIOCGSERIAL)
 
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct serial_struct sstruct;
 
 	if ( ioctl( fd, TIOCGSERIAL, &sstruct ) < 0 )
@@ -2176,7 +3074,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(nativeSetDivisor)(
 
 #if defined(TIOCGSERIAL)
 
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct serial_struct sstruct;
 
 	if ( ioctl( fd, TIOCGSERIAL, &sstruct ) < 0 )
@@ -2220,7 +3118,7 @@ JNIEXPORT jint JNICALL RXTXPort(nativeGetDivisor)(
 
 #if defined(TIOCGSERIAL)
 
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct serial_struct sstruct;
 
 	if ( ioctl( fd, TIOCGSERIAL, &sstruct ) < 0 )
@@ -2908,7 +3806,7 @@ JNIEXPORT jbyte JNICALL RXTXPort(nativeGetParityErrorChar)( JNIEnv *env,
 	ENTER( "nativeGetParityErrorChar" );
 #ifdef WIN32
 	result = ( jbyte ) termiosGetParityErrorChar(
-			get_java_var(env, jobj, "fd", "I" ) );
+			get_port_fd( env, jobj ) );
 #else
 	/*
 	   arg!  I cant find a way to change it from \0 in Linux.  I think
@@ -2933,7 +3831,7 @@ RXTXPort.nativeGetEndOfInputChar
 JNIEXPORT jbyte JNICALL RXTXPort(nativeGetEndOfInputChar)( JNIEnv *env,
 	jobject jobj )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct termios ttyset;
 
 	ENTER( "nativeGetEndOfInputChar" );
@@ -2965,7 +3863,7 @@ JNIEXPORT jboolean JNICALL RXTXPort(nativeSetParityErrorChar)( JNIEnv *env,
 	{
 
 #ifdef WIN32
-		int fd = get_java_var( env, jobj,"fd","I" );
+		int fd = get_port_fd( env, jobj );
 		ENTER( "nativeSetParityErrorChar" );
 		termiosSetParityError( fd, ( char ) value );
 		LEAVE( "nativeSetParityErrorChar" );
@@ -3003,7 +3901,7 @@ RXTXPort.nativeSetEndOfInputChar
 JNIEXPORT jboolean JNICALL RXTXPort(nativeSetEndOfInputChar)( JNIEnv *env,
 	jobject jobj, jbyte value )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 	struct termios ttyset;
 
 	ENTER( "nativeSetEndOfInputChar" );
@@ -3040,13 +3938,307 @@ GetTickCount()
 #endif /* !WIN32 */
 
 /*----------------------------------------------------------
-read_byte_array
+get_monotonic_ms
 
-   accept:      int                fd   file descriptor to read from
-                unsigned char *buffer   buffer to read data into
-                int            length   number of bytes to read
-		int           timeout   milliseconds to wait before returning
-   perform:     read bytes from the port into a buffer
+   accept:      none
+   perform:     read a clock that does not jump with the time of day
+   return:      milliseconds from an arbitrary starting point
+   exceptions:  none
+   comments:    used for read deadlines.  Falls back to GetTickCount()
+		where CLOCK_MONOTONIC is not available.
+----------------------------------------------------------*/
+long get_monotonic_ms( void )
+{
+#if !defined(WIN32) && defined(CLOCK_MONOTONIC)
+	struct timespec now;
+
+	if( clock_gettime( CLOCK_MONOTONIC, &now ) == 0 )
+		return( now.tv_sec * 1000 + now.tv_nsec / 1000000 );
+#endif /* !WIN32 && CLOCK_MONOTONIC */
+	return( GetTickCount() );
+}
+
+/*----------------------------------------------------------
+lock_carry, unlock_carry
+
+   accept:      ctx
+   perform:     take or give back the lock of the carry
+   return:      none
+   exceptions:  none
+   comments:    held only while bytes are moved, never while waiting
+		for the line
+----------------------------------------------------------*/
+static void lock_carry( struct port_context *ctx )
+{
+#ifndef WIN32
+	pthread_mutex_lock( &ctx->carry_lock );
+#else
+	EnterCriticalSection( &ctx->carry_lock );
+#endif /* WIN32 */
+}
+
+static void unlock_carry( struct port_context *ctx )
+{
+#ifndef WIN32
+	pthread_mutex_unlock( &ctx->carry_lock );
+#else
+	LeaveCriticalSection( &ctx->carry_lock );
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+take_carry
+
+   accept:      ctx, buffer and length
+   perform:     move up to length bytes of the carry into buffer
+   return:      bytes moved
+   exceptions:  none
+   comments:    the carry holds what read_terminated read past a
+		record.  Every read takes from it before the fd.
+----------------------------------------------------------*/
+int take_carry( struct port_context *ctx, unsigned char *buffer, int length )
+{
+	int n;
+
+	lock_carry( ctx );
+	n = ctx->carry_len < length ? ctx->carry_len : length;
+	if( n > 0 )
+	{
+		memcpy( buffer, ctx->carry + ctx->carry_start, n );
+		ctx->carry_start += n;
+		ctx->carry_len -= n;
+		if( !ctx->carry_len )
+			ctx->carry_start = 0;
+	}
+	else
+		n = 0;
+	unlock_carry( ctx );
+	return n;
+}
+
+/*----------------------------------------------------------
+put_back_carry
+
+   accept:      ctx, bytes and their count
+   perform:     put the bytes in front of the carry, growing it if
+		need be
+   return:      0 on success, -1 if out of memory
+   exceptions:  none
+   comments:    bytes taken with take_carry go back where they were
+		without a copy of the rest.
+----------------------------------------------------------*/
+int put_back_carry( struct port_context *ctx, unsigned char *src, int n )
+{
+	unsigned char *grown;
+
+	if( n <= 0 )
+		return 0;
+	lock_carry( ctx );
+	if( ctx->carry_start >= n )
+	{
+		ctx->carry_start -= n;
+		memcpy( ctx->carry + ctx->carry_start, src, n );
+		ctx->carry_len += n;
+		unlock_carry( ctx );
+		return 0;
+	}
+	if( ctx->carry_size < n + ctx->carry_len )
+	{
+		grown = (unsigned char *) realloc( ctx->carry,
+			n + ctx->carry_len );
+		if( !grown )
+		{
+			unlock_carry( ctx );
+			return -1;
+		}
+		ctx->carry = grown;
+		ctx->carry_size = n + ctx->carry_len;
+	}
+	memmove( ctx->carry + n, ctx->carry + ctx->carry_start,
+		ctx->carry_len );
+	memcpy( ctx->carry, src, n );
+	ctx->carry_start = 0;
+	ctx->carry_len += n;
+	unlock_carry( ctx );
+	return 0;
+}
+
+/*----------------------------------------------------------
+bytes_ready
+
+   accept:      port context, may be NULL, and the fd of the port
+   perform:     count what the next read gets without waiting, the
+		bytes of the driver and those in the carry
+   return:      0, -1 with errno set if FIONREAD failed
+   exceptions:  none
+   comments:    every check for DATA_AVAILABLE counts the carry, or a
+		record read ahead by a terminated read would wait for
+		the next byte from the line.
+----------------------------------------------------------*/
+int bytes_ready( struct port_context *ctx, int fd, int *count )
+{
+	if( ioctl( fd, FIONREAD, count ) < 0 )
+		return -1;
+	if( ctx )
+		*count += ctx->carry_len;
+	return 0;
+}
+
+/*----------------------------------------------------------
+find_terminator
+
+   accept:      buffer and length, terminator and its length, where to
+		start looking
+   perform:     look for the terminator with memchr on its first byte
+   return:      offset of the terminator, -1 if it is not there
+   exceptions:  none
+   comments:    memmem is not everywhere, this is close enough for
+		terminators of a few bytes
+----------------------------------------------------------*/
+static int find_terminator( unsigned char *buffer, int length,
+	unsigned char *term, int tlen, int from )
+{
+	unsigned char *p = buffer + from;
+	unsigned char *end = buffer + length - tlen + 1;
+
+	while( p < end )
+	{
+		p = (unsigned char *) memchr( p, term[ 0 ], end - p );
+		if( !p )
+			return -1;
+		if( !memcmp( p, term, tlen ) )
+			return (int) ( p - buffer );
+		p++;
+	}
+	return -1;
+}
+
+/*----------------------------------------------------------
+read_terminated
+
+   accept:      env, jobj, ctx, buffer and length, terminator and its
+		length, whole
+   perform:     read until the terminator is in buffer, buffer is full
+		or the receive timeout passes.  Input is read in bulk,
+		whatever the driver has.  Bytes after the terminator go to
+		the carry for the next read.  With whole set a record cut
+		short by the timeout goes back to the carry too.
+   return:      bytes in buffer, the last ones the terminator if it was
+		found.  0 on timeout with whole set.
+		-1 on error with errno set
+   exceptions:  none
+   comments:    only bytes not searched yet are searched, so a line
+		takes one or two reads instead of one per byte.  The
+		timeout covers the whole call.
+----------------------------------------------------------*/
+int read_terminated( JNIEnv *env, jobject *jobj, struct port_context *ctx,
+	unsigned char *buffer, int length, unsigned char *term, int tlen,
+	int whole )
+{
+	int total, found, ret, want, scanned = 0, complete = 0, flag = 0;
+	long timeLeft = -1, deadline = 0;
+#ifndef WIN32
+	int waiting;
+#endif /* WIN32 */
+	struct event_info_struct *eis = get_port_eis( env, *jobj );
+
+	/* the bytes are ours, do not send DATA_AVAILABLE for them */
+	if( eis )
+	{
+		flag = eis->eventflags[SPE_DATA_AVAILABLE];
+		eis->eventflags[SPE_DATA_AVAILABLE] = 0;
+	}
+	if( ctx->timeout >= 0 )
+		deadline = get_monotonic_ms() + ctx->timeout;
+	total = take_carry( ctx, buffer, length );
+	for( ;; )
+	{
+		found = find_terminator( buffer, total, term, tlen, scanned );
+		if( found >= 0 )
+		{
+			found += tlen;
+			if( put_back_carry( ctx, buffer + found, total - found ) )
+			{
+				errno = ENOMEM;
+				total = -1;
+				break;
+			}
+			total = found;
+			complete = 1;
+			break;
+		}
+		if( total == length )
+		{
+			complete = 1;
+			break;
+		}
+		scanned = total > tlen ? total - tlen + 1 : 0;
+		if( ctx->timeout >= 0 )
+		{
+			timeLeft = deadline - get_monotonic_ms();
+			if( timeLeft <= 0 )
+				break;
+		}
+		want = length - total;
+#ifndef WIN32
+		ret = wait_port( ctx, ctx->fd, POLLIN, (int) timeLeft );
+		if( ret == 0 )
+			break;
+		if( ret < 0 )
+		{
+			total = -1;
+			break;
+		}
+		/* no more than is there, a VMIN must not hold the read */
+		if( ioctl( ctx->fd, FIONREAD, &waiting ) < 0 || waiting <= 0 )
+			waiting = 1;
+		if( waiting < want )
+			want = waiting;
+#endif /* WIN32 */
+		ret = READ( ctx->fd, buffer + total, want );
+		if( ret < 0 )
+		{
+			if( interrupted_call( ctx ) || errno == EAGAIN )
+				continue;
+			total = -1;
+			break;
+		}
+		if( ret == 0 )
+		{
+			/* readable but no data: the line hung up */
+			complete = 1;
+			break;
+		}
+		total += ret;
+	}
+	if( whole && !complete && total > 0 )
+	{
+		if( put_back_carry( ctx, buffer, total ) )
+		{
+			errno = ENOMEM;
+			total = -1;
+		}
+		else
+			total = 0;
+	}
+	if( eis )
+	{
+		eis->eventflags[SPE_DATA_AVAILABLE] = flag;
+		/* the event loop may wait for the line with a record here */
+		if( flag && ctx->carry_len )
+			signal_wakeup( ctx->wakeup );
+	}
+	return total;
+}
+
+/*----------------------------------------------------------
+read_byte_array
+
+   accept:      int                fd   file descriptor to read from
+                unsigned char *buffer   buffer to read data into
+                int            length   number of bytes to read
+		int           timeout   milliseconds to wait before returning
+   perform:     read bytes from the port into a buffer
    return:      status of read
                 -1 fail (IOException)
                  0 timeout
@@ -3056,6 +4248,17 @@ read_byte_array
 
 		The nuts and bolts are documented in
 		NativeEnableReceiveTimeoutThreshold()
+
+		VMIN/VTIME must not make read(2) wait, the fd is blocking
+		unless nativeSetNonBlocking() was called.  Instead we block
+		in poll() against a single deadline computed on entry and
+		read no more than the driver has each time the fd becomes
+		readable.  There are no
+		sleeps; a readable fd that returns 0 bytes (hangup) ends
+		the read with what we have so far.
+
+		Bytes a terminated read left in the carry are taken
+		before the fd is read.
 ----------------------------------------------------------*/
 
 int read_byte_array( JNIEnv *env,
@@ -3065,110 +4268,82 @@ int read_byte_array( JNIEnv *env,
                      int length,
                      int timeout )
 {
-	int ret, left, bytes = 0;
-	long timeLeft, now = 0, start = 0;
-	/* char msg[80]; */
-	struct timeval tv, *tvP;
-	fd_set rset;
-	/* TRENT */
-	int flag, count = 0;
-	struct event_info_struct *eis = ( struct event_info_struct * )
-		get_java_var_long( env, *jobj,"eis","J" );
+	int ret, left, want, bytes = 0;
+	long timeLeft = -1, deadline = 0;
+	int flag = 0;
+#ifdef WIN32
+	int count = 0;
+#endif /* WIN32 */
+	struct event_info_struct *eis = get_port_eis( env, *jobj );
+	struct port_context *ctx = get_port_context( env, *jobj );
 
 	report_time_start();
-	flag = eis->eventflags[SPE_DATA_AVAILABLE];
-	eis->eventflags[SPE_DATA_AVAILABLE] = 0;
-/*
-	ENTER( "read_byte_array" );
-	sprintf(msg, "read_byte_array requests %i\n", length);
-	report( msg );
-*/
-	left = length;
+	if( eis )
+	{
+		flag = eis->eventflags[SPE_DATA_AVAILABLE];
+		eis->eventflags[SPE_DATA_AVAILABLE] = 0;
+	}
+	/* what a terminated read left over comes first */
+	if( ctx && ctx->carry_len )
+		bytes = take_carry( ctx, buffer, length );
+	left = length - bytes;
 	if (timeout >= 0)
-		start = GetTickCount();
-	while( bytes < length &&  count++ < 20 ) /* && !is_interrupted( eis ) )*/
+		deadline = get_monotonic_ms() + timeout;
+	while( bytes < length )
 	{
 		if (timeout >= 0) {
-			now = GetTickCount();
-			if ( now-start >= timeout )
-			{
-				eis->eventflags[SPE_DATA_AVAILABLE] = flag;
-				return bytes;
-			}
+			timeLeft = deadline - get_monotonic_ms();
+			if ( timeLeft <= 0 )
+				break;
 		}
-
-		FD_ZERO(&rset);
-		FD_SET(fd, &rset);
-
-		if (timeout >= 0){
-			timeLeft = timeout - (now - start);
-			tv.tv_sec = timeLeft / 1000;
-			tv.tv_usec = 1000 * ( timeLeft % 1000 );
-			tvP = &tv;
+#ifndef WIN32
+		ret = wait_port( ctx, fd, POLLIN, (int) timeLeft );
+		if (ret < 0){
+			report( "read_byte_array: poll returned -1\n" );
+			bytes = -1;
+			break;
 		}
-		else{
-			tvP = NULL;
+		if (ret == 0)
+		{
+			/* deadline reached or the port is closing */
+			break;
 		}
-		/* FIXME HERE Trent */
-#ifndef WIN32
-		do {
-			ret = SELECT( fd + 1, &rset, NULL, NULL, tvP );
-		} while (ret < 0 && errno==EINTR);
+		/* no more than is there, a VMIN must not hold the read */
+		if( ioctl( fd, FIONREAD, &want ) < 0 || want <= 0 )
+			want = 1;
+		if( want > left )
+			want = left;
 #else
-		ret = 1;
+		want = left;
 #endif /* WIN32 */
-		if (ret == -1){
-			report( "read_byte_array: select returned -1\n" );
-			LEAVE( "read_byte_array" );
-			eis->eventflags[SPE_DATA_AVAILABLE] = flag;
-			return -1;
+		ret = READ( fd, buffer + bytes, want );
+		if (ret < 0){
+			if (interrupted_call( ctx ) || errno == EAGAIN)
+				continue;
+			report( "read_byte_array: read returned -1\n" );
+			bytes = -1;
+			break;
 		}
-		else if (ret > 0)
-		{
-			if ((ret = READ( fd, buffer + bytes, left )) < 0 ){
-				if (errno != EINTR && errno != EAGAIN){
-					report( "read_byte_array: read returned -1\n" );
-					LEAVE( "read_byte_array" );
-					eis->eventflags[SPE_DATA_AVAILABLE] = flag;
-					return -1;
-				}
-				eis->eventflags[SPE_DATA_AVAILABLE] = flag;
-				return -1;
-			}
-			else if ( ret ) {
-				bytes += ret;
-				left -= ret;
-			}
-		/*
-		The only thing that is bugging me with the new
-		version is the CPU usage when reading on the serial port.  I
-		looked at it today and find a quick fix.  It doesn't seems to
-		affect the performance for our apps (I mean in a negative way,
-		cause the CPU is back to normal, near 0-5%).  All I did is add
-		a usleep in the reading function.
-
-		Nicolas <ripley@8d.com>
-		*/
-			else {
-				/* usleep(10); */
-				usleep(1000);
-			}
+		else if ( ret ) {
+			bytes += ret;
+			left -= ret;
+		}
+		else {
+#ifdef WIN32
+			/* serial_read() polls, give it a few chances */
+			if( ++count >= 20 )
+				break;
+			usleep(1000);
+#else
+			/* readable but no data: the line hung up */
+			break;
+#endif /* WIN32 */
 		}
 	}
 
-/*
-	if( count > 19 )
-	{
-		throw_java_exception( env, IO_EXCEPTION, "read_byte_array",
-			"No data available" );
-	}
-
-	sprintf(msg, "read_byte_array returns %i\n", bytes);
-	report( msg );
-	LEAVE( "read_byte_array" );
+	if( eis )
+		eis->eventflags[SPE_DATA_AVAILABLE] = flag;
 	report_time_end();
-*/
-	eis->eventflags[SPE_DATA_AVAILABLE] = flag;
 	return bytes;
 }
 
@@ -3304,14 +4479,20 @@ NativeEnableReceiveTimeoutThreshold
    exceptions:  IOException
    comments:    This is actually all handled in read with select in
                 canonical input mode.
+
+		vtime is also kept in the port context as the timeout
+		used by readByte, readArray and readTerminatedArray.
 ----------------------------------------------------------*/
 JNIEXPORT void JNICALL RXTXPort(NativeEnableReceiveTimeoutThreshold)(
 	JNIEnv *env, jobject jobj, jint vtime, jint threshold, jint buffer)
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	struct port_context *ctx = get_port_context( env, jobj );
+	int fd = ctx ? ctx->fd : 0;
 	struct termios ttyset;
 	int timeout;
 
+	if( ctx ) ctx->timeout = vtime;
+
 	if (vtime < 0){
 		timeout = 0;
 	}
@@ -3337,6 +4518,92 @@ fail:
 	return;
 }
 
+/*----------------------------------------------------------
+RXTXPort.nativeSetEventCoalescing
+
+   accept:      microseconds, 0 to send DATA_AVAILABLE at once
+   perform:     set how long DATA_AVAILABLE waits for more bytes
+   return:      none
+   exceptions:  none
+   comments:    see wait_before_data_available()
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL RXTXPort(nativeSetEventCoalescing)( JNIEnv *env,
+	jobject jobj, jint usec )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	if( ctx ) ctx->coalesce = usec;
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeDataDelivered
+
+   accept:      none
+   perform:     count a DATA_AVAILABLE the listener has returned from
+		and note the bytes it left unread
+   return:      none
+   exceptions:  none
+   comments:    called on the dispatcher thread, see
+		wait_before_data_available().  RXTXPort.dataDelivered()
+		admits it like I/O, so close() frees ctx only after it.
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL RXTXPort(nativeDataDelivered)( JNIEnv *env,
+	jobject jobj )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+	int unread;
+
+	if( !ctx )
+		return;
+	if( bytes_ready( ctx, ctx->fd, &unread ) )
+		unread = -1;
+	ctx->unread = unread;
+	ctx->delivered++;
+	signal_wakeup( ctx->wakeup );
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeCarried
+
+   accept:      none
+   perform:     count the bytes a terminated read left in the carry
+   return:      the bytes, 0 if the port is closed
+   exceptions:  none
+   comments:    RXTXPort.carrying follows it, so selectors find a
+		record that is read ahead already
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(nativeCarried)( JNIEnv *env,
+	jobject jobj )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	return ctx ? ctx->carry_len : 0;
+}
+
+/*----------------------------------------------------------
+RXTXPort.nativeInterruptIO
+
+   accept:      release: true when close() starts, false if it gave up
+   perform:     write or drain the release wakeup of the port context
+   return:      none
+   exceptions:  none
+   comments:    while it is written the reads and writes waiting in
+		poll() return at once, see wait_port(), so close() does
+		not wait for the receive timeout of a blocked read.
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL RXTXPort(nativeInterruptIO)( JNIEnv *env,
+	jobject jobj, jboolean release )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	if( !ctx )
+		return;
+	if( release )
+		signal_wakeup( ctx->release );
+	else
+		drain_wakeup( ctx->release );
+}
+
 /*----------------------------------------------------------
 RXTXPort.readByte
 
@@ -3476,15 +4743,19 @@ JNIEXPORT jint JNICALL RXTXPort(readByte)( JNIEnv *env,
 {
 	int bytes;
 	unsigned char buffer[ 1 ];
-	int fd = get_java_var( env, jobj,"fd","I" );
-	int timeout = get_java_var( env, jobj, "timeout", "I" );
+	struct port_context *ctx = get_port_context( env, jobj );
 	/* char msg[80]; */
 
 /*
 	ENTER( "RXTXPort:readByte" );
 	report_time_start( );
 */
-	bytes = read_byte_array( env, &jobj, fd, buffer, 1, timeout );
+	if( !ctx ) {
+		throw_java_exception( env, IO_EXCEPTION, "readByte",
+			strerror( EBADF ) );
+		return -1;
+	}
+	bytes = read_byte_array( env, &jobj, ctx->fd, buffer, 1, ctx->timeout );
 	if( bytes < 0 ) {
 		LEAVE( "RXTXPort:readByte" );
 		throw_java_exception( env, IO_EXCEPTION, "readByte",
@@ -3511,20 +4782,28 @@ RXTXPort.readArray
    exceptions:   IOException
    comments:     throws ArrayIndexOutOfBoundsException if asked to
                  read more than SSIZE_MAX bytes
+
+		 Only the bytes read are copied into the java array,
+		 through a stack buffer when length fits.
 ----------------------------------------------------------*/
 JNIEXPORT jint JNICALL RXTXPort(readArray)( JNIEnv *env,
 	jobject jobj, jbyteArray jbarray, jint offset, jint length )
 {
 	int bytes;
-	jbyte *body;
+	unsigned char stackbuf[ STACK_BUFFER_SIZE ];
+	unsigned char *body = stackbuf;
 	/* char msg[80]; */
-	int fd = get_java_var( env, jobj, "fd", "I" );
-	int timeout = get_java_var( env, jobj, "timeout", "I" );
+	struct port_context *ctx = get_port_context( env, jobj );
 
 /*
 	ENTER( "readArray" );
 	report_time_start( );
 */
+	if( !ctx ) {
+		throw_java_exception( env, IO_EXCEPTION, "readArray",
+			strerror( EBADF ) );
+		return -1;
+	}
 #ifdef __LCC__
 	if( (size_t) length > SSIZE_MAX ) {
 #else
@@ -3536,9 +4815,21 @@ JNIEXPORT jint JNICALL RXTXPort(readArray)( JNIEnv *env,
 			"readArray", "Invalid length" );
 		return -1;
 	}
-	body = (*env)->GetByteArrayElements( env, jbarray, 0 );
-	bytes = read_byte_array( env, &jobj, fd, (unsigned char *)(body+offset), length, timeout );/* dima */
-	(*env)->ReleaseByteArrayElements( env, jbarray, body, 0 );
+	if( length > STACK_BUFFER_SIZE )
+	{
+		body = (unsigned char *) malloc( length );
+		if( !body )
+		{
+			throw_java_exception( env, IO_EXCEPTION, "readArray",
+				strerror( ENOMEM ) );
+			return -1;
+		}
+	}
+	bytes = read_byte_array( env, &jobj, ctx->fd, body, length, ctx->timeout );
+	if( bytes > 0 )
+		(*env)->SetByteArrayRegion( env, jbarray, offset, bytes,
+			(jbyte *) body );
+	if( body != stackbuf ) free( body );
 	if( bytes < 0 ) {
 		report( "RXTXPort:readArray bytes < 0" );
 		LEAVE( "RXTXPort:readArray" );
@@ -3555,6 +4846,132 @@ JNIEXPORT jint JNICALL RXTXPort(readArray)( JNIEnv *env,
 	return (bytes);
 }
 
+/*----------------------------------------------------------
+RXTXPort.readDirect
+
+   accept:       jbuffer: direct java.nio.ByteBuffer to fill
+                 offset (offset to start storing data in the buffer) and
+                 Length (bytes to read)
+   perform:      read bytes from the port straight into buffer memory
+   return:       bytes read on success
+                 0 on read timeout
+   exceptions:   IOException
+   comments:     RXTXPort.read(ByteBuffer) checks the bounds.
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(readDirect)( JNIEnv *env,
+	jobject jobj, jobject jbuffer, jint offset, jint length )
+{
+	int bytes;
+	struct port_context *ctx = get_port_context( env, jobj );
+	unsigned char *body =
+		(unsigned char *) (*env)->GetDirectBufferAddress( env, jbuffer );
+
+	if( !ctx ) {
+		throw_java_exception( env, IO_EXCEPTION, "readDirect",
+			strerror( EBADF ) );
+		return -1;
+	}
+	if( !body ) {
+		throw_java_exception( env, IO_EXCEPTION, "readDirect",
+			"not a direct buffer" );
+		return -1;
+	}
+	bytes = read_byte_array( env, &jobj, ctx->fd, body + offset, length,
+		ctx->timeout );
+	if( bytes < 0 ) {
+		report( "RXTXPort:readDirect bytes < 0" );
+		throw_java_exception( env, IO_EXCEPTION, "readDirect",
+			strerror( errno ) );
+		return -1;
+	}
+	return (jint) bytes;
+}
+
+/*----------------------------------------------------------
+RXTXPort.fillDirect
+
+   accept:       jbuffer: direct java.nio.ByteBuffer to fill
+                 offset (offset to start storing data in the buffer),
+                 length (room in the buffer) and timeout (milliseconds)
+   perform:      wait up to timeout for input and take what the driver
+                 has, up to length, with one read
+   return:       bytes read on success
+                 0 if nothing came before the timeout
+                 -1 if the line hung up
+   exceptions:   IOException
+   comments:     Used by the fill thread of SerialInputBuffer, and with
+                 a timeout of 0 by AsyncSerialPort.  Unlike
+                 readDirect it neither waits for length bytes nor hides
+                 DATA_AVAILABLE from the event loop.  A hung up line polls
+                 readable with nothing to read, so a read of one byte
+                 tells it apart when FIONREAD says 0.
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(fillDirect)( JNIEnv *env,
+	jobject jobj, jobject jbuffer, jint offset, jint length, jint timeout )
+{
+	int ret;
+	struct port_context *ctx = get_port_context( env, jobj );
+	unsigned char *body =
+		(unsigned char *) (*env)->GetDirectBufferAddress( env, jbuffer );
+#ifndef WIN32
+	int waiting;
+#endif /* WIN32 */
+
+	if( !ctx ) {
+		throw_java_exception( env, IO_EXCEPTION, "fillDirect",
+			strerror( EBADF ) );
+		return -1;
+	}
+	if( !body ) {
+		throw_java_exception( env, IO_EXCEPTION, "fillDirect",
+			"not a direct buffer" );
+		return -1;
+	}
+	ret = take_carry( ctx, body + offset, length );
+	if( ret > 0 )
+		return ret;
+#ifndef WIN32
+	ret = wait_port( ctx, ctx->fd, POLLIN, timeout );
+	if( ret == 0 )
+		return 0;
+	if( ret < 0 ) {
+		throw_java_exception( env, IO_EXCEPTION, "fillDirect",
+			strerror( errno ) );
+		return -1;
+	}
+	/*
+	   ask for no more than is there, so a VMIN set by the receive
+	   threshold cannot hold the read back
+	*/
+	if( ioctl( ctx->fd, FIONREAD, &waiting ) < 0 )
+		waiting = 1;
+	if( waiting == 0 )
+		waiting = 1;
+	if( waiting < length )
+		length = waiting;
+	do {
+		ret = READ( ctx->fd, body + offset, length );
+	} while( ret < 0 && interrupted_call( ctx ) );
+	if( ret < 0 ) {
+		if( errno == EAGAIN )
+			return 0;
+		throw_java_exception( env, IO_EXCEPTION, "fillDirect",
+			strerror( errno ) );
+		return -1;
+	}
+	/* readable but no data: the line hung up */
+	return ret ? (jint) ret : -1;
+#else
+	ret = read_byte_array( env, &jobj, ctx->fd, body + offset, 1, timeout );
+	if( ret < 0 ) {
+		throw_java_exception( env, IO_EXCEPTION, "fillDirect",
+			strerror( errno ) );
+		return -1;
+	}
+	return (jint) ret;
+#endif /* WIN32 */
+}
+
 /*----------------------------------------------------------
 RXTXPort.nativeClearCommInput
 
@@ -3567,24 +4984,104 @@ RXTXPort.nativeClearCommInput
 JNIEXPORT jboolean JNICALL RXTXPort(nativeClearCommInput)( JNIEnv *env,
 	jobject jobj )
 {
-	int fd = get_java_var( env, jobj, "fd", "I" );
+	struct port_context *ctx = get_port_context( env, jobj );
+	int fd = ctx ? ctx->fd : 0;
+
+	if( ctx )
+	{
+		lock_carry( ctx );
+		ctx->carry_start = 0;
+		ctx->carry_len = 0;
+		unlock_carry( ctx );
+	}
 	if ( tcflush( fd, TCIFLUSH ) )
 		return( JNI_FALSE );
 	return( JNI_TRUE );
 }
+/*----------------------------------------------------------
+terminated_read_array
+
+   accept:       jbarray, offset and length as for readArray,
+                 jterminator the bytes ending a record, whole as for
+                 read_terminated and the name of the caller
+   perform:      run read_terminated and copy the bytes into jbarray
+   return:       as read_terminated
+   exceptions:   IOException, ArrayIndexOutOfBoundsException for a bad
+                 length or an empty terminator
+   comments:     common part of readTerminatedArray and nativeReadRecord
+----------------------------------------------------------*/
+static jint terminated_read_array( JNIEnv *env, jobject jobj,
+	jbyteArray jbarray, jint offset, jint length, jbyteArray jterminator,
+	int whole, char *name )
+{
+	int bytes, tlen;
+	unsigned char stackbuf[ STACK_BUFFER_SIZE ];
+	unsigned char termbuf[ 64 ];
+	unsigned char *body = stackbuf, *terminator = termbuf;
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	if( !ctx ) {
+		throw_java_exception( env, IO_EXCEPTION, name,
+			strerror( EBADF ) );
+		return -1;
+	}
+	tlen = (*env)->GetArrayLength( env, jterminator );
+#ifdef __LCC__
+	if( (size_t) length > SSIZE_MAX || tlen < 1 ) {
+#else
+	if( (size_t) length > SSIZE_MAX || (size_t) length < 0 || tlen < 1 ) {
+#endif /* __LCC__ */
+		report( "RXTXPort:readTerminatedArray invalid length" );
+		throw_java_exception( env, ARRAY_INDEX_OUT_OF_BOUNDS,
+			name, "Invalid length" );
+		return -1;
+	}
+	if( length > STACK_BUFFER_SIZE )
+		body = (unsigned char *) malloc( length );
+	if( tlen > (int) sizeof( termbuf ) )
+		terminator = (unsigned char *) malloc( tlen );
+	if( !body || !terminator )
+	{
+		if( body != stackbuf ) free( body );
+		if( terminator != termbuf ) free( terminator );
+		throw_java_exception( env, IO_EXCEPTION, name,
+			strerror( ENOMEM ) );
+		return -1;
+	}
+	(*env)->GetByteArrayRegion( env, jterminator, 0, tlen,
+		(jbyte *) terminator );
+	bytes = read_terminated( env, &jobj, ctx, body, length, terminator,
+		tlen, whole );
+	if( bytes > 0 )
+		(*env)->SetByteArrayRegion( env, jbarray, offset, bytes,
+			(jbyte *) body );
+	if( body != stackbuf ) free( body );
+	if( terminator != termbuf ) free( terminator );
+	if( bytes < 0 ) {
+		report( "RXTXPort:readTerminatedArray bytes < 0" );
+		throw_java_exception( env, IO_EXCEPTION, name,
+			strerror( errno ) );
+		return -1;
+	}
+	return (jint) bytes;
+}
+
 /*----------------------------------------------------------
 RXTXPort.readTerminatedArray
 
    accept:       offset (offset to start storing data in the jbarray) and
-                 Length (bytes to read).  Terminator - 2 bytes that we
+                 Length (bytes to read).  Terminator - the bytes that we
 		 dont read past
-   perform:      read bytes from the port into a byte array
+   perform:      read bytes from the port into a byte array until the
+                 terminator, length bytes or the receive timeout
    return:       bytes read on success
                  0 on read timeout
    exceptions:   IOException
    comments:     throws ArrayIndexOutOfBoundsException if asked to
                  read more than SSIZE_MAX bytes
-		 timeout is not properly handled
+
+		 Input is read in bulk, bytes past the terminator are kept
+		 for the next read.  See read_terminated.
 
 		 This is an extension to commapi.
 ----------------------------------------------------------*/
@@ -3592,57 +5089,27 @@ JNIEXPORT jint JNICALL RXTXPort(readTerminatedArray)( JNIEnv *env,
 	jobject jobj, jbyteArray jbarray, jint offset, jint length,
 	jbyteArray jterminator )
 {
-	int bytes, total = 0;
-	jbyte *body, *terminator;
-	/* char msg[80]; */
-	int fd = get_java_var( env, jobj, "fd", "I" );
-	int timeout = get_java_var( env, jobj, "timeout", "I" );
+	return terminated_read_array( env, jobj, jbarray, offset, length,
+		jterminator, 0, "readTerminatedArray" );
+}
 
-/*
-	ENTER( "readArray" );
-	report_time_start( );
-*/
-#ifdef __LCC__
-	if( (size_t) length > SSIZE_MAX ) {
-#else
-	if( (size_t) length > SSIZE_MAX || (size_t) length < 0 ) {
-#endif /* __LCC__ */
-		report( "RXTXPort:readArray length > SSIZE_MAX" );
-		LEAVE( "RXTXPort:readArray" );
-		throw_java_exception( env, ARRAY_INDEX_OUT_OF_BOUNDS,
-			"readArray", "Invalid length" );
-		return -1;
-	}
-	body = (*env)->GetByteArrayElements( env, jbarray, 0 );
-	terminator = (*env)->GetByteArrayElements( env, jterminator, 0 );
-	do
-	{
-		bytes = read_byte_array( env, &jobj, fd, (unsigned char *)(body+offset + total ), 1 , timeout );/* dima */
-		total += bytes;
-		if( bytes < 0 ) {
-			report( "RXTXPort:readArray bytes < 0" );
-			LEAVE( "RXTXPort:readArray" );
-			throw_java_exception( env, IO_EXCEPTION, "readArray",
-				strerror( errno ) );
-			return -1;
-		}
-		if ( total > 1 && terminator[1] ==  body[total -1] &&
-			terminator[ 0 ] == body[ total -2 ]
-		)
-		{
-			report("Got terminator!\n" );
-			break;
-		}
+/*----------------------------------------------------------
+RXTXPort.nativeReadRecord
 
-	} while ( bytes > 0 && total < length );
-	(*env)->ReleaseByteArrayElements( env, jbarray, body, 0 );
-/*
-	sprintf( msg, "RXTXPort:readArray: %i %i\n", (int) length, bytes);
-	report( msg );
-	report_time_end( );
-	LEAVE( "RXTXPort:readArray" );
-*/
-	return (bytes);
+   accept:       as readTerminatedArray
+   perform:      read one record ending with the terminator
+   return:       bytes of the record, length if it is longer
+                 0 on read timeout, the bytes of the record so far are
+                 kept for the next read
+   exceptions:   IOException
+   comments:     This is an extension to commapi.
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL RXTXPort(nativeReadRecord)( JNIEnv *env,
+	jobject jobj, jbyteArray jbarray, jint offset, jint length,
+	jbyteArray jterminator )
+{
+	return terminated_read_array( env, jobj, jbarray, offset, length,
+		jterminator, 1, "nativeReadRecord" );
 }
 
 /*----------------------------------------------------------
@@ -3651,13 +5118,14 @@ RXTXPort.nativeavailable
    accept:      none
    perform:     find out the number of bytes available for reading
    return:      available bytes
-                -1 on error
-   exceptions:  none
+                -1 on error or once the port is closed
+   exceptions:  IOException if the driver cannot tell
 ----------------------------------------------------------*/
 JNIEXPORT jint JNICALL RXTXPort(nativeavailable)( JNIEnv *env,
 	jobject jobj )
 {
-	int fd = get_java_var( env, jobj,"fd","I" );
+	struct port_context *ctx = get_port_context( env, jobj );
+	int fd;
 	int result;
 /*
 	char message[80];
@@ -3671,6 +5139,10 @@ JNIEXPORT jint JNICALL RXTXPort(nativeavailable)( JNIEnv *env,
 
     This turns out to be true on Solaris also.  taj.
 */
+	/* closed: the fd may be reused already, fd 0 is stdin */
+	if( !ctx )
+		return -1;
+	fd = ctx->fd;
 #ifdef FIORDCHK  /* __unixware__ __sun__ probably others */
 	result = ioctl(fd, FIORDCHK, 0);
 #else
@@ -3682,6 +5154,8 @@ JNIEXPORT jint JNICALL RXTXPort(nativeavailable)( JNIEnv *env,
 	if (result == -1) {
 		goto fail;
 	}
+	/* a terminated read may have read ahead */
+	result += ctx->carry_len;
 /*
 	sprintf(message, "    nativeavailable: FIORDCHK result %d, \
 		errno %d\n", result , result == -1 ? errno : 0);
@@ -3724,7 +5198,7 @@ JNIEXPORT void JNICALL RXTXPort(setflowcontrol)( JNIEnv *env,
 	jobject jobj, jint flowmode )
 {
 	struct termios ttyset;
-	int fd = get_java_var( env, jobj,"fd","I" );
+	int fd = get_port_fd( env, jobj );
 
 	ENTER( "RXTXPort:setflowcontrol" );
 	if( tcgetattr( fd, &ttyset ) ) goto fail;
@@ -3767,7 +5241,8 @@ unlock_monitor_thread
    perform:     unlock the monitor thread so event notification can start.
    return:      none
    exceptions:  none
-   comments:    Events can be missed otherwise.
+   comments:    Events can be missed otherwise.  RXTXPort releases the
+		threads waiting in waitForTheNativeCodeSilly().
 ----------------------------------------------------------*/
 
 void unlock_monitor_thread( struct event_info_struct *eis )
@@ -3775,8 +5250,7 @@ void unlock_monitor_thread( struct event_info_struct *eis )
 	JNIEnv *env = eis->env;
 	jobject jobj = *(eis->jobj);
 
-	jfieldID jfid = (*env)->GetFieldID( env, (*env)->GetObjectClass( env, jobj ), "MonitorThreadLock", "Z" );
-	(*env)->SetBooleanField( env, jobj, jfid, (jboolean) 0 );
+	(*env)->CallVoidMethod( env, jobj, jmethod_monitor_started );
 }
 
 /*----------------------------------------------------------
@@ -3813,7 +5287,7 @@ int check_line_status_register( struct event_info_struct *eis )
 	else if( eis && eis->change )
 	{
 		report_verbose( "check_line_status_register: sending OUTPUT_BUFFER_EMPTY\n" );
-		send_event( eis, SPE_OUTPUT_BUFFER_EMPTY, 1 );
+		queue_event( eis, SPE_OUTPUT_BUFFER_EMPTY, 1 );
 	}
 #else
 /*
@@ -3823,7 +5297,7 @@ int check_line_status_register( struct event_info_struct *eis )
 		eis->eventflags[SPE_OUTPUT_BUFFER_EMPTY] )
 	{
 		report_verbose("check_line_status_register: sending SPE_OUTPUT_BUFFER_EMPTY\n");
-		send_event( eis, SPE_OUTPUT_BUFFER_EMPTY, 1 );
+		queue_event( eis, SPE_OUTPUT_BUFFER_EMPTY, 1 );
 /*
 		send_event( eis, SPE_DATA_AVAILABLE, 1 );
 */
@@ -3887,19 +5361,19 @@ void check_cgi_count( struct event_info_struct *eis )
 		return;
 	}
 	while( eis && sis.frame != eis->osis.frame ) {
-		send_event( eis, SPE_FE, 1);
+		queue_event( eis, SPE_FE, 1 );
 		eis->osis.frame++;
 	}
 	while( eis && sis.overrun != eis->osis.overrun ) {
-		send_event( eis, SPE_OE, 1);
+		queue_event( eis, SPE_OE, 1 );
 		eis->osis.overrun++;
 	}
 	while( eis && sis.parity != eis->osis.parity ) {
-		send_event( eis, SPE_PE, 1);
+		queue_event( eis, SPE_PE, 1 );
 		eis->osis.parity++;
 	}
 	while( eis && sis.brk != eis->osis.brk ) {
-		send_event( eis, SPE_BI, 1);
+		queue_event( eis, SPE_BI, 1 );
 		eis->osis.brk++;
 	}
 	if( eis )
@@ -3921,7 +5395,8 @@ int port_has_changed_fionread( struct event_info_struct *eis )
 	int change, rc;
 	char message[80];
 
-	rc = ioctl( eis->fd, FIONREAD, &change );
+	rc = bytes_ready( get_port_context( eis->env, *eis->jobj ), eis->fd,
+		&change );
 	sprintf( message, "port_has_changed_fionread: change is %i ret is %i\n", change, eis->ret );
 	report_verbose( message );
 #if defined(__unixware__) || defined(__sun__)
@@ -3967,20 +5442,20 @@ void check_tiocmget_changes( struct event_info_struct * eis )
 	}
 
 	change = (mflags&TIOCM_CTS) - (eis->omflags&TIOCM_CTS);
-	if( eis && change ) send_event( eis, SPE_CTS, change );
+	if( eis && change ) queue_event( eis, SPE_CTS, change );
 
 	change = (mflags&TIOCM_DSR) - (eis->omflags&TIOCM_DSR);
 	if( eis && change )
 	{
 		report( "sending DSR ===========================\n");
-		send_event( eis, SPE_DSR, change );
+		queue_event( eis, SPE_DSR, change );
 	}
 
 	change = (mflags&TIOCM_RNG) - (eis->omflags&TIOCM_RNG);
-	if( eis && change ) send_event( eis, SPE_RI, change );
+	if( eis && change ) queue_event( eis, SPE_RI, change );
 
 	change = (mflags&TIOCM_CD) - (eis->omflags&TIOCM_CD);
-	if( eis && change ) send_event( eis, SPE_CD, change );
+	if( eis && change ) queue_event( eis, SPE_CD, change );
 
 	if( eis )
 		eis->omflags = mflags;
@@ -4042,11 +5517,150 @@ int driver_has_tiocgicount( struct event_info_struct * eis )
 		report_verbose( " driver_has_tiocgicount:  Port does not support TIOCGICOUNT events\n" );
 		return(0);
 	}
-	else
-		return(1);
-#else
-	return(0);
-#endif  /*  TIOCGICOUNT */
+	else
+		return(1);
+#else
+	return(0);
+#endif  /*  TIOCGICOUNT */
+}
+
+/*----------------------------------------------------------
+event_loop_sleep
+
+   accept:      event_info_struct, milliseconds
+   perform:     sleep, or less if the wakeup of the port is written
+   return:      none
+   exceptions:  none
+   comments:    the caller checks eis->closing afterwards
+----------------------------------------------------------*/
+static void event_loop_sleep( struct event_info_struct *eis, int ms )
+{
+#ifndef WIN32
+	struct pollfd pfd;
+
+	if( eis->wakeup >= 0 )
+	{
+		pfd.fd = eis->wakeup;
+		pfd.events = POLLIN;
+		pfd.revents = 0;
+		if( poll( &pfd, 1, ms ) > 0 )
+			drain_wakeup( &eis->wakeup );
+		return;
+	}
+#endif /* WIN32 */
+	usleep( ms * 1000 );
+}
+
+/*----------------------------------------------------------
+wait_for_events
+
+   accept:      event_info_struct
+   perform:     poll() the port together with the wakeup of the port
+   return:      what poll() returned for the port, -1 on error
+   exceptions:  none
+   comments:    The line events and OUTPUT_BUFFER_EMPTY are found by
+		asking the driver, so while one is enabled the wait is
+		1ms as before.  Otherwise only bytes arriving or the
+		wakeup end it: interruptEventLoop and nativeSetEventFlag
+		write the wakeup, so an idle port costs nothing and close
+		does not wait for a timeout.  When the polling starts
+		again the modem lines and counters are read first, so
+		changes nobody watched are not reported late.
+----------------------------------------------------------*/
+#ifndef WIN32
+static int wait_for_events( struct event_info_struct *eis )
+{
+	struct pollfd pfd[ 2 ];
+	int i, n = 1, ret, timeout = -1;
+
+	for( i = SPE_OUTPUT_BUFFER_EMPTY; i <= SPE_BI; i++ )
+		if( eis->eventflags[ i ] )
+			timeout = 1;
+	if( eis->wakeup < 0 )
+		timeout = 1;
+	if( timeout > 0 && !eis->polling )
+	{
+		ioctl( eis->fd, TIOCMGET, &eis->omflags );
+		if( eis->has_tiocgicount )
+			driver_has_tiocgicount( eis );
+	}
+	eis->polling = timeout > 0;
+
+	pfd[ 0 ].fd = eis->fd;
+	pfd[ 0 ].events = POLLIN;
+	pfd[ 0 ].revents = 0;
+	if( eis->wakeup >= 0 )
+	{
+		pfd[ 1 ].fd = eis->wakeup;
+		pfd[ 1 ].events = POLLIN;
+		pfd[ 1 ].revents = 0;
+		n = 2;
+	}
+	do {
+		ret = poll( pfd, n, timeout );
+	} while( ret < 0 && errno == EINTR );
+	if( ret > 0 && n == 2 && pfd[ 1 ].revents )
+	{
+		drain_wakeup( &eis->wakeup );
+		ret = pfd[ 0 ].revents ? 1 : 0;
+	}
+	return( ret );
+}
+#endif /* WIN32 */
+
+/*----------------------------------------------------------
+wait_before_data_available
+
+   accept:      event_info_struct of a port with bytes to read
+   perform:     sleep before DATA_AVAILABLE is sent, if at all
+   return:      0 if there is nothing left to report
+   exceptions:  none
+   comments:    New bytes are reported at once, or after the coalescing
+		window set with RXTXPort.setEventCoalescing() so a burst
+		gives one event.  Bytes the listener left unread keep
+		select() from blocking, so when nothing changed since the
+		last event it is only repeated every 20ms.  This is also
+		the pace where FIONREAD does not work.
+
+		The listener runs on the dispatcher thread, which counts
+		the events it delivered and the bytes left after each in
+		the port context, see nativeDataDelivered().  Until then
+		the bytes waiting when the event was sent count as unread.
+		nativeDataDelivered() writes the wakeup, so the wait
+		notices a delivery, or the port closing, at once.
+----------------------------------------------------------*/
+static int wait_before_data_available( struct event_info_struct *eis )
+{
+	struct port_context *ctx = get_port_context( eis->env, *eis->jobj );
+	long deadline = get_monotonic_ms() + 20;
+	int waiting;
+
+	do
+	{
+		if( ctx && ctx->delivered != eis->delivered )
+		{
+			eis->delivered = ctx->delivered;
+			eis->unread = ctx->unread;
+		}
+		if( bytes_ready( ctx, eis->fd, &waiting ) )
+		{
+			event_loop_sleep( eis, 20 );
+			return( !eis->closing );
+		}
+		if( waiting == 0 )
+			return( 0 );
+		if( waiting != eis->unread )
+		{
+			if( ctx && ctx->coalesce > 0 )
+				usleep( ctx->coalesce );
+			return( 1 );
+		}
+		event_loop_sleep( eis, 1 );
+		if( eis->closing )
+			return( 0 );
+	}
+	while( get_monotonic_ms() - deadline < 0 );
+	return( 1 );
 }
 
 /*----------------------------------------------------------
@@ -4057,13 +5671,20 @@ report_serial_events
    return:      0 if not available
    exceptions:  none
    comments:    not supported on all devices/drivers.
+		The events found are queued and passed to java with one
+		upcall, see flush_events().
 ----------------------------------------------------------*/
 void report_serial_events( struct event_info_struct *eis )
 {
+	struct port_context *ctx;
+
 	/* JK00: work around for Multi IO cards without TIOCSERGETLSR */
 	/* if( eis->has_tiocsergetlsr ) we have a fix for output empty */
 		if( check_line_status_register( eis ) )
+		{
+			flush_events( eis );
 			return;
+		}
 
 	if ( eis && eis->has_tiocgicount )
 		check_cgi_count( eis );
@@ -4075,28 +5696,35 @@ void report_serial_events( struct event_info_struct *eis )
 	{
 		if(!eis->eventflags[SPE_DATA_AVAILABLE] )
 		{
+			flush_events( eis );
 			report_verbose("report_serial_events: ignoring DATA_AVAILABLE\n");
 /*
 			report(".");
 */
-			usleep(20000);
 #if !defined(__sun__)
 	/* FIXME: No time to test on all OS's for production */
-			usleep(20000);
+			event_loop_sleep( eis, 40 );
+#else
+			event_loop_sleep( eis, 20 );
 #endif /* !__sun__ */
 			return;
 		}
+		/* line events are not held back by the wait */
+		if( eis->batched )
+			flush_events( eis );
+		if( !wait_before_data_available( eis ) )
+			return;
 		report("report_serial_events: sending DATA_AVAILABLE\n");
-		if(!send_event( eis, SPE_DATA_AVAILABLE, 1 ))
-		{
-			/* select wont block */
-	/* FIXME: No time to test on all OS's for production */
-/* REMOVE goes around usleep */
-#if !defined(__sun__)
-#endif /* !__sun__ */
-		}
-		usleep(20000);
+		ctx = get_port_context( eis->env, *eis->jobj );
+		eis->delivered = ctx ? ctx->delivered : 0;
+		queue_event( eis, SPE_DATA_AVAILABLE, 1 );
+		if( flush_events( eis ) )
+			return;
+		if( bytes_ready( ctx, eis->fd, &eis->unread ) )
+			eis->unread = -1;
+		return;
 	}
+	flush_events( eis );
 }
 
 /*----------------------------------------------------------
@@ -4146,8 +5774,10 @@ int initialise_event_info_struct( struct event_info_struct *eis )
 #endif /* TIOCSERGETLSR */
 	eis->eventloop_interrupted = 0;
 	eis->closing = 0;
+	eis->unread = -1;
+	eis->delivered = 0;
 
-	eis->fd = get_java_var( env, jobj, "fd", "I" );
+	eis->fd = get_port_fd( env, jobj );
 	eis->has_tiocsergetlsr = has_line_status_register_access( eis->fd );
 	eis->has_tiocgicount = driver_has_tiocgicount( eis );
 
@@ -4210,6 +5840,8 @@ RXTXPort.eventLoop
    return:      none
    exceptions:  none
    comments:	please keep this function clean.
+		Waits in wait_for_events(), which interruptEventLoop
+		ends at once through the wakeup of the port context.
 ----------------------------------------------------------*/
 JNIEXPORT void JNICALL RXTXPort(eventLoop)( JNIEnv *env, jobject jobj )
 {
@@ -4217,33 +5849,43 @@ JNIEXPORT void JNICALL RXTXPort(eventLoop)( JNIEnv *env, jobject jobj )
 	int i = 0;
 #endif /* WIN32 */
 	struct event_info_struct eis;
+	struct port_context *ctx;
 	eis.jclazz = (*env)->GetObjectClass( env, jobj );
 	eis.env = env;
 	eis.jobj = &jobj;
 	eis.initialised = 0;
+	eis.batched = 0;
+	eis.polling = 0;
+	ctx = get_port_context( env, jobj );
+	eis.wakeup = ctx ? ctx->wakeup[ 0 ] : -1;
+	/* flag changes before the loop ran need no wakeup */
+	if( ctx )
+		drain_wakeup( ctx->wakeup );
+	/* one array for every batch, kept for the life of the loop */
+	eis.jbatch = (*env)->NewIntArray( env, EVENT_BATCH );
 
 	ENTER( "eventLoop\n" );
+	if ( !eis.jbatch ) goto end;
 	if ( !initialise_event_info_struct( &eis ) ) goto end;
 	if ( !init_threads( &eis ) ) goto end;
 	unlock_monitor_thread( &eis );
 	do{
 		report_time_eventLoop( );
 		do {
-			/* nothing goes between this call and select */
+			/* nothing goes between this call and the wait */
 			if( eis.closing )
 			{
 				report("eventLoop: got interrupt\n");
 				finalize_threads( &eis );
 				finalize_event_info_struct( &eis );
+				(*env)->SetLongField( env, jobj, jfield_eis,
+					( jlong ) 0 );
 				LEAVE("eventLoop");
 				return;
 			}
 #ifndef WIN32
 			/* report( "." ); */
-			do {
-				eis.ret = SELECT( eis.fd + 1, &eis.rfds, NULL, NULL,
-					&eis.tv_sleep );
-			} while (eis.ret < 0 && errno==EINTR);
+			eis.ret = wait_for_events( &eis );
 #else
 			/*
 			    termios.c:serial_select is instable for some
@@ -4890,12 +6532,14 @@ JNIEXPORT jint JNICALL RXTXPort(getOutputBufferSize)(JNIEnv *env,
 		is interrupted.  When all the interrupted threads exit
 		they will decrement the var leaving it 0.
 		the remaining threads will continue.
+		The loop of the port is woken after closing is set.
 ----------------------------------------------------------*/
 JNIEXPORT void JNICALL RXTXPort(interruptEventLoop)(JNIEnv *env,
 	jobject jobj)
 {
 	struct event_info_struct *index = master_index;
-	int fd = get_java_var( env, jobj, "fd", "I" );
+	struct port_context *ctx;
+	int fd = get_port_fd( env, jobj );
 	int searching = 1;
 
 
@@ -4954,6 +6598,10 @@ JNIEXPORT void JNICALL RXTXPort(interruptEventLoop)(JNIEnv *env,
 	}
 	index->closing = 1;
 #endif
+	/* end the wait of the loop now rather than at its timeout */
+	ctx = get_port_context( env, jobj );
+	if( ctx )
+		signal_wakeup( ctx->wakeup );
 	report("interruptEventLoop: interrupted\n");
 }
 
@@ -5002,6 +6650,9 @@ JNIEXPORT void JNICALL RXTXPort(nativeSetEventFlag)( JNIEnv *env,
 							jboolean flag )
 {
 	struct event_info_struct *index = master_index;
+#ifndef WIN32
+	struct port_context *ctx;
+#endif /* WIN32 */
 
 	if( !index )
 	{
@@ -5020,6 +6671,11 @@ JNIEXPORT void JNICALL RXTXPort(nativeSetEventFlag)( JNIEnv *env,
 	index->eventflags[event] = (int) flag;
 #ifdef WIN32
 	termios_setflags( fd, index->eventflags );
+#else
+	/* the loop may be waiting without a timeout */
+	ctx = get_port_context( env, jobj );
+	if( ctx )
+		signal_wakeup( ctx->wakeup );
 #endif /* win32 */
 
 }
@@ -5069,6 +6725,104 @@ int send_event( struct event_info_struct *eis, jint type, int flag )
 	return(result);
 }
 
+/*----------------------------------------------------------
+ queue_event
+
+   accept:      event_info_structure of the event loop, event type and
+		true/false
+   perform:     add the event to the batch sent by flush_events(),
+		flushing first if the batch is full
+   return:      none
+   exceptions:  none
+   comments:    only the event loop thread queues events
+----------------------------------------------------------*/
+void queue_event( struct event_info_struct *eis, jint type, int flag )
+{
+	if( eis->batched == EVENT_BATCH )
+		flush_events( eis );
+	eis->batch[ eis->batched++ ] =
+		flag > 0 ? type | EVENT_STATE_TRUE : type;
+}
+
+/*----------------------------------------------------------
+ flush_events
+
+   accept:      event_info_structure of the event loop
+   perform:     pass the queued events to RXTXPort.sendEvents() in one
+		upcall
+   return:      a positive value if the port is being closed.
+   exceptions:  none
+   comments:    sendEvents() hands the events to a dispatcher thread,
+		so a slow listener does not hold up the event loop.
+----------------------------------------------------------*/
+int flush_events( struct event_info_struct *eis )
+{
+	JNIEnv *env = eis->env;
+	int count = eis->batched;
+
+	if( !count )
+		return( 0 );
+	eis->batched = 0;
+	if( eis->eventloop_interrupted > 1 || eis->jclazz == NULL )
+		return JNI_TRUE;
+	(*env)->ExceptionClear( env );
+	(*env)->SetIntArrayRegion( env, eis->jbatch, 0, count, eis->batch );
+	return (*env)->CallBooleanMethod( env, *eis->jobj,
+		jmethod_send_events, eis->jbatch, count );
+}
+
+/*----------------------------------------------------------
+get_port_context
+
+   accept:      env (keyhole to java)
+                jobj (java RXTXPort object)
+   return:      the native port context or NULL if the port is closed
+   exceptions:  none
+   comments:    uses the field id cached in Initialize so the read and
+		write paths do not look anything up by name.
+----------------------------------------------------------*/
+struct port_context *get_port_context( JNIEnv *env, jobject jobj )
+{
+	return (struct port_context *) ( size_t )
+		(*env)->GetLongField( env, jobj, jfield_ctx );
+}
+
+/*----------------------------------------------------------
+get_port_fd
+
+   accept:      env (keyhole to java)
+                jobj (java RXTXPort object)
+   return:      the fd from the port context, 0 if the port is closed
+   exceptions:  none
+   comments:
+----------------------------------------------------------*/
+int get_port_fd( JNIEnv *env, jobject jobj )
+{
+	struct port_context *ctx = get_port_context( env, jobj );
+
+	if( !ctx )
+	{
+		report_error( "get_port_fd: invalid file descriptor\n" );
+		return 0;
+	}
+	return ctx->fd;
+}
+
+/*----------------------------------------------------------
+get_port_eis
+
+   accept:      env (keyhole to java)
+                jobj (java RXTXPort object)
+   return:      the event info struct of the monitor thread or NULL
+   exceptions:  none
+   comments:    set by init_threads and cleared when the eventLoop ends
+----------------------------------------------------------*/
+struct event_info_struct *get_port_eis( JNIEnv *env, jobject jobj )
+{
+	return (struct event_info_struct *) ( size_t )
+		(*env)->GetLongField( env, jobj, jfield_eis );
+}
+
 /*----------------------------------------------------------
 get_java_var
 
@@ -6128,6 +7882,404 @@ void dump_termios(char *foo,struct termios *ttyset)
 #endif /* DEBUG */
 }
 
+#ifndef WIN32
+/*----------------------------------------------------------
+selector_ops_to_events
+
+   accept:      SerialSelectionKey interest ops
+   perform:     translate them to poll()/epoll event bits
+   return:      the event bits
+   exceptions:  none
+   comments:    the EPOLL and POLL input/output bits have the same
+		values on linux so one translation serves both.
+----------------------------------------------------------*/
+static int selector_ops_to_events( int ops )
+{
+	int events = 0;
+
+	if( ops & SELECTOR_OP_READ ) events |= POLLIN;
+	if( ops & SELECTOR_OP_WRITE ) events |= POLLOUT;
+	return events;
+}
+
+/*----------------------------------------------------------
+selector_events_to_ops
+
+   accept:      poll()/epoll event bits
+   perform:     translate them to SerialSelectionKey ready ops
+   return:      the ready ops
+   exceptions:  none
+   comments:    an error or hangup reports the port as both readable
+		and writable so the next read or write sees the error.
+		The java side masks the result with the interest ops.
+----------------------------------------------------------*/
+static int selector_events_to_ops( int events )
+{
+	int ops = 0;
+
+	if( events & ( POLLIN | POLLHUP | POLLERR ) ) ops |= SELECTOR_OP_READ;
+	if( events & ( POLLOUT | POLLHUP | POLLERR ) ) ops |= SELECTOR_OP_WRITE;
+	return ops;
+}
+
+/*----------------------------------------------------------
+selector_drain_wakeup
+
+   accept:      selector_info
+   perform:     empty the self pipe written by SerialSelector.wakeup()
+   return:      none
+   exceptions:  none
+   comments:
+----------------------------------------------------------*/
+static void selector_drain_wakeup( struct selector_info *sel )
+{
+	char buf[ 64 ];
+
+	while( READ( sel->wakeup[ 0 ], buf, sizeof( buf ) ) > 0 );
+}
+#endif /* WIN32 */
+
+/*----------------------------------------------------------
+SerialSelector.nativeOpen
+
+   accept:      none
+   perform:     create the epoll instance (a poll() set elsewhere) and
+		the self pipe used by wakeup()
+   return:      a pointer to the selector_info as a long handle
+   exceptions:  IOException
+   comments:
+----------------------------------------------------------*/
+JNIEXPORT jlong JNICALL SerialSelector(nativeOpen)( JNIEnv *env,
+	jclass jclazz )
+{
+#ifndef WIN32
+	struct selector_info *sel =
+		(struct selector_info *) calloc( 1, sizeof( struct selector_info ) );
+#if defined(__linux__)
+	struct epoll_event ev;
+#endif /* __linux__ */
+	int i;
+
+	if( !sel )
+		goto fail;
+	if( pipe( sel->wakeup ) )
+	{
+		free( sel );
+		goto fail;
+	}
+	for( i = 0; i < 2; i++ )
+	{
+		fcntl( sel->wakeup[ i ], F_SETFL,
+			fcntl( sel->wakeup[ i ], F_GETFL ) | O_NONBLOCK );
+		fcntl( sel->wakeup[ i ], F_SETFD, FD_CLOEXEC );
+	}
+#if defined(__linux__)
+	sel->epfd = epoll_create( 64 );
+	if( sel->epfd < 0 )
+		goto fail_pipe;
+	fcntl( sel->epfd, F_SETFD, FD_CLOEXEC );
+	memset( &ev, 0, sizeof( ev ) );
+	ev.events = EPOLLIN;
+	ev.data.fd = sel->wakeup[ 0 ];
+	if( epoll_ctl( sel->epfd, EPOLL_CTL_ADD, sel->wakeup[ 0 ], &ev ) )
+	{
+		close( sel->epfd );
+		goto fail_pipe;
+	}
+#else
+	sel->size = 16;
+	sel->pfds = (struct pollfd *) malloc( sel->size *
+		sizeof( struct pollfd ) );
+	if( !sel->pfds )
+		goto fail_pipe;
+	sel->pfds[ 0 ].fd = sel->wakeup[ 0 ];
+	sel->pfds[ 0 ].events = POLLIN;
+	sel->nfds = 1;
+	pthread_mutex_init( &sel->lock, NULL );
+#endif /* __linux__ */
+	return (jlong) (size_t) sel;
+fail_pipe:
+	close( sel->wakeup[ 0 ] );
+	close( sel->wakeup[ 1 ] );
+	free( sel );
+fail:
+	throw_java_exception( env, IO_EXCEPTION, "SerialSelector.open",
+		strerror( errno ) );
+	return 0;
+#else
+	throw_java_exception( env, IO_EXCEPTION, "SerialSelector.open",
+		"not supported on this platform" );
+	return 0;
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+SerialSelector.nativeClose
+
+   accept:      selector handle
+   perform:     close the epoll instance and self pipe, free the handle
+   return:      none
+   exceptions:  none
+   comments:    the java side makes sure no select is in progress
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL SerialSelector(nativeClose)( JNIEnv *env,
+	jclass jclazz, jlong handle )
+{
+#ifndef WIN32
+	struct selector_info *sel = (struct selector_info *) (size_t) handle;
+
+	if( !sel )
+		return;
+#if defined(__linux__)
+	close( sel->epfd );
+#else
+	pthread_mutex_destroy( &sel->lock );
+	free( sel->pfds );
+#endif /* __linux__ */
+	close( sel->wakeup[ 0 ] );
+	close( sel->wakeup[ 1 ] );
+	free( sel );
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+SerialSelector.nativeRegister
+
+   accept:      selector handle, fd of an open port, interest ops
+   perform:     add the fd to the selector or change its interest ops
+   return:      none
+   exceptions:  IOException
+   comments:    epoll_ctl() may be called while another thread is in
+		epoll_wait().  The poll() set is guarded by sel->lock and
+		takes effect on the next select.
+		Hangups and errors are reported even without interest,
+		so a fd with no interest ops is left out of the wait
+		altogether.
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL SerialSelector(nativeRegister)( JNIEnv *env,
+	jclass jclazz, jlong handle, jint fd, jint ops )
+{
+#ifndef WIN32
+	struct selector_info *sel = (struct selector_info *) (size_t) handle;
+#if defined(__linux__)
+	struct epoll_event ev;
+
+	memset( &ev, 0, sizeof( ev ) );
+	if( !ops )
+	{
+		if( epoll_ctl( sel->epfd, EPOLL_CTL_DEL, fd, &ev ) == 0 ||
+			errno == ENOENT )
+			return;
+		goto fail;
+	}
+	ev.events = selector_ops_to_events( ops );
+	ev.data.fd = fd;
+	if( epoll_ctl( sel->epfd, EPOLL_CTL_MOD, fd, &ev ) == 0 )
+		return;
+	if( errno == ENOENT && epoll_ctl( sel->epfd, EPOLL_CTL_ADD, fd, &ev ) == 0 )
+		return;
+fail:
+#else
+	struct pollfd *grown;
+	int i;
+
+	pthread_mutex_lock( &sel->lock );
+	for( i = 1; i < sel->nfds; i++ )
+	{
+		if( sel->pfds[ i ].fd == fd )
+			break;
+	}
+	if( i == sel->nfds )
+	{
+		if( sel->nfds == sel->size )
+		{
+			grown = (struct pollfd *) realloc( sel->pfds,
+				2 * sel->size * sizeof( struct pollfd ) );
+			if( !grown )
+			{
+				pthread_mutex_unlock( &sel->lock );
+				goto fail;
+			}
+			sel->pfds = grown;
+			sel->size *= 2;
+		}
+		sel->pfds[ i ].fd = fd;
+		sel->nfds++;
+	}
+	sel->pfds[ i ].events = selector_ops_to_events( ops );
+	pthread_mutex_unlock( &sel->lock );
+	return;
+fail:
+	errno = ENOMEM;
+#endif /* __linux__ */
+	throw_java_exception( env, IO_EXCEPTION, "SerialSelector.register",
+		strerror( errno ) );
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+SerialSelector.nativeDeregister
+
+   accept:      selector handle, fd
+   perform:     remove the fd from the selector
+   return:      none
+   exceptions:  none
+   comments:    a port that was already closed has left the epoll set
+		on its own, so errors are ignored.
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL SerialSelector(nativeDeregister)( JNIEnv *env,
+	jclass jclazz, jlong handle, jint fd )
+{
+#ifndef WIN32
+	struct selector_info *sel = (struct selector_info *) (size_t) handle;
+#if defined(__linux__)
+	struct epoll_event ev;
+
+	memset( &ev, 0, sizeof( ev ) );
+	epoll_ctl( sel->epfd, EPOLL_CTL_DEL, fd, &ev );
+#else
+	int i;
+
+	pthread_mutex_lock( &sel->lock );
+	for( i = 1; i < sel->nfds; i++ )
+	{
+		if( sel->pfds[ i ].fd == fd )
+		{
+			sel->pfds[ i ] = sel->pfds[ --sel->nfds ];
+			break;
+		}
+	}
+	pthread_mutex_unlock( &sel->lock );
+#endif /* __linux__ */
+#endif /* WIN32 */
+}
+
+/*----------------------------------------------------------
+SerialSelector.nativeSelect
+
+   accept:      selector handle
+                jfds: filled with the fds that are ready
+                jops: filled with the ready ops of each fd
+                timeout: milliseconds to wait, -1 for ever, 0 to poll
+   perform:     wait until a registered port is ready, the timeout
+		expires or wakeup() is called
+   return:      number of entries stored in jfds and jops
+   exceptions:  IOException
+   comments:    a signal interrupting the wait returns 0 like a
+		timeout.  At most jfds.length ports are reported, the
+		rest stay ready for the next call (level triggered).
+----------------------------------------------------------*/
+JNIEXPORT jint JNICALL SerialSelector(nativeSelect)( JNIEnv *env,
+	jclass jclazz, jlong handle, jintArray jfds, jintArray jops,
+	jint timeout )
+{
+#ifndef WIN32
+	struct selector_info *sel = (struct selector_info *) (size_t) handle;
+	int max = (*env)->GetArrayLength( env, jfds );
+	jint fds[ SELECTOR_MAX_EVENTS ], ops[ SELECTOR_MAX_EVENTS ];
+	int i, ret, count = 0;
+#if defined(__linux__)
+	struct epoll_event events[ SELECTOR_MAX_EVENTS + 1 ];
+
+	if( max > SELECTOR_MAX_EVENTS )
+		max = SELECTOR_MAX_EVENTS;
+	ret = epoll_wait( sel->epfd, events, max + 1, timeout );
+	if( ret < 0 )
+	{
+		if( errno == EINTR )
+			return 0;
+		goto fail;
+	}
+	for( i = 0; i < ret; i++ )
+	{
+		if( events[ i ].data.fd == sel->wakeup[ 0 ] )
+		{
+			selector_drain_wakeup( sel );
+			continue;
+		}
+		if( count == max )
+			break;
+		fds[ count ] = events[ i ].data.fd;
+		ops[ count ] = selector_events_to_ops( events[ i ].events );
+		count++;
+	}
+#else
+	struct pollfd *pfds;
+	int nfds;
+
+	if( max > SELECTOR_MAX_EVENTS )
+		max = SELECTOR_MAX_EVENTS;
+	pthread_mutex_lock( &sel->lock );
+	nfds = sel->nfds;
+	pfds = (struct pollfd *) malloc( nfds * sizeof( struct pollfd ) );
+	if( pfds )
+		memcpy( pfds, sel->pfds, nfds * sizeof( struct pollfd ) );
+	pthread_mutex_unlock( &sel->lock );
+	/* poll() skips negative fds, hiding hangups of idle ports */
+	for( i = 1; pfds && i < nfds; i++ )
+	{
+		if( !pfds[ i ].events )
+			pfds[ i ].fd = -1;
+	}
+	if( !pfds )
+	{
+		errno = ENOMEM;
+		goto fail;
+	}
+	ret = poll( pfds, nfds, timeout );
+	if( ret < 0 )
+	{
+		free( pfds );
+		if( errno == EINTR )
+			return 0;
+		goto fail;
+	}
+	if( pfds[ 0 ].revents )
+		selector_drain_wakeup( sel );
+	for( i = 1; i < nfds && count < max; i++ )
+	{
+		if( !pfds[ i ].revents )
+			continue;
+		fds[ count ] = pfds[ i ].fd;
+		ops[ count ] = selector_events_to_ops( pfds[ i ].revents );
+		count++;
+	}
+	free( pfds );
+#endif /* __linux__ */
+	if( count )
+	{
+		(*env)->SetIntArrayRegion( env, jfds, 0, count, fds );
+		(*env)->SetIntArrayRegion( env, jops, 0, count, ops );
+	}
+	return count;
+fail:
+	throw_java_exception( env, IO_EXCEPTION, "SerialSelector.select",
+		strerror( errno ) );
+#endif /* WIN32 */
+	return 0;
+}
+
+/*----------------------------------------------------------
+SerialSelector.nativeWakeup
+
+   accept:      selector handle
+   perform:     make a select in progress, or the next one, return
+   return:      none
+   exceptions:  none
+   comments:    a full pipe already guarantees a wakeup
+----------------------------------------------------------*/
+JNIEXPORT void JNICALL SerialSelector(nativeWakeup)( JNIEnv *env,
+	jclass jclazz, jlong handle )
+{
+#ifndef WIN32
+	struct selector_info *sel = (struct selector_info *) (size_t) handle;
+	char c = 0;
+
+	if( WRITE( sel->wakeup[ 1 ], &c, 1 ) < 0 && errno != EAGAIN )
+		report_error( "SerialSelector.wakeup: write failed\n" );
+#endif /* WIN32 */
+}
+
 /*----------------------------------------------------------
 get_java_environment
 
@@ -0,0 +1,336 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Completes the operations of many AsyncSerialPorts from one thread.
+ *
+ * The ports of a group are waited on together in one SerialSelector.
+ * When an operation is started, or its port becomes ready, the group
+ * thread moves the bytes without blocking and keeps the deadlines.  Once
+ * an operation is done its CompletionHandler is called through the
+ * executor, or on the group thread if there is none, in which case
+ * handlers must not block.  Handlers of Future results are never run on
+ * the executor.
+ *
+ * AsyncSerialPort( RXTXPort ) uses getShared().
+ */
+public class AsyncSerialGroup
+{
+    private static AsyncSerialGroup shared;
+
+    private final Executor executor;
+    private final SerialSelector selector;
+
+    /* executor made by getShared(), shut down with the group */
+    private ExecutorService pool;
+
+    /* ports with operations to start or to fail */
+    private final ConcurrentLinkedQueue<AsyncSerialPort> changed = new ConcurrentLinkedQueue<AsyncSerialPort>();
+
+    /* ports registered with the selector, changed by the group thread */
+    private final Set<AsyncSerialPort> ports = new HashSet<AsyncSerialPort>();
+
+    /* group thread: operations with a deadline, the earliest first */
+    private final PriorityQueue<AsyncSerialPort.Op<?, ?>> deadlines =
+        new PriorityQueue<AsyncSerialPort.Op<?, ?>>( 16, new Comparator<AsyncSerialPort.Op<?, ?>>()
+        {
+            public int compare( AsyncSerialPort.Op<?, ?> a, AsyncSerialPort.Op<?, ?> b )
+            {
+                long d = a.deadline - b.deadline;
+                return d < 0 ? -1 : ( d > 0 ? 1 : 0 );
+            }
+        } );
+
+    /* guarded by this */
+    private Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * A group calling handlers on its own thread
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public AsyncSerialGroup()
+        throws IOException
+    {
+        this( null );
+    }
+
+    /**
+     * @param executor runs the completion handlers, null to call them on
+     *                 the group thread
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public AsyncSerialGroup( Executor executor )
+        throws IOException
+    {
+        this.executor = executor;
+        selector = SerialSelector.open();
+    }
+
+    /**
+     * The group of AsyncSerialPorts made without one.  Its handlers run
+     * on a pool of up to four daemon threads.
+     *
+     * @return AsyncSerialGroup the shared group
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public static synchronized AsyncSerialGroup getShared()
+        throws IOException
+    {
+        if( shared == null || shared.closed )
+        {
+            int threads = Math.min( 4, Runtime.getRuntime().availableProcessors() );
+            ExecutorService pool = Executors.newFixedThreadPool( threads, new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "AsyncSerialGroup handler" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            shared = new AsyncSerialGroup( pool );
+            shared.pool = pool;
+        }
+        return shared;
+    }
+
+    /**
+     * Stop the group.  Outstanding operations fail with
+     * AsynchronousCloseException, new ones are refused with
+     * ShutdownChannelGroupException.  The ports stay open.
+     */
+    public void close()
+    {
+        Thread t;
+        synchronized( this )
+        {
+            if( closed )
+            {
+                return;
+            }
+            closed = true;
+            t = thread;
+        }
+        selector.wakeup();
+        if( t != null && t != Thread.currentThread() )
+        {
+            try
+            {
+                t.join();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if( t == null )
+        {
+            shutdownPorts();
+        }
+        selector.close();
+        if( pool != null )
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return boolean true once close() was called
+     */
+    public boolean isShutdown()
+    {
+        return closed;
+    }
+
+    /* port has operations to start or fail */
+    void submit( AsyncSerialPort port )
+    {
+        changed.add( port );
+        synchronized( this )
+        {
+            if( !closed && thread == null )
+            {
+                thread = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        loop();
+                    }
+                }, "AsyncSerialGroup" );
+                thread.setDaemon( true );
+                thread.start();
+            }
+        }
+        if( closed )
+        {
+            /* the group thread may have swept already */
+            shutdownPorts();
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /* group thread: wait for port to become ready */
+    SerialSelectionKey register( AsyncSerialPort port, int ops )
+        throws IOException
+    {
+        RXTXPort p = port.getPort();
+        SerialSelectionKey key = p.getChannel().watch( selector, ops, port );
+        synchronized( ports )
+        {
+            ports.add( port );
+        }
+        return key;
+    }
+
+    /* group thread: port was closed and its key cancelled */
+    void forget( AsyncSerialPort port )
+    {
+        synchronized( ports )
+        {
+            ports.remove( port );
+        }
+    }
+
+    /* group thread: fail op if it is still pending at its deadline */
+    void addDeadline( AsyncSerialPort.Op<?, ?> op )
+    {
+        deadlines.add( op );
+    }
+
+    void dispatch( Runnable completion, boolean inline )
+    {
+        Executor e = executor;
+        if( !inline && e != null )
+        {
+            try
+            {
+                e.execute( completion );
+                return;
+            }
+            catch( RejectedExecutionException ex )
+            {
+                /* shut down executor, complete here */
+            }
+        }
+        try
+        {
+            completion.run();
+        }
+        catch( RuntimeException ex )
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private void loop()
+    {
+        try
+        {
+            while( !closed )
+            {
+                AsyncSerialPort port;
+                while( ( port = changed.poll() ) != null )
+                {
+                    port.process( 0 );
+                }
+                long wait = expire();
+                /* in milliseconds rounded up, 0 waits for ever */
+                selector.select( ( wait + 999999 ) / 1000000 );
+                Iterator<SerialSelectionKey> it = selector.selectedKeys().iterator();
+                while( it.hasNext() )
+                {
+                    SerialSelectionKey key = it.next();
+                    it.remove();
+                    int ready;
+                    try
+                    {
+                        ready = key.readyOps();
+                    }
+                    catch( CancelledKeyException e )
+                    {
+                        ready = 0;
+                    }
+                    ( (AsyncSerialPort) key.attachment() ).process( ready );
+                }
+            }
+        }
+        catch( ClosedSelectorException e )
+        {
+            /* closed */
+        }
+        catch( IOException e )
+        {
+            if( !closed )
+            {
+                e.printStackTrace();
+            }
+        }
+        finally
+        {
+            closed = true;
+            shutdownPorts();
+        }
+    }
+
+    /* fail the overdue operations, return nanoseconds to the next deadline or 0 */
+    private long expire()
+    {
+        long now = System.nanoTime();
+        AsyncSerialPort.Op<?, ?> op;
+        while( ( op = deadlines.peek() ) != null )
+        {
+            if( !op.isPending() )
+            {
+                deadlines.poll();
+                continue;
+            }
+            long left = op.deadline - now;
+            if( left > 0 )
+            {
+                return left;
+            }
+            deadlines.poll();
+            op.expire();
+        }
+        return 0;
+    }
+
+    private void shutdownPorts()
+    {
+        ArrayList<AsyncSerialPort> all = new ArrayList<AsyncSerialPort>();
+        synchronized( ports )
+        {
+            all.addAll( ports );
+            ports.clear();
+        }
+        AsyncSerialPort port;
+        while( ( port = changed.poll() ) != null )
+        {
+            all.add( port );
+        }
+        for( AsyncSerialPort p : all )
+        {
+            p.shutdown();
+        }
+    }
+}
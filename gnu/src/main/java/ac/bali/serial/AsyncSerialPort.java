@@ -0,0 +1,733 @@
+package ac.bali.serial;
+
+import ac.bali.serial.framing.FrameDecoder;
+import ac.bali.serial.framing.FrameHandler;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Asynchronous reads and writes on an open RXTXPort.
+ *
+ * Each call starts the operation and returns at once.  The result comes
+ * through a CompletionHandler or a Future, and no thread waits for it: an
+ * AsyncSerialGroup waits on all of its ports in one SerialSelector and
+ * moves the bytes when a port is ready.  One read, or readFrame(), and
+ * one write may be outstanding at a time, as for any
+ * AsynchronousByteChannel.
+ *
+ * A read completes with the bytes the driver had, at least one, or -1 at
+ * the end of the stream.  A write completes once all of the buffer was
+ * written.  An operation given a timeout fails with
+ * InterruptedByTimeoutException if it is not done by then; the bytes a
+ * write got out are accounted for in the position of its buffer.
+ *
+ * <pre>
+ * AsyncSerialPort async = new AsyncSerialPort( port );
+ * async.write( request, 1, TimeUnit.SECONDS, null, new CompletionHandler&lt;Integer, Object&gt;()
+ * {
+ *     ...
+ * } );
+ * </pre>
+ *
+ * The receive timeout and threshold of the port do not apply.  Input
+ * buffering must be off, as a SerialSelector does not see buffered input.
+ * A port has at most one AsyncSerialPort.
+ */
+public class AsyncSerialPort
+    implements AsynchronousByteChannel
+{
+    /* bytes moved per call for heap buffers and frames */
+    private static final int STAGE_SIZE = 4096;
+
+    private final RXTXPort port;
+    private final AsyncSerialGroup group;
+
+    private final AtomicReference<Op<?, ?>> readOp = new AtomicReference<Op<?, ?>>();
+    private final AtomicReference<Op<?, ?>> writeOp = new AtomicReference<Op<?, ?>>();
+    private volatile boolean open = true;
+
+    /* the rest belongs to the group thread */
+    private SerialSelectionKey key;
+    private int interest = 0;
+    private ByteBuffer inStage;
+    private ByteBuffer outStage;
+    /* decoded by readFrame() but not returned yet */
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Complete the operations in the shared AsyncSerialGroup
+     *
+     * @param port an open port
+     *
+     * @throws IOException if the native selector could not be created
+     * @throws IllegalStateException if the port has an AsyncSerialPort
+     */
+    public AsyncSerialPort( RXTXPort port )
+        throws IOException
+    {
+        this( port, AsyncSerialGroup.getShared() );
+    }
+
+    /**
+     * @param port  an open port
+     * @param group completes the operations
+     *
+     * @throws IllegalStateException if the port has an AsyncSerialPort
+     */
+    public AsyncSerialPort( RXTXPort port, AsyncSerialGroup group )
+    {
+        this.port = port;
+        this.group = group;
+        port.setAsyncPort( this );
+    }
+
+    /**
+     * @return RXTXPort the port this channel reads and writes
+     */
+    public RXTXPort getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @return AsyncSerialGroup the group completing the operations
+     */
+    public AsyncSerialGroup getGroup()
+    {
+        return group;
+    }
+
+    /**
+     * Read without a deadline.
+     *
+     * @param dst        bytes are stored from its position up to its limit
+     * @param attachment passed to the handler
+     * @param handler    told the number of bytes read, -1 at the end of
+     *                   the stream
+     *
+     * @throws ReadPendingException if a read is outstanding
+     * @throws IllegalStateException if input buffering is on
+     */
+    public <A> void read( ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler )
+    {
+        read( dst, 0, TimeUnit.MILLISECONDS, attachment, handler );
+    }
+
+    /**
+     * @param dst        bytes are stored from its position up to its limit
+     * @param timeout    longest wait, 0 for none
+     * @param unit       unit of timeout
+     * @param attachment passed to the handler
+     * @param handler    told the number of bytes read, -1 at the end of
+     *                   the stream
+     *
+     * @throws ReadPendingException if a read is outstanding
+     * @throws IllegalStateException if input buffering is on
+     */
+    public <A> void read( ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+                          CompletionHandler<Integer, ? super A> handler )
+    {
+        if( dst.isReadOnly() )
+        {
+            throw new IllegalArgumentException( "Read-only buffer" );
+        }
+        startRead( new ReadOp<A>( dst, timeout, unit, attachment, handler ) );
+    }
+
+    /**
+     * @param dst bytes are stored from its position up to its limit
+     *
+     * @return Future the number of bytes read, -1 at the end of the stream
+     *
+     * @throws ReadPendingException if a read is outstanding
+     * @throws IllegalStateException if input buffering is on
+     */
+    public Future<Integer> read( ByteBuffer dst )
+    {
+        PendingResult<Integer> result = new PendingResult<Integer>();
+        read( dst, 0, TimeUnit.MILLISECONDS, null, result );
+        return result;
+    }
+
+    /**
+     * Read one frame.  Input is taken in bulk and passed to the decoder;
+     * frames decoded after the first are kept for the next calls, so the
+     * same decoder should be passed every time.  Reads of bytes and frames
+     * should not be mixed.
+     *
+     * @param decoder    splits the input into frames
+     * @param timeout    longest wait, 0 for none
+     * @param unit       unit of timeout
+     * @param attachment passed to the handler
+     * @param handler    told a copy of the frame, null at the end of the
+     *                   stream
+     *
+     * @throws ReadPendingException if a read is outstanding
+     * @throws IllegalStateException if input buffering is on
+     */
+    public <A> void readFrame( FrameDecoder decoder, long timeout, TimeUnit unit, A attachment,
+                               CompletionHandler<ByteBuffer, ? super A> handler )
+    {
+        startRead( new FrameOp<A>( decoder, timeout, unit, attachment, handler ) );
+    }
+
+    /**
+     * @param decoder splits the input into frames
+     * @param timeout longest wait, 0 for none
+     * @param unit    unit of timeout
+     *
+     * @return Future a copy of the frame, null at the end of the stream
+     *
+     * @throws ReadPendingException if a read is outstanding
+     * @throws IllegalStateException if input buffering is on
+     */
+    public Future<ByteBuffer> readFrame( FrameDecoder decoder, long timeout, TimeUnit unit )
+    {
+        PendingResult<ByteBuffer> result = new PendingResult<ByteBuffer>();
+        readFrame( decoder, timeout, unit, null, result );
+        return result;
+    }
+
+    /**
+     * Write without a deadline.
+     *
+     * @param src        bytes from its position up to its limit are written
+     * @param attachment passed to the handler
+     * @param handler    told the number of bytes written
+     *
+     * @throws WritePendingException if a write is outstanding
+     */
+    public <A> void write( ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler )
+    {
+        write( src, 0, TimeUnit.MILLISECONDS, attachment, handler );
+    }
+
+    /**
+     * @param src        bytes from its position up to its limit are written
+     * @param timeout    longest wait, 0 for none
+     * @param unit       unit of timeout
+     * @param attachment passed to the handler
+     * @param handler    told the number of bytes written
+     *
+     * @throws WritePendingException if a write is outstanding
+     */
+    public <A> void write( ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+                           CompletionHandler<Integer, ? super A> handler )
+    {
+        WriteOp<A> op = new WriteOp<A>( src, timeout, unit, attachment, handler );
+        checkGroup();
+        if( !writeOp.compareAndSet( null, op ) )
+        {
+            throw new WritePendingException();
+        }
+        submit( op );
+    }
+
+    /**
+     * @param src bytes from its position up to its limit are written
+     *
+     * @return Future the number of bytes written
+     *
+     * @throws WritePendingException if a write is outstanding
+     */
+    public Future<Integer> write( ByteBuffer src )
+    {
+        PendingResult<Integer> result = new PendingResult<Integer>();
+        write( src, 0, TimeUnit.MILLISECONDS, null, result );
+        return result;
+    }
+
+    /**
+     * @return boolean true until the channel or its port is closed
+     */
+    public boolean isOpen()
+    {
+        return open && port.getFileDescriptor() != 0;
+    }
+
+    /**
+     * Close the port.  Outstanding operations fail with
+     * AsynchronousCloseException.
+     */
+    public void close()
+    {
+        port.close();
+        portClosed();
+    }
+
+    /* called by RXTXPort.close() before the fd goes away */
+    void portClosed()
+    {
+        open = false;
+        if( !group.isShutdown() )
+        {
+            group.submit( this );
+        }
+    }
+
+    private void startRead( Op<?, ?> op )
+    {
+        checkGroup();
+        if( port.getInputBuffering() != 0 )
+        {
+            throw new IllegalStateException( "Input buffering is on for " + port.getName() );
+        }
+        if( !readOp.compareAndSet( null, op ) )
+        {
+            throw new ReadPendingException();
+        }
+        submit( op );
+    }
+
+    private void checkGroup()
+    {
+        if( group.isShutdown() )
+        {
+            throw new ShutdownChannelGroupException();
+        }
+    }
+
+    private void submit( Op<?, ?> op )
+    {
+        if( !isOpen() )
+        {
+            op.fail( new ClosedChannelException() );
+            return;
+        }
+        group.submit( this );
+    }
+
+    /**
+     * Group thread: start new operations, do those the port is ready for
+     * and wait for the rest.
+     *
+     * @param ready SerialSelectionKey operations found ready
+     */
+    void process( int ready )
+    {
+        if( !open )
+        {
+            fail( new AsynchronousCloseException() );
+            if( key != null )
+            {
+                key.cancel();
+                key = null;
+                group.forget( this );
+            }
+            return;
+        }
+        perform( readOp.get(), ( ready & SerialSelectionKey.OP_READ ) != 0 );
+        perform( writeOp.get(), ( ready & SerialSelectionKey.OP_WRITE ) != 0 );
+        int ops = ( readOp.get() != null ? SerialSelectionKey.OP_READ : 0 ) |
+            ( writeOp.get() != null ? SerialSelectionKey.OP_WRITE : 0 );
+        try
+        {
+            if( key == null )
+            {
+                if( ops != 0 )
+                {
+                    key = group.register( this, ops );
+                }
+            }
+            else if( ops != interest )
+            {
+                key.interestOps( ops );
+            }
+            interest = ops;
+        }
+        catch( IOException e )
+        {
+            fail( e );
+        }
+        catch( CancelledKeyException e )
+        {
+            fail( new AsynchronousCloseException() );
+        }
+    }
+
+    /* group thread: the group is closed */
+    void shutdown()
+    {
+        fail( new AsynchronousCloseException() );
+    }
+
+    private void perform( Op<?, ?> op, boolean ready )
+    {
+        if( op == null )
+        {
+            return;
+        }
+        if( !op.started )
+        {
+            op.started = true;
+            if( op.deadline != 0 )
+            {
+                group.addDeadline( op );
+            }
+        }
+        else if( !ready )
+        {
+            return;
+        }
+        op.attempt();
+    }
+
+    private void fail( Throwable exc )
+    {
+        Op<?, ?> op = readOp.get();
+        if( op != null )
+        {
+            op.fail( exc );
+        }
+        op = writeOp.get();
+        if( op != null )
+        {
+            op.fail( exc );
+        }
+    }
+
+    private ByteBuffer inStage()
+    {
+        if( inStage == null )
+        {
+            inStage = ByteBuffer.allocateDirect( STAGE_SIZE );
+        }
+        return inStage;
+    }
+
+    private ByteBuffer outStage()
+    {
+        if( outStage == null )
+        {
+            outStage = ByteBuffer.allocateDirect( STAGE_SIZE );
+        }
+        return outStage;
+    }
+
+    /**
+     * An outstanding operation.  It is done when it leaves its slot,
+     * readOp or writeOp, and then its handler is dispatched.
+     */
+    abstract class Op<V, A>
+        implements Runnable
+    {
+        /* System.nanoTime() to fail at, or 0 */
+        final long deadline;
+        boolean started = false;
+
+        private final AtomicReference<Op<?, ?>> slot;
+        private final A attachment;
+        private final CompletionHandler<V, ? super A> handler;
+        private V result;
+        private Throwable exc;
+
+        Op( AtomicReference<Op<?, ?>> slot, long timeout, TimeUnit unit, A attachment,
+            CompletionHandler<V, ? super A> handler )
+        {
+            if( handler == null )
+            {
+                throw new NullPointerException();
+            }
+            this.slot = slot;
+            this.attachment = attachment;
+            this.handler = handler;
+            if( timeout > 0 )
+            {
+                long d = System.nanoTime() + unit.toNanos( timeout );
+                deadline = ( d == 0 ) ? 1 : d;
+            }
+            else
+            {
+                deadline = 0;
+            }
+        }
+
+        /**
+         * Move what bytes the port allows without waiting.
+         *
+         * @return V the result once done, null to wait
+         */
+        abstract V perform()
+            throws IOException;
+
+        boolean isPending()
+        {
+            return slot.get() == this;
+        }
+
+        void attempt()
+        {
+            try
+            {
+                V v = perform();
+                if( v != null )
+                {
+                    complete( v, null );
+                }
+            }
+            catch( IOException e )
+            {
+                complete( null, e );
+            }
+            catch( RuntimeException e )
+            {
+                complete( null, e );
+            }
+        }
+
+        void expire()
+        {
+            complete( null, new InterruptedByTimeoutException() );
+        }
+
+        void fail( Throwable failure )
+        {
+            complete( null, failure );
+        }
+
+        void complete( V value, Throwable failure )
+        {
+            if( !slot.compareAndSet( this, null ) )
+            {
+                return;
+            }
+            result = value;
+            exc = failure;
+            group.dispatch( this, handler instanceof PendingResult );
+        }
+
+        public void run()
+        {
+            if( exc == null )
+            {
+                handler.completed( result, attachment );
+            }
+            else
+            {
+                handler.failed( exc, attachment );
+            }
+        }
+    }
+
+    private final class ReadOp<A>
+        extends Op<Integer, A>
+    {
+        private final ByteBuffer dst;
+
+        ReadOp( ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+                CompletionHandler<Integer, ? super A> handler )
+        {
+            super( readOp, timeout, unit, attachment, handler );
+            this.dst = dst;
+        }
+
+        Integer perform()
+            throws IOException
+        {
+            int len = dst.remaining();
+            if( len == 0 )
+            {
+                return 0;
+            }
+            int n;
+            if( dst.isDirect() )
+            {
+                int pos = dst.position();
+                n = port.readNow( dst, pos, len );
+                if( n > 0 )
+                {
+                    dst.position( pos + n );
+                }
+            }
+            else
+            {
+                ByteBuffer in = inStage();
+                n = port.readNow( in, 0, Math.min( len, in.capacity() ) );
+                if( n > 0 )
+                {
+                    in.clear();
+                    in.limit( n );
+                    dst.put( in );
+                }
+            }
+            return ( n == 0 ) ? null : n;
+        }
+    }
+
+    private final class FrameOp<A>
+        extends Op<ByteBuffer, A>
+        implements FrameHandler
+    {
+        private final FrameDecoder decoder;
+
+        FrameOp( FrameDecoder decoder, long timeout, TimeUnit unit, A attachment,
+                 CompletionHandler<ByteBuffer, ? super A> handler )
+        {
+            super( readOp, timeout, unit, attachment, handler );
+            this.decoder = decoder;
+        }
+
+        ByteBuffer perform()
+            throws IOException
+        {
+            while( frames.isEmpty() )
+            {
+                ByteBuffer in = inStage();
+                int n = port.readNow( in, 0, in.capacity() );
+                if( n == 0 )
+                {
+                    return null;
+                }
+                if( n < 0 )
+                {
+                    /* null is the result at the end of the stream */
+                    complete( null, null );
+                    return null;
+                }
+                in.clear();
+                in.limit( n );
+                decoder.decode( in, this );
+            }
+            return frames.poll();
+        }
+
+        public void frame( ByteBuffer frame )
+        {
+            ByteBuffer copy = ByteBuffer.allocate( frame.remaining() );
+            copy.put( frame );
+            copy.flip();
+            frames.add( copy );
+        }
+    }
+
+    private final class WriteOp<A>
+        extends Op<Integer, A>
+    {
+        private final ByteBuffer src;
+        private int written = 0;
+
+        WriteOp( ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+                 CompletionHandler<Integer, ? super A> handler )
+        {
+            super( writeOp, timeout, unit, attachment, handler );
+            this.src = src;
+        }
+
+        Integer perform()
+            throws IOException
+        {
+            while( src.hasRemaining() )
+            {
+                int pos = src.position();
+                int n;
+                if( src.isDirect() )
+                {
+                    n = port.writeNow( src, pos, src.remaining() );
+                }
+                else
+                {
+                    ByteBuffer out = outStage();
+                    int len = Math.min( src.remaining(), out.capacity() );
+                    ByteBuffer slice = src.duplicate();
+                    slice.limit( pos + len );
+                    out.clear();
+                    out.put( slice );
+                    n = port.writeNow( out, 0, len );
+                }
+                if( n == 0 )
+                {
+                    return null;
+                }
+                src.position( pos + n );
+                written += n;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * The Future of an operation started without a handler
+     */
+    private static final class PendingResult<V>
+        implements Future<V>, CompletionHandler<V, Object>
+    {
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private V result;
+        private Throwable exc;
+
+        public void completed( V value, Object attachment )
+        {
+            result = value;
+            done.countDown();
+        }
+
+        public void failed( Throwable failure, Object attachment )
+        {
+            exc = failure;
+            done.countDown();
+        }
+
+        /**
+         * Operations cannot be cancelled, give them a timeout instead.
+         *
+         * @return boolean false
+         */
+        public boolean cancel( boolean mayInterruptIfRunning )
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public V get()
+            throws InterruptedException, ExecutionException
+        {
+            done.await();
+            return value();
+        }
+
+        public V get( long timeout, TimeUnit unit )
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if( !done.await( timeout, unit ) )
+            {
+                throw new TimeoutException();
+            }
+            return value();
+        }
+
+        private V value()
+            throws ExecutionException
+        {
+            if( exc != null )
+            {
+                throw new ExecutionException( exc );
+            }
+            return result;
+        }
+    }
+}
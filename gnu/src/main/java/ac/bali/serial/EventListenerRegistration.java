@@ -0,0 +1,151 @@
+package ac.bali.serial;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+/**
+ * A listener of an RXTXPort with the events it wants and where it is
+ * called.  See RXTXPort.addEventListener( lsnr, mask, executor ).
+ *
+ * Without an executor the listener is called on the thread delivering
+ * the port's events.  With one, the events wait in a ring of their own
+ * and are passed on by a task of the executor, one at a time and in
+ * order, so a slow listener holds up neither the others nor the port.
+ * If the ring is full, only the latest event of each type is kept and
+ * passed on once the ring is empty; the events it replaces are counted
+ * by SerialPortMetrics.getEventsDropped().
+ */
+final class EventListenerRegistration
+    implements Runnable
+{
+    /* events waiting for the executor, a power of two */
+    private static final int CAPACITY = 256;
+
+    private final RXTXPort port;
+    final SerialPortEventListener listener;
+    private final int mask;
+    private final Executor executor;
+
+    /* guarded by this */
+    private final SerialPortEvent pending[];
+    private int head = 0;
+    private int count = 0;
+    private boolean scheduled = false;
+    /* once the ring is full: the latest event of each type, and how many */
+    private final SerialPortEvent latest[];
+    private int overflow = 0;
+
+    EventListenerRegistration( RXTXPort port, SerialPortEventListener listener, int mask, Executor executor )
+    {
+        this.port = port;
+        this.listener = listener;
+        this.mask = mask;
+        this.executor = executor;
+        pending = ( executor == null ) ? null : new SerialPortEvent[ CAPACITY ];
+        latest = ( executor == null ) ? null : new SerialPortEvent[ SerialPortEvent.BI + 1 ];
+    }
+
+    /**
+     * @param e an event of the port, passed on if the mask wants it
+     *
+     * @return boolean true if the listener was called before returning
+     */
+    boolean deliver( SerialPortEvent e )
+    {
+        if( ( mask & ( 1 << e.getEventType() ) ) == 0 )
+        {
+            return false;
+        }
+        if( executor == null )
+        {
+            call( e );
+            return true;
+        }
+        synchronized( this )
+        {
+            if( overflow != 0 || count == CAPACITY )
+            {
+                /* the listener is too slow, keep the latest event only */
+                if( latest[ e.getEventType() ] != null )
+                {
+                    SerialPortMetrics.eventDropped( port.metrics );
+                }
+                else
+                {
+                    overflow++;
+                }
+                latest[ e.getEventType() ] = e;
+            }
+            else
+            {
+                pending[ ( head + count ) & ( CAPACITY - 1 ) ] = e;
+                count++;
+            }
+            if( scheduled )
+            {
+                return false;
+            }
+            scheduled = true;
+        }
+        try
+        {
+            executor.execute( this );
+        }
+        catch( RejectedExecutionException ex )
+        {
+            run();
+            return true;
+        }
+        return false;
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            SerialPortEvent e;
+            synchronized( this )
+            {
+                if( count == 0 && overflow != 0 )
+                {
+                    /* the ring is empty, queue the latest events by type */
+                    for( int type = 0; type < latest.length; type++ )
+                    {
+                        if( latest[ type ] != null )
+                        {
+                            pending[ count++ ] = latest[ type ];
+                            latest[ type ] = null;
+                        }
+                    }
+                    head = 0;
+                    overflow = 0;
+                }
+                if( count == 0 )
+                {
+                    scheduled = false;
+                    return;
+                }
+                e = pending[ head ];
+                pending[ head ] = null;
+                head = ( head + 1 ) & ( CAPACITY - 1 );
+                count--;
+            }
+            call( e );
+        }
+    }
+
+    private void call( SerialPortEvent e )
+    {
+        try
+        {
+            listener.serialEvent( e );
+        }
+        catch( RuntimeException ex )
+        {
+            /* the other listeners still get the event */
+            ex.printStackTrace();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import javax.comm.SerialPort;
 import javax.comm.UnsupportedCommOperationException;
 
 public class NRSerialPort
+    implements AutoCloseable
 {
     private RXTXPort serial;
     private String port = null;
@@ -133,6 +134,17 @@ public class NRSerialPort
         }
     }
 
+    /**
+     * Disconnect if connected, for try-with-resources
+     */
+    public void close()
+    {
+        if( isConnected() )
+        {
+            disconnect();
+        }
+    }
+
     public static Set<String> getAvailableSerialPorts()
     {
         Set<String> available = new HashSet<String>();
@@ -0,0 +1,19 @@
+package ac.bali.serial;
+
+/**
+ * Told by a PortWatcher when serial ports come and go.  Called on the
+ * watcher's thread, so it should not block.
+ */
+public interface PortListener
+{
+    /**
+     * @param port the device file of the new port, such as /dev/ttyUSB0
+     *             or a name under /dev/serial/by-id
+     */
+    void portAdded( String port );
+
+    /**
+     * @param port the device file of the port that went away
+     */
+    void portRemoved( String port );
+}
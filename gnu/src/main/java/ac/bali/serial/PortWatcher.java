@@ -0,0 +1,373 @@
+package ac.bali.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.comm.CommPortIdentifier;
+
+/**
+ * Watches /dev for serial ports being plugged in and unplugged.
+ *
+ * A WatchService, inotify on Linux, reports the device files created and
+ * deleted in /dev and /dev/serial/by-id.  A new file in /dev is a serial
+ * port if sysfs says so, see SerialPortInfo; nothing is opened.  Ports
+ * that come and go are registered with and removed from
+ * CommPortIdentifier as it happens, and the PortListeners are told, so
+ * there is no need to poll NRSerialPort.getAvailableSerialPorts().
+ *
+ * The names under /dev/serial/by-id stay the same when an adapter is
+ * plugged into another USB socket.  They are reported to the listeners
+ * but not registered, their ports are registered by their /dev name.
+ */
+public class PortWatcher
+    implements Closeable
+{
+    private final File devDir;
+    private final File sysfs;
+    private final File serialDir;
+    private final File byIdDir;
+    private final String devPrefix;
+    private final WatchService watcher;
+    private final RXTXCommDriver driver = new RXTXCommDriver();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /* watcher thread: the directories watched */
+    private final Map<WatchKey, File> dirs = new HashMap<WatchKey, File>();
+
+    private final Set<String> ports = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private final CopyOnWriteArrayList<PortListener> listeners = new CopyOnWriteArrayList<PortListener>();
+
+    /**
+     * Watch /dev, with sysfs at ac.bali.serial.SysfsRoot or /sys.
+     *
+     * @throws IOException if /dev cannot be watched
+     */
+    public PortWatcher()
+        throws IOException
+    {
+        this( new File( "/dev" ), new File( System.getProperty( "ac.bali.serial.SysfsRoot", "/sys" ) ) );
+    }
+
+    /**
+     * @param devDir directory of the device files
+     * @param sysfs  the sysfs mount point
+     *
+     * @throws IOException if devDir cannot be watched
+     */
+    PortWatcher( File devDir, File sysfs )
+        throws IOException
+    {
+        this.devDir = devDir;
+        this.sysfs = sysfs;
+        serialDir = new File( devDir, "serial" );
+        byIdDir = new File( serialDir, "by-id" );
+        devPrefix = devDir.getPath() + File.separator;
+        watcher = FileSystems.getDefault().newWatchService();
+        try
+        {
+            watch( devDir );
+            if( watch( serialDir ) )
+            {
+                watch( byIdDir );
+            }
+        }
+        catch( IOException e )
+        {
+            watcher.close();
+            throw e;
+        }
+        rescan( false );
+        thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                loop();
+            }
+        }, "PortWatcher" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * @param listener told of ports added and removed from now on
+     */
+    public void addPortListener( PortListener listener )
+    {
+        listeners.addIfAbsent( listener );
+    }
+
+    /**
+     * @param listener no longer told
+     */
+    public void removePortListener( PortListener listener )
+    {
+        listeners.remove( listener );
+    }
+
+    /**
+     * @return Set the device files of the ports present now
+     */
+    public Set<String> getPorts()
+    {
+        return new HashSet<String>( ports );
+    }
+
+    /**
+     * Stop watching.  The ports stay registered.
+     *
+     * @throws IOException
+     */
+    public void close()
+        throws IOException
+    {
+        closed = true;
+        watcher.close();
+        if( thread != Thread.currentThread() )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* watch dir if it is there, return false if it is not */
+    private boolean watch( File dir )
+        throws IOException
+    {
+        if( !dir.isDirectory() )
+        {
+            return false;
+        }
+        WatchKey key = dir.toPath().register( watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                              StandardWatchEventKinds.ENTRY_DELETE );
+        synchronized( dirs )
+        {
+            dirs.put( key, dir );
+        }
+        return true;
+    }
+
+    private void loop()
+    {
+        try
+        {
+            while( !closed )
+            {
+                WatchKey key = watcher.take();
+                File dir;
+                synchronized( dirs )
+                {
+                    dir = dirs.get( key );
+                }
+                for( WatchEvent<?> event : key.pollEvents() )
+                {
+                    try
+                    {
+                        if( event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null )
+                        {
+                            rescan( true );
+                        }
+                        else
+                        {
+                            changed( dir, ( (Path) event.context() ).toString(),
+                                     event.kind() == StandardWatchEventKinds.ENTRY_CREATE );
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        e.printStackTrace();
+                    }
+                    catch( RuntimeException e )
+                    {
+                        /* keep watching */
+                        e.printStackTrace();
+                    }
+                }
+                if( !key.reset() )
+                {
+                    /* the directory went away, /dev/serial does with the last adapter */
+                    synchronized( dirs )
+                    {
+                        dirs.remove( key );
+                    }
+                }
+            }
+        }
+        catch( ClosedWatchServiceException e )
+        {
+            /* closed */
+        }
+        catch( InterruptedException e )
+        {
+            /* stop */
+        }
+    }
+
+    /* watcher thread: name was created or deleted in dir */
+    private void changed( File dir, String name, boolean created )
+        throws IOException
+    {
+        if( dir.equals( devDir ) )
+        {
+            if( created && name.equals( serialDir.getName() ) && watch( serialDir ) )
+            {
+                /* by-id may have been made before serialDir was watched */
+                if( watch( byIdDir ) )
+                {
+                    addLinks();
+                }
+                return;
+            }
+            String path = devPrefix + name;
+            if( !created )
+            {
+                removed( path, true );
+            }
+            else if( SerialPortInfo.describe( sysfs, devPrefix, name ) != null )
+            {
+                added( path, true );
+            }
+        }
+        else if( dir.equals( serialDir ) )
+        {
+            if( created && name.equals( byIdDir.getName() ) && watch( byIdDir ) )
+            {
+                addLinks();
+            }
+        }
+        else if( dir.equals( byIdDir ) )
+        {
+            String path = byIdDir.getPath() + File.separator + name;
+            if( created )
+            {
+                added( path, false );
+            }
+            else
+            {
+                removed( path, false );
+            }
+        }
+    }
+
+    /* the links in by-id not known yet */
+    private void addLinks()
+    {
+        String names[] = byIdDir.list();
+        if( names != null )
+        {
+            for( String name : names )
+            {
+                added( byIdDir.getPath() + File.separator + name, false );
+            }
+        }
+    }
+
+    /* find the ports present, telling the listeners of changes if notify is set */
+    private void rescan( boolean notify )
+    {
+        Set<String> present = new HashSet<String>();
+        List<SerialPortInfo> found = SerialPortInfo.scan( sysfs, devPrefix );
+        if( found != null )
+        {
+            for( SerialPortInfo info : found )
+            {
+                present.add( info.getPath() );
+            }
+        }
+        String names[] = byIdDir.list();
+        if( names != null )
+        {
+            for( String name : names )
+            {
+                present.add( byIdDir.getPath() + File.separator + name );
+            }
+        }
+        for( String path : new HashSet<String>( ports ) )
+        {
+            if( !present.contains( path ) )
+            {
+                removed( path, !path.startsWith( byIdDir.getPath() ) );
+            }
+        }
+        for( String path : present )
+        {
+            if( notify )
+            {
+                added( path, !path.startsWith( byIdDir.getPath() ) );
+            }
+            else
+            {
+                ports.add( path );
+            }
+        }
+    }
+
+    private void added( String path, boolean register )
+    {
+        if( !ports.add( path ) )
+        {
+            return;
+        }
+        if( register )
+        {
+            CommPortIdentifier.addPortName( path, CommPortIdentifier.PORT_SERIAL, driver );
+            RXTXCommDriver.portsChanged();
+        }
+        for( PortListener l : listeners )
+        {
+            try
+            {
+                l.portAdded( path );
+            }
+            catch( RuntimeException e )
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void removed( String path, boolean register )
+    {
+        if( !ports.remove( path ) )
+        {
+            return;
+        }
+        if( register )
+        {
+            CommPortIdentifier.removePortName( path );
+            RXTXCommDriver.portsChanged();
+        }
+        for( PortListener l : listeners )
+        {
+            try
+            {
+                l.portRemoved( path );
+            }
+            catch( RuntimeException e )
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
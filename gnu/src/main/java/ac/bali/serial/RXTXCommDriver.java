@@ -65,12 +65,17 @@ package ac.bali.serial;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.comm.CommDriver;
 import javax.comm.CommPort;
 import javax.comm.CommPortIdentifier;
@@ -82,18 +87,23 @@ import javax.comm.PortInUseException;
 public class RXTXCommDriver
     implements CommDriver
 {
-    private static Set<String> ports = new HashSet<String>();
+    /* getPortIdentifiers(): the last scan and when it was made; each
+       scan fills a set of its own and then replaces scanned with it */
+    private static final ReentrantLock scanLock = new ReentrantLock();
+    private static volatile Set<String> scanned;
+    private static volatile long scannedAt;
+    private static final long refreshInterval = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong( "ac.bali.serial.PortRefreshMillis", 1000L ).longValue() );
 
     private final static boolean debug = false;
     private final static boolean devel = false;
     private final static boolean noVersionOutput = "true".equals( System.getProperty( "ac.bali.serial.NoVersionOutput" ) );
 
+    /* open every candidate in the device directory even where sysfs lists the ports */
+    private final static boolean probePorts = "true".equals( System.getProperty( "ac.bali.serial.ProbePorts" ) );
+
     static
     {
-        if( ports == null )
-        {
-            ports = new HashSet<String>();
-        }
         if( debug )
         {
             System.out.println( "RXTXCommDriver {}" );
@@ -166,10 +176,17 @@ public class RXTXCommDriver
         return nativeGetVersion();
     }
 
+    /**
+     * The serial ports found by scanning, and those registered with
+     * CommPortIdentifier.  Both are rescanned at most once per
+     * ac.bali.serial.PortRefreshMillis; callers arriving while a rescan
+     * runs get the ports found before.
+     *
+     * @return Set the port names
+     */
     public Set<String> getPortIdentifiers()
     {
-        ports = new HashSet<String>();
-        registerScannedPorts( CommPortIdentifier.PORT_SERIAL );
+        Set<String> found = new HashSet<String>( scannedPorts() );
         Enumeration<CommPortIdentifier> pe;
         try
         {
@@ -196,24 +213,65 @@ public class RXTXCommDriver
                     {
                         continue;
                     }
-                    boolean inList = false;
-                    for( String s : ports )
-                    {
-                        if( com.getName().contains( s ) )
-                        {
-                            inList = true;
-                        }
-                    }
-                    if( !inList )
-                    {
-                        ports.add( com.getName() );
-                    }
+                    found.add( com.getName() );
                 }
             }
         }
+        return found;
+    }
+
+    private static Set<String> newPortSet()
+    {
+        return Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    }
+
+    /* replaces the last scan with a complete one */
+    private static Set<String> publish( Set<String> found )
+    {
+        Set<String> ports = Collections.unmodifiableSet( found );
+        scanned = ports;
+        scannedAt = System.nanoTime();
         return ports;
     }
 
+    /* called by PortWatcher: the next getPortIdentifiers() scans again */
+    static void portsChanged()
+    {
+        scanned = null;
+    }
+
+    /* the ports found by the last scan, scanning again once it is stale */
+    private Set<String> scannedPorts()
+    {
+        Set<String> last = scanned;
+        if( last != null && System.nanoTime() - scannedAt < refreshInterval )
+        {
+            return last;
+        }
+        if( !scanLock.tryLock() )
+        {
+            if( last != null )
+            {
+                return last;
+            }
+            scanLock.lock();
+        }
+        try
+        {
+            if( scanned != null && System.nanoTime() - scannedAt < refreshInterval )
+            {
+                return scanned;
+            }
+            Set<String> found = newPortSet();
+            registerScannedPorts( CommPortIdentifier.PORT_SERIAL, found );
+            return publish( found );
+        }
+        finally
+        {
+            scanLock.unlock();
+        }
+    }
+
     private String[] getValidPortPrefixes( String CandidatePortPrefixes[] )
     {
         /*
@@ -318,7 +376,8 @@ public class RXTXCommDriver
     private void registerValidPorts(
         String CandidateDeviceNames[],
         String ValidPortPrefixes[],
-        int PortType
+        int PortType,
+        Set<String> found
     )
     {
         int i = 0;
@@ -422,18 +481,7 @@ public class RXTXCommDriver
                             this
                         );
                         //}
-                        boolean ok = true;
-                        for( String s : ports )
-                        {
-                            if( s.contains( PortName ) )
-                            {
-                                ok = false;
-                            }
-                        }
-                        if( ok )
-                        {
-                            ports.add( PortName );
-                        }
+                        found.add( PortName );
                     }
                 }
             }
@@ -490,7 +538,9 @@ public class RXTXCommDriver
         {
             if( !registerKnownPorts( CommPortIdentifier.PORT_SERIAL ) )
             {
-                registerScannedPorts( CommPortIdentifier.PORT_SERIAL );
+                Set<String> found = newPortSet();
+                registerScannedPorts( CommPortIdentifier.PORT_SERIAL, found );
+                publish( found );
             }
         }
     }
@@ -600,16 +650,47 @@ public class RXTXCommDriver
         }
     }
 
+    /*
+     * Register the serial ports listed in sysfs, see SerialPortInfo.  No
+     * device is opened; the names are added to found.  Returns false if
+     * there is no sysfs to read, so the ports are probed instead.
+     */
+    private boolean registerSysfsPorts( int PortType, Set<String> found )
+    {
+        List<SerialPortInfo> infos = SerialPortInfo.scan(
+            new File( System.getProperty( "ac.bali.serial.SysfsRoot", "/sys" ) ), deviceDirectory );
+        if( infos == null )
+        {
+            return false;
+        }
+        for( SerialPortInfo info : infos )
+        {
+            String PortName = info.getPath();
+            if( debug )
+            {
+                System.out.println( "sysfs: " + info );
+            }
+            CommPortIdentifier.addPortName( PortName, PortType, this );
+            found.add( PortName );
+        }
+        return true;
+    }
+
     /*
      * Look for all entries in deviceDirectory, and if they look like they should
      * be serial ports on this OS and they can be opened then register
      * them.
      *
      */
-    private void registerScannedPorts( int PortType )
+    private void registerScannedPorts( int PortType, Set<String> found )
     {
         osName = System.getProperty( "os.name" );
         deviceDirectory = getDeviceDirectory();
+        if( PortType == CommPortIdentifier.PORT_SERIAL && osName.equals( "Linux" ) && !probePorts &&
+            registerSysfsPorts( PortType, found ) )
+        {
+            return;
+        }
         String[] CandidateDeviceNames;
         if( debug )
         {
@@ -1014,7 +1095,7 @@ public class RXTXCommDriver
                     .println( "Unknown PortType " + PortType + " passed to RXTXCommDriver.registerScannedPorts()" );
             }
         }
-        registerValidPorts( CandidateDeviceNames, CandidatePortPrefixes, PortType );
+        registerValidPorts( CandidateDeviceNames, CandidatePortPrefixes, PortType, found );
     }
 
 
@@ -1039,6 +1120,12 @@ public class RXTXCommDriver
             System.out.println( "RXTXCommDriver:getCommPort("
                                 + PortName + "," + PortType + ")" );
         }
+        if( osName == null )
+        {
+            /* registered by PortWatcher, initialize() was not called */
+            osName = System.getProperty( "os.name" );
+            deviceDirectory = getDeviceDirectory();
+        }
         try
         {
             switch( PortType )
@@ -60,7 +60,14 @@ package ac.bali.serial;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.TooManyListenersException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.comm.PortInUseException;
 import javax.comm.SerialPort;
 import javax.comm.SerialPortEvent;
@@ -74,6 +81,7 @@ import javax.comm.UnsupportedCommOperationException;
  */
 
 public class RXTXPort extends SerialPort
+    implements AutoCloseable
 {
     /* I had a report that some JRE's complain when MonitorThread
        tries to access private variables
@@ -116,7 +124,27 @@ public class RXTXPort extends SerialPort
     boolean MonitorThreadAlive = false;
 
     /**
-     * Open the named port
+     * System property: "flock" to open every port with LOCK_FLOCK
+     * instead of LOCK_FILES
+     */
+    public static final String LOCKING_PROPERTY = "ac.bali.serial.Locking";
+
+    /**
+     * Claim the port with a UUCP or FHS lock file, after looking for the
+     * lock files of other programs in the usual directories
+     */
+    public static final int LOCK_FILES = 0;
+
+    /**
+     * Claim the port with flock(2) and TIOCEXCL on the device itself.
+     * One syscall, no file system writes and nothing left behind by a
+     * crash, as both go with the fd.  Programs that only know lock files
+     * are kept out by TIOCEXCL, except when running as root.
+     */
+    public static final int LOCK_FLOCK = 1;
+
+    /**
+     * Open the named port, locked as LOCKING_PROPERTY says
      *
      * @param name the name of the device to open
      *
@@ -125,11 +153,31 @@ public class RXTXPort extends SerialPort
      */
     public RXTXPort( String name )
         throws PortInUseException
+    {
+        this( name, "flock".equals( System.getProperty( LOCKING_PROPERTY ) ) ? LOCK_FLOCK : LOCK_FILES );
+    }
+
+    /**
+     * Open the named port
+     *
+     * @param name    the name of the device to open
+     * @param locking LOCK_FILES or LOCK_FLOCK
+     *
+     * @throws javax.comm.PortInUseException if another process has the
+     *                                       port locked
+     * @see javax.comm.SerialPort
+     */
+    public RXTXPort( String name, int locking )
+        throws PortInUseException
     {
         if( debug )
         {
             z.reportln( "RXTXPort:RXTXPort(" + name + ") called" );
         }
+        if( locking != LOCK_FILES && locking != LOCK_FLOCK )
+        {
+            throw new IllegalArgumentException( "locking " + locking );
+        }
     /* 
        commapi/javadocs/API_users_guide.html specifies that whenever
        an application tries to open a port in use by another application
@@ -142,14 +190,29 @@ public class RXTXPort extends SerialPort
        Trent
     */
         //    try {
-        fd = open( name );
+        fd = open( name, locking );
         this.name = name;
+        cleanable = SerialCleaner.register( this, new Release( fd, ctx, name, pid ) );
 
-        MonitorThreadLock = true;
-        monThread = new MonitorThread();
-        monThread.start();
-        waitForTheNativeCodeSilly();
-        MonitorThreadAlive = true;
+        if( Boolean.getBoolean( SerialEventReactor.SHARED_PROPERTY ) )
+        {
+            try
+            {
+                useReactor( SerialEventReactor.getShared() );
+            }
+            catch( IOException e )
+            {
+                z.reportln( "RXTXPort: no shared event reactor, " + e.getMessage() );
+            }
+        }
+        if( reactor == null )
+        {
+            startMonitorThread();
+        }
+        if( Boolean.getBoolean( SerialPortMetrics.PROPERTY ) )
+        {
+            enableMetrics();
+        }
         //    } catch ( PortInUseException e ){}
         timeout = -1;    /* default disabled timeout */
         if( debug )
@@ -158,12 +221,111 @@ public class RXTXPort extends SerialPort
         }
     }
 
-    private native synchronized int open( String name )
+    private native synchronized int open( String name, int locking )
         throws PortInUseException;
 
-    /* dont close the file while accessing the fd */
-    int IOLocked = 0;
-    final Object IOLockedMutex = new Object();
+    /*
+       dont close the file while accessing the fd.  The low bits count
+       the calls using it, CLOSING keeps new calls out once close() has
+       started and MONITOR_STARTING holds them while a monitor thread
+       sets up its event loop.  Entering and leaving is one atomic add.
+    */
+    private static final int CLOSING = 1 << 30;
+    private static final int MONITOR_STARTING = 1 << 29;
+    private static final int IO_CALLS = MONITOR_STARTING - 1;
+    private final AtomicInteger ioState = new AtomicInteger();
+
+    /**
+     * Counted down by the native event loop once it is listening
+     */
+    private volatile CountDownLatch monitorStarted = new CountDownLatch( 0 );
+
+    /**
+     * Admit a call using the fd.  Every call must be paired with exitIO().
+     *
+     * @throws IOException if the port is being closed
+     */
+    void enterIO()
+        throws IOException
+    {
+        int state = ioState.incrementAndGet();
+        if( ( state & ( CLOSING | MONITOR_STARTING ) ) == 0 )
+        {
+            return;
+        }
+        if( ( state & CLOSING ) != 0 )
+        {
+            exitIO();
+            throw new IOException( "Port " + name + " is closing" );
+        }
+        waitForTheNativeCodeSilly();
+    }
+
+    /* nativeavailable() admitted like every other call using the fd */
+    int availableIO()
+        throws IOException
+    {
+        enterIO();
+        try
+        {
+            return nativeavailable();
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    void exitIO()
+    {
+        if( carrying )
+        {
+            checkCarry();
+        }
+        int state = ioState.decrementAndGet();
+        if( ( state & CLOSING ) != 0 && ( state & IO_CALLS ) == 0 )
+        {
+            synchronized( ioState )
+            {
+                ioState.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Bytes a terminated read left in the native carry.  The next read
+     * takes them without waiting, so SerialSelector selects the port.
+     */
+    volatile boolean carrying = false;
+
+    /* between enterIO() and exitIO(): follow the carry after a read */
+    private void checkCarry()
+    {
+        boolean was = carrying;
+        carrying = nativeCarried() > 0;
+        if( carrying && !was )
+        {
+            SerialChannel c;
+            synchronized( this )
+            {
+                c = channel;
+            }
+            if( c != null )
+            {
+                c.carryLeft();
+            }
+        }
+    }
+
+    private void setIOState( int bit, boolean set )
+    {
+        int state;
+        do
+        {
+            state = ioState.get();
+        }
+        while( !ioState.compareAndSet( state, set ? state | bit : state & ~bit ) );
+    }
 
     /**
      * File descriptor
@@ -178,11 +340,26 @@ public class RXTXPort extends SerialPort
      * long for 64 bit pointers.
      */
     long eis = 0;
+
+    /**
+     * a pointer to the native port context created by open() and freed
+     * by nativeRelease().  It holds the fd and receive timeout used by the
+     * native read and write calls.
+     *
+     * long for 64 bit pointers.
+     */
+    long ctx = 0;
+
     /**
-     * pid for lock files
+     * pid for lock files, 0 if the port has none
      */
     int pid = 0;
 
+    /**
+     * Releases fd, ctx and the lock of a port nobody closed
+     */
+    private SerialCleaner.Cleanable cleanable;
+
     /**
      * DSR flag *
      */
@@ -213,189 +390,1030 @@ public class RXTXPort extends SerialPort
     private final SerialInputStream in = new SerialInputStream();
 
     /**
-     * get the InputStream
-     *
-     * @return InputStream
-     *
-     * @see java.io.InputStream
+     * Channel, created on first use
      */
-    public InputStream getInputStream()
-    {
-        if( debug )
-        {
-            z.reportln( "RXTXPort:getInputStream() called and returning" );
-        }
-        return in;
-    }
-
-    private native int nativeGetParity( int fd );
-
-    private native int nativeGetFlowControlMode( int fd );
+    private SerialChannel channel;
 
     /**
-     * Set the SerialPort parameters
-     * 1.5 stop bits requires 5 databits
-     *
-     * @param b baudrate
-     * @param d databits
-     * @param s stopbits
-     * @param p parity
+     * get a ByteChannel for this port.  Every call returns the same
+     * channel.
      *
-     * @throws javax.comm.UnsupportedCommOperationException
-     *
-     * @see javax.comm.UnsupportedCommOperationException
+     * @return SerialChannel
      *
-     *      If speed is not a predifined speed it is assumed to be
-     *      the actual speed desired.
+     * @see SerialSelector
      */
-    public synchronized void setSerialPortParams( int b, int d, int s, int p )
-        throws UnsupportedCommOperationException
+    public synchronized SerialChannel getChannel()
     {
-        if( debug )
+        if( channel == null )
         {
-            z.reportln( "RXTXPort:setSerialPortParams(" + b + " " + d + " " + s + " " + p + ") called" );
-        }
-        if( nativeSetSerialPortParams( b, d, s, p ) )
-        {
-            throw new UnsupportedCommOperationException( "Invalid Parameter" );
-        }
-        speed = b;
-        if( s == STOPBITS_1_5 )
-        {
-            dataBits = DATABITS_5;
-        }
-        else
-        {
-            dataBits = d;
+            channel = new SerialChannel( this );
         }
-        stopBits = s;
-        parity = p;
-        z.reportln( "RXTXPort:setSerialPortParams(" + b + " " + d + " " + s + " " + p + ") returning" );
+        return channel;
     }
 
     /**
-     * Set the native serial port parameters
-     * If speed is not a predifined speed it is assumed to be
-     * the actual speed desired.
-     */
-    private native boolean nativeSetSerialPortParams( int speed, int dataBits, int stopBits, int parity )
-        throws UnsupportedCommOperationException;
-
-    /**
-     * Line speed in bits-per-second
+     * AsyncSerialPort of this port, told when the port closes
      */
-    private int speed = 9600;
+    private AsyncSerialPort async;
 
-    /**
-     * @return int representing the baudrate
-     *         This will not behave as expected with custom speeds
-     */
-    public int getBaudRate()
+    synchronized void setAsyncPort( AsyncSerialPort port )
     {
-        if( debug )
+        if( port != null && async != null )
         {
-            z.reportln( "RXTXPort:getBaudRate() called and returning " + speed );
+            throw new IllegalStateException( "Port " + name + " already has an AsyncSerialPort" );
         }
-        return speed;
+        async = port;
     }
 
     /**
-     * Data bits port parameter
+     * @return int the native file descriptor, 0 once the port is closed
      */
-    private int dataBits = DATABITS_8;
+    int getFileDescriptor()
+    {
+        return fd;
+    }
 
     /**
-     * @return int representing the databits
+     * get the InputStream.  Reads of several threads take turns.
+     *
+     * @return InputStream
+     *
+     * @see java.io.InputStream
      */
-    public int getDataBits()
+    public InputStream getInputStream()
     {
         if( debug )
         {
-            z.reportln( "RXTXPort:getDataBits() called and returning " + dataBits );
+            z.reportln( "RXTXPort:getInputStream() called and returning" );
         }
-        return dataBits;
+        return in;
     }
 
     /**
-     * Stop bits port parameter
+     * Ring the input is read ahead into, or null
      */
-    private int stopBits = SerialPort.STOPBITS_1;
+    private volatile SerialInputBuffer inputBuffer;
 
     /**
-     * @return int representing the stopbits
+     * Read the input ahead into a ring buffer of the given capacity.  A
+     * thread of the port keeps taking whatever the driver has into the
+     * ring, and the InputStream, read( ByteBuffer ) and the SerialChannel
+     * are served from it, so a read() of one byte is a memory access
+     * rather than a call into the driver.  Timeout and threshold behave as
+     * without buffering.
+     *
+     * While buffering, DATA_AVAILABLE is sent once new input is in the
+     * ring.  Without an event reactor the listener is called on the fill
+     * thread, so it must not wait for more input; reads made there return
+     * what is buffered.  A SerialSelector does not see buffered input.
+     *
+     * @param capacity bytes to buffer, rounded up to a power of two, or 0
+     *                 to stop buffering.  Bytes in the ring are still read
+     *                 first.
+     *
+     * @throws IllegalArgumentException if capacity is negative or above 1GB
+     * @throws IllegalStateException if the port is closed or buffered input
+     * is left from an earlier setting
      */
-    public int getStopBits()
+    public synchronized void setInputBuffering( int capacity )
     {
         if( debug )
         {
-            z.reportln( "RXTXPort:getStopBits() called and returning " + stopBits );
+            z.reportln( "RXTXPort:setInputBuffering( " + capacity + " )" );
         }
-        return stopBits;
+        if( capacity < 0 || capacity > 1 << 30 )
+        {
+            throw new IllegalArgumentException( "Unexpected input buffering " + capacity );
+        }
+        if( fd == 0 )
+        {
+            throw new IllegalStateException( "Port " + name + " is closed" );
+        }
+        SerialInputBuffer old = inputBuffer;
+        if( old != null )
+        {
+            if( old.isRunning() && capacity == old.getCapacity() )
+            {
+                return;
+            }
+            old.stop();
+            if( capacity != 0 && old.available() > 0 )
+            {
+                inputBufferStopped();
+                throw new IllegalStateException( "Buffered input left on " + name );
+            }
+            if( capacity == 0 )
+            {
+                inputBufferStopped();
+                return;
+            }
+        }
+        else if( capacity == 0 )
+        {
+            return;
+        }
+        SerialInputBuffer buffer = new SerialInputBuffer( this, capacity );
+        inputBuffer = buffer;
+        waitForTheNativeCodeSilly();
+        if( monThread != null && monThread.Data )
+        {
+            setEventFlag( SerialPortEvent.DATA_AVAILABLE, true );
+        }
+        buffer.start();
     }
 
     /**
-     * Parity port parameter
+     * @return int the capacity of the input ring, 0 if input is not
+     * buffered
      */
-    private int parity = SerialPort.PARITY_NONE;
+    public int getInputBuffering()
+    {
+        SerialInputBuffer buffer = inputBuffer;
+        return buffer != null && buffer.isRunning() ? buffer.getCapacity() : 0;
+    }
 
     /**
-     * @return int representing the parity
+     * @return SerialInputBuffer the ring reads are served from, or null to
+     * read the driver
      */
-    public int getParity()
+    private SerialInputBuffer buffered()
     {
-        if( debug )
-        {
-            z.reportln( "RXTXPort:getParity() called and returning " + parity );
-        }
-        return parity;
+        SerialInputBuffer buffer = inputBuffer;
+        return buffer != null && buffer.isActive() ? buffer : null;
     }
 
     /**
-     * Flow control
+     * @return boolean false while a fill thread takes the input, so the
+     * driver is not watched for DATA_AVAILABLE
      */
-    private int flowmode = SerialPort.FLOWCONTROL_NONE;
+    boolean watchesDriverData()
+    {
+        SerialInputBuffer buffer = inputBuffer;
+        return isEventEnabled( SerialPortEvent.DATA_AVAILABLE ) &&
+            ( buffer == null || !buffer.isRunning() );
+    }
 
-    /**
-     * @param flowcontrol FLOWCONTROL_NONE is default
-     *
-     * @see javax.comm.SerialPort#FLOWCONTROL_NONE
-     */
-    public void setFlowControlMode( int flowcontrol )
+    /* fill thread: new input is in the ring */
+    void inputBuffered()
     {
-        if( debug )
-        {
-            z.reportln( "RXTXPort:setFlowControlMode( " + flowcontrol + " ) called" );
-        }
-        if( monThreadisInterrupted )
+        if( !isEventEnabled( SerialPortEvent.DATA_AVAILABLE ) )
         {
-            if( debug_events )
-            {
-                z.reportln( "RXTXPort:setFlowControlMode MonThread is Interrupeted returning" );
-            }
             return;
         }
-        try
+        SerialEventReactor r = reactor;
+        if( r != null )
         {
-            setflowcontrol( flowcontrol );
+            r.dataBuffered( this );
         }
-        catch( IOException e )
+        else
         {
-            e.printStackTrace();
-            return;
+            sendEvent( SerialPortEvent.DATA_AVAILABLE, true );
         }
-        flowmode = flowcontrol;
-        if( debug )
+    }
+
+    /* the fill thread has ended, watch the driver again */
+    void inputBufferStopped()
+    {
+        if( fd != 0 && !monThreadisInterrupted && isEventEnabled( SerialPortEvent.DATA_AVAILABLE ) )
         {
-            z.reportln( "RXTXPort:setFlowControlMode( " + flowcontrol + " ) returning" );
+            setEventFlag( SerialPortEvent.DATA_AVAILABLE, true );
         }
     }
 
     /**
-     * @return int representing the flowmode
+     * Read from the port into a ByteBuffer.  A direct buffer is filled
+     * by the native read in place.  For a heap buffer only the bytes
+     * read are copied into its backing array.  Timeout and threshold
+     * behave as for InputStream.read( byte[], int, int ).
+     *
+     * @param dst bytes are stored from its position up to its limit
+     *
+     * @return int  number of bytes read, 0 on timeout
+     *
+     * @throws IOException
      */
-    public int getFlowControlMode()
+    public int read( ByteBuffer dst )
+        throws IOException
     {
-        if( debug )
+        readLock.lock();
+        try
+        {
+            if( debug_read )
+            {
+                z.reportln( "RXTXPort:read(ByteBuffer " + dst.remaining() + ") called" );
+            }
+            if( fd == 0 )
+            {
+                throw new IOException();
+            }
+            if( dst.isReadOnly() )
+            {
+                throw new ReadOnlyBufferException();
+            }
+            int len = dst.remaining();
+            if( len == 0 || monThreadisInterrupted )
+            {
+                return 0;
+            }
+            SerialInputBuffer buffer = buffered();
+            if( buffer != null )
+            {
+                int want = ( threshold == 0 ) ? 1 : Math.min( len, threshold );
+                buffer.await( want, timeout );
+                return buffer.read( dst, ( threshold == 0 ) ? len : want );
+            }
+            if( parkingIO )
+            {
+                return parkingRead( dst );
+            }
+            int Minimum = len;
+            if( threshold == 0 )
+            {
+                int a = availableIO();
+                Minimum = ( a <= 0 ) ? 1 : Math.min( Minimum, a );
+            }
+            else
+            {
+                Minimum = Math.min( Minimum, threshold );
+            }
+            return readBuffer( dst, Minimum );
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Read one record ending with delimiter, such as a CRLF terminated
+     * line.  Input is read in bulk; bytes after the delimiter are kept
+     * and returned by the next read of any kind.  The receive timeout
+     * applies to the whole record, the threshold does not.  If the
+     * timeout passes first, 0 is returned and the bytes of the record so
+     * far are kept for the next call.
+     *
+     * @param b         receives the record, delimiter included
+     * @param off       index in b of the first byte
+     * @param len       longest record.  A longer one is returned in pieces
+     *                  of len bytes, only the last ending with delimiter.
+     * @param delimiter one or more bytes ending a record
+     *
+     * @return int the length of the record, 0 on timeout
+     *
+     * @throws IOException
+     * @throws IllegalArgumentException if delimiter is empty
+     */
+    public int readRecord( byte b[], int off, int len, byte delimiter[] )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            if( debug_read )
+            {
+                z.reportln( "RXTXPort:readRecord(" + len + ") called" );
+            }
+            if( fd == 0 )
+            {
+                throw new IOException();
+            }
+            if( off < 0 || len < 0 || off + len > b.length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            if( delimiter.length == 0 )
+            {
+                throw new IllegalArgumentException( "Empty delimiter" );
+            }
+            if( len == 0 || monThreadisInterrupted )
+            {
+                return 0;
+            }
+            SerialInputBuffer buffer = buffered();
+            if( buffer != null )
+            {
+                int n = buffer.awaitRecord( delimiter, len, timeout );
+                return ( n > 0 ) ? buffer.read( b, off, n ) : 0;
+            }
+            enterIO();
+            try
+            {
+                long start = SerialPortMetrics.beginIO( metrics );
+                int result = nativeReadRecord( b, off, len, delimiter );
+                SerialPortMetrics.endRead( metrics, start, result, 1 );
+                if( !carrying )
+                {
+                    checkCarry();
+                }
+                return result;
+            }
+            finally
+            {
+                exitIO();
+            }
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Read only what the driver has buffered, without waiting.  Used by
+     * SerialChannel in non-blocking mode.
+     *
+     * @param dst bytes are stored from its position up to its limit
+     *
+     * @return int  number of bytes read, 0 if nothing was buffered
+     *
+     * @throws IOException
+     */
+    int readAvailable( ByteBuffer dst )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            if( fd == 0 )
+            {
+                throw new IOException();
+            }
+            if( dst.isReadOnly() )
+            {
+                throw new ReadOnlyBufferException();
+            }
+            int len = dst.remaining();
+            if( len == 0 || monThreadisInterrupted )
+            {
+                return 0;
+            }
+            SerialInputBuffer buffer = buffered();
+            if( buffer != null )
+            {
+                return buffer.read( dst, len );
+            }
+            int a = availableIO();
+            if( a <= 0 )
+            {
+                return 0;
+            }
+            return readBuffer( dst, Math.min( len, a ) );
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    private int readBuffer( ByteBuffer dst, int len )
+        throws IOException
+    {
+        enterIO();
+        try
+        {
+            int pos = dst.position();
+            int result;
+            long start = SerialPortMetrics.beginIO( metrics );
+            if( dst.isDirect() )
+            {
+                result = readDirect( dst, pos, len );
+            }
+            else
+            {
+                result = readArray( dst.array(), dst.arrayOffset() + pos, len );
+            }
+            SerialPortMetrics.endRead( metrics, start, result, len );
+            if( result > 0 )
+            {
+                dst.position( pos + result );
+            }
+            if( debug_read_results )
+            {
+                z.reportln( "RXTXPort:read(ByteBuffer) returned " + result + " bytes" );
+            }
+            return result;
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    /**
+     * Write the remaining bytes of a ByteBuffer to the port.  A direct
+     * buffer is passed to the native write as is.  For a heap buffer
+     * only the remaining slice of its backing array is copied.
+     *
+     * @param src bytes from its position up to its limit are written
+     *
+     * @return int  number of bytes written
+     *
+     * @throws IOException
+     */
+    public int write( ByteBuffer src )
+        throws IOException
+    {
+        if( debug_write )
+        {
+            z.reportln( "RXTXPort:write(ByteBuffer " + src.remaining() + ") called" );
+        }
+        if( fd == 0 )
+        {
+            throw new IOException();
+        }
+        int len = src.remaining();
+        if( len == 0 || monThreadisInterrupted )
+        {
+            return 0;
+        }
+        if( parkingIO )
+        {
+            return parkingWrite( src );
+        }
+        enterIO();
+        try
+        {
+            int pos = src.position();
+            int result = len;
+            long start = SerialPortMetrics.beginIO( metrics );
+            if( src.isDirect() )
+            {
+                result = writeDirect( src, pos, len, monThreadisInterrupted );
+            }
+            else if( src.hasArray() )
+            {
+                writeArray( src.array(), src.arrayOffset() + pos, len, monThreadisInterrupted );
+            }
+            else
+            {
+                /* read only heap buffer, the array is not reachable */
+                byte b[] = new byte[ len ];
+                src.duplicate().get( b );
+                writeArray( b, 0, len, monThreadisInterrupted );
+            }
+            SerialPortMetrics.endWrite( metrics, start, result );
+            src.position( pos + result );
+            return result;
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    /**
+     * Write the remaining bytes of several ByteBuffers, such as a header,
+     * a payload and a checksum, with one gathering native write.  Direct
+     * buffers are written in place, heap buffers copied once.
+     *
+     * @param srcs bytes from the position up to the limit of each are
+     *             written, one buffer after the other
+     *
+     * @return long number of bytes written
+     *
+     * @throws IOException
+     */
+    public long write( ByteBuffer srcs[] )
+        throws IOException
+    {
+        return write( srcs, 0, srcs.length );
+    }
+
+    /**
+     * @param srcs   the buffers
+     * @param offset index in srcs of the first buffer written
+     * @param length number of buffers written
+     *
+     * @return long number of bytes written
+     *
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if offset and length are not in srcs
+     */
+    public long write( ByteBuffer srcs[], int offset, int length )
+        throws IOException
+    {
+        if( debug_write )
+        {
+            z.reportln( "RXTXPort:write(ByteBuffer[" + length + "]) called" );
+        }
+        if( fd == 0 )
+        {
+            throw new IOException();
+        }
+        if( offset < 0 || length < 0 || offset > srcs.length - length )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if( monThreadisInterrupted )
+        {
+            return 0;
+        }
+        Object parts[] = new Object[ length ];
+        int offs[] = new int[ length ];
+        int lens[] = new int[ length ];
+        int count = vector( srcs, offset, length, parts, offs, lens, Integer.MAX_VALUE );
+        if( count == 0 )
+        {
+            return 0;
+        }
+        if( parkingIO )
+        {
+            return parkingWrite( srcs, offset, length, parts, offs, lens, count );
+        }
+        long result;
+        enterIO();
+        try
+        {
+            long start = SerialPortMetrics.beginIO( metrics );
+            result = nativeWriteVector( parts, offs, lens, count, true, monThreadisInterrupted );
+            SerialPortMetrics.endWrite( metrics, start, result );
+        }
+        finally
+        {
+            exitIO();
+        }
+        advance( srcs, offset, length, result );
+        return result;
+    }
+
+    /**
+     * Read into several ByteBuffers with one scattering native read, for
+     * example a fixed size header and the payload following it.  The
+     * buffers are filled one after the other.  Timeout and threshold
+     * behave as for read( ByteBuffer ) with the room of all the buffers.
+     * With input buffering or parking the first buffer is read as by
+     * read( ByteBuffer ), the rest take what has come without waiting.
+     *
+     * @param dsts bytes are stored from the position up to the limit of
+     *             each
+     *
+     * @return long number of bytes read, 0 on timeout
+     *
+     * @throws IOException
+     */
+    public long read( ByteBuffer dsts[] )
+        throws IOException
+    {
+        return read( dsts, 0, dsts.length );
+    }
+
+    /**
+     * @param dsts   the buffers
+     * @param offset index in dsts of the first buffer filled
+     * @param length number of buffers filled
+     *
+     * @return long number of bytes read, 0 on timeout
+     *
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if offset and length are not in dsts
+     */
+    public long read( ByteBuffer dsts[], int offset, int length )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            if( debug_read )
+            {
+                z.reportln( "RXTXPort:read(ByteBuffer[" + length + "]) called" );
+            }
+            if( fd == 0 )
+            {
+                throw new IOException();
+            }
+            if( offset < 0 || length < 0 || offset > dsts.length - length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            long len = 0;
+            for( int i = offset; i < offset + length; i++ )
+            {
+                if( dsts[ i ].isReadOnly() )
+                {
+                    throw new ReadOnlyBufferException();
+                }
+                len += dsts[ i ].remaining();
+            }
+            if( len == 0 || monThreadisInterrupted )
+            {
+                return 0;
+            }
+            if( buffered() != null || parkingIO )
+            {
+                return readEach( dsts, offset, length, true );
+            }
+            int Minimum = (int) Math.min( len, Integer.MAX_VALUE );
+            if( threshold == 0 )
+            {
+                int a = availableIO();
+                Minimum = ( a <= 0 ) ? 1 : Math.min( Minimum, a );
+            }
+            else
+            {
+                Minimum = Math.min( Minimum, threshold );
+            }
+            Object parts[] = new Object[ length ];
+            int offs[] = new int[ length ];
+            int lens[] = new int[ length ];
+            int count = vector( dsts, offset, length, parts, offs, lens, Minimum );
+            long result;
+            enterIO();
+            try
+            {
+                long start = SerialPortMetrics.beginIO( metrics );
+                result = nativeReadVector( parts, offs, lens, count, Minimum );
+                SerialPortMetrics.endRead( metrics, start, result, Minimum );
+            }
+            finally
+            {
+                exitIO();
+            }
+            advance( dsts, offset, length, result );
+            if( debug_read_results )
+            {
+                z.reportln( "RXTXPort:read(ByteBuffer[]) returned " + result + " bytes" );
+            }
+            return result;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Fill the buffers one at a time, stopping at the first one left
+     * short.  Used by read( ByteBuffer[] ) and SerialChannel.
+     *
+     * @param dsts   the buffers
+     * @param offset index in dsts of the first buffer filled
+     * @param length number of buffers filled
+     * @param wait   read the first buffer with read( ByteBuffer ), false
+     *               to take only what the driver has
+     *
+     * @return long number of bytes read
+     *
+     * @throws IOException
+     */
+    long readEach( ByteBuffer dsts[], int offset, int length, boolean wait )
+        throws IOException
+    {
+        long total = 0;
+        for( int i = offset; i < offset + length; i++ )
+        {
+            ByteBuffer dst = dsts[ i ];
+            if( !dst.hasRemaining() )
+            {
+                continue;
+            }
+            int n = ( wait && total == 0 ) ? read( dst ) : readAvailable( dst );
+            if( n <= 0 )
+            {
+                break;
+            }
+            total += n;
+            if( dst.hasRemaining() )
+            {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /* parking mode: write without waiting and park while the output queue is full */
+    private long parkingWrite( ByteBuffer srcs[], int offset, int length,
+        Object parts[], int offs[], int lens[], int count )
+        throws IOException
+    {
+        long total = 0;
+        parkWrite.lock();
+        try
+        {
+            while( count > 0 )
+            {
+                long n;
+                enterIO();
+                try
+                {
+                    ensureNonBlocking();
+                    long start = SerialPortMetrics.beginIO( metrics );
+                    n = nativeWriteVector( parts, offs, lens, count, false, monThreadisInterrupted );
+                    SerialPortMetrics.endWrite( metrics, start, n );
+                }
+                finally
+                {
+                    exitIO();
+                }
+                advance( srcs, offset, length, n );
+                total += n;
+                if( n == 0 )
+                {
+                    SerialPoller.getShared().await( this, SerialSelectionKey.OP_WRITE, 0 );
+                }
+                count = vector( srcs, offset, length, parts, offs, lens, Integer.MAX_VALUE );
+            }
+        }
+        finally
+        {
+            parkWrite.unlock();
+        }
+        return total;
+    }
+
+    /**
+     * Describe the remaining bytes of buffers for nativeWriteVector and
+     * nativeReadVector, leaving out the empty ones.  A part is a direct
+     * buffer or a byte array.  A read only heap buffer is copied.
+     *
+     * @param most bytes to describe at most
+     *
+     * @return int number of parts
+     */
+    private static int vector( ByteBuffer bufs[], int offset, int length,
+        Object parts[], int offs[], int lens[], int most )
+    {
+        int count = 0;
+        for( int i = offset; i < offset + length && most > 0; i++ )
+        {
+            ByteBuffer b = bufs[ i ];
+            int len = Math.min( b.remaining(), most );
+            if( len == 0 )
+            {
+                continue;
+            }
+            if( b.isDirect() )
+            {
+                parts[ count ] = b;
+                offs[ count ] = b.position();
+            }
+            else if( b.hasArray() )
+            {
+                parts[ count ] = b.array();
+                offs[ count ] = b.arrayOffset() + b.position();
+            }
+            else
+            {
+                /* read only heap buffer, the array is not reachable */
+                byte copy[] = new byte[ len ];
+                ByteBuffer slice = b.duplicate();
+                slice.limit( slice.position() + len );
+                slice.get( copy );
+                parts[ count ] = copy;
+                offs[ count ] = 0;
+            }
+            lens[ count ] = len;
+            most -= len;
+            count++;
+        }
+        return count;
+    }
+
+    /* move the positions of the buffers past n bytes */
+    private static void advance( ByteBuffer bufs[], int offset, int length, long n )
+    {
+        for( int i = offset; i < offset + length && n > 0; i++ )
+        {
+            ByteBuffer b = bufs[ i ];
+            int step = (int) Math.min( b.remaining(), n );
+            b.position( b.position() + step );
+            n -= step;
+        }
+    }
+
+    /**
+     * Take what the driver has without waiting.  Used by AsyncSerialPort.
+     *
+     * @param b   direct buffer to fill
+     * @param off index in b of the first byte
+     * @param len room in b
+     *
+     * @return int bytes read, 0 if there were none, -1 if the line hung up
+     *
+     * @throws IOException
+     */
+    int readNow( ByteBuffer b, int off, int len )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            enterIO();
+            try
+            {
+                long start = SerialPortMetrics.beginIO( metrics );
+                int result = fillDirect( b, off, len, 0 );
+                SerialPortMetrics.endRead( metrics, start, result, 0 );
+                return result;
+            }
+            finally
+            {
+                exitIO();
+            }
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Write what the output queue has room for without waiting.  Used by
+     * AsyncSerialPort.
+     *
+     * @param b   direct buffer holding the bytes
+     * @param off index in b of the first byte
+     * @param len bytes to write
+     *
+     * @return int bytes written, 0 if the output queue is full
+     *
+     * @throws IOException
+     */
+    int writeNow( ByteBuffer b, int off, int len )
+        throws IOException
+    {
+        enterIO();
+        try
+        {
+            ensureNonBlocking();
+            long start = SerialPortMetrics.beginIO( metrics );
+            int result = nativeWriteNow( b, off, len, monThreadisInterrupted );
+            SerialPortMetrics.endWrite( metrics, start, result );
+            return result;
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    private native int nativeGetParity( int fd );
+
+    private native int nativeGetFlowControlMode( int fd );
+
+    /**
+     * Set the SerialPort parameters
+     * 1.5 stop bits requires 5 databits
+     *
+     * @param b baudrate
+     * @param d databits
+     * @param s stopbits
+     * @param p parity
+     *
+     * @throws javax.comm.UnsupportedCommOperationException
+     *
+     * @see javax.comm.UnsupportedCommOperationException
+     *
+     *      If speed is not a predifined speed it is assumed to be
+     *      the actual speed desired.
+     */
+    public synchronized void setSerialPortParams( int b, int d, int s, int p )
+        throws UnsupportedCommOperationException
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setSerialPortParams(" + b + " " + d + " " + s + " " + p + ") called" );
+        }
+        if( nativeSetSerialPortParams( b, d, s, p ) )
+        {
+            throw new UnsupportedCommOperationException( "Invalid Parameter" );
+        }
+        speed = b;
+        if( s == STOPBITS_1_5 )
+        {
+            dataBits = DATABITS_5;
+        }
+        else
+        {
+            dataBits = d;
+        }
+        stopBits = s;
+        parity = p;
+        z.reportln( "RXTXPort:setSerialPortParams(" + b + " " + d + " " + s + " " + p + ") returning" );
+    }
+
+    /**
+     * Set the native serial port parameters
+     * If speed is not a predifined speed it is assumed to be
+     * the actual speed desired.
+     */
+    private native boolean nativeSetSerialPortParams( int speed, int dataBits, int stopBits, int parity )
+        throws UnsupportedCommOperationException;
+
+    /**
+     * Line speed in bits-per-second
+     */
+    private int speed = 9600;
+
+    /**
+     * @return int representing the baudrate
+     *         This will not behave as expected with custom speeds
+     */
+    public int getBaudRate()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getBaudRate() called and returning " + speed );
+        }
+        return speed;
+    }
+
+    /**
+     * Data bits port parameter
+     */
+    private int dataBits = DATABITS_8;
+
+    /**
+     * @return int representing the databits
+     */
+    public int getDataBits()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getDataBits() called and returning " + dataBits );
+        }
+        return dataBits;
+    }
+
+    /**
+     * Stop bits port parameter
+     */
+    private int stopBits = SerialPort.STOPBITS_1;
+
+    /**
+     * @return int representing the stopbits
+     */
+    public int getStopBits()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getStopBits() called and returning " + stopBits );
+        }
+        return stopBits;
+    }
+
+    /**
+     * Parity port parameter
+     */
+    private int parity = SerialPort.PARITY_NONE;
+
+    /**
+     * @return int representing the parity
+     */
+    public int getParity()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getParity() called and returning " + parity );
+        }
+        return parity;
+    }
+
+    /**
+     * Flow control
+     */
+    private int flowmode = SerialPort.FLOWCONTROL_NONE;
+
+    /**
+     * @param flowcontrol FLOWCONTROL_NONE is default
+     *
+     * @see javax.comm.SerialPort#FLOWCONTROL_NONE
+     */
+    public void setFlowControlMode( int flowcontrol )
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setFlowControlMode( " + flowcontrol + " ) called" );
+        }
+        if( monThreadisInterrupted )
+        {
+            if( debug_events )
+            {
+                z.reportln( "RXTXPort:setFlowControlMode MonThread is Interrupeted returning" );
+            }
+            return;
+        }
+        try
+        {
+            setflowcontrol( flowcontrol );
+        }
+        catch( IOException e )
+        {
+            e.printStackTrace();
+            return;
+        }
+        flowmode = flowcontrol;
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setFlowControlMode( " + flowcontrol + " ) returning" );
+        }
+    }
+
+    /**
+     * @return int representing the flowmode
+     */
+    public int getFlowControlMode()
+    {
+        if( debug )
         {
             z.reportln( "RXTXPort:getFlowControlMode() returning " + flowmode );
         }
@@ -645,54 +1663,359 @@ public class RXTXPort extends SerialPort
         }
         if( debug )
         {
-            z.reportln( "RXTXPort:setInputBufferSize( " + size + ") returning" );
+            z.reportln( "RXTXPort:setInputBufferSize( " + size + ") returning" );
+        }
+    }
+
+    /**
+     */
+    public int getInputBufferSize()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getInputBufferSize() called and returning " + InputBuffer );
+        }
+        return ( InputBuffer );
+    }
+
+    /**
+     * @param size output buffer size in bytes
+     */
+    public void setOutputBufferSize( int size )
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setOutputBufferSize( " + size + ") called" );
+        }
+        if( size < 0 )
+        {
+            throw new IllegalArgumentException( "Unexpected negative buffer size value" );
+        }
+        else
+        {
+            OutputBuffer = size;
+        }
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setOutputBufferSize( " + size + ") returned" );
+        }
+    }
+
+    /**
+     * @return in the output buffer size
+     */
+    public int getOutputBufferSize()
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:getOutputBufferSize() called and returning " + OutputBuffer );
+        }
+        return ( OutputBuffer );
+    }
+
+    /**
+     * Batch of output collected before writing, or null
+     */
+    private volatile SerialOutputBatch outputBatch;
+
+    /**
+     * Collect the bytes written to the OutputStream and hand them to the
+     * driver in batches, so code writing a byte at a time makes one
+     * system call per batch instead of one per byte.  A batch is written
+     * when it is full, on flush(), and, with a delay, once its first byte
+     * has waited that long.  Without a delay bytes wait for a full batch
+     * or flush().  Errors of a delayed write are thrown by the next write()
+     * or flush().
+     *
+     * @param size  bytes per batch, 0 to write every call at once
+     * @param delay longest time a byte waits in a batch, 0 for no limit
+     * @param unit  unit of delay
+     *
+     * @throws IOException if the pending bytes could not be written
+     * @throws IllegalArgumentException if size or delay is negative
+     */
+    public synchronized void setOutputBatching( int size, long delay, TimeUnit unit )
+        throws IOException
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setOutputBatching( " + size + ", " + delay + " " + unit + " )" );
+        }
+        if( size < 0 || delay < 0 )
+        {
+            throw new IllegalArgumentException( "Unexpected output batching " + size + ", " + delay );
+        }
+        SerialOutputBatch old = outputBatch;
+        outputBatch = ( size == 0 ) ? null : new SerialOutputBatch( this, size, unit.toNanos( delay ) );
+        if( old != null )
+        {
+            old.retire();
+        }
+    }
+
+    /**
+     * @return int bytes per output batch, 0 if output is not batched
+     */
+    public int getOutputBatching()
+    {
+        SerialOutputBatch batch = outputBatch;
+        return ( batch == null ) ? 0 : batch.getSize();
+    }
+
+    /**
+     * Wait for the port in Java rather than in the native code
+     */
+    private volatile boolean parkingIO = false;
+
+    /* heap buffers pass through these in parking mode */
+    private ByteBuffer parkIn;
+    private ByteBuffer parkOut;
+
+    /* one parking write at a time, a lock rather than a monitor */
+    private final ReentrantLock parkWrite = new ReentrantLock();
+
+    /**
+     * Held by every read of the streams, the ByteBuffer reads,
+     * readRecord() and SerialChannel, so reads of several threads take
+     * turns.  SerialInputBuffer, parkIn and the bytes a terminated read
+     * keeps each have a single consumer.  available() and the writes do
+     * not take it.  A lock rather than a monitor, so a parked virtual
+     * thread keeps its carrier free.
+     */
+    final ReentrantLock readLock = new ReentrantLock();
+
+    /**
+     * Make blocking reads and writes park rather than wait in the native
+     * code.  A read takes what the driver has without waiting and, if
+     * that is not enough, parks until a shared poller thread sees more
+     * input, the receive timeout passes or the port is closed.  A write
+     * parks likewise while the output queue is full.  Nothing is locked
+     * and no native call is in progress while parked, so on a JVM with
+     * virtual threads the carrier thread is free to run others, and close()
+     * does not wait for a parked read.  Interrupting a parked thread makes
+     * it throw InterruptedIOException.
+     *
+     * Applies to the streams, the SerialChannel and read( ByteBuffer ) and
+     * write( ByteBuffer ).  Timeout and threshold behave as before.
+     * Buffered input, batched output, readRecord() and flush() wait as
+     * they do without parking.
+     *
+     * @param enable true to park
+     */
+    public void setParkingIO( boolean enable )
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:setParkingIO( " + enable + " )" );
+        }
+        parkingIO = enable;
+    }
+
+    /**
+     * @return boolean true if blocking reads and writes park
+     */
+    public boolean isParkingIO()
+    {
+        return parkingIO;
+    }
+
+    /* O_NONBLOCK is set, the port is blocking until a write must not wait */
+    private volatile boolean nonBlocking = false;
+
+    /*
+     * Between enterIO() and exitIO(): make write(2) return when the output
+     * queue is full, for AsyncSerialPort and parking writes.  Left set,
+     * the other paths work on either kind of fd.
+     */
+    private void ensureNonBlocking()
+        throws IOException
+    {
+        if( !nonBlocking )
+        {
+            nativeSetNonBlocking();
+            nonBlocking = true;
+        }
+    }
+
+    /**
+     * Measure this port, null when not measured
+     */
+    volatile SerialPortMetrics metrics;
+
+    /**
+     * Count the bytes, calls, timeouts and latencies of this port and
+     * register the counts with the platform MBeanServer as
+     * ac.bali.serial:type=SerialPort,name="port name".  Ports opened
+     * with the system property ac.bali.serial.Metrics set to true are
+     * measured from the start.  A port that is not measured only reads
+     * one field per read, write or event.
+     *
+     * @return SerialPortMetrics the counts, the same until disabled
+     */
+    public synchronized SerialPortMetrics enableMetrics()
+    {
+        if( metrics == null )
+        {
+            SerialPortMetrics m = new SerialPortMetrics( this );
+            m.reset();
+            m.register();
+            metrics = m;
         }
+        return metrics;
     }
 
     /**
+     * Stop measuring and unregister the MBean.  Done by close().
      */
-    public int getInputBufferSize()
+    public synchronized void disableMetrics()
     {
-        if( debug )
+        SerialPortMetrics m = metrics;
+        if( m != null )
         {
-            z.reportln( "RXTXPort:getInputBufferSize() called and returning " + InputBuffer );
+            metrics = null;
+            m.unregister();
         }
-        return ( InputBuffer );
     }
 
     /**
-     * @param size output buffer size in bytes
+     * @return SerialPortMetrics the counts, null if not enabled
      */
-    public void setOutputBufferSize( int size )
+    public SerialPortMetrics getMetrics()
     {
-        if( debug )
+        return metrics;
+    }
+
+    /**
+     * Read in parking mode, as much as the native read would.
+     *
+     * @param dst bytes are stored from its position up to its limit
+     *
+     * @return int bytes read, less than the threshold if the receive
+     * timeout passed or the line hung up
+     *
+     * @throws IOException
+     */
+    private int parkingRead( ByteBuffer dst )
+        throws IOException
+    {
+        int minimum = ( threshold == 0 ) ? 1 : Math.min( dst.remaining(), threshold );
+        int limit = dst.limit();
+        if( threshold != 0 )
         {
-            z.reportln( "RXTXPort:setOutputBufferSize( " + size + ") called" );
+            dst.limit( dst.position() + minimum );
         }
-        if( size < 0 )
+        long deadline = ( timeout > 0 ) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout ) : 0;
+        int total = 0;
+        try
         {
-            throw new IllegalArgumentException( "Unexpected negative buffer size value" );
+            for( ; ; )
+            {
+                int n = readNow( dst );
+                if( n < 0 )
+                {
+                    return total;
+                }
+                total += n;
+                if( total >= minimum || timeout == 0 )
+                {
+                    return total;
+                }
+                if( n == 0 && !SerialPoller.getShared().await( this, SerialSelectionKey.OP_READ, deadline ) )
+                {
+                    return total;
+                }
+            }
         }
-        else
+        finally
         {
-            OutputBuffer = size;
+            dst.limit( limit );
         }
-        if( debug )
+    }
+
+    /* parking mode: what the driver has, -1 if the line hung up */
+    private int readNow( ByteBuffer dst )
+        throws IOException
+    {
+        int pos = dst.position();
+        if( dst.isDirect() )
         {
-            z.reportln( "RXTXPort:setOutputBufferSize( " + size + ") returned" );
+            int n = readNow( dst, pos, dst.remaining() );
+            if( n > 0 )
+            {
+                dst.position( pos + n );
+            }
+            return n;
+        }
+        if( parkIn == null )
+        {
+            parkIn = ByteBuffer.allocateDirect( 4096 );
+        }
+        int n = readNow( parkIn, 0, Math.min( dst.remaining(), parkIn.capacity() ) );
+        if( n > 0 )
+        {
+            parkIn.clear();
+            parkIn.limit( n );
+            dst.put( parkIn );
         }
+        return n;
     }
 
     /**
-     * @return in the output buffer size
+     * Write in parking mode.
+     *
+     * @param src bytes from its position up to its limit are written
+     *
+     * @return int bytes written
+     *
+     * @throws IOException
      */
-    public int getOutputBufferSize()
+    private int parkingWrite( ByteBuffer src )
+        throws IOException
     {
-        if( debug )
+        int len = src.remaining();
+        parkWrite.lock();
+        try
         {
-            z.reportln( "RXTXPort:getOutputBufferSize() called and returning " + OutputBuffer );
+            while( src.hasRemaining() )
+            {
+                if( writeNow( src ) == 0 )
+                {
+                    SerialPoller.getShared().await( this, SerialSelectionKey.OP_WRITE, 0 );
+                }
+            }
         }
-        return ( OutputBuffer );
+        finally
+        {
+            parkWrite.unlock();
+        }
+        return len;
+    }
+
+    /* parking mode, parkWrite held: what the output queue takes */
+    private int writeNow( ByteBuffer src )
+        throws IOException
+    {
+        int pos = src.position();
+        int n;
+        if( src.isDirect() )
+        {
+            n = writeNow( src, pos, src.remaining() );
+        }
+        else
+        {
+            if( parkOut == null )
+            {
+                parkOut = ByteBuffer.allocateDirect( 4096 );
+            }
+            int len = Math.min( src.remaining(), parkOut.capacity() );
+            ByteBuffer slice = src.duplicate();
+            slice.limit( pos + len );
+            parkOut.clear();
+            parkOut.put( slice );
+            n = writeNow( parkOut, 0, len );
+        }
+        src.position( pos + n );
+        return n;
     }
 
     /* =================== cleaned messages to here */
@@ -742,6 +2065,59 @@ public class RXTXPort extends SerialPort
      */
     public native boolean isRTS();
 
+    /**
+     * @return int SerialEventReactor.LINE_* bits of CTS, DSR, RI and CD, or
+     * -1 if the driver has no modem lines
+     */
+    native int nativeGetModemLines();
+
+    /**
+     * @param counts receives the TIOCGICOUNT counters, see SerialImp.h
+     *
+     * @return boolean false if the driver keeps no counters
+     */
+    native boolean nativeGetICount( int counts[] );
+
+    /**
+     * Read the driver's interrupt counters: bytes received and sent,
+     * framing, overrun, parity and buffer overrun errors, breaks and
+     * modem line transitions.  One ioctl, no event listener or monitor
+     * thread is needed, so it is cheap enough to sample many ports.
+     *
+     * @return SerialLineCounters the counts now, null if the driver keeps
+     * none, as a pty does not
+     *
+     * @throws IOException if the port is closed
+     */
+    public SerialLineCounters getLineCounters()
+        throws IOException
+    {
+        if( fd == 0 )
+        {
+            throw new IOException();
+        }
+        int counts[] = new int[ SerialEventReactor.ICOUNT_FIELDS ];
+        enterIO();
+        try
+        {
+            if( !nativeGetICount( counts ) )
+            {
+                return null;
+            }
+            return new SerialLineCounters( System.nanoTime(), counts );
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    /**
+     * @return long the read and write system calls retried after EINTR
+     * since the port was opened
+     */
+    native long nativeGetEintrCount();
+
     /**
      * Write to the port
      *
@@ -755,6 +2131,9 @@ public class RXTXPort extends SerialPort
     protected native void writeArray( byte b[], int off, int len, boolean i )
         throws IOException;
 
+    protected native int writeDirect( ByteBuffer b, int off, int len, boolean i )
+        throws IOException;
+
     protected native boolean nativeDrain( boolean i )
         throws IOException;
 
@@ -770,19 +2149,58 @@ public class RXTXPort extends SerialPort
     protected native int readArray( byte b[], int off, int len )
         throws IOException;
 
+    protected native int readDirect( ByteBuffer b, int off, int len )
+        throws IOException;
+
     protected native int readTerminatedArray( byte b[], int off, int len, byte t[] )
         throws IOException;
 
+    private native int nativeReadRecord( byte b[], int off, int len, byte t[] )
+        throws IOException;
+
+    /**
+     * Take what the driver has, waiting at most timeout milliseconds.
+     * Used by SerialInputBuffer.
+     *
+     * @return int bytes read, 0 on timeout, -1 if the line hung up
+     */
+    native int fillDirect( ByteBuffer b, int off, int len, int timeout )
+        throws IOException;
+
+    private native int nativeWriteNow( ByteBuffer b, int off, int len, boolean i )
+        throws IOException;
+
+    private native void nativeSetNonBlocking()
+        throws IOException;
+
+    private native long nativeWriteVector( Object bufs[], int offs[], int lens[], int count, boolean wait, boolean i )
+        throws IOException;
+
+    private native long nativeReadVector( Object bufs[], int offs[], int lens[], int count, int minimum )
+        throws IOException;
+
     /**
-     * Serial Port Event listener
+     * Serial Port Event listener added with addEventListener( lsnr )
      */
     private SerialPortEventListener SPEventListener;
 
     /**
-     * Thread to monitor data
+     * Every listener, copied on change under listenerLock
+     */
+    private volatile EventListenerRegistration eventListeners[] = new EventListenerRegistration[ 0 ];
+    private final Object listenerLock = new Object();
+
+    /**
+     * Thread to monitor data.  With an event reactor it is never started
+     * and only holds the notification flags.
      */
     private MonitorThread monThread;
 
+    /**
+     * Reactor delivering the events instead of monThread, or null
+     */
+    private volatile SerialEventReactor reactor;
+
     /**
      * Process SerialPortEvents
      */
@@ -812,222 +2230,157 @@ public class RXTXPort extends SerialPort
             return monThreadisInterrupted;
         }
         if( debug )
-        {
-            z.reportln( "monThread is null " );
-        }
-        return ( true );
-    }
-
-    /**
-     * @param event
-     * @param state
-     *
-     * @return boolean true if the port is closing
-     */
-    public boolean sendEvent( int event, boolean state )
-    {
-        if( debug_events )
-        {
-            z.report( "RXTXPort:sendEvent(" );
-        }
-        /* Let the native side know its time to die */
-
-        if( fd == 0 || SPEventListener == null || monThread == null )
-        {
-            return ( true );
-        }
-
-        switch( event )
-        {
-        case SerialPortEvent.DATA_AVAILABLE:
-            if( debug_events )
-            {
-                z.reportln( "DATA_AVAILABLE " + monThread.Data + ")" );
-            }
-            break;
-        case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
-            if( debug_events )
-            {
-                z.reportln( "OUTPUT_BUFFER_EMPTY " + monThread.Output + ")" );
-            }
-            break;
-        case SerialPortEvent.CTS:
-            if( debug_events )
-            {
-                z.reportln( "CTS " + monThread.CTS + ")" );
-            }
-            break;
-        case SerialPortEvent.DSR:
-            if( debug_events )
-            {
-                z.reportln( "DSR " + monThread.Output + ")" );
-            }
-            break;
-        case SerialPortEvent.RI:
-            if( debug_events )
-            {
-                z.reportln( "RI " + monThread.RI + ")" );
-            }
-            break;
-        case SerialPortEvent.CD:
-            if( debug_events )
-            {
-                z.reportln( "CD " + monThread.CD + ")" );
-            }
-            break;
-        case SerialPortEvent.OE:
-            if( debug_events )
-            {
-                z.reportln( "OE " + monThread.OE + ")" );
-            }
-            break;
-        case SerialPortEvent.PE:
-            if( debug_events )
-            {
-                z.reportln( "PE " + monThread.PE + ")" );
-            }
-            break;
-        case SerialPortEvent.FE:
-            if( debug_events )
-            {
-                z.reportln( "FE " + monThread.FE + ")" );
-            }
-            break;
-        case SerialPortEvent.BI:
-            if( debug_events )
-            {
-                z.reportln( "BI " + monThread.BI + ")" );
-            }
-            break;
-        default:
-            if( debug_events )
-            {
-                z.reportln( "XXXXXXXXXXXXXX " + event + ")" );
-            }
-            break;
-        }
-        if( debug_events )
-        {
-            if( debug_verbose )
-            {
-                z.reportln( "    checking flags " );
-            }
-        }
-
-        switch( event )
-        {
-        case SerialPortEvent.DATA_AVAILABLE:
-            if( monThread.Data )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
-            if( monThread.Output )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.CTS:
-            if( monThread.CTS )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.DSR:
-            if( monThread.DSR )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.RI:
-            if( monThread.RI )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.CD:
-            if( monThread.CD )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.OE:
-            if( monThread.OE )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.PE:
-            if( monThread.PE )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.FE:
-            if( monThread.FE )
-            {
-                break;
-            }
-            return ( false );
-        case SerialPortEvent.BI:
-            if( monThread.BI )
-            {
-                break;
-            }
-            return ( false );
-        default:
-            System.err.println( "unknown event: " + event );
-            return ( false );
-        }
-        if( debug_events )
-        {
-            if( debug_verbose )
-            {
-                z.reportln( "    getting event" );
-            }
+        {
+            z.reportln( "monThread is null " );
         }
-        SerialPortEvent e = new SerialPortEvent( this, event, !state, state );
+        return ( true );
+    }
+
+    /**
+     * Set in an event of sendEvents() for a true state, EVENT_STATE_TRUE
+     * in SerialImp.h
+     */
+    static final int EVENT_STATE_TRUE = 0x100;
+
+    /**
+     * Calls the listener for the native event loop
+     */
+    private volatile SerialEventDispatcher dispatcher;
+
+    /**
+     * The events given to the listener, made once for each type and state
+     */
+    private final SerialPortEvent eventCache[] = new SerialPortEvent[ 2 * ( SerialPortEvent.BI + 1 ) ];
+
+    /**
+     * Called by the native event loop with the events of one wakeup.  They
+     * are delivered on the thread of the SerialEventDispatcher.
+     *
+     * @param events the event types, with EVENT_STATE_TRUE set for a true
+     *               state
+     * @param count  the number of events
+     *
+     * @return boolean true if the port is closing
+     */
+    boolean sendEvents( int events[], int count )
+    {
         if( debug_events )
         {
-            if( debug_verbose )
-            {
-                z.reportln( "    sending event" );
-            }
+            z.reportln( "RXTXPort:sendEvents( " + count + " )" );
         }
-        if( monThreadisInterrupted )
+        if( fd == 0 || eventListeners.length == 0 || monThread == null )
         {
-            if( debug_events )
-            {
-                z.reportln( "    sendEvent return" );
-            }
             return ( true );
         }
-        if( SPEventListener != null )
+        SerialEventDispatcher d = dispatcher;
+        if( d != null )
         {
-            SPEventListener.serialEvent( e );
+            d.publish( events, count, SerialPortMetrics.beginIO( metrics ) );
         }
+        return monThreadisInterrupted;
+    }
 
-        if( debug_events )
+    /**
+     * Tell the event loop the listener returned from DATA_AVAILABLE.
+     * Admitted like I/O, so it does nothing once close() has started to
+     * release the port context, also for a dispatcher stop() gave up on.
+     */
+    void dataDelivered()
+    {
+        try
         {
-            if( debug_verbose )
-            {
-                z.reportln( "    sendEvent return" );
-            }
+            enterIO();
+        }
+        catch( IOException e )
+        {
+            /* closing */
+            return;
         }
+        try
+        {
+            nativeDataDelivered();
+        }
+        finally
+        {
+            exitIO();
+        }
+    }
+
+    private native void nativeDataDelivered();
+
+    private native int nativeCarried();
 
-        if( fd == 0 || SPEventListener == null || monThread == null )
+    /**
+     * Let reads and writes waiting for the port return at once, or wait
+     * again after a close() that gave up
+     */
+    private native void nativeInterruptIO( boolean release );
+
+    /**
+     * Deliver an event to the listener on the calling thread.
+     *
+     * @param event
+     * @param state
+     *
+     * @return boolean true if the port is closing
+     */
+    public boolean sendEvent( int event, boolean state )
+    {
+        return deliverEvent( event, state, SerialPortMetrics.beginIO( metrics ) );
+    }
+
+    /**
+     * @param event a SerialPortEvent type
+     * @param state the new state
+     * @param start System.nanoTime() the event was found, 0 if not measured
+     *
+     * @return boolean true if the port is closing
+     */
+    boolean deliverEvent( int event, boolean state, long start )
+    {
+        if( debug_events )
+        {
+            z.reportln( "RXTXPort:sendEvent( " + event + ", " + state + " )" );
+        }
+        /* Let the native side know its time to die */
+        EventListenerRegistration listeners[] = eventListeners;
+        if( fd == 0 || listeners.length == 0 || monThread == null )
         {
             return ( true );
         }
-        else
+        if( event < SerialPortEvent.DATA_AVAILABLE || event > SerialPortEvent.BI )
+        {
+            System.err.println( "unknown event: " + event );
+            return ( false );
+        }
+        if( !isEventEnabled( event ) )
         {
             return ( false );
         }
+        if( monThreadisInterrupted )
+        {
+            return ( true );
+        }
+        int index = 2 * event + ( state ? 1 : 0 );
+        SerialPortEvent e = eventCache[ index ];
+        if( e == null )
+        {
+            /* immutable, so a race makes at most a spare one */
+            e = new SerialPortEvent( this, event, !state, state );
+            eventCache[ index ] = e;
+        }
+        boolean called = false;
+        for( EventListenerRegistration reg : listeners )
+        {
+            called |= reg.deliver( e );
+        }
+        if( called )
+        {
+            SerialPortMetrics.endEvent( metrics, start );
+        }
+        return ( fd == 0 || eventListeners.length == 0 || monThread == null );
     }
 
-    boolean MonitorThreadLock = true;
-
     /**
      * Add an event listener
      *
@@ -1046,18 +2399,75 @@ public class RXTXPort extends SerialPort
         {
             z.reportln( "RXTXPort:addEventListener()" );
         }
-        if( SPEventListener != null )
+        synchronized( listenerLock )
+        {
+            if( SPEventListener != null )
+            {
+                throw new TooManyListenersException();
+            }
+            SPEventListener = lsnr;
+        }
+        addListener( new EventListenerRegistration( this, lsnr, ALL_EVENTS, null ) );
+    }
+
+    /**
+     * All SerialPortEvent types, for addEventListener( lsnr, mask, executor )
+     */
+    public static final int ALL_EVENTS = -1;
+
+    /**
+     * Add one more event listener.  Any number of listeners can be added
+     * this way, next to the one of addEventListener( lsnr ).  Each gets
+     * the events enabled with notifyOn..() that are in its mask.
+     *
+     * A listener without an executor is called on the thread delivering
+     * the events of the port, one listener after another.  A listener
+     * with an executor gets its events from tasks run by the executor,
+     * one at a time and in order, so it runs in parallel with the others
+     * and a slow one does not delay them.
+     *
+     * @param lsnr     the listener
+     * @param mask     bits 1 &lt;&lt; the SerialPortEvent types it wants, or
+     *                 ALL_EVENTS
+     * @param executor runs the listener, or null
+     */
+    public void addEventListener( SerialPortEventListener lsnr, int mask, Executor executor )
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:addEventListener( " + mask + " )" );
+        }
+        addListener( new EventListenerRegistration( this, lsnr, mask, executor ) );
+    }
+
+    private void addListener( EventListenerRegistration reg )
+    {
+        /*  Don't let and notification requests happen until the
+            Eventloop is ready
+        */
+        synchronized( listenerLock )
+        {
+            EventListenerRegistration now[] = eventListeners;
+            EventListenerRegistration next[] = new EventListenerRegistration[ now.length + 1 ];
+            System.arraycopy( now, 0, next, 0, now.length );
+            next[ now.length ] = reg;
+            eventListeners = next;
+        }
+        if( reactor != null )
         {
-            throw new TooManyListenersException();
+            try
+            {
+                reactor.register( this );
+            }
+            catch( IOException e )
+            {
+                removeListener( reg.listener );
+                throw new IllegalStateException( e.getMessage() );
+            }
         }
-        SPEventListener = lsnr;
-        if( !MonitorThreadAlive )
+        else if( !MonitorThreadAlive )
         {
-            MonitorThreadLock = true;
-            monThread = new MonitorThread();
-            monThread.start();
-            waitForTheNativeCodeSilly();
-            MonitorThreadAlive = true;
+            startMonitorThread();
         }
         if( debug )
         {
@@ -1065,6 +2475,53 @@ public class RXTXPort extends SerialPort
         }
     }
 
+    /* drop lsnr from the listeners, return true if none are left */
+    private boolean removeListener( SerialPortEventListener lsnr )
+    {
+        synchronized( listenerLock )
+        {
+            EventListenerRegistration now[] = eventListeners;
+            EventListenerRegistration next[] = new EventListenerRegistration[ now.length ];
+            int keep = 0;
+            for( EventListenerRegistration reg : now )
+            {
+                if( reg.listener != lsnr )
+                {
+                    next[ keep++ ] = reg;
+                }
+            }
+            if( keep != now.length )
+            {
+                EventListenerRegistration left[] = new EventListenerRegistration[ keep ];
+                System.arraycopy( next, 0, left, 0, keep );
+                eventListeners = left;
+            }
+            if( SPEventListener == lsnr )
+            {
+                SPEventListener = null;
+            }
+            return eventListeners.length == 0;
+        }
+    }
+
+    /**
+     * Remove one listener.  Once none is left, the port stops listening
+     * for events as removeEventListener() does.
+     *
+     * @param lsnr a listener added with either addEventListener()
+     */
+    public void removeEventListener( SerialPortEventListener lsnr )
+    {
+        if( debug )
+        {
+            z.reportln( "RXTXPort:removeEventListener( lsnr ) called" );
+        }
+        if( removeListener( lsnr ) )
+        {
+            removeEventListener();
+        }
+    }
+
     /**
      * Remove the serial port event listener
      */
@@ -1075,12 +2532,19 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:removeEventListener() called" );
         }
         waitForTheNativeCodeSilly();
+        if( reactor != null )
+        {
+            reactor.unregister( this );
+            clearListeners();
+            return;
+        }
         //if( monThread != null && monThread.isAlive() )
         if( monThreadisInterrupted )
         {
             z.reportln( "    RXTXPort:removeEventListener() already interrupted" );
+            stopDispatcher();
             monThread = null;
-            SPEventListener = null;
+            clearListeners();
             return;
         }
         else if( monThread != null && monThread.isAlive() )
@@ -1127,39 +2591,243 @@ public class RXTXPort extends SerialPort
                 }
             }
         }
+        stopDispatcher();
         monThread = null;
-        SPEventListener = null;
-        MonitorThreadLock = false;
+        clearListeners();
         MonitorThreadAlive = false;
         monThreadisInterrupted = true;
         z.reportln( "RXTXPort:removeEventListener() returning" );
     }
 
+    private void clearListeners()
+    {
+        synchronized( listenerLock )
+        {
+            eventListeners = new EventListenerRegistration[ 0 ];
+            SPEventListener = null;
+        }
+    }
+
+    private void stopDispatcher()
+    {
+        SerialEventDispatcher d = dispatcher;
+        if( d != null )
+        {
+            dispatcher = null;
+            d.stop();
+        }
+    }
+
+    /**
+     * Have events delivered by a SerialEventReactor instead of a monitor
+     * thread of this port, or by a monitor thread again if reactor is
+     * null.  The notifyOn..() settings start out disabled after a switch.
+     *
+     * @param reactor the reactor to use, or null
+     *
+     * @throws IllegalStateException if an event listener is registered
+     */
+    public synchronized void setEventReactor( SerialEventReactor reactor )
+    {
+        if( reactor == this.reactor )
+        {
+            return;
+        }
+        if( eventListeners.length != 0 )
+        {
+            throw new IllegalStateException( "Remove the event listener first" );
+        }
+        if( this.reactor == null && MonitorThreadAlive )
+        {
+            removeEventListener();
+        }
+        if( reactor != null )
+        {
+            useReactor( reactor );
+        }
+        else
+        {
+            this.reactor = null;
+            startMonitorThread();
+        }
+    }
+
+    /**
+     * @return SerialEventReactor the reactor delivering events, or null if
+     * the port has its own monitor thread
+     */
+    public SerialEventReactor getEventReactor()
+    {
+        return reactor;
+    }
+
+    /**
+     * microseconds DATA_AVAILABLE waits for more bytes
+     */
+    private volatile int eventCoalescing = 0;
+
+    /**
+     * Send DATA_AVAILABLE as soon as bytes arrive, which is the default,
+     * or wait a little so a burst of bytes gives a single event.  If the
+     * listener leaves bytes unread the event is repeated every 20ms, or
+     * every poll interval of a SerialEventReactor.
+     *
+     * @param window how long to wait for more bytes, 0 to not wait
+     * @param unit   the unit of window
+     *
+     * @throws IllegalArgumentException if window is negative or a second
+     * or more
+     */
+    public void setEventCoalescing( long window, TimeUnit unit )
+    {
+        long usec = unit.toMicros( window );
+        if( window < 0 || usec >= 1000000 )
+        {
+            throw new IllegalArgumentException( "Coalescing window " + window + " " + unit );
+        }
+        eventCoalescing = (int) usec;
+        nativeSetEventCoalescing( eventCoalescing );
+    }
+
+    /**
+     * @param unit the unit of the result
+     *
+     * @return long the DATA_AVAILABLE coalescing window
+     */
+    public long getEventCoalescing( TimeUnit unit )
+    {
+        return unit.convert( eventCoalescing, TimeUnit.MICROSECONDS );
+    }
+
+    private native void nativeSetEventCoalescing( int usec );
+
+    private void useReactor( SerialEventReactor reactor )
+    {
+        this.reactor = reactor;
+        monThread = new MonitorThread();
+        monThreadisInterrupted = false;
+        MonitorThreadAlive = true;
+    }
+
     /**
      * Give the native code a chance to start listening to the hardware
      * or should we say give the native code control of the issue.
      *
-     * This is important for applications that flicker the Monitor
-     * thread while keeping the port open.
-     * In worst case test cases this loops once or twice every time.
+     * This is important for applications that flicker the Monitor
+     * thread while keeping the port open.
+     * It returns at once unless a monitor thread is starting.
+     */
+
+    protected void waitForTheNativeCodeSilly()
+    {
+        CountDownLatch started = monitorStarted;
+        if( started.getCount() == 0 )
+        {
+            return;
+        }
+        boolean interrupted = false;
+        while( true )
+        {
+            try
+            {
+                started.await();
+                break;
+            }
+            catch( InterruptedException e )
+            {
+                interrupted = true;
+            }
+        }
+        if( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startMonitorThread()
+    {
+        dispatcher = new SerialEventDispatcher( this );
+        monitorStarted = new CountDownLatch( 1 );
+        setIOState( MONITOR_STARTING, true );
+        monThread = new MonitorThread();
+        monThread.start();
+        waitForTheNativeCodeSilly();
+        MonitorThreadAlive = true;
+    }
+
+    /**
+     * Called by the native event loop once it listens to the port, or by
+     * the monitor thread when the event loop could not start
+     */
+    void monitorThreadStarted()
+    {
+        if( Thread.currentThread() != monThread )
+        {
+            /* a monitor thread that outlived removeEventListener() */
+            return;
+        }
+        setIOState( MONITOR_STARTING, false );
+        monitorStarted.countDown();
+    }
+
+    private native void nativeSetEventFlag( int fd, int event, boolean flag );
+
+    /* the monThread flag has been set, tell whoever delivers the events */
+    private void setEventFlag( int event, boolean enable )
+    {
+        if( reactor != null )
+        {
+            reactor.update( this );
+        }
+        else if( event == SerialPortEvent.DATA_AVAILABLE )
+        {
+            nativeSetEventFlag( fd, event, enable && watchesDriverData() );
+        }
+        else
+        {
+            nativeSetEventFlag( fd, event, enable );
+        }
+    }
+
+    /**
+     * @param event a SerialPortEvent type
+     *
+     * @return boolean true if notifyOn..() enabled the event
      */
-
-    protected void waitForTheNativeCodeSilly()
+    boolean isEventEnabled( int event )
     {
-        while( MonitorThreadLock )
+        MonitorThread flags = monThread;
+        if( flags == null )
         {
-            try
-            {
-                Thread.sleep( 5 );
-            }
-            catch( Exception e )
-            {
-            }
+            return false;
+        }
+        switch( event )
+        {
+        case SerialPortEvent.DATA_AVAILABLE:
+            return flags.Data;
+        case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
+            return flags.Output;
+        case SerialPortEvent.CTS:
+            return flags.CTS;
+        case SerialPortEvent.DSR:
+            return flags.DSR;
+        case SerialPortEvent.RI:
+            return flags.RI;
+        case SerialPortEvent.CD:
+            return flags.CD;
+        case SerialPortEvent.OE:
+            return flags.OE;
+        case SerialPortEvent.PE:
+            return flags.PE;
+        case SerialPortEvent.FE:
+            return flags.FE;
+        case SerialPortEvent.BI:
+            return flags.BI;
+        default:
+            return false;
         }
     }
 
-    private native void nativeSetEventFlag( int fd, int event, boolean flag );
-
     /**
      * @param enable true if notifications should be made on data arriving and being available.
      */
@@ -1172,10 +2840,8 @@ public class RXTXPort extends SerialPort
 
         waitForTheNativeCodeSilly();
 
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.DATA_AVAILABLE, enable );
         monThread.Data = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.DATA_AVAILABLE, enable );
     }
 
     /**
@@ -1188,10 +2854,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnOutputEmpty( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.OUTPUT_BUFFER_EMPTY, enable );
         monThread.Output = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.OUTPUT_BUFFER_EMPTY, enable );
     }
 
     /**
@@ -1204,10 +2868,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnCTS( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.CTS, enable );
         monThread.CTS = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.CTS, enable );
     }
 
     /**
@@ -1220,10 +2882,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnDSR( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.DSR, enable );
         monThread.DSR = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.DSR, enable );
     }
 
     /**
@@ -1236,10 +2896,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnRingIndicator( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.RI, enable );
         monThread.RI = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.RI, enable );
     }
 
     /**
@@ -1252,10 +2910,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnCarrierDetect( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.CD, enable );
         monThread.CD = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.CD, enable );
     }
 
     /**
@@ -1268,10 +2924,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnOverrunError( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.OE, enable );
         monThread.OE = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.OE, enable );
     }
 
     /**
@@ -1284,10 +2938,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnParityError( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.PE, enable );
         monThread.PE = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.PE, enable );
     }
 
     /**
@@ -1300,10 +2952,8 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnFramingError( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.FE, enable );
         monThread.FE = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.FE, enable );
     }
 
     /**
@@ -1316,16 +2966,40 @@ public class RXTXPort extends SerialPort
             z.reportln( "RXTXPort:notifyOnBreakInterrupt( " + enable + " )" );
         }
         waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag( fd, SerialPortEvent.BI, enable );
         monThread.BI = enable;
-        MonitorThreadLock = false;
+        setEventFlag( SerialPortEvent.BI, enable );
     }
 
     /**
-     * Close the port
+     * Close the fd, remove the lock file and free the port context
+     */
+    private static native void nativeRelease( int fd, long ctx, String name, int pid );
+
+    /**
+     * The native part of close().  Holds copies of the fields instead of
+     * the port, so SerialCleaner can run it once the port is unreachable.
      */
-    private native void nativeClose( String name );
+    private static final class Release
+        implements Runnable
+    {
+        private final int fd;
+        private final long ctx;
+        private final String name;
+        private final int pid;
+
+        Release( int fd, long ctx, String name, int pid )
+        {
+            this.fd = fd;
+            this.ctx = ctx;
+            this.name = name;
+            this.pid = pid;
+        }
+
+        public void run()
+        {
+            nativeRelease( fd, ctx, name, pid );
+        }
+    }
 
     /**
      */
@@ -1340,22 +3014,49 @@ public class RXTXPort extends SerialPort
                 z.reportln( "RXTXPort:close( " + this.name + " )" );
             }
 
-            while( IOLocked > 0 )
+            /* batched output is written before the port goes away */
+            SerialOutputBatch batch = outputBatch;
+            if( batch != null )
             {
-                if( debug )
+                outputBatch = null;
+                try
                 {
-                    z.reportln( "IO is locked " + IOLocked );
+                    batch.retire();
                 }
-                try
+                catch( IOException e )
                 {
-                    this.wait( 500 );
+                    e.printStackTrace();
                 }
-                catch( InterruptedException ie )
+            }
+            /* blocked reads and the fill thread return without their timeout */
+            nativeInterruptIO( true );
+            SerialInputBuffer buffer = inputBuffer;
+            if( buffer != null )
+            {
+                buffer.stop();
+            }
+            setIOState( CLOSING, true );
+            synchronized( ioState )
+            {
+                while( ( ioState.get() & IO_CALLS ) != 0 )
                 {
-                    // somebody called interrupt() on us
-                    // we obbey and return without without closing the socket
-                    Thread.currentThread().interrupt();
-                    return;
+                    if( debug )
+                    {
+                        z.reportln( "IO is locked " + ( ioState.get() & IO_CALLS ) );
+                    }
+                    try
+                    {
+                        ioState.wait();
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        // somebody called interrupt() on us
+                        // we obbey and return without without closing the socket
+                        setIOState( CLOSING, false );
+                        nativeInterruptIO( false );
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 }
             }
 
@@ -1382,12 +3083,29 @@ public class RXTXPort extends SerialPort
         if( !monThreadisInterrupted )
         {
             removeEventListener();
+            monThreadisInterrupted = true;
+        }
+        synchronized( this )
+        {
+            if( channel != null )
+            {
+                channel.cancelKeys();
+            }
+            if( async != null )
+            {
+                async.portClosed();
+                async = null;
+            }
+            SerialPoller.portClosed( this );
+            disableMetrics();
         }
         if( debug )
         {
-            z.reportln( "RXTXPort:close( " + this.name + " ) calling nativeClose" );
+            z.reportln( "RXTXPort:close( " + this.name + " ) calling nativeRelease" );
         }
-        nativeClose( this.name );
+        /* no native call finds the context once it is freed */
+        ctx = 0;
+        cleanable.clean();
         if( debug )
         {
             z.reportln( "RXTXPort:close( " + this.name + " ) calling super.close" );
@@ -1401,26 +3119,6 @@ public class RXTXPort extends SerialPort
         }
     }
 
-    /**
-     * Finalize the port
-     */
-    protected void finalize()
-    {
-        if( debug )
-        {
-            z.reportln( "RXTXPort:finalize()" );
-        }
-        if( fd > 0 )
-        {
-            if( debug )
-            {
-                z.reportln( "RXTXPort:calling close()" );
-            }
-            close();
-        }
-        z.finalize();
-    }
-
     /**
      * Inner class for SerialOutputStream
      */
@@ -1446,19 +3144,28 @@ public class RXTXPort extends SerialPort
             {
                 return;
             }
-            synchronized( IOLockedMutex )
+            SerialOutputBatch batch = outputBatch;
+            if( batch != null )
+            {
+                batch.write( b );
+                return;
+            }
+            if( parkingIO )
             {
-                IOLocked++;
+                parkingWrite( ByteBuffer.wrap( new byte[]{ (byte) b } ) );
+                return;
             }
+            enterIO();
             try
             {
-                waitForTheNativeCodeSilly();
                 if( fd == 0 )
                 {
                     System.err.println( "File Descriptor for prot zero!!" );
                     throw new IOException();
                 }
+                long start = SerialPortMetrics.beginIO( metrics );
                 writeByte( b, monThreadisInterrupted );
+                SerialPortMetrics.endWrite( metrics, start, 1 );
                 if( debug_write )
                 {
                     z.reportln( "Leaving RXTXPort:SerialOutputStream:write( int )" );
@@ -1466,10 +3173,7 @@ public class RXTXPort extends SerialPort
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                exitIO();
             }
         }
 
@@ -1497,14 +3201,23 @@ public class RXTXPort extends SerialPort
             {
                 throw new IOException();
             }
-            synchronized( IOLockedMutex )
+            SerialOutputBatch batch = outputBatch;
+            if( batch != null )
+            {
+                batch.write( b, 0, b.length );
+                return;
+            }
+            if( parkingIO )
             {
-                IOLocked++;
+                parkingWrite( ByteBuffer.wrap( b ) );
+                return;
             }
+            enterIO();
             try
             {
-                waitForTheNativeCodeSilly();
+                long start = SerialPortMetrics.beginIO( metrics );
                 writeArray( b, 0, b.length, monThreadisInterrupted );
+                SerialPortMetrics.endWrite( metrics, start, b.length );
                 if( debug_write )
                 {
                     z.reportln( "Leaving RXTXPort:SerialOutputStream:write(" + b.length + ")" );
@@ -1512,10 +3225,7 @@ public class RXTXPort extends SerialPort
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                exitIO();
             }
         }
 
@@ -1533,16 +3243,14 @@ public class RXTXPort extends SerialPort
             {
                 return;
             }
-            if( off + len > b.length )
+            if( off < 0 || len < 0 || off + len > b.length )
             {
                 throw new IndexOutOfBoundsException( "Invalid offset/length passed to read" );
             }
 
-            byte send[] = new byte[ len ];
-            System.arraycopy( b, off, send, 0, len );
             if( debug_write )
             {
-                z.reportln( "Entering RXTXPort:SerialOutputStream:write(" + send.length + " " + off + " " + len + " " + ") " /*+  new String(send) */ );
+                z.reportln( "Entering RXTXPort:SerialOutputStream:write(" + b.length + " " + off + " " + len + " " + ") " );
             }
             if( fd == 0 )
             {
@@ -1552,25 +3260,31 @@ public class RXTXPort extends SerialPort
             {
                 return;
             }
-            synchronized( IOLockedMutex )
+            SerialOutputBatch batch = outputBatch;
+            if( batch != null )
+            {
+                batch.write( b, off, len );
+                return;
+            }
+            if( parkingIO )
             {
-                IOLocked++;
+                parkingWrite( ByteBuffer.wrap( b, off, len ) );
+                return;
             }
+            enterIO();
             try
             {
-                waitForTheNativeCodeSilly();
-                writeArray( send, 0, len, monThreadisInterrupted );
+                long start = SerialPortMetrics.beginIO( metrics );
+                writeArray( b, off, len, monThreadisInterrupted );
+                SerialPortMetrics.endWrite( metrics, start, len );
                 if( debug_write )
                 {
-                    z.reportln( "Leaving RXTXPort:SerialOutputStream:write(" + send.length + " " + off + " " + len + " " + ") "  /*+ new String(send)*/ );
+                    z.reportln( "Leaving RXTXPort:SerialOutputStream:write(" + b.length + " " + off + " " + len + " " + ") " );
                 }
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                exitIO();
             }
         }
 
@@ -1599,13 +3313,14 @@ public class RXTXPort extends SerialPort
                 }
                 return;
             }
-            synchronized( IOLockedMutex )
+            SerialOutputBatch batch = outputBatch;
+            if( batch != null )
             {
-                IOLocked++;
+                batch.flush();
             }
+            enterIO();
             try
             {
-                waitForTheNativeCodeSilly();
                 /* 
                    this is probably good on all OS's but for now
                    just sendEvent from java on Sol
@@ -1614,6 +3329,10 @@ public class RXTXPort extends SerialPort
                 {
                     sendEvent( SerialPortEvent.OUTPUT_BUFFER_EMPTY, true );
                 }
+                else if( reactor != null )
+                {
+                    reactor.outputDrained( RXTXPort.this );
+                }
                 if( debug )
                 {
                     z.reportln( "RXTXPort:SerialOutputStream:flush() leave" );
@@ -1621,16 +3340,18 @@ public class RXTXPort extends SerialPort
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                exitIO();
             }
         }
     }
 
     /**
      * Inner class for SerialInputStream
+     *
+     * The read methods hold the read lock of the port, so a read started
+     * while another is in progress waits for it to finish.  available()
+     * does not take the lock and never waits for a read blocked in the
+     * native code.
      */
     class SerialInputStream extends InputStream
     {
@@ -1650,50 +3371,63 @@ public class RXTXPort extends SerialPort
          *      0       >0      Blocks until 1 byte, magnitude of  threshold doesn't
          *      play a role
          */
-        public synchronized int read()
+        public int read()
             throws IOException
         {
-            if( debug_read )
-            {
-                z.reportln( "RXTXPort:SerialInputStream:read() called" );
-            }
-            if( fd == 0 )
-            {
-                throw new IOException();
-            }
-            if( monThreadisInterrupted )
-            {
-                z.reportln( "+++++++++ read() monThreadisInterrupted" );
-            }
-            synchronized( IOLockedMutex )
-            {
-                IOLocked++;
-            }
+            readLock.lock();
             try
             {
-                if( debug_read_results )
+                if( debug_read )
+                {
+                    z.reportln( "RXTXPort:SerialInputStream:read() called" );
+                }
+                if( fd == 0 )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() L" );
+                    throw new IOException();
+                }
+                if( monThreadisInterrupted )
+                {
+                    z.reportln( "+++++++++ read() monThreadisInterrupted" );
+                }
+                SerialInputBuffer buffer = buffered();
+                if( buffer != null )
+                {
+                    return ( buffer.await( 1, timeout ) > 0 ) ? buffer.read() : -1;
+                }
+                if( parkingIO )
+                {
+                    ByteBuffer one = ByteBuffer.allocate( 1 );
+                    return ( parkingRead( one ) > 0 ) ? one.get( 0 ) & 0xff : -1;
                 }
-                waitForTheNativeCodeSilly();
-                if( debug_read_results )
+                enterIO();
+                try
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() N" );
+                    if( debug_read_results )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() L" );
+                    }
+                    if( debug_read_results )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() N" );
+                    }
+                    long start = SerialPortMetrics.beginIO( metrics );
+                    int result = readByte();
+                    SerialPortMetrics.endRead( metrics, start, ( result < 0 ) ? 0 : 1, 1 );
+                    if( debug_read_results )
+                    //z.reportln(  "RXTXPort:SerialInputStream:read() returns byte = " + result );
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() returns" );
+                    }
+                    return ( result );
                 }
-                int result = readByte();
-                if( debug_read_results )
-                //z.reportln(  "RXTXPort:SerialInputStream:read() returns byte = " + result );
+                finally
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() returns" );
+                    exitIO();
                 }
-                return ( result );
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
 
@@ -1710,38 +3444,44 @@ public class RXTXPort extends SerialPort
          *                     returns 0 on timeout
          *                     0       >0      blocks until reads threshold bytes
          */
-        public synchronized int read( byte b[] )
+        public int read( byte b[] )
             throws IOException
         {
-            int result;
-            if( debug_read )
-            {
-                z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + ") called" );
-            }
-            if( monThreadisInterrupted )
-            {
-                return ( 0 );
-            }
-            synchronized( IOLockedMutex )
-            {
-                IOLocked++;
-            }
+            readLock.lock();
             try
             {
-                waitForTheNativeCodeSilly();
-                result = read( b, 0, b.length );
-                if( debug_read_results )
+                int result;
+                if( debug_read )
+                {
+                    z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + ") called" );
+                }
+                if( monThreadisInterrupted )
+                {
+                    return ( 0 );
+                }
+                if( parkingIO )
+                {
+                    /* not an IO call itself, close() must not wait for it */
+                    return read( b, 0, b.length );
+                }
+                enterIO();
+                try
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() returned " + result + " bytes" );
+                    result = read( b, 0, b.length );
+                    if( debug_read_results )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() returned " + result + " bytes" );
+                    }
+                    return ( result );
+                }
+                finally
+                {
+                    exitIO();
                 }
-                return ( result );
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
 /*
@@ -1765,119 +3505,137 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
          *                     0       >0      blocks until either threshold # of bytes or len bytes,
          *                     whichever was lower.
          */
-        public synchronized int read( byte b[], int off, int len )
+        public int read( byte b[], int off, int len )
             throws IOException
         {
-            if( debug_read )
-            {
-                z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */ );
-            }
-            int result;
-            /*
-             * Some sanity checks
-             */
-            if( fd == 0 )
+            readLock.lock();
+            try
             {
                 if( debug_read )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() fd == 0" );
+                    z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */ );
+                }
+                int result;
+                /*
+                 * Some sanity checks
+                 */
+                if( fd == 0 )
+                {
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() fd == 0" );
+                    }
+                    z.reportln( "+++++++ IOException()\n" );
+                    throw new IOException();
                 }
-                z.reportln( "+++++++ IOException()\n" );
-                throw new IOException();
-            }
 
-            if( b == null )
-            {
-                z.reportln( "+++++++ NullPointerException()\n" );
-                if( debug_read )
+                if( b == null )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() b == 0" );
+                    z.reportln( "+++++++ NullPointerException()\n" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() b == 0" );
+                    }
+                    throw new NullPointerException();
                 }
-                throw new NullPointerException();
-            }
 
-            if( ( off < 0 ) || ( len < 0 ) || ( off + len > b.length ) )
-            {
-                z.reportln( "+++++++ IndexOutOfBoundsException()\n" );
-                if( debug_read )
+                if( ( off < 0 ) || ( len < 0 ) || ( off + len > b.length ) )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    z.reportln( "+++++++ IndexOutOfBoundsException()\n" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    }
+                    throw new IndexOutOfBoundsException();
                 }
-                throw new IndexOutOfBoundsException();
-            }
 
-            /*
-             * Return immediately if len==0
-             */
-            if( len == 0 )
-            {
-                if( debug_read )
+                /*
+                 * Return immediately if len==0
+                 */
+                if( len == 0 )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    }
+                    return 0;
                 }
-                return 0;
-            }
-            /*
-             * See how many bytes we should read
-             */
-            int Minimum = len;
+                /*
+                 * Buffered input is taken from the ring, waiting as the
+                 * native read would
+                 */
+                SerialInputBuffer buffer = buffered();
+                if( buffer != null )
+                {
+                    int want = ( threshold == 0 ) ? 1 : Math.min( len, threshold );
+                    buffer.await( want, timeout );
+                    return buffer.read( b, off, ( threshold == 0 ) ? len : want );
+                }
+                if( parkingIO )
+                {
+                    return parkingRead( ByteBuffer.wrap( b, off, len ) );
+                }
+                /*
+                 * See how many bytes we should read
+                 */
+                int Minimum = len;
 
-            if( threshold == 0 )
-            {
-            /*
-             * If threshold is disabled, read should return as soon
-             * as data are available (up to the amount of available
-             * bytes in order to avoid blocking)
-             * Read may return earlier depending of the receive time
-             * out.
-             */
-                int a = nativeavailable();
-                if( a == 0 )
+                if( threshold == 0 )
                 {
-                    Minimum = 1;
+                /*
+                 * If threshold is disabled, read should return as soon
+                 * as data are available (up to the amount of available
+                 * bytes in order to avoid blocking)
+                 * Read may return earlier depending of the receive time
+                 * out.
+                 */
+                    int a = availableIO();
+                    if( a <= 0 )
+                    {
+                        Minimum = 1;
+                    }
+                    else
+                    {
+                        Minimum = Math.min( Minimum, a );
+                    }
                 }
                 else
                 {
-                    Minimum = Math.min( Minimum, a );
+                /*
+                 * Threshold is enabled. Read should return when
+                 * 'threshold' bytes have been received (or when the
+                 * receive timeout expired)
+                 */
+                    Minimum = Math.min( Minimum, threshold );
                 }
-            }
-            else
-            {
-            /*
-             * Threshold is enabled. Read should return when
-             * 'threshold' bytes have been received (or when the
-             * receive timeout expired)
-             */
-                Minimum = Math.min( Minimum, threshold );
-            }
-            if( monThreadisInterrupted )
-            {
-                if( debug_read )
+                if( monThreadisInterrupted )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() Interrupted" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() Interrupted" );
+                    }
+                    return ( 0 );
                 }
-                return ( 0 );
-            }
-            synchronized( IOLockedMutex )
-            {
-                IOLocked++;
-            }
-            try
-            {
-                waitForTheNativeCodeSilly();
-                result = readArray( b, off, Minimum );
-                if( debug_read_results )
+                enterIO();
+                try
+                {
+                    long start = SerialPortMetrics.beginIO( metrics );
+                    result = readArray( b, off, Minimum );
+                    SerialPortMetrics.endRead( metrics, start, result, Minimum );
+                    if( debug_read_results )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes"  /*+ new String(b) */ );
+                    }
+                    return ( result );
+                }
+                finally
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes"  /*+ new String(b) */ );
+                    exitIO();
                 }
-                return ( result );
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
 
@@ -1885,132 +3643,123 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
          * @param b   bytes read will be written into this byte array.
          * @param off starting position where bytes will be written.
          * @param len maximum number of bytes to write into the byte array.
-         * @param t
+         * @param t   the terminator, one or more bytes
          *
          * @return int  number of bytes read
          *
-         * @throws IOException We are trying to catch the terminator in the native code
-         *                     Right now it is assumed that t[] is an array of 2 bytes.
+         * @throws IOException The terminator is caught in the native code.
          *
-         *                     if the read encounters the two bytes, it will return and the
-         *                     array will contain the terminator.  Otherwise read behavior should
-         *                     be the same as read( b[], off, len ).  Timeouts have not been well
-         *                     tested.
+         *                     The read returns once the array holds the terminator,
+         *                     len bytes (threshold bytes if a threshold is set) or
+         *                     the receive timeout has passed.  Input is read in bulk;
+         *                     bytes past the terminator are kept for the next read.
+         *                     See RXTXPort.readRecord() to keep a record cut short by
+         *                     the timeout as well.
          */
 
-        public synchronized int read( byte b[], int off, int len, byte t[] )
+        public int read( byte b[], int off, int len, byte t[] )
             throws IOException
         {
-            if( debug_read )
-            {
-                z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */ );
-            }
-            int result;
-            /*
-             * Some sanity checks
-             */
-            if( fd == 0 )
+            readLock.lock();
+            try
             {
                 if( debug_read )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() fd == 0" );
+                    z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */ );
                 }
-                z.reportln( "+++++++ IOException()\n" );
-                throw new IOException();
-            }
-
-            if( b == null )
-            {
-                z.reportln( "+++++++ NullPointerException()\n" );
-                if( debug_read )
+                int result;
+                /*
+                 * Some sanity checks
+                 */
+                if( fd == 0 )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() b == 0" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() fd == 0" );
+                    }
+                    z.reportln( "+++++++ IOException()\n" );
+                    throw new IOException();
                 }
-                throw new NullPointerException();
-            }
 
-            if( ( off < 0 ) || ( len < 0 ) || ( off + len > b.length ) )
-            {
-                z.reportln( "+++++++ IndexOutOfBoundsException()\n" );
-                if( debug_read )
+                if( b == null )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    z.reportln( "+++++++ NullPointerException()\n" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() b == 0" );
+                    }
+                    throw new NullPointerException();
                 }
-                throw new IndexOutOfBoundsException();
-            }
 
-            /*
-             * Return immediately if len==0
-             */
-            if( len == 0 )
-            {
-                if( debug_read )
+                if( ( off < 0 ) || ( len < 0 ) || ( off + len > b.length ) )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    z.reportln( "+++++++ IndexOutOfBoundsException()\n" );
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    }
+                    throw new IndexOutOfBoundsException();
                 }
-                return 0;
-            }
-            /*
-             * See how many bytes we should read
-             */
-            int Minimum = len;
 
-            if( threshold == 0 )
-            {
-            /*
-             * If threshold is disabled, read should return as soon
-             * as data are available (up to the amount of available
-             * bytes in order to avoid blocking)
-             * Read may return earlier depending of the receive time
-             * out.
-             */
-                int a = nativeavailable();
-                if( a == 0 )
+                /*
+                 * Return immediately if len==0
+                 */
+                if( len == 0 )
                 {
-                    Minimum = 1;
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() off < 0 .." );
+                    }
+                    return 0;
                 }
-                else
+                if( t.length == 0 )
                 {
-                    Minimum = Math.min( Minimum, a );
+                    throw new IllegalArgumentException( "Empty terminator" );
                 }
-            }
-            else
-            {
-            /*
-             * Threshold is enabled. Read should return when
-             * 'threshold' bytes have been received (or when the
-             * receive timeout expired)
-             */
-                Minimum = Math.min( Minimum, threshold );
-            }
-            if( monThreadisInterrupted )
-            {
-                if( debug_read )
+                /*
+                 * Read until the terminator rather than stopping at what
+                 * happens to be available, a threshold still limits the
+                 * read.
+                 */
+                int Minimum = ( threshold == 0 ) ? len : Math.min( len, threshold );
+                SerialInputBuffer buffer = buffered();
+                if( buffer != null )
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read() Interrupted" );
+                    int n = buffer.awaitRecord( t, Minimum, timeout );
+                    return buffer.read( b, off, ( n > 0 ) ? n : Minimum );
                 }
-                return ( 0 );
-            }
-            synchronized( IOLockedMutex )
-            {
-                IOLocked++;
-            }
-            try
-            {
-                waitForTheNativeCodeSilly();
-                result = readTerminatedArray( b, off, Minimum, t );
-                if( debug_read_results )
+                if( monThreadisInterrupted )
+                {
+                    if( debug_read )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read() Interrupted" );
+                    }
+                    return ( 0 );
+                }
+                enterIO();
+                try
                 {
-                    z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes"  /*+ new String(b) */ );
+                    long start = SerialPortMetrics.beginIO( metrics );
+                    result = readTerminatedArray( b, off, Minimum, t );
+                    SerialPortMetrics.endRead( metrics, start, result, 1 );
+                    if( !carrying )
+                    {
+                        checkCarry();
+                    }
+                    if( debug_read_results )
+                    {
+                        z.reportln( "RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes"  /*+ new String(b) */ );
+                    }
+                    return ( result );
+                }
+                finally
+                {
+                    exitIO();
                 }
-                return ( result );
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
 
@@ -2019,7 +3768,7 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
          *
          * @throws IOException
          */
-        public synchronized int available()
+        public int available()
             throws IOException
         {
             if( monThreadisInterrupted )
@@ -2030,10 +3779,12 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
             {
                 z.reportln( "RXTXPort:available() called" );
             }
-            synchronized( IOLockedMutex )
+            SerialInputBuffer buffer = buffered();
+            if( buffer != null )
             {
-                IOLocked++;
+                return buffer.available();
             }
+            enterIO();
             try
             {
                 int r = nativeavailable();
@@ -2046,10 +3797,7 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
             }
             finally
             {
-                synchronized( IOLockedMutex )
-                {
-                    IOLocked--;
-                }
+                exitIO();
             }
         }
     }
@@ -2092,19 +3840,18 @@ Documentation is at http://java.sun.com/products/jdk/1.2/docs/api/java/io/InputS
                 z.reportln( "RXTXPort:MontitorThread:run()" );
             }
             monThreadisInterrupted = false;
-            eventLoop();
-            if( debug )
+            try
             {
-                z.reportln( "eventLoop() returned" );
+                eventLoop();
+            }
+            finally
+            {
+                /* in case the event loop bailed out before it started */
+                monitorThreadStarted();
             }
-        }
-
-        protected void finalize()
-            throws Throwable
-        {
             if( debug )
             {
-                z.reportln( "RXTXPort:MonitorThread exiting" );
+                z.reportln( "eventLoop() returned" );
             }
         }
     }
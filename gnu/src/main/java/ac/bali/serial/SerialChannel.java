@@ -0,0 +1,356 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.ArrayList;
+
+/**
+ * A ByteChannel view of an open RXTXPort, obtained from
+ * RXTXPort.getChannel().
+ *
+ * In blocking mode (the default) read() follows the port's receive
+ * timeout and threshold like the InputStream does.  In non-blocking mode
+ * read() only takes what the driver has already buffered and returns 0
+ * when there is nothing.  Such a channel can be registered with a
+ * SerialSelector so one thread serves many ports.
+ *
+ * write() always hands all of the bytes to the driver, waiting for room
+ * in its output queue if it is full.  Writing several buffers gathers
+ * them into one native write, reading several scatters one read over
+ * them.
+ *
+ * A read started while another is in progress, on this channel or on
+ * any other read path of the port, waits for the first to complete, as
+ * ReadableByteChannel requires.  The channel shares the read lock of the
+ * port with its InputStream.  Writes do not wait for reads.
+ *
+ * @see SerialSelector
+ */
+public class SerialChannel
+    implements ByteChannel, GatheringByteChannel, ScatteringByteChannel
+{
+    private final RXTXPort port;
+    private volatile boolean blocking = true;
+    private volatile boolean open = true;
+    /* keys of register(), also the lock for watched */
+    private final ArrayList<SerialSelectionKey> keys = new ArrayList<SerialSelectionKey>();
+    /* keys of watch(), they do not need non-blocking mode */
+    private final ArrayList<SerialSelectionKey> watched = new ArrayList<SerialSelectionKey>();
+
+    SerialChannel( RXTXPort port )
+    {
+        this.port = port;
+    }
+
+    /**
+     * @return RXTXPort the port this channel reads and writes
+     */
+    public RXTXPort getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @param block false to make read() return at once
+     *
+     * @return SerialChannel this channel
+     *
+     * @throws IOException if the channel is closed
+     * @throws IllegalBlockingModeException if blocking is requested while the
+     * channel is registered with a selector
+     */
+    public SerialChannel configureBlocking( boolean block )
+        throws IOException
+    {
+        ensureOpen();
+        synchronized( keys )
+        {
+            if( block && !keys.isEmpty() )
+            {
+                throw new IllegalBlockingModeException();
+            }
+            blocking = block;
+        }
+        return this;
+    }
+
+    /**
+     * @return boolean true if read() may wait for data
+     */
+    public boolean isBlocking()
+    {
+        return blocking;
+    }
+
+    /**
+     * Register this channel with a selector.  Registering again with the
+     * same selector updates the interest ops and attachment.
+     *
+     * @param selector the selector to register with
+     * @param ops      SerialSelectionKey.OP_READ, OP_WRITE or both
+     *
+     * @return SerialSelectionKey the key representing the registration
+     *
+     * @throws IOException
+     */
+    public SerialSelectionKey register( SerialSelector selector, int ops )
+        throws IOException
+    {
+        return register( selector, ops, null );
+    }
+
+    /**
+     * @param selector   the selector to register with
+     * @param ops        SerialSelectionKey.OP_READ, OP_WRITE or both
+     * @param attachment object returned by SerialSelectionKey.attachment()
+     *
+     * @return SerialSelectionKey the key representing the registration
+     *
+     * @throws IOException
+     */
+    public SerialSelectionKey register( SerialSelector selector, int ops, Object attachment )
+        throws IOException
+    {
+        ensureOpen();
+        if( blocking )
+        {
+            throw new IllegalBlockingModeException();
+        }
+        if( ( ops & ~( SerialSelectionKey.OP_READ | SerialSelectionKey.OP_WRITE ) ) != 0 )
+        {
+            throw new IllegalArgumentException( "Unsupported interest ops " + ops );
+        }
+        return add( keys, selector, ops, attachment );
+    }
+
+    /**
+     * Register with a selector of the library, such as the one of
+     * SerialEventReactor, without the non-blocking mode register() needs.
+     * The key is cancelled when the port closes like the others.
+     */
+    SerialSelectionKey watch( SerialSelector selector, int ops, Object attachment )
+        throws IOException
+    {
+        ensureOpen();
+        return add( watched, selector, ops, attachment );
+    }
+
+    private SerialSelectionKey add( ArrayList<SerialSelectionKey> list, SerialSelector selector, int ops,
+                                    Object attachment )
+        throws IOException
+    {
+        SerialSelectionKey key = selector.register( this, port.getFileDescriptor(), ops, attachment );
+        boolean closed;
+        synchronized( keys )
+        {
+            closed = !open;
+            if( !closed && !list.contains( key ) )
+            {
+                list.add( key );
+            }
+        }
+        if( closed )
+        {
+            /* cancelKeys() ran meanwhile and missed the key */
+            key.cancel();
+            throw new ClosedChannelException();
+        }
+        return key;
+    }
+
+    void removeKey( SerialSelectionKey key )
+    {
+        synchronized( keys )
+        {
+            keys.remove( key );
+            watched.remove( key );
+        }
+    }
+
+    /**
+     * @param dst bytes are stored from its position up to its limit
+     *
+     * @return int the number of bytes read, possibly 0
+     *
+     * @throws IOException
+     */
+    public int read( ByteBuffer dst )
+        throws IOException
+    {
+        port.readLock.lock();
+        try
+        {
+            ensureOpen();
+            if( blocking )
+            {
+                return port.read( dst );
+            }
+            return port.readAvailable( dst );
+        }
+        finally
+        {
+            port.readLock.unlock();
+        }
+    }
+
+    /**
+     * @param src bytes from its position up to its limit are written
+     *
+     * @return int the number of bytes written
+     *
+     * @throws IOException
+     */
+    public int write( ByteBuffer src )
+        throws IOException
+    {
+        ensureOpen();
+        return port.write( src );
+    }
+
+    /**
+     * @param dsts bytes are stored from the position up to the limit of
+     *             each, one buffer after the other
+     *
+     * @return long the number of bytes read, possibly 0
+     *
+     * @throws IOException
+     */
+    public long read( ByteBuffer dsts[] )
+        throws IOException
+    {
+        return read( dsts, 0, dsts.length );
+    }
+
+    /**
+     * @param dsts   the buffers
+     * @param offset index in dsts of the first buffer filled
+     * @param length number of buffers filled
+     *
+     * @return long the number of bytes read, possibly 0
+     *
+     * @throws IOException
+     */
+    public long read( ByteBuffer dsts[], int offset, int length )
+        throws IOException
+    {
+        port.readLock.lock();
+        try
+        {
+            ensureOpen();
+            if( blocking )
+            {
+                return port.read( dsts, offset, length );
+            }
+            if( offset < 0 || length < 0 || offset > dsts.length - length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            return port.readEach( dsts, offset, length, false );
+        }
+        finally
+        {
+            port.readLock.unlock();
+        }
+    }
+
+    /**
+     * @param srcs bytes from the position up to the limit of each are
+     *             written, one buffer after the other
+     *
+     * @return long the number of bytes written
+     *
+     * @throws IOException
+     */
+    public long write( ByteBuffer srcs[] )
+        throws IOException
+    {
+        return write( srcs, 0, srcs.length );
+    }
+
+    /**
+     * @param srcs   the buffers
+     * @param offset index in srcs of the first buffer written
+     * @param length number of buffers written
+     *
+     * @return long the number of bytes written
+     *
+     * @throws IOException
+     */
+    public long write( ByteBuffer srcs[], int offset, int length )
+        throws IOException
+    {
+        ensureOpen();
+        return port.write( srcs, offset, length );
+    }
+
+    /**
+     * @return boolean true until the channel or its port is closed
+     */
+    public boolean isOpen()
+    {
+        return open && port.getFileDescriptor() != 0;
+    }
+
+    /**
+     * Cancel the selection keys of this channel and close the port.
+     *
+     * @throws IOException
+     */
+    public void close()
+        throws IOException
+    {
+        if( !open )
+        {
+            return;
+        }
+        open = false;
+        port.close();
+    }
+
+    /* a terminated read left bytes in the carry, no poll sees them */
+    void carryLeft()
+    {
+        ArrayList<SerialSelectionKey> registered;
+        synchronized( keys )
+        {
+            registered = new ArrayList<SerialSelectionKey>( keys );
+            registered.addAll( watched );
+        }
+        for( SerialSelectionKey key : registered )
+        {
+            key.selector().carryLeft( key );
+        }
+    }
+
+    /* called by RXTXPort.close() before the fd goes away */
+    void cancelKeys()
+    {
+        ArrayList<SerialSelectionKey> registered;
+        synchronized( keys )
+        {
+            /* the fd goes away, no key may be added after this */
+            open = false;
+            registered = new ArrayList<SerialSelectionKey>( keys );
+            registered.addAll( watched );
+        }
+        /* cancel outside our lock, SerialSelector locks in the other order */
+        for( SerialSelectionKey key : registered )
+        {
+            key.cancel();
+        }
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if( !isOpen() )
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ac.bali.serial;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs an action once an object is unreachable, like the Cleaner of
+ * Java 9 which this library cannot use yet.  RXTXPort registers the
+ * release of its fd, lock file and native state, so a port nobody closed
+ * does not leak them, and close() runs the same action at once.
+ *
+ * Unlike finalize() nothing is queued for an object when it is made,
+ * and the object is reclaimed by the first GC that finds it unreachable.
+ * The action must not refer to the object.  One daemon thread runs the
+ * actions of all registered objects.
+ */
+final class SerialCleaner
+    implements Runnable
+{
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /* the cleanables not run yet, they must stay reachable themselves */
+    private static final Set<Cleanable> registered = new HashSet<Cleanable>();
+
+    /* guarded by registered */
+    private static Thread thread;
+
+    private static Zystem z;
+
+    static
+    {
+        try
+        {
+            z = new Zystem();
+        }
+        catch( Exception e )
+        {
+        }
+    }
+
+    private SerialCleaner()
+    {
+    }
+
+    /**
+     * @param referent the object to watch
+     * @param action   run once, by Cleanable.clean() or after referent
+     *                 became unreachable
+     *
+     * @return Cleanable to run the action early
+     */
+    static Cleanable register( Object referent, Runnable action )
+    {
+        Cleanable c = new Cleanable( referent, action );
+        synchronized( registered )
+        {
+            registered.add( c );
+            if( thread == null )
+            {
+                thread = new Thread( new SerialCleaner(), "SerialCleaner" );
+                thread.setDaemon( true );
+                thread.start();
+            }
+        }
+        return c;
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            try
+            {
+                ( (Cleanable) queue.remove() ).clean();
+            }
+            catch( InterruptedException e )
+            {
+                /* runs for the life of the VM */
+            }
+            catch( RuntimeException e )
+            {
+                if( z != null )
+                {
+                    z.reportln( "SerialCleaner: cleaning failed, " + e );
+                }
+            }
+        }
+    }
+
+    static final class Cleanable
+        extends PhantomReference<Object>
+    {
+        private final Runnable action;
+
+        private Cleanable( Object referent, Runnable action )
+        {
+            super( referent, queue );
+            this.action = action;
+        }
+
+        /**
+         * Run the action unless it ran already, and stop watching
+         */
+        void clean()
+        {
+            synchronized( registered )
+            {
+                if( !registered.remove( this ) )
+                {
+                    return;
+                }
+            }
+            clear();
+            action.run();
+        }
+    }
+}
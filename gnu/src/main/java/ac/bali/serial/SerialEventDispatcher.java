@@ -0,0 +1,209 @@
+package ac.bali.serial;
+
+import javax.comm.SerialPortEvent;
+
+/**
+ * Calls the listener of a port on a thread of its own, so the native
+ * event loop goes back to watching the port while a listener runs.
+ *
+ * The event loop hands over the events of each wakeup in one call to
+ * RXTXPort.sendEvents(), which puts them in a fixed ring of ints.  The
+ * dispatcher thread takes them out in order and passes them to the
+ * listener as SerialPortEvents made once per type and state, so events
+ * allocate nothing.  DATA_AVAILABLE and OUTPUT_BUFFER_EMPTY are not
+ * queued again while one is waiting for the dispatcher.  If a listener
+ * falls so far behind that the ring is full, only the latest state of
+ * each type is kept and passed on after the ring; the events it replaces
+ * are counted by SerialPortMetrics.getEventsDropped().
+ */
+final class SerialEventDispatcher
+    implements Runnable
+{
+    /* events of the ring, a power of two */
+    private static final int CAPACITY = 1024;
+
+    private final RXTXPort port;
+
+    /* guarded by this, the ring is made with the thread */
+    private int ring[];
+    private long times[];
+    private long head = 0;
+    private long tail = 0;
+    /* bit per event type that is queued only once */
+    private int queued = 0;
+    /* once the ring is full: bit per type with a latest state, that state
+       and when it was found */
+    private int overflow = 0;
+    private int overflowStates = 0;
+    private final long overflowTimes[] = new long[ SerialPortEvent.BI + 1 ];
+    private boolean stopped = false;
+    private Thread thread;
+
+    SerialEventDispatcher( RXTXPort port )
+    {
+        this.port = port;
+    }
+
+    /**
+     * Queue events for the listener.  Called by the event loop.
+     *
+     * @param events the event types, with RXTXPort.EVENT_STATE_TRUE set
+     *               for a true state
+     * @param count  events to queue
+     * @param time   System.nanoTime() they were found, or 0
+     */
+    synchronized void publish( int events[], int count, long time )
+    {
+        if( stopped )
+        {
+            return;
+        }
+        if( ring == null )
+        {
+            /* most ports never see an event, keep them small */
+            ring = new int[ CAPACITY ];
+            times = new long[ CAPACITY ];
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            int e = events[ i ];
+            int type = e & ~RXTXPort.EVENT_STATE_TRUE;
+            if( !port.isEventEnabled( type ) )
+            {
+                continue;
+            }
+            if( type == SerialPortEvent.DATA_AVAILABLE || type == SerialPortEvent.OUTPUT_BUFFER_EMPTY )
+            {
+                if( ( queued & ( 1 << type ) ) != 0 )
+                {
+                    continue;
+                }
+                queued |= 1 << type;
+            }
+            if( overflow != 0 || tail - head == CAPACITY )
+            {
+                /* the listener is too slow, keep the latest state only */
+                int bit = 1 << type;
+                if( ( overflow & bit ) != 0 )
+                {
+                    SerialPortMetrics.eventDropped( port.metrics );
+                }
+                overflow |= bit;
+                overflowStates = ( ( e & RXTXPort.EVENT_STATE_TRUE ) != 0 ) ? overflowStates | bit
+                                                                             : overflowStates & ~bit;
+                overflowTimes[ type ] = time;
+                continue;
+            }
+            int slot = (int) tail & ( CAPACITY - 1 );
+            ring[ slot ] = e;
+            times[ slot ] = time;
+            tail++;
+        }
+        if( tail == head && overflow == 0 )
+        {
+            return;
+        }
+        if( thread == null )
+        {
+            thread = new Thread( this, "SerialEventDispatcher " + port.getName() );
+            thread.setDaemon( true );
+            thread.start();
+        }
+        notify();
+    }
+
+    /**
+     * Drop the queued events and end the thread, waiting for a listener
+     * that is running unless it is the caller.  A thread still running
+     * after the wait touches the port only through calls close() admits.
+     */
+    void stop()
+    {
+        Thread t;
+        synchronized( this )
+        {
+            stopped = true;
+            head = tail;
+            overflow = 0;
+            t = thread;
+            notify();
+        }
+        if( t != null && t != Thread.currentThread() )
+        {
+            try
+            {
+                t.join( 3000 );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run()
+    {
+        /* the events taken from the ring */
+        int taken[] = new int[ CAPACITY + overflowTimes.length ];
+        long takenTimes[] = new long[ CAPACITY + overflowTimes.length ];
+        while( true )
+        {
+            int count;
+            synchronized( this )
+            {
+                while( head == tail && overflow == 0 && !stopped )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        /* stop() ends the thread */
+                    }
+                }
+                if( stopped )
+                {
+                    return;
+                }
+                count = 0;
+                while( head != tail )
+                {
+                    int slot = (int) head & ( CAPACITY - 1 );
+                    taken[ count ] = ring[ slot ];
+                    takenTimes[ count++ ] = times[ slot ];
+                    head++;
+                }
+                for( int type = 0; overflow != 0; type++ )
+                {
+                    int bit = 1 << type;
+                    if( ( overflow & bit ) != 0 )
+                    {
+                        taken[ count ] = ( ( overflowStates & bit ) != 0 ) ? type | RXTXPort.EVENT_STATE_TRUE : type;
+                        takenTimes[ count++ ] = overflowTimes[ type ];
+                        overflow &= ~bit;
+                    }
+                }
+                queued = 0;
+            }
+            for( int i = 0; i < count; i++ )
+            {
+                int e = taken[ i ];
+                int type = e & ~RXTXPort.EVENT_STATE_TRUE;
+                try
+                {
+                    port.deliverEvent( type, ( e & RXTXPort.EVENT_STATE_TRUE ) != 0, takenTimes[ i ] );
+                }
+                catch( RuntimeException ex )
+                {
+                    ex.printStackTrace();
+                }
+                if( type == SerialPortEvent.DATA_AVAILABLE )
+                {
+                    /* the event loop repeats it sooner if data is left */
+                    port.dataDelivered();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.comm.SerialPortEvent;
+
+/**
+ * Delivers the SerialPortEvents of many ports from one thread.
+ *
+ * Without a reactor every open RXTXPort runs a monitor thread of its own
+ * which wakes up every few milliseconds to look for events.  The ports of
+ * a reactor are waited on together in one SerialSelector instead, so an
+ * idle port costs nothing.  Modem line changes and line errors give no
+ * readiness on the file descriptor; they are polled every poll interval,
+ * but only for ports that asked for them with notifyOn..().
+ * OUTPUT_BUFFER_EMPTY is sent when flush() has drained the output.
+ *
+ * Listeners are called through the executor, or on the reactor thread if
+ * there is none.  Either way the events of one port are delivered one at
+ * a time and in order.  After DATA_AVAILABLE the port is not watched again
+ * until the listener returns, and if it left data unread the event is
+ * repeated after the poll interval rather than at once.  A window set with
+ * RXTXPort.setEventCoalescing() delays it as it does without a reactor.
+ *
+ * A port is moved to a reactor with RXTXPort.setEventReactor().  New ports
+ * use getShared() when the system property ac.bali.serial.SharedEventReactor
+ * is true.
+ */
+public class SerialEventReactor
+{
+    /**
+     * System property making new ports use the shared reactor
+     */
+    public static final String SHARED_PROPERTY = "ac.bali.serial.SharedEventReactor";
+
+    /* bits of RXTXPort.nativeGetModemLines(), MODEM_LINE_* in SerialImp.h */
+    static final int LINE_CTS = 1;
+    static final int LINE_DSR = 2;
+    static final int LINE_RI = 4;
+    static final int LINE_CD = 8;
+
+    /* RXTXPort.nativeGetICount() fields, ICOUNT_FIELDS in SerialImp.h */
+    static final int ICOUNT_FIELDS = 11;
+    static final int ICOUNT_CTS = 0;
+    static final int ICOUNT_DSR = 1;
+    static final int ICOUNT_RNG = 2;
+    static final int ICOUNT_DCD = 3;
+    static final int ICOUNT_RX = 4;
+    static final int ICOUNT_TX = 5;
+    static final int ICOUNT_FRAME = 6;
+    static final int ICOUNT_OVERRUN = 7;
+    static final int ICOUNT_PARITY = 8;
+    static final int ICOUNT_BRK = 9;
+    static final int ICOUNT_BUF_OVERRUN = 10;
+
+    /* queued events are the event type with this bit for a true state */
+    private static final int STATE_TRUE = 0x100;
+
+    private static SerialEventReactor shared;
+
+    private final Executor executor;
+    private final SerialSelector selector;
+
+    /* registered ports, also the lock for registered and thread */
+    private final Map<RXTXPort, Registration> ports = new HashMap<RXTXPort, Registration>();
+    private volatile Registration registered[] = new Registration[ 0 ];
+    private Thread thread;
+
+    private volatile long pollInterval = 20;
+    private volatile boolean closed = false;
+
+    /**
+     * A reactor calling listeners on its own thread
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public SerialEventReactor()
+        throws IOException
+    {
+        this( null );
+    }
+
+    /**
+     * @param executor runs the listeners, null to call them on the reactor
+     *                 thread
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public SerialEventReactor( Executor executor )
+        throws IOException
+    {
+        this.executor = executor;
+        selector = SerialSelector.open();
+    }
+
+    /**
+     * The reactor used by ports opened with ac.bali.serial.SharedEventReactor
+     * set.  It calls listeners on its own thread, so they should not block.
+     *
+     * @return SerialEventReactor the shared reactor
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public static synchronized SerialEventReactor getShared()
+        throws IOException
+    {
+        if( shared == null || shared.closed )
+        {
+            shared = new SerialEventReactor();
+        }
+        return shared;
+    }
+
+    /**
+     * Set how often modem lines and error counters are read, and how soon
+     * DATA_AVAILABLE is repeated for data a listener left unread.
+     *
+     * @param interval time between polls, at least a millisecond
+     * @param unit     unit of interval
+     */
+    public void setPollInterval( long interval, TimeUnit unit )
+    {
+        pollInterval = Math.max( 1, unit.toMillis( interval ) );
+        selector.wakeup();
+    }
+
+    /**
+     * @return long milliseconds between polls
+     */
+    public long getPollInterval()
+    {
+        return pollInterval;
+    }
+
+    /**
+     * Stop delivering events.  Ports still registered get no more events.
+     */
+    public void close()
+    {
+        Thread t;
+        synchronized( ports )
+        {
+            if( closed )
+            {
+                return;
+            }
+            closed = true;
+            t = thread;
+            for( Registration reg : registered )
+            {
+                reg.cancel();
+            }
+            ports.clear();
+            registered = new Registration[ 0 ];
+        }
+        selector.wakeup();
+        if( t != null && t != Thread.currentThread() )
+        {
+            try
+            {
+                t.join();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        selector.close();
+    }
+
+    void register( RXTXPort port )
+        throws IOException
+    {
+        Registration reg;
+        synchronized( ports )
+        {
+            if( closed )
+            {
+                throw new IOException( "SerialEventReactor is closed" );
+            }
+            if( ports.containsKey( port ) )
+            {
+                return;
+            }
+            reg = new Registration( port );
+            reg.key = port.getChannel().watch( selector, 0, reg );
+            ports.put( port, reg );
+            registered = ports.values().toArray( new Registration[ ports.size() ] );
+            if( thread == null )
+            {
+                thread = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        loop();
+                    }
+                }, "SerialEventReactor" );
+                thread.setDaemon( true );
+                thread.start();
+            }
+        }
+        reg.update();
+    }
+
+    void unregister( RXTXPort port )
+    {
+        Registration reg;
+        synchronized( ports )
+        {
+            reg = ports.remove( port );
+            if( reg == null )
+            {
+                return;
+            }
+            registered = ports.values().toArray( new Registration[ ports.size() ] );
+        }
+        reg.cancel();
+    }
+
+    /* the notifyOn..() flags of port changed */
+    void update( RXTXPort port )
+    {
+        Registration reg;
+        synchronized( ports )
+        {
+            reg = ports.get( port );
+        }
+        if( reg != null )
+        {
+            reg.update();
+        }
+    }
+
+    /* flush() drained the output of port */
+    void outputDrained( RXTXPort port )
+    {
+        Registration reg;
+        synchronized( ports )
+        {
+            reg = ports.get( port );
+        }
+        if( reg != null )
+        {
+            /* the reactor thread schedules it, see loop() */
+            reg.events.add( SerialPortEvent.OUTPUT_BUFFER_EMPTY | STATE_TRUE );
+            selector.wakeup();
+        }
+    }
+
+    /* the fill thread of port has buffered input */
+    void dataBuffered( RXTXPort port )
+    {
+        Registration reg;
+        synchronized( ports )
+        {
+            reg = ports.get( port );
+        }
+        if( reg != null && reg.dataBuffered() )
+        {
+            /* the reactor thread schedules it, see loop() */
+            selector.wakeup();
+        }
+    }
+
+    private void loop()
+    {
+        long nextPoll = 0;
+        while( !closed )
+        {
+            try
+            {
+                Registration regs[] = registered;
+                boolean polling = false;
+                for( Registration reg : regs )
+                {
+                    polling |= reg.needsPolling();
+                }
+                long now = System.nanoTime();
+                long wait = polling ? 1 : 0;
+                if( polling && now - nextPoll >= 0 )
+                {
+                    for( Registration reg : regs )
+                    {
+                        reg.poll();
+                    }
+                    nextPoll = now + pollInterval * 1000000;
+                }
+                if( polling )
+                {
+                    wait = nextPoll - now;
+                }
+                for( Registration reg : regs )
+                {
+                    long due = reg.coalesced( now );
+                    if( due > 0 && ( wait == 0 || due < wait ) )
+                    {
+                        wait = due;
+                    }
+                    reg.schedule();
+                }
+                /* in milliseconds rounded up, 0 waits for ever */
+                selector.select( ( wait + 999999 ) / 1000000 );
+                Iterator<SerialSelectionKey> it = selector.selectedKeys().iterator();
+                while( it.hasNext() )
+                {
+                    SerialSelectionKey key = it.next();
+                    it.remove();
+                    ( (Registration) key.attachment() ).dataReady();
+                }
+            }
+            catch( ClosedSelectorException e )
+            {
+                return;
+            }
+            catch( IOException e )
+            {
+                if( !closed )
+                {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * A port of the reactor.  The state used for polling belongs to the
+     * reactor thread, the rest is guarded by the Registration itself.
+     */
+    private final class Registration
+        implements Runnable
+    {
+        final RXTXPort port;
+        SerialSelectionKey key;
+        final ConcurrentLinkedQueue<Integer> events = new ConcurrentLinkedQueue<Integer>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private boolean active = true;
+        /* DATA_AVAILABLE is on its way, do not watch for data */
+        private boolean dataPending = false;
+        /* the listener left data, watch again on the next poll */
+        private volatile boolean rearm = false;
+
+        /* System.nanoTime() the coalesced DATA_AVAILABLE is due, or 0 */
+        private long dataDue = 0;
+
+        private int lines = -1;
+        private int counts[];
+        private final int current[] = new int[ ICOUNT_FIELDS ];
+
+        Registration( RXTXPort port )
+        {
+            this.port = port;
+        }
+
+        boolean needsPolling()
+        {
+            return rearm || lines != -1 || counts != null || watchesLines() || watchesErrors();
+        }
+
+        private boolean watchesLines()
+        {
+            return port.isEventEnabled( SerialPortEvent.CTS ) ||
+                port.isEventEnabled( SerialPortEvent.DSR ) ||
+                port.isEventEnabled( SerialPortEvent.RI ) ||
+                port.isEventEnabled( SerialPortEvent.CD );
+        }
+
+        private boolean watchesErrors()
+        {
+            return port.isEventEnabled( SerialPortEvent.OE ) ||
+                port.isEventEnabled( SerialPortEvent.PE ) ||
+                port.isEventEnabled( SerialPortEvent.FE ) ||
+                port.isEventEnabled( SerialPortEvent.BI );
+        }
+
+        void update()
+        {
+            synchronized( this )
+            {
+                if( active && !dataPending )
+                {
+                    watchData();
+                }
+            }
+            selector.wakeup();
+        }
+
+        void cancel()
+        {
+            synchronized( this )
+            {
+                active = false;
+                key.cancel();
+            }
+        }
+
+        /* reactor thread: the port has data */
+        void dataReady()
+        {
+            synchronized( this )
+            {
+                if( !active )
+                {
+                    return;
+                }
+                dataPending = true;
+                setInterest( 0 );
+                if( counts != null )
+                {
+                    checkCounts();
+                }
+                long window = port.getEventCoalescing( TimeUnit.NANOSECONDS );
+                if( window > 0 )
+                {
+                    dataDue = System.nanoTime() + window;
+                    return;
+                }
+            }
+            events.add( SerialPortEvent.DATA_AVAILABLE | STATE_TRUE );
+            schedule();
+        }
+
+        /* fill thread: the ring has new input, false if an event is on its way */
+        boolean dataBuffered()
+        {
+            synchronized( this )
+            {
+                if( !active || dataPending )
+                {
+                    return false;
+                }
+                dataPending = true;
+            }
+            events.add( SerialPortEvent.DATA_AVAILABLE | STATE_TRUE );
+            return true;
+        }
+
+        /* reactor thread: queue DATA_AVAILABLE once its window is over */
+        long coalesced( long now )
+        {
+            if( dataDue == 0 )
+            {
+                return 0;
+            }
+            if( now - dataDue < 0 )
+            {
+                return dataDue - now;
+            }
+            dataDue = 0;
+            events.add( SerialPortEvent.DATA_AVAILABLE | STATE_TRUE );
+            return 0;
+        }
+
+        /* reactor thread: read modem lines and error counters */
+        void poll()
+        {
+            synchronized( this )
+            {
+                if( !active )
+                {
+                    return;
+                }
+                if( rearm )
+                {
+                    rearm = false;
+                    dataPending = false;
+                    watchData();
+                }
+                if( watchesLines() )
+                {
+                    checkLines();
+                }
+                else
+                {
+                    lines = -1;
+                }
+                if( watchesErrors() )
+                {
+                    checkCounts();
+                }
+                else
+                {
+                    counts = null;
+                }
+            }
+            schedule();
+        }
+
+        private void checkLines()
+        {
+            int now = port.nativeGetModemLines();
+            if( lines != -1 && now != -1 )
+            {
+                int changed = lines ^ now;
+                lineEvent( changed, now, LINE_CTS, SerialPortEvent.CTS );
+                lineEvent( changed, now, LINE_DSR, SerialPortEvent.DSR );
+                lineEvent( changed, now, LINE_RI, SerialPortEvent.RI );
+                lineEvent( changed, now, LINE_CD, SerialPortEvent.CD );
+            }
+            lines = now;
+        }
+
+        private void lineEvent( int changed, int now, int line, int event )
+        {
+            if( ( changed & line ) != 0 )
+            {
+                events.add( ( now & line ) != 0 ? event | STATE_TRUE : event );
+            }
+        }
+
+        private void checkCounts()
+        {
+            if( !port.nativeGetICount( current ) )
+            {
+                return;
+            }
+            if( counts == null )
+            {
+                counts = current.clone();
+                return;
+            }
+            countEvents( ICOUNT_FRAME, SerialPortEvent.FE );
+            countEvents( ICOUNT_OVERRUN, SerialPortEvent.OE );
+            countEvents( ICOUNT_PARITY, SerialPortEvent.PE );
+            countEvents( ICOUNT_BRK, SerialPortEvent.BI );
+            System.arraycopy( current, 0, counts, 0, ICOUNT_FIELDS );
+        }
+
+        private void countEvents( int field, int event )
+        {
+            for( int i = counts[ field ]; i != current[ field ]; i++ )
+            {
+                events.add( event | STATE_TRUE );
+            }
+        }
+
+        private void watchData()
+        {
+            setInterest( port.watchesDriverData() ? SerialSelectionKey.OP_READ : 0 );
+        }
+
+        private void setInterest( int ops )
+        {
+            try
+            {
+                key.interestOps( ops );
+            }
+            catch( CancelledKeyException e )
+            {
+            }
+            catch( ClosedSelectorException e )
+            {
+            }
+        }
+
+        /* after the listener has seen DATA_AVAILABLE */
+        private void dataDelivered()
+        {
+            synchronized( this )
+            {
+                if( !active )
+                {
+                    return;
+                }
+                int available = 0;
+                try
+                {
+                    available = port.availableIO();
+                }
+                catch( IOException e )
+                {
+                }
+                if( available <= 0 )
+                {
+                    dataPending = false;
+                    watchData();
+                    return;
+                }
+                rearm = true;
+            }
+            selector.wakeup();
+        }
+
+        void schedule()
+        {
+            if( events.isEmpty() || !scheduled.compareAndSet( false, true ) )
+            {
+                return;
+            }
+            if( executor == null )
+            {
+                run();
+                return;
+            }
+            try
+            {
+                executor.execute( this );
+            }
+            catch( RejectedExecutionException e )
+            {
+                run();
+            }
+        }
+
+        public void run()
+        {
+            do
+            {
+                Integer e;
+                while( ( e = events.poll() ) != null )
+                {
+                    deliver( e.intValue() );
+                }
+                scheduled.set( false );
+            }
+            while( !events.isEmpty() && scheduled.compareAndSet( false, true ) );
+        }
+
+        private void deliver( int e )
+        {
+            int event = e & ~STATE_TRUE;
+            try
+            {
+                port.sendEvent( event, ( e & STATE_TRUE ) != 0 );
+            }
+            catch( RuntimeException ex )
+            {
+                ex.printStackTrace();
+            }
+            if( event == SerialPortEvent.DATA_AVAILABLE )
+            {
+                dataDelivered();
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input of an RXTXPort read ahead into a ring buffer by a thread of its
+ * own.  See RXTXPort.setInputBuffering().
+ *
+ * The ring is a direct buffer the fill thread reads the driver into, so
+ * taking bytes out of it is a plain memory access.  There is one producer,
+ * the fill thread, and one consumer, the thread reading the port's
+ * InputStream.  head and tail count the bytes taken and stored since the
+ * start; neither side locks unless it has to wait for the other.
+ */
+final class SerialInputBuffer
+    implements Runnable
+{
+    /* the fill thread leaves the port this often to notice stop() and close() */
+    private static final int FILL_TIMEOUT = 100;
+
+    private final RXTXPort port;
+    private final ByteBuffer ring;
+    /* the consumer's view of ring, for bulk copies */
+    private final ByteBuffer view;
+    private final int capacity;
+    private final int mask;
+    private final Thread thread;
+
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    private volatile boolean running = true;
+
+    /* set inside lock before a side waits, so the other knows to notify */
+    private final Object lock = new Object();
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean producerWaiting = false;
+
+    /**
+     * @param port     the port to read
+     * @param capacity bytes to buffer, rounded up to a power of two
+     */
+    SerialInputBuffer( RXTXPort port, int capacity )
+    {
+        this.port = port;
+        this.capacity = Integer.highestOneBit( Math.max( capacity - 1, 1 ) ) << 1;
+        mask = this.capacity - 1;
+        ring = ByteBuffer.allocateDirect( this.capacity );
+        view = ring.duplicate();
+        thread = new Thread( this, "SerialInputBuffer " + port.getName() );
+        thread.setDaemon( true );
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Stop filling.  Bytes already buffered can still be read.  Returns
+     * once the fill thread no longer reads the port, unless it is the
+     * caller.
+     */
+    void stop()
+    {
+        synchronized( lock )
+        {
+            running = false;
+            lock.notifyAll();
+        }
+        if( Thread.currentThread() == thread )
+        {
+            return;
+        }
+        try
+        {
+            thread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return boolean true while the fill thread reads the port
+     */
+    boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return boolean true if reads should be served from the ring
+     */
+    boolean isActive()
+    {
+        return running || tail != head;
+    }
+
+    /**
+     * @return int the number of buffered bytes
+     */
+    int available()
+    {
+        return (int) ( tail - head );
+    }
+
+    int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Wait until count bytes are buffered, the timeout passes or filling
+     * stops.  The fill thread itself never waits, it is the one that
+     * would bring the data.
+     *
+     * @param count   bytes wanted
+     * @param timeout milliseconds, -1 waits for ever
+     *
+     * @return int the number of buffered bytes, which may be less than count
+     *
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    int await( int count, int timeout )
+        throws InterruptedIOException
+    {
+        int n = available();
+        if( n >= count || timeout == 0 || Thread.currentThread() == thread )
+        {
+            return n;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout );
+        synchronized( lock )
+        {
+            consumerWaiting = true;
+            try
+            {
+                while( ( n = available() ) < count && running )
+                {
+                    if( timeout < 0 )
+                    {
+                        lock.wait();
+                        continue;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if( left <= 0 )
+                    {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait( lock, left );
+                }
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            finally
+            {
+                consumerWaiting = false;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Wait until the buffered bytes hold terminator within the first len
+     * bytes, len bytes are buffered or the timeout passes.  Bytes already
+     * searched are not searched again.
+     *
+     * @param terminator bytes ending a record
+     * @param len        most bytes the caller takes
+     * @param timeout    milliseconds, -1 waits for ever
+     *
+     * @return int bytes up to and including the terminator, len if it was
+     * not found in len bytes, 0 if the timeout passed first
+     *
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    int awaitRecord( byte terminator[], int len, int timeout )
+        throws InterruptedIOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout );
+        int scanned = 0;
+        for( ; ; )
+        {
+            int n = Math.min( available(), len );
+            int end = find( terminator, scanned, n );
+            if( end > 0 )
+            {
+                return end;
+            }
+            if( n == len )
+            {
+                return len;
+            }
+            scanned = Math.max( 0, n - terminator.length + 1 );
+            int wait = -1;
+            if( timeout >= 0 )
+            {
+                long left = deadline - System.nanoTime();
+                if( left <= 0 )
+                {
+                    return 0;
+                }
+                wait = (int) TimeUnit.NANOSECONDS.toMillis( left + 999999 );
+            }
+            if( await( n + 1, wait ) <= n )
+            {
+                return 0;
+            }
+        }
+    }
+
+    /* end of terminator in the first n buffered bytes, searching from from */
+    private int find( byte terminator[], int from, int n )
+    {
+        long h = head;
+        for( int i = from; i <= n - terminator.length; i++ )
+        {
+            int j = 0;
+            while( j < terminator.length && ring.get( (int) ( h + i + j ) & mask ) == terminator[ j ] )
+            {
+                j++;
+            }
+            if( j == terminator.length )
+            {
+                return i + j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take one byte.  The caller has seen it with available() or await().
+     *
+     * @return int the byte, 0 to 255
+     */
+    int read()
+    {
+        long h = head;
+        int b = ring.get( (int) h & mask ) & 0xff;
+        consumed( h + 1 );
+        return b;
+    }
+
+    /**
+     * Take up to len buffered bytes without waiting.
+     *
+     * @param b   receives the bytes
+     * @param off index of the first byte in b
+     * @param len most bytes to take
+     *
+     * @return int the number of bytes taken
+     */
+    int read( byte b[], int off, int len )
+    {
+        long h = head;
+        int n = Math.min( len, (int) ( tail - h ) );
+        int start = (int) h & mask;
+        int first = Math.min( n, capacity - start );
+        view.limit( start + first ).position( start );
+        view.get( b, off, first );
+        if( first < n )
+        {
+            view.limit( n - first ).position( 0 );
+            view.get( b, off + first, n - first );
+        }
+        consumed( h + n );
+        return n;
+    }
+
+    /**
+     * Take up to len buffered bytes into dst without waiting.
+     *
+     * @param dst receives the bytes at its position
+     * @param len most bytes to take, at most dst.remaining()
+     *
+     * @return int the number of bytes taken
+     */
+    int read( ByteBuffer dst, int len )
+    {
+        long h = head;
+        int n = Math.min( len, (int) ( tail - h ) );
+        int start = (int) h & mask;
+        int first = Math.min( n, capacity - start );
+        view.limit( start + first ).position( start );
+        dst.put( view );
+        if( first < n )
+        {
+            view.limit( n - first ).position( 0 );
+            dst.put( view );
+        }
+        consumed( h + n );
+        return n;
+    }
+
+    private void consumed( long h )
+    {
+        head = h;
+        if( producerWaiting )
+        {
+            synchronized( lock )
+            {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void run()
+    {
+        try
+        {
+            while( running )
+            {
+                long t = tail;
+                int free = capacity - (int) ( t - head );
+                if( free == 0 )
+                {
+                    waitForRoom();
+                    continue;
+                }
+                int off = (int) t & mask;
+                int n;
+                port.enterIO();
+                try
+                {
+                    long start = SerialPortMetrics.beginIO( port.metrics );
+                    n = port.fillDirect( ring, off, Math.min( free, capacity - off ), FILL_TIMEOUT );
+                    SerialPortMetrics.endRead( port.metrics, start, n, 0 );
+                }
+                finally
+                {
+                    port.exitIO();
+                }
+                if( n < 0 )
+                {
+                    break;
+                }
+                if( n > 0 )
+                {
+                    tail = t + n;
+                    if( consumerWaiting )
+                    {
+                        synchronized( lock )
+                        {
+                            lock.notifyAll();
+                        }
+                    }
+                    port.inputBuffered();
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            /* close() stops us first, anything else is a real error */
+            if( running )
+            {
+                e.printStackTrace();
+            }
+        }
+        catch( InterruptedException e )
+        {
+        }
+        finally
+        {
+            boolean stopped;
+            synchronized( lock )
+            {
+                stopped = !running;
+                running = false;
+                lock.notifyAll();
+            }
+            if( !stopped )
+            {
+                port.inputBufferStopped();
+            }
+        }
+    }
+
+    private void waitForRoom()
+        throws InterruptedException
+    {
+        synchronized( lock )
+        {
+            producerWaiting = true;
+            try
+            {
+                while( running && tail - head == capacity )
+                {
+                    lock.wait();
+                }
+            }
+            finally
+            {
+                producerWaiting = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ac.bali.serial;
+
+/**
+ * The interrupt counters a serial driver keeps, read at one moment with a
+ * single TIOCGICOUNT ioctl.  See RXTXPort.getLineCounters().
+ *
+ * The driver counts from when it was loaded and wraps at 2^32, so the
+ * counts mean little by themselves.  Take two snapshots and use
+ * since() for what happened in between, such as the overrun rate.
+ */
+public final class SerialLineCounters
+{
+    private final long nanoTime;
+    private final long counts[];
+
+    /**
+     * @param nanoTime System.nanoTime() when the counters were read
+     * @param counts   RXTXPort.nativeGetICount() fields
+     */
+    SerialLineCounters( long nanoTime, int counts[] )
+    {
+        this.nanoTime = nanoTime;
+        this.counts = new long[ SerialEventReactor.ICOUNT_FIELDS ];
+        for( int i = 0; i < this.counts.length; i++ )
+        {
+            this.counts[ i ] = counts[ i ] & 0xffffffffL;
+        }
+    }
+
+    private SerialLineCounters( long nanoTime, long counts[] )
+    {
+        this.nanoTime = nanoTime;
+        this.counts = counts;
+    }
+
+    /**
+     * @param earlier a snapshot of the same port taken before this one
+     *
+     * @return SerialLineCounters the counts since earlier, with the time
+     * between the two as getNanoTime()
+     */
+    public SerialLineCounters since( SerialLineCounters earlier )
+    {
+        long delta[] = new long[ counts.length ];
+        for( int i = 0; i < counts.length; i++ )
+        {
+            delta[ i ] = ( counts[ i ] - earlier.counts[ i ] ) & 0xffffffffL;
+        }
+        return new SerialLineCounters( nanoTime - earlier.nanoTime, delta );
+    }
+
+    /**
+     * @return long System.nanoTime() when the counters were read, or the
+     * nanoseconds between two snapshots for a result of since()
+     */
+    public long getNanoTime()
+    {
+        return nanoTime;
+    }
+
+    /**
+     * @return long CTS transitions
+     */
+    public long getCts()
+    {
+        return counts[ SerialEventReactor.ICOUNT_CTS ];
+    }
+
+    /**
+     * @return long DSR transitions
+     */
+    public long getDsr()
+    {
+        return counts[ SerialEventReactor.ICOUNT_DSR ];
+    }
+
+    /**
+     * @return long RI transitions
+     */
+    public long getRng()
+    {
+        return counts[ SerialEventReactor.ICOUNT_RNG ];
+    }
+
+    /**
+     * @return long CD transitions
+     */
+    public long getDcd()
+    {
+        return counts[ SerialEventReactor.ICOUNT_DCD ];
+    }
+
+    /**
+     * @return long bytes received by the UART
+     */
+    public long getRx()
+    {
+        return counts[ SerialEventReactor.ICOUNT_RX ];
+    }
+
+    /**
+     * @return long bytes sent by the UART
+     */
+    public long getTx()
+    {
+        return counts[ SerialEventReactor.ICOUNT_TX ];
+    }
+
+    /**
+     * @return long bytes received with a framing error
+     */
+    public long getFrame()
+    {
+        return counts[ SerialEventReactor.ICOUNT_FRAME ];
+    }
+
+    /**
+     * @return long bytes lost because the UART's FIFO was full
+     */
+    public long getOverrun()
+    {
+        return counts[ SerialEventReactor.ICOUNT_OVERRUN ];
+    }
+
+    /**
+     * @return long bytes received with a parity error
+     */
+    public long getParity()
+    {
+        return counts[ SerialEventReactor.ICOUNT_PARITY ];
+    }
+
+    /**
+     * @return long breaks received
+     */
+    public long getBrk()
+    {
+        return counts[ SerialEventReactor.ICOUNT_BRK ];
+    }
+
+    /**
+     * @return long bytes lost because the tty's input buffer was full
+     */
+    public long getBufOverrun()
+    {
+        return counts[ SerialEventReactor.ICOUNT_BUF_OVERRUN ];
+    }
+
+    public String toString()
+    {
+        return "rx " + getRx() + " tx " + getTx() + " frame " + getFrame() + " overrun " + getOverrun()
+               + " parity " + getParity() + " brk " + getBrk() + " buf_overrun " + getBufOverrun()
+               + " cts " + getCts() + " dsr " + getDsr() + " rng " + getRng() + " dcd " + getDcd();
+    }
+}
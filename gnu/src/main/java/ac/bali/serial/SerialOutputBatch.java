@@ -0,0 +1,269 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output of an RXTXPort collected into batches.  See
+ * RXTXPort.setOutputBatching().
+ *
+ * Bytes are copied into a preallocated array and handed to the driver
+ * with one write once it is full, on flush(), or when the oldest byte has
+ * waited the delay.  A write larger than the array goes out at once after
+ * what is pending.  The methods are synchronized, so bytes written by
+ * several threads keep the order the calls were made in.
+ *
+ * The timer shared by all ports only passes an expired batch to a thread
+ * of its port, which goes away when idle.  A write blocked by flow
+ * control holds up that port alone.
+ */
+final class SerialOutputBatch
+    implements Runnable
+{
+    /* one thread for the delays of all ports */
+    private static ScheduledExecutorService timer;
+
+    private final RXTXPort port;
+    private final byte buf[];
+    private final long delay;
+    /* writes the delayed batches of this port, null without a delay */
+    private final ThreadPoolExecutor flusher;
+    private int count = 0;
+    private boolean scheduled = false;
+    private boolean retired = false;
+
+    /* a delayed flush failed, thrown by the next call */
+    private IOException failure;
+
+    /**
+     * @param port  the port to write to
+     * @param size  bytes to collect before writing
+     * @param delay nanoseconds the first byte of a batch may wait, 0 waits
+     *              for a full batch or flush()
+     */
+    SerialOutputBatch( RXTXPort port, int size, long delay )
+    {
+        this.port = port;
+        buf = new byte[ size ];
+        this.delay = delay;
+        if( delay == 0 )
+        {
+            flusher = null;
+            return;
+        }
+        flusher = new ThreadPoolExecutor( 1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                          daemon( "SerialOutputBatch " + port.getName() ) );
+        flusher.allowCoreThreadTimeOut( true );
+    }
+
+    int getSize()
+    {
+        return buf.length;
+    }
+
+    long getDelay()
+    {
+        return delay;
+    }
+
+    synchronized void write( int b )
+        throws IOException
+    {
+        if( retired )
+        {
+            writeOut( new byte[]{ (byte) b }, 0, 1 );
+            return;
+        }
+        checkFailure();
+        buf[ count++ ] = (byte) b;
+        if( count == buf.length )
+        {
+            flushBatch();
+        }
+        else if( count == 1 )
+        {
+            schedule();
+        }
+    }
+
+    synchronized void write( byte b[], int off, int len )
+        throws IOException
+    {
+        if( retired )
+        {
+            writeOut( b, off, len );
+            return;
+        }
+        checkFailure();
+        if( len > buf.length - count )
+        {
+            flushBatch();
+            if( len >= buf.length )
+            {
+                writeOut( b, off, len );
+                return;
+            }
+        }
+        if( len == 0 )
+        {
+            return;
+        }
+        System.arraycopy( b, off, buf, count, len );
+        boolean first = count == 0;
+        count += len;
+        if( count == buf.length )
+        {
+            flushBatch();
+        }
+        else if( first )
+        {
+            schedule();
+        }
+    }
+
+    /**
+     * Write what is pending.
+     *
+     * @throws IOException
+     */
+    synchronized void flush()
+        throws IOException
+    {
+        checkFailure();
+        flushBatch();
+    }
+
+    /**
+     * Write what is pending and pass later writes straight through, for
+     * callers still holding this batch after it was replaced.
+     *
+     * @throws IOException
+     */
+    synchronized void retire()
+        throws IOException
+    {
+        retired = true;
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            if( flusher != null )
+            {
+                flusher.shutdown();
+            }
+        }
+    }
+
+    /* timer: the delay of the pending batch is over */
+    private final Runnable expired = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                flusher.execute( SerialOutputBatch.this );
+            }
+            catch( RejectedExecutionException e )
+            {
+                /* retired, the batch was written then */
+            }
+        }
+    };
+
+    /* flusher: write the batch whose delay is over */
+    public void run()
+    {
+        synchronized( this )
+        {
+            scheduled = false;
+            try
+            {
+                flushBatch();
+            }
+            catch( IOException e )
+            {
+                failure = e;
+            }
+        }
+    }
+
+    private void flushBatch()
+        throws IOException
+    {
+        if( count == 0 )
+        {
+            return;
+        }
+        int n = count;
+        /* dropped on failure, as a failed write() would drop them */
+        count = 0;
+        writeOut( buf, 0, n );
+    }
+
+    private void writeOut( byte b[], int off, int len )
+        throws IOException
+    {
+        port.enterIO();
+        try
+        {
+            long start = SerialPortMetrics.beginIO( port.metrics );
+            port.writeArray( b, off, len, port.monThreadisInterrupted );
+            SerialPortMetrics.endWrite( port.metrics, start, len );
+        }
+        finally
+        {
+            port.exitIO();
+        }
+    }
+
+    private void checkFailure()
+        throws IOException
+    {
+        IOException e = failure;
+        if( e != null )
+        {
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void schedule()
+    {
+        if( delay == 0 || scheduled )
+        {
+            return;
+        }
+        scheduled = true;
+        getTimer().schedule( expired, delay, TimeUnit.NANOSECONDS );
+    }
+
+    private static synchronized ScheduledExecutorService getTimer()
+    {
+        if( timer == null )
+        {
+            timer = new ScheduledThreadPoolExecutor( 1, daemon( "SerialOutputBatch" ) );
+        }
+        return timer;
+    }
+
+    private static ThreadFactory daemon( final String name )
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, name );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+}
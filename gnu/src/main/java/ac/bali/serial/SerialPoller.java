@@ -0,0 +1,261 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks threads until their port is ready, for RXTXPort.setParkingIO().
+ *
+ * One daemon thread waits on the ports of all parked threads in a
+ * SerialSelector and unparks a thread once its port can be read or
+ * written.  A parked thread holds no monitor and has no native frame on
+ * its stack, so a virtual thread gives its carrier thread back while it
+ * waits.
+ */
+final class SerialPoller
+    implements Runnable
+{
+    private static SerialPoller shared;
+
+    private final SerialSelector selector;
+    private final ConcurrentHashMap<RXTXPort, Watch> watches = new ConcurrentHashMap<RXTXPort, Watch>();
+
+    /* watches whose waiting threads changed, updated by the poller thread */
+    private final ConcurrentLinkedQueue<Watch> changed = new ConcurrentLinkedQueue<Watch>();
+
+    private SerialPoller()
+        throws IOException
+    {
+        selector = SerialSelector.open();
+    }
+
+    /**
+     * @return SerialPoller the poller, started on first use
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    static synchronized SerialPoller getShared()
+        throws IOException
+    {
+        if( shared == null )
+        {
+            shared = new SerialPoller();
+            Thread t = new Thread( shared, "SerialPoller" );
+            t.setDaemon( true );
+            t.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Park until port is ready for op, the deadline passes or the port is
+     * closed.  The caller tries its operation again either way.
+     *
+     * @param port     the port to wait for
+     * @param op       SerialSelectionKey.OP_READ or OP_WRITE
+     * @param deadline System.nanoTime() to give up at, 0 to wait for ever
+     *
+     * @return boolean false if the deadline passed
+     *
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    boolean await( RXTXPort port, int op, long deadline )
+        throws InterruptedIOException
+    {
+        Watch w = watches.get( port );
+        if( w == null )
+        {
+            w = new Watch( port );
+            Watch old = watches.putIfAbsent( port, w );
+            if( old != null )
+            {
+                w = old;
+            }
+        }
+        AtomicReference<Thread> waiter = ( op == SerialSelectionKey.OP_READ ) ? w.reader : w.writer;
+        Thread t = Thread.currentThread();
+        waiter.set( t );
+        changed.add( w );
+        selector.wakeup();
+        try
+        {
+            while( waiter.get() == t )
+            {
+                if( Thread.interrupted() )
+                {
+                    t.interrupt();
+                    throw new InterruptedIOException();
+                }
+                if( deadline == 0 )
+                {
+                    LockSupport.park( this );
+                    continue;
+                }
+                long left = deadline - System.nanoTime();
+                if( left <= 0 )
+                {
+                    return false;
+                }
+                LockSupport.parkNanos( this, left );
+            }
+            return true;
+        }
+        finally
+        {
+            /* the poller drops the interest when it next sees the port */
+            waiter.compareAndSet( t, null );
+        }
+    }
+
+    /* called by RXTXPort.close() before the fd goes away */
+    static void portClosed( RXTXPort port )
+    {
+        SerialPoller poller;
+        synchronized( SerialPoller.class )
+        {
+            poller = shared;
+        }
+        if( poller != null )
+        {
+            poller.unwatch( port );
+        }
+    }
+
+    private void unwatch( RXTXPort port )
+    {
+        Watch w = watches.remove( port );
+        if( w != null )
+        {
+            w.closed = true;
+            w.wake( SerialSelectionKey.OP_READ | SerialSelectionKey.OP_WRITE );
+            changed.add( w );
+            selector.wakeup();
+        }
+    }
+
+    public void run()
+    {
+        for( ; ; )
+        {
+            try
+            {
+                Watch w;
+                while( ( w = changed.poll() ) != null )
+                {
+                    w.update();
+                }
+                selector.select();
+                Iterator<SerialSelectionKey> it = selector.selectedKeys().iterator();
+                while( it.hasNext() )
+                {
+                    SerialSelectionKey key = it.next();
+                    it.remove();
+                    w = (Watch) key.attachment();
+                    try
+                    {
+                        w.wake( key.readyOps() );
+                    }
+                    catch( CancelledKeyException e )
+                    {
+                        /* the port was closed, its threads are awake */
+                    }
+                    w.update();
+                }
+            }
+            catch( IOException e )
+            {
+                e.printStackTrace();
+                return;
+            }
+            catch( RuntimeException e )
+            {
+                /* keep serving the other ports */
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The threads parked on one port.  The key belongs to the poller
+     * thread.
+     */
+    private final class Watch
+    {
+        final RXTXPort port;
+        final AtomicReference<Thread> reader = new AtomicReference<Thread>();
+        final AtomicReference<Thread> writer = new AtomicReference<Thread>();
+        volatile boolean closed = false;
+
+        private SerialSelectionKey key;
+        private int interest = 0;
+
+        Watch( RXTXPort port )
+        {
+            this.port = port;
+        }
+
+        void wake( int ops )
+        {
+            if( ( ops & SerialSelectionKey.OP_READ ) != 0 )
+            {
+                LockSupport.unpark( reader.getAndSet( null ) );
+            }
+            if( ( ops & SerialSelectionKey.OP_WRITE ) != 0 )
+            {
+                LockSupport.unpark( writer.getAndSet( null ) );
+            }
+        }
+
+        /* poller thread: wait for what the parked threads wait for */
+        void update()
+        {
+            if( closed || port.getFileDescriptor() == 0 )
+            {
+                if( key != null )
+                {
+                    key.cancel();
+                    key = null;
+                }
+                wake( SerialSelectionKey.OP_READ | SerialSelectionKey.OP_WRITE );
+                return;
+            }
+            int ops = ( reader.get() != null ? SerialSelectionKey.OP_READ : 0 ) |
+                ( writer.get() != null ? SerialSelectionKey.OP_WRITE : 0 );
+            try
+            {
+                if( key == null )
+                {
+                    if( ops != 0 )
+                    {
+                        key = port.getChannel().watch( selector, ops, this );
+                    }
+                }
+                else if( ops != interest )
+                {
+                    key.interestOps( ops );
+                }
+                interest = ops;
+            }
+            catch( IOException e )
+            {
+                /* the threads retry and get the error themselves */
+                wake( ops );
+            }
+            catch( CancelledKeyException e )
+            {
+                key = null;
+                wake( ops );
+            }
+            catch( IllegalStateException e )
+            {
+                wake( ops );
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package ac.bali.serial;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A serial port found in Linux sysfs, with what the kernel knows about
+ * the hardware behind it.
+ *
+ * scan() lists /sys/class/tty.  Every tty there with a device link is
+ * backed by hardware; its driver, and for USB adapters the vendor and
+ * product ids and serial number, are read from sysfs.  No device is
+ * opened, so scanning neither waits on busy ports nor toggles DTR.
+ *
+ * The system property ac.bali.serial.SysfsRoot points the scan at
+ * another tree than /sys.
+ */
+public class SerialPortInfo
+{
+    /* levels above a USB interface to look for the device's ids */
+    private static final int USB_DEPTH = 4;
+
+    private final String name;
+    private final String path;
+    private final String driver;
+    private final String vendorId;
+    private final String productId;
+    private final String serialNumber;
+    private final String manufacturer;
+    private final String product;
+
+    SerialPortInfo( String name, String path, String driver, String vendorId, String productId,
+                    String serialNumber, String manufacturer, String product )
+    {
+        this.name = name;
+        this.path = path;
+        this.driver = driver;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.serialNumber = serialNumber;
+        this.manufacturer = manufacturer;
+        this.product = product;
+    }
+
+    /**
+     * @return String the kernel name of the tty, such as ttyUSB0
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return String the device file to open, such as /dev/ttyUSB0
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return String the kernel driver, such as ftdi_sio or cdc_acm, or
+     * null if none is bound
+     */
+    public String getDriver()
+    {
+        return driver;
+    }
+
+    /**
+     * @return String the USB vendor id as four hex digits, null if the
+     * port is not on USB
+     */
+    public String getVendorId()
+    {
+        return vendorId;
+    }
+
+    /**
+     * @return String the USB product id as four hex digits, null if the
+     * port is not on USB
+     */
+    public String getProductId()
+    {
+        return productId;
+    }
+
+    /**
+     * @return String the USB serial number, null if the device has none
+     */
+    public String getSerialNumber()
+    {
+        return serialNumber;
+    }
+
+    /**
+     * @return String the USB manufacturer string, or null
+     */
+    public String getManufacturer()
+    {
+        return manufacturer;
+    }
+
+    /**
+     * @return String the USB product string, or null
+     */
+    public String getProduct()
+    {
+        return product;
+    }
+
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder( path );
+        if( driver != null )
+        {
+            s.append( " (" ).append( driver ).append( ')' );
+        }
+        if( vendorId != null )
+        {
+            s.append( ' ' ).append( vendorId ).append( ':' ).append( productId );
+        }
+        if( serialNumber != null )
+        {
+            s.append( " serial " ).append( serialNumber );
+        }
+        return s.toString();
+    }
+
+    /**
+     * List the serial ports the kernel knows of, sorted by name.
+     *
+     * @return List the ports, null if there is no sysfs to read
+     */
+    public static List<SerialPortInfo> scan()
+    {
+        return scan( new File( System.getProperty( "ac.bali.serial.SysfsRoot", "/sys" ) ), "/dev/" );
+    }
+
+    /**
+     * @param sysfs     the sysfs mount point
+     * @param deviceDir directory of the device files, ending with a /
+     *
+     * @return List the ports with a device file in deviceDir, null if
+     * sysfs has no tty class
+     */
+    static List<SerialPortInfo> scan( File sysfs, String deviceDir )
+    {
+        File ttys = new File( sysfs, "class/tty" );
+        String names[] = ttys.list();
+        if( names == null )
+        {
+            return null;
+        }
+        Arrays.sort( names );
+        List<SerialPortInfo> found = new ArrayList<SerialPortInfo>();
+        for( String name : names )
+        {
+            SerialPortInfo info = describe( sysfs, deviceDir, name );
+            if( info != null )
+            {
+                found.add( info );
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param sysfs     the sysfs mount point
+     * @param deviceDir directory of the device files, ending with a /
+     * @param name      kernel name of a tty, such as ttyUSB0
+     *
+     * @return SerialPortInfo the port, null if the tty is not a serial
+     * port or has no device file in deviceDir
+     */
+    static SerialPortInfo describe( File sysfs, String deviceDir, String name )
+    {
+        File tty = new File( sysfs, "class/tty/" + name );
+        File device = new File( tty, "device" );
+        /* consoles, ptys and other virtual ttys have no device */
+        if( !device.exists() )
+        {
+            return null;
+        }
+        if( "0".equals( readAttribute( new File( tty, "type" ) ) ) )
+        {
+            /* a UART port with no UART found, such as a spare ttyS */
+            return null;
+        }
+        String driver = linkName( new File( device, "driver" ) );
+        String path = deviceDir + name;
+        if( !new File( path ).exists() )
+        {
+            return null;
+        }
+        File usb = findUsbDevice( device );
+        if( usb == null )
+        {
+            return new SerialPortInfo( name, path, driver, null, null, null, null, null );
+        }
+        return new SerialPortInfo( name, path, driver,
+                                   readAttribute( new File( usb, "idVendor" ) ),
+                                   readAttribute( new File( usb, "idProduct" ) ),
+                                   readAttribute( new File( usb, "serial" ) ),
+                                   readAttribute( new File( usb, "manufacturer" ) ),
+                                   readAttribute( new File( usb, "product" ) ) );
+    }
+
+    /* the USB device above a tty's device, or null if it is not on USB */
+    private static File findUsbDevice( File device )
+    {
+        File dir;
+        try
+        {
+            dir = device.getCanonicalFile();
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+        for( int i = 0; i < USB_DEPTH && dir != null; i++ )
+        {
+            if( new File( dir, "idVendor" ).exists() )
+            {
+                return dir;
+            }
+            dir = dir.getParentFile();
+        }
+        return null;
+    }
+
+    /* the name a symbolic link points to, or null */
+    private static String linkName( File link )
+    {
+        try
+        {
+            return Files.readSymbolicLink( link.toPath() ).getFileName().toString();
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+        catch( UnsupportedOperationException e )
+        {
+            return null;
+        }
+    }
+
+    /* the first line of a sysfs attribute, or null if it cannot be read */
+    private static String readAttribute( File file )
+    {
+        if( !file.exists() )
+        {
+            return null;
+        }
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader( new FileReader( file ) );
+            String line = in.readLine();
+            return ( line == null ) ? null : line.trim();
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException e )
+                {
+                    /* read already */
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what an RXTXPort does: bytes, native calls, zero byte reads,
+ * timeouts, EINTR retries and the latency of reads, writes and event
+ * dispatch.  See RXTXPort.enableMetrics().
+ *
+ * The port checks a single field before measuring anything, so a port
+ * without metrics pays for nothing else.  Latencies go into histograms
+ * of eight buckets per power of two, like HdrHistogram with one
+ * significant digit, so a percentile is at most 12.5% above the true
+ * value.  The line error counters are read from the driver with
+ * TIOCGICOUNT when asked for.
+ */
+public class SerialPortMetrics
+    implements SerialPortMetricsMXBean
+{
+    /**
+     * System property: true to measure every port opened
+     */
+    public static final String PROPERTY = "ac.bali.serial.Metrics";
+
+    private final RXTXPort port;
+    private final String name;
+    private ObjectName objectName;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong readCalls = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong zeroReads = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final Histogram readLatency = new Histogram();
+    private final Histogram writeLatency = new Histogram();
+    private final Histogram eventLatency = new Histogram();
+
+    /* counts of the driver and of EINTR at the last reset() */
+    private volatile SerialLineCounters lineBase;
+    private volatile long eintrBase = 0;
+
+    SerialPortMetrics( RXTXPort port )
+    {
+        this.port = port;
+        name = port.getName();
+    }
+
+    /*
+     * Measuring a call: start = beginIO( port.metrics ) before it, then
+     * endRead(), endWrite() or endEvent() with the same start after it.
+     * Without metrics start is 0 and the end does nothing, also when
+     * metrics were enabled in between.
+     */
+    static long beginIO( SerialPortMetrics m )
+    {
+        return ( m != null ) ? System.nanoTime() : 0;
+    }
+
+    static void endRead( SerialPortMetrics m, long start, long result, int wanted )
+    {
+        if( m != null && start != 0 )
+        {
+            m.read( result, wanted, start );
+        }
+    }
+
+    static void endWrite( SerialPortMetrics m, long start, long result )
+    {
+        if( m != null && start != 0 )
+        {
+            m.write( result, start );
+        }
+    }
+
+    static void endEvent( SerialPortMetrics m, long start )
+    {
+        if( m != null && start != 0 )
+        {
+            m.event( start );
+        }
+    }
+
+    /* an event replaced by a later one of its type before a listener got it */
+    static void eventDropped( SerialPortMetrics m )
+    {
+        if( m != null )
+        {
+            m.eventsDropped.incrementAndGet();
+        }
+    }
+
+    /* called by the port after a native read started at start */
+    private void read( long result, int wanted, long start )
+    {
+        readLatency.record( System.nanoTime() - start );
+        readCalls.incrementAndGet();
+        if( result > 0 )
+        {
+            bytesRead.addAndGet( result );
+        }
+        else
+        {
+            zeroReads.incrementAndGet();
+        }
+        if( result >= 0 && result < wanted )
+        {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    /* called by the port after a native write started at start */
+    private void write( long result, long start )
+    {
+        writeLatency.record( System.nanoTime() - start );
+        writeCalls.incrementAndGet();
+        if( result > 0 )
+        {
+            bytesWritten.addAndGet( result );
+        }
+    }
+
+    /* called by the port once the listener returned from an event made at start */
+    private void event( long start )
+    {
+        eventLatency.record( System.nanoTime() - start );
+        events.incrementAndGet();
+    }
+
+    /* register with the platform MBean server, failures are reported only */
+    void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName( "ac.bali.serial:type=SerialPort,name=" + ObjectName.quote( name ) );
+            if( server.isRegistered( on ) )
+            {
+                server.unregisterMBean( on );
+            }
+            server.registerMBean( this, on );
+            objectName = on;
+        }
+        catch( JMException e )
+        {
+            e.printStackTrace();
+        }
+    }
+
+    void unregister()
+    {
+        if( objectName == null )
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+        }
+        catch( JMException e )
+        {
+            /* unregistered already */
+        }
+        objectName = null;
+    }
+
+    public String getPortName()
+    {
+        return name;
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    public long getReadCalls()
+    {
+        return readCalls.get();
+    }
+
+    public long getWriteCalls()
+    {
+        return writeCalls.get();
+    }
+
+    public long getZeroByteReads()
+    {
+        return zeroReads.get();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    public long getEintrRetries()
+    {
+        return Math.max( 0, port.nativeGetEintrCount() - eintrBase );
+    }
+
+    public long getEventsDispatched()
+    {
+        return events.get();
+    }
+
+    public long getEventsDropped()
+    {
+        return eventsDropped.get();
+    }
+
+    public long getFramingErrors()
+    {
+        SerialLineCounters c = lineCounts();
+        return ( c == null ) ? 0 : c.getFrame();
+    }
+
+    public long getOverrunErrors()
+    {
+        SerialLineCounters c = lineCounts();
+        return ( c == null ) ? 0 : c.getOverrun();
+    }
+
+    public long getParityErrors()
+    {
+        SerialLineCounters c = lineCounts();
+        return ( c == null ) ? 0 : c.getParity();
+    }
+
+    public long getBreaks()
+    {
+        SerialLineCounters c = lineCounts();
+        return ( c == null ) ? 0 : c.getBrk();
+    }
+
+    public long getBufferOverruns()
+    {
+        SerialLineCounters c = lineCounts();
+        return ( c == null ) ? 0 : c.getBufOverrun();
+    }
+
+    public long getReadLatencyMedian()
+    {
+        return readLatency.percentile( 0.5 );
+    }
+
+    public long getReadLatency99()
+    {
+        return readLatency.percentile( 0.99 );
+    }
+
+    public long getReadLatencyMax()
+    {
+        return readLatency.max();
+    }
+
+    public long getWriteLatencyMedian()
+    {
+        return writeLatency.percentile( 0.5 );
+    }
+
+    public long getWriteLatency99()
+    {
+        return writeLatency.percentile( 0.99 );
+    }
+
+    public long getWriteLatencyMax()
+    {
+        return writeLatency.max();
+    }
+
+    public long getEventLatencyMedian()
+    {
+        return eventLatency.percentile( 0.5 );
+    }
+
+    public long getEventLatency99()
+    {
+        return eventLatency.percentile( 0.99 );
+    }
+
+    public long getEventLatencyMax()
+    {
+        return eventLatency.max();
+    }
+
+    public void reset()
+    {
+        bytesRead.set( 0 );
+        bytesWritten.set( 0 );
+        readCalls.set( 0 );
+        writeCalls.set( 0 );
+        zeroReads.set( 0 );
+        timeouts.set( 0 );
+        events.set( 0 );
+        eventsDropped.set( 0 );
+        readLatency.reset();
+        writeLatency.reset();
+        eventLatency.reset();
+        eintrBase = port.nativeGetEintrCount();
+        lineBase = lineCounters();
+    }
+
+    /* the line counters since the last reset(), null without them */
+    private SerialLineCounters lineCounts()
+    {
+        SerialLineCounters base = lineBase;
+        SerialLineCounters now = lineCounters();
+        if( base == null || now == null )
+        {
+            return null;
+        }
+        return now.since( base );
+    }
+
+    private SerialLineCounters lineCounters()
+    {
+        try
+        {
+            return port.getLineCounters();
+        }
+        catch( IOException e )
+        {
+            /* closed */
+            return null;
+        }
+    }
+
+    /**
+     * Counts of values in buckets growing with the value: eight per power
+     * of two above 8, one per value below.
+     */
+    static final class Histogram
+    {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray( SUB * 62 );
+        private final AtomicLong max = new AtomicLong();
+
+        void record( long value )
+        {
+            if( value < 0 )
+            {
+                value = 0;
+            }
+            counts.incrementAndGet( index( value ) );
+            long m = max.get();
+            while( value > m && !max.compareAndSet( m, value ) )
+            {
+                m = max.get();
+            }
+        }
+
+        long max()
+        {
+            return max.get();
+        }
+
+        /* the highest value in the bucket holding the q quantile, 0 if empty */
+        long percentile( double q )
+        {
+            long total = 0;
+            for( int i = 0; i < counts.length(); i++ )
+            {
+                total += counts.get( i );
+            }
+            if( total == 0 )
+            {
+                return 0;
+            }
+            long rank = Math.max( 1, (long) Math.ceil( q * total ) );
+            long seen = 0;
+            for( int i = 0; i < counts.length(); i++ )
+            {
+                seen += counts.get( i );
+                if( seen >= rank )
+                {
+                    return Math.min( highest( i ), max.get() );
+                }
+            }
+            return max.get();
+        }
+
+        void reset()
+        {
+            for( int i = 0; i < counts.length(); i++ )
+            {
+                counts.set( i, 0 );
+            }
+            max.set( 0 );
+        }
+
+        static int index( long value )
+        {
+            if( value < SUB )
+            {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros( value );
+            int sub = (int) ( value >>> ( exp - SUB_BITS ) ) & ( SUB - 1 );
+            return ( exp - SUB_BITS + 1 ) * SUB + sub;
+        }
+
+        static long highest( int index )
+        {
+            if( index < SUB )
+            {
+                return index;
+            }
+            int exp = index / SUB + SUB_BITS - 1;
+            int sub = index % SUB;
+            return ( 1L << exp ) + ( (long) ( sub + 1 ) << ( exp - SUB_BITS ) ) - 1;
+        }
+    }
+}
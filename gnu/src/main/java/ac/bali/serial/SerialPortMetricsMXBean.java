@@ -0,0 +1,89 @@
+package ac.bali.serial;
+
+/**
+ * The attributes of a SerialPortMetrics as seen over JMX, under
+ * ac.bali.serial:type=SerialPort,name="port name".  Latencies are in
+ * nanoseconds.
+ */
+public interface SerialPortMetricsMXBean
+{
+    /**
+     * @return String the port measured
+     */
+    String getPortName();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * @return long native reads, each one or more read(2) calls
+     */
+    long getReadCalls();
+
+    /**
+     * @return long native writes, each one or more write(2) calls
+     */
+    long getWriteCalls();
+
+    /**
+     * @return long reads that returned no bytes
+     */
+    long getZeroByteReads();
+
+    /**
+     * @return long reads that returned fewer bytes than they waited for
+     * because the receive timeout passed
+     */
+    long getTimeouts();
+
+    /**
+     * @return long system calls retried after EINTR
+     */
+    long getEintrRetries();
+
+    /**
+     * @return long events passed to the SerialPortEventListener
+     */
+    long getEventsDispatched();
+
+    /**
+     * @return long events a listener fell too far behind to get; the
+     * latest state of each type still reaches it
+     */
+    long getEventsDropped();
+
+    long getFramingErrors();
+
+    long getOverrunErrors();
+
+    long getParityErrors();
+
+    long getBreaks();
+
+    long getBufferOverruns();
+
+    long getReadLatencyMedian();
+
+    long getReadLatency99();
+
+    long getReadLatencyMax();
+
+    long getWriteLatencyMedian();
+
+    long getWriteLatency99();
+
+    long getWriteLatencyMax();
+
+    long getEventLatencyMedian();
+
+    long getEventLatency99();
+
+    long getEventLatencyMax();
+
+    /**
+     * Start counting again from zero.  The counters of the driver are
+     * left alone, the line errors are counted from their values now.
+     */
+    void reset();
+}
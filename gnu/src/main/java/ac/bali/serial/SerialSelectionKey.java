@@ -0,0 +1,171 @@
+package ac.bali.serial;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * The registration of a SerialChannel with a SerialSelector.  It plays
+ * the part java.nio.channels.SelectionKey plays for a Selector and uses
+ * the same operation bits.
+ *
+ * @see SerialSelector
+ */
+public class SerialSelectionKey
+{
+    /**
+     * The port has data to read
+     */
+    public static final int OP_READ = SelectionKey.OP_READ;
+
+    /**
+     * The port can take more output
+     */
+    public static final int OP_WRITE = SelectionKey.OP_WRITE;
+
+    private final SerialChannel channel;
+    private final SerialSelector selector;
+    final int fd;
+    private volatile int interestOps;
+    volatile int readyOps;
+    private volatile Object attachment;
+    private volatile boolean valid = true;
+
+    SerialSelectionKey( SerialChannel channel, SerialSelector selector, int fd, int ops, Object attachment )
+    {
+        this.channel = channel;
+        this.selector = selector;
+        this.fd = fd;
+        this.interestOps = ops;
+        this.attachment = attachment;
+    }
+
+    /**
+     * @return SerialChannel the channel this key was created for
+     */
+    public SerialChannel channel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return SerialSelector the selector this key was created by
+     */
+    public SerialSelector selector()
+    {
+        return selector;
+    }
+
+    /**
+     * @return int the operations the selector waits for
+     *
+     * @throws CancelledKeyException if the key was cancelled
+     */
+    public int interestOps()
+    {
+        checkValid();
+        return interestOps;
+    }
+
+    /**
+     * Change the operations the selector waits for.  A select in
+     * progress picks up the change on linux, elsewhere on the next call.
+     *
+     * @param ops OP_READ, OP_WRITE or both
+     *
+     * @return SerialSelectionKey this key
+     *
+     * @throws CancelledKeyException if the key was cancelled
+     * @throws IllegalArgumentException if ops has other bits set
+     */
+    public SerialSelectionKey interestOps( int ops )
+    {
+        checkValid();
+        if( ( ops & ~( OP_READ | OP_WRITE ) ) != 0 )
+        {
+            throw new IllegalArgumentException( "Unsupported interest ops " + ops );
+        }
+        selector.update( this, ops );
+        interestOps = ops;
+        return this;
+    }
+
+    /**
+     * @return int the operations found ready by the last select
+     *
+     * @throws CancelledKeyException if the key was cancelled
+     */
+    public int readyOps()
+    {
+        checkValid();
+        return readyOps;
+    }
+
+    /**
+     * @return boolean true if the port had data at the last select
+     */
+    public boolean isReadable()
+    {
+        return ( readyOps() & OP_READ ) != 0;
+    }
+
+    /**
+     * @return boolean true if the port could take output at the last select
+     */
+    public boolean isWritable()
+    {
+        return ( readyOps() & OP_WRITE ) != 0;
+    }
+
+    /**
+     * @param ob the object to attach, may be null
+     *
+     * @return Object the previous attachment
+     */
+    public Object attach( Object ob )
+    {
+        Object old = attachment;
+        attachment = ob;
+        return old;
+    }
+
+    /**
+     * @return Object the current attachment
+     */
+    public Object attachment()
+    {
+        return attachment;
+    }
+
+    /**
+     * @return boolean false once the key is cancelled or its selector or
+     * channel is closed
+     */
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * Remove the port from the selector.  Cancelling twice does nothing.
+     */
+    public void cancel()
+    {
+        if( valid )
+        {
+            selector.cancel( this );
+        }
+    }
+
+    void invalidate()
+    {
+        valid = false;
+    }
+
+    private void checkValid()
+    {
+        if( !valid )
+        {
+            throw new CancelledKeyException();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Waits on many serial ports from one thread.
+ *
+ * java.nio.channels.Selector only takes channels from its own provider, so
+ * ports are registered here instead.  The API follows Selector: register a
+ * SerialChannel, call select(), handle and remove the selectedKeys().
+ * Linux uses epoll, other unix systems poll().  Readiness is level
+ * triggered, so a port with unread data is selected again.  That
+ * includes bytes RXTXPort.readRecord() read past its record.
+ *
+ * <pre>
+ * SerialSelector selector = SerialSelector.open();
+ * port.getChannel().configureBlocking( false ).register( selector, SerialSelectionKey.OP_READ );
+ * while( selector.select() &gt;= 0 )
+ * {
+ *     Iterator&lt;SerialSelectionKey&gt; it = selector.selectedKeys().iterator();
+ *     ...
+ * }
+ * </pre>
+ */
+public class SerialSelector
+{
+    static
+    {
+        SerialManager.getInstance();
+    }
+
+    private volatile long handle;
+
+    /* registered keys by fd, also the lock for handle and the key sets */
+    private final Map<Integer, SerialSelectionKey> keys = new HashMap<Integer, SerialSelectionKey>();
+
+    private final Set<SerialSelectionKey> selectedKeys = new HashSet<SerialSelectionKey>();
+
+    /* keys of ports that may hold bytes in their carry, guarded by keys */
+    private final Set<SerialSelectionKey> carried = new HashSet<SerialSelectionKey>();
+    /* guarded by keys, a select is waiting in native code */
+    private boolean selecting = false;
+
+    /* held for the duration of a select so close() can wait for it */
+    private final Object selectLock = new Object();
+
+    private final int readyFds[] = new int[ 256 ];
+    private final int readyOps[] = new int[ 256 ];
+
+    /* calls wakeup() when a thread in select is interrupted */
+    private final Interruptor interruptor = new Interruptor();
+
+    private SerialSelector()
+        throws IOException
+    {
+        handle = nativeOpen();
+    }
+
+    /**
+     * @return SerialSelector a new selector
+     *
+     * @throws IOException if the native selector could not be created
+     */
+    public static SerialSelector open()
+        throws IOException
+    {
+        return new SerialSelector();
+    }
+
+    /**
+     * Wait until at least one registered port is ready, wakeup() is
+     * called or the thread is interrupted.  As with Selector, an
+     * interrupt leaves the interrupt status set.
+     *
+     * @return int the number of keys added to or updated in the selected set
+     *
+     * @throws IOException
+     */
+    public int select()
+        throws IOException
+    {
+        return doSelect( -1 );
+    }
+
+    /**
+     * @param timeout milliseconds to wait, 0 waits for ever
+     *
+     * @return int the number of keys added to or updated in the selected set
+     *
+     * @throws IOException
+     */
+    public int select( long timeout )
+        throws IOException
+    {
+        if( timeout < 0 )
+        {
+            throw new IllegalArgumentException( "Negative timeout" );
+        }
+        return doSelect( timeout == 0 ? -1 : (int) Math.min( timeout, Integer.MAX_VALUE ) );
+    }
+
+    /**
+     * @return int the number of keys added to or updated in the selected set
+     *
+     * @throws IOException
+     */
+    public int selectNow()
+        throws IOException
+    {
+        return doSelect( 0 );
+    }
+
+    private int doSelect( int timeout )
+        throws IOException
+    {
+        synchronized( selectLock )
+        {
+            long h = handle;
+            if( h == 0 )
+            {
+                throw new ClosedSelectorException();
+            }
+            boolean carrying;
+            synchronized( keys )
+            {
+                carrying = readCarried();
+                selecting = true;
+            }
+            int n;
+            interruptor.enter();
+            try
+            {
+                n = nativeSelect( h, readyFds, readyOps, carrying ? 0 : timeout );
+            }
+            finally
+            {
+                interruptor.exit();
+                synchronized( keys )
+                {
+                    selecting = false;
+                }
+            }
+            int updated = 0;
+            synchronized( keys )
+            {
+                for( int i = 0; i < n; i++ )
+                {
+                    SerialSelectionKey key = keys.get( readyFds[ i ] );
+                    if( key != null && key.isValid() && ready( key, readyOps[ i ] ) )
+                    {
+                        updated++;
+                    }
+                }
+                for( SerialSelectionKey key : carried )
+                {
+                    if( key.channel().getPort().carrying && ready( key, SerialSelectionKey.OP_READ ) )
+                    {
+                        updated++;
+                    }
+                }
+            }
+            return updated;
+        }
+    }
+
+    /* keys guarded: drop the keys whose carry was read, true if a reader is left */
+    private boolean readCarried()
+    {
+        boolean reader = false;
+        for( Iterator<SerialSelectionKey> it = carried.iterator(); it.hasNext(); )
+        {
+            SerialSelectionKey key = it.next();
+            if( !key.isValid() || !key.channel().getPort().carrying )
+            {
+                it.remove();
+            }
+            else if( ( key.interestOps() & SerialSelectionKey.OP_READ ) != 0 )
+            {
+                reader = true;
+            }
+        }
+        return reader;
+    }
+
+    /* keys guarded: add the ops of interest to the selected key, true if it changed */
+    private boolean ready( SerialSelectionKey key, int ops )
+    {
+        ops &= key.interestOps();
+        if( ops == 0 )
+        {
+            return false;
+        }
+        if( selectedKeys.add( key ) )
+        {
+            key.readyOps = ops;
+            return true;
+        }
+        if( ( key.readyOps | ops ) != key.readyOps )
+        {
+            key.readyOps |= ops;
+            return true;
+        }
+        return false;
+    }
+
+    /* the port of key holds bytes a poll does not see, see RXTXPort.carrying */
+    void carryLeft( SerialSelectionKey key )
+    {
+        synchronized( keys )
+        {
+            if( handle == 0 || !key.isValid() )
+            {
+                return;
+            }
+            /* else the next select finds it */
+            if( !carried.add( key ) || !selecting )
+            {
+                return;
+            }
+        }
+        wakeup();
+    }
+
+    /**
+     * The keys found ready.  As with java.nio the caller removes the keys
+     * it has handled.  The set is not thread safe.
+     *
+     * @return Set the selected keys
+     */
+    public Set<SerialSelectionKey> selectedKeys()
+    {
+        if( handle == 0 )
+        {
+            throw new ClosedSelectorException();
+        }
+        return selectedKeys;
+    }
+
+    /**
+     * @return Set a snapshot of the registered keys
+     */
+    public Set<SerialSelectionKey> keys()
+    {
+        synchronized( keys )
+        {
+            if( handle == 0 )
+            {
+                throw new ClosedSelectorException();
+            }
+            return Collections.unmodifiableSet( new HashSet<SerialSelectionKey>( keys.values() ) );
+        }
+    }
+
+    /**
+     * Make a select in progress return at once, or the next one if none is
+     * in progress.
+     *
+     * @return SerialSelector this selector
+     */
+    public SerialSelector wakeup()
+    {
+        synchronized( keys )
+        {
+            if( handle != 0 )
+            {
+                nativeWakeup( handle );
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return boolean true until close() is called
+     */
+    public boolean isOpen()
+    {
+        return handle != 0;
+    }
+
+    /**
+     * Cancel all keys and release the native selector.  A select in
+     * progress is woken up and finishes first.
+     */
+    public void close()
+    {
+        wakeup();
+        synchronized( selectLock )
+        {
+            long h;
+            synchronized( keys )
+            {
+                h = handle;
+                if( h == 0 )
+                {
+                    return;
+                }
+                handle = 0;
+                for( SerialSelectionKey key : keys.values() )
+                {
+                    key.invalidate();
+                    key.channel().removeKey( key );
+                }
+                keys.clear();
+                selectedKeys.clear();
+                carried.clear();
+            }
+            nativeClose( h );
+        }
+    }
+
+    SerialSelectionKey register( SerialChannel channel, int fd, int ops, Object attachment )
+        throws IOException
+    {
+        synchronized( keys )
+        {
+            if( handle == 0 )
+            {
+                throw new ClosedSelectorException();
+            }
+            SerialSelectionKey key = keys.get( fd );
+            if( key != null )
+            {
+                if( key.channel() != channel )
+                {
+                    throw new IllegalStateException( "fd " + fd + " is registered by another channel" );
+                }
+                key.interestOps( ops );
+                key.attach( attachment );
+                return key;
+            }
+            nativeRegister( handle, fd, ops );
+            key = new SerialSelectionKey( channel, this, fd, ops, attachment );
+            keys.put( fd, key );
+            if( channel.getPort().carrying )
+            {
+                carried.add( key );
+            }
+            return key;
+        }
+    }
+
+    void update( SerialSelectionKey key, int ops )
+    {
+        synchronized( keys )
+        {
+            if( handle == 0 )
+            {
+                throw new ClosedSelectorException();
+            }
+            try
+            {
+                nativeRegister( handle, key.fd, ops );
+            }
+            catch( IOException e )
+            {
+                throw new IllegalStateException( e.getMessage() );
+            }
+        }
+    }
+
+    void cancel( SerialSelectionKey key )
+    {
+        synchronized( keys )
+        {
+            key.invalidate();
+            if( keys.get( key.fd ) == key )
+            {
+                keys.remove( key.fd );
+                if( handle != 0 )
+                {
+                    nativeDeregister( handle, key.fd );
+                }
+            }
+            selectedKeys.remove( key );
+            carried.remove( key );
+        }
+        key.channel().removeKey( key );
+    }
+
+    /**
+     * The begin() and end() of AbstractSelector are the only public way to
+     * hear of Thread.interrupt().  The rest of this selector is unused.
+     */
+    private final class Interruptor
+        extends AbstractSelector
+    {
+        Interruptor()
+        {
+            super( SelectorProvider.provider() );
+        }
+
+        void enter()
+        {
+            begin();
+        }
+
+        void exit()
+        {
+            end();
+        }
+
+        public Selector wakeup()
+        {
+            SerialSelector.this.wakeup();
+            return this;
+        }
+
+        protected void implCloseSelector()
+        {
+        }
+
+        protected SelectionKey register( AbstractSelectableChannel ch, int ops, Object att )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public Set<SelectionKey> keys()
+        {
+            return Collections.emptySet();
+        }
+
+        public Set<SelectionKey> selectedKeys()
+        {
+            return Collections.emptySet();
+        }
+
+        public int selectNow()
+        {
+            return 0;
+        }
+
+        public int select( long timeout )
+        {
+            return 0;
+        }
+
+        public int select()
+        {
+            return 0;
+        }
+    }
+
+    private static native long nativeOpen()
+        throws IOException;
+
+    private static native void nativeClose( long handle );
+
+    private static native void nativeRegister( long handle, int fd, int ops )
+        throws IOException;
+
+    private static native void nativeDeregister( long handle, int fd );
+
+    private static native int nativeSelect( long handle, int fds[], int ops[], int timeout )
+        throws IOException;
+
+    private static native void nativeWakeup( long handle );
+}
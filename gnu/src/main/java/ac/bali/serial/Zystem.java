@@ -190,19 +190,6 @@ public class Zystem
         return;
     }
 
-    public void finalize()
-    {
-    /*
-        if ( mode == NET_MODE )
-        {
-            nativeNetFinalize( );
-        }
-        nativeFinalize();
-    */
-        mode = SILENT_MODE;
-        target = null;
-    }
-
     public void filewrite( String s )
     {
         try
@@ -0,0 +1,72 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the stock decoders.  It owns the array a frame is collected in
+ * and the buffer frames are handed out in, both allocated once.
+ */
+public abstract class AbstractFrameDecoder
+    implements FrameDecoder
+{
+    /**
+     * The frame being collected
+     */
+    protected final byte frame[];
+
+    /**
+     * Bytes of frame in use
+     */
+    protected int length = 0;
+
+    private final ByteBuffer view;
+    /* written by the decoding thread only, read by any */
+    private volatile long dropped = 0;
+
+    /**
+     * @param size bytes of the frame array
+     *
+     * @throws IllegalArgumentException if size is not positive
+     */
+    protected AbstractFrameDecoder( int size )
+    {
+        if( size < 1 )
+        {
+            throw new IllegalArgumentException( "Unexpected frame size " + size );
+        }
+        frame = new byte[ size ];
+        view = ByteBuffer.wrap( frame );
+    }
+
+    public void reset()
+    {
+        length = 0;
+    }
+
+    public long getDroppedFrames()
+    {
+        return dropped;
+    }
+
+    /**
+     * Hand the first n bytes of frame to handler and start a new frame.
+     *
+     * @param handler receives the frame
+     * @param n       length of the frame
+     */
+    protected void emit( FrameHandler handler, int n )
+    {
+        length = 0;
+        view.clear();
+        view.limit( n );
+        handler.frame( view );
+    }
+
+    /**
+     * Count a frame that could not be delivered
+     */
+    protected void dropped()
+    {
+        dropped++;
+    }
+}
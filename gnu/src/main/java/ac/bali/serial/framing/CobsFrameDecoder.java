@@ -0,0 +1,111 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames in Consistent Overhead Byte Stuffing, each followed by a zero
+ * byte.  The encoded frame is collected and then decoded in place.  Empty
+ * frames are skipped; a frame that does not decode or is longer than the
+ * maximum is dropped.
+ */
+public class CobsFrameDecoder
+    extends AbstractFrameDecoder
+{
+    private final int maxFrameLength;
+
+    /* the frame overflowed, skip to the next zero */
+    private boolean discarding = false;
+
+    /**
+     * @param maxFrameLength longest decoded frame
+     *
+     * @throws IllegalArgumentException if maxFrameLength is not positive
+     */
+    public CobsFrameDecoder( int maxFrameLength )
+    {
+        super( frameSize( maxFrameLength ) );
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    private static int frameSize( int maxFrameLength )
+    {
+        /* one code byte per 254 data bytes, plus the first */
+        int codes = maxFrameLength / 254 + 1;
+        if( maxFrameLength < 1 || maxFrameLength > Integer.MAX_VALUE - codes )
+        {
+            throw new IllegalArgumentException( "Unexpected frame size " + maxFrameLength );
+        }
+        return maxFrameLength + codes;
+    }
+
+    public void decode( ByteBuffer in, FrameHandler handler )
+    {
+        while( in.hasRemaining() )
+        {
+            byte b = in.get();
+            if( b == 0 )
+            {
+                if( discarding )
+                {
+                    discarding = false;
+                    length = 0;
+                }
+                else if( length > 0 )
+                {
+                    int n = decodeFrame();
+                    if( n < 0 )
+                    {
+                        dropped();
+                        length = 0;
+                    }
+                    else
+                    {
+                        emit( handler, n );
+                    }
+                }
+                continue;
+            }
+            if( discarding )
+            {
+                continue;
+            }
+            if( length == frame.length )
+            {
+                dropped();
+                discarding = true;
+                continue;
+            }
+            frame[ length++ ] = b;
+        }
+    }
+
+    public void reset()
+    {
+        super.reset();
+        discarding = false;
+    }
+
+    /* decode frame in place, the output never overtakes the input */
+    private int decodeFrame()
+    {
+        int r = 0;
+        int w = 0;
+        while( r < length )
+        {
+            int code = frame[ r++ ] & 0xff;
+            int n = code - 1;
+            if( r + n > length )
+            {
+                return -1;
+            }
+            System.arraycopy( frame, r, frame, w, n );
+            r += n;
+            w += n;
+            if( code != 0xff && r < length )
+            {
+                frame[ w++ ] = 0;
+            }
+        }
+        return ( w > maxFrameLength ) ? -1 : w;
+    }
+}
@@ -0,0 +1,96 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames ended by a delimiter of one or more bytes, such as the CRLF of
+ * NMEA sentences and AT command responses.  A frame longer than the
+ * maximum is dropped up to and including its delimiter.
+ */
+public class DelimiterFrameDecoder
+    extends AbstractFrameDecoder
+{
+    private final byte delimiter[];
+    private final byte last;
+    private final boolean strip;
+
+    /* the frame overflowed, skip to the next delimiter */
+    private boolean discarding = false;
+
+    /**
+     * @param delimiter      the bytes ending a frame
+     * @param maxFrameLength longest frame, not counting the delimiter
+     * @param stripDelimiter true to leave the delimiter out of the frames
+     *
+     * @throws IllegalArgumentException if the delimiter is empty or
+     * maxFrameLength is not positive
+     */
+    public DelimiterFrameDecoder( byte delimiter[], int maxFrameLength, boolean stripDelimiter )
+    {
+        super( frameSize( delimiter, maxFrameLength ) );
+        this.delimiter = delimiter.clone();
+        last = delimiter[ delimiter.length - 1 ];
+        strip = stripDelimiter;
+    }
+
+    private static int frameSize( byte delimiter[], int maxFrameLength )
+    {
+        if( delimiter.length == 0 || maxFrameLength < 1 || maxFrameLength > Integer.MAX_VALUE - delimiter.length )
+        {
+            throw new IllegalArgumentException( "Empty delimiter or frame" );
+        }
+        return maxFrameLength + delimiter.length;
+    }
+
+    public void decode( ByteBuffer in, FrameHandler handler )
+    {
+        while( in.hasRemaining() )
+        {
+            byte b = in.get();
+            if( length == frame.length )
+            {
+                /* keep what may be the start of the delimiter */
+                if( !discarding )
+                {
+                    dropped();
+                    discarding = true;
+                }
+                int keep = delimiter.length - 1;
+                System.arraycopy( frame, length - keep, frame, 0, keep );
+                length = keep;
+            }
+            frame[ length++ ] = b;
+            if( b == last && length >= delimiter.length && endsWithDelimiter() )
+            {
+                if( discarding )
+                {
+                    discarding = false;
+                    length = 0;
+                }
+                else
+                {
+                    emit( handler, strip ? length - delimiter.length : length );
+                }
+            }
+        }
+    }
+
+    public void reset()
+    {
+        super.reset();
+        discarding = false;
+    }
+
+    private boolean endsWithDelimiter()
+    {
+        int start = length - delimiter.length;
+        for( int i = delimiter.length - 2; i >= 0; i-- )
+        {
+            if( frame[ start + i ] != delimiter[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of a fixed number of bytes.
+ */
+public class FixedLengthFrameDecoder
+    extends AbstractFrameDecoder
+{
+    /**
+     * @param frameLength bytes per frame
+     */
+    public FixedLengthFrameDecoder( int frameLength )
+    {
+        super( frameLength );
+    }
+
+    public void decode( ByteBuffer in, FrameHandler handler )
+    {
+        while( in.hasRemaining() )
+        {
+            int n = Math.min( frame.length - length, in.remaining() );
+            in.get( frame, length, n );
+            length += n;
+            if( length == frame.length )
+            {
+                emit( handler, length );
+            }
+        }
+    }
+}
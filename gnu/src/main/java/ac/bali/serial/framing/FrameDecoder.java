@@ -0,0 +1,47 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of bytes into frames.
+ *
+ * Input is fed in whatever pieces it arrives in; a decoder keeps a
+ * partial frame until the rest comes.  Each complete frame is handed to a
+ * FrameHandler in a buffer the decoder reuses, so decoding allocates
+ * nothing once the decoder is built.  A decoder serves one stream from
+ * one thread at a time.
+ *
+ * <pre>
+ * FrameReader reader = new FrameReader( port.getChannel(),
+ *     new DelimiterFrameDecoder( new byte[]{ '\r', '\n' }, 256, true ), handler );
+ * while( running )
+ * {
+ *     reader.read();
+ * }
+ * </pre>
+ *
+ * @see FrameReader
+ * @see FrameQueue
+ */
+public interface FrameDecoder
+{
+    /**
+     * Take all remaining bytes of in and pass the frames they complete to
+     * handler, in order.
+     *
+     * @param in      bytes from its position up to its limit, which it is
+     *                advanced to
+     * @param handler receives the frames
+     */
+    void decode( ByteBuffer in, FrameHandler handler );
+
+    /**
+     * Drop a partial frame, for instance after the port was reopened.
+     */
+    void reset();
+
+    /**
+     * @return long frames dropped as too long or badly encoded
+     */
+    long getDroppedFrames();
+}
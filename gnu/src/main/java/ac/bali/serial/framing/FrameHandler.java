@@ -0,0 +1,18 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames of a FrameDecoder.
+ */
+public interface FrameHandler
+{
+    /**
+     * Called for every complete frame.  The buffer belongs to the decoder
+     * and is overwritten by the next frame, so it must be used or copied
+     * before returning.
+     *
+     * @param frame the frame from position 0 up to its limit
+     */
+    void frame( ByteBuffer frame );
+}
@@ -0,0 +1,111 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands frames from the thread decoding them to other threads.
+ *
+ * The queue copies each frame into one of a fixed set of buffers made up
+ * front.  A consumer takes a buffer with take() or poll() and gives it
+ * back with release() once done.  If every buffer is taken or queued the
+ * frame is dropped rather than stalling the reader of the port.
+ */
+public class FrameQueue
+    implements FrameHandler
+{
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> frames;
+    private volatile long dropped = 0;
+
+    /**
+     * @param capacity       number of buffers
+     * @param maxFrameLength bytes per buffer, the longest frame the
+     *                       decoder delivers
+     */
+    public FrameQueue( int capacity, int maxFrameLength )
+    {
+        free = new ArrayBlockingQueue<ByteBuffer>( capacity );
+        frames = new ArrayBlockingQueue<ByteBuffer>( capacity );
+        for( int i = 0; i < capacity; i++ )
+        {
+            free.add( ByteBuffer.allocate( maxFrameLength ) );
+        }
+    }
+
+    /**
+     * Copy a frame into a free buffer and queue it.
+     *
+     * @param frame the frame from position 0 up to its limit
+     */
+    public void frame( ByteBuffer frame )
+    {
+        ByteBuffer buffer = free.poll();
+        if( buffer == null || buffer.capacity() < frame.remaining() )
+        {
+            if( buffer != null )
+            {
+                free.add( buffer );
+            }
+            dropped++;
+            return;
+        }
+        buffer.clear();
+        buffer.put( frame );
+        buffer.flip();
+        frames.add( buffer );
+    }
+
+    /**
+     * @return ByteBuffer the next frame, waiting for one if need be
+     *
+     * @throws InterruptedException
+     */
+    public ByteBuffer take()
+        throws InterruptedException
+    {
+        return frames.take();
+    }
+
+    /**
+     * @param timeout longest wait
+     * @param unit    unit of timeout
+     *
+     * @return ByteBuffer the next frame, or null if none came in time
+     *
+     * @throws InterruptedException
+     */
+    public ByteBuffer poll( long timeout, TimeUnit unit )
+        throws InterruptedException
+    {
+        return frames.poll( timeout, unit );
+    }
+
+    /**
+     * Give a buffer from take() or poll() back for the next frame.
+     *
+     * @param buffer the buffer, not used afterwards
+     */
+    public void release( ByteBuffer buffer )
+    {
+        free.add( buffer );
+    }
+
+    /**
+     * @return int frames waiting to be taken
+     */
+    public int size()
+    {
+        return frames.size();
+    }
+
+    /**
+     * @return long frames dropped because no buffer was free
+     */
+    public long getDroppedFrames()
+    {
+        return dropped;
+    }
+}
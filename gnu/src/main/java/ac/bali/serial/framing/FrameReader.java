@@ -0,0 +1,70 @@
+package ac.bali.serial.framing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a channel, usually RXTXPort.getChannel(), into a reused direct
+ * buffer and feeds it to a FrameDecoder.
+ */
+public class FrameReader
+{
+    private final ReadableByteChannel channel;
+    private final FrameDecoder decoder;
+    private final FrameHandler handler;
+    private final ByteBuffer buffer;
+
+    /**
+     * @param channel the channel to read
+     * @param decoder splits the input into frames
+     * @param handler receives the frames
+     */
+    public FrameReader( ReadableByteChannel channel, FrameDecoder decoder, FrameHandler handler )
+    {
+        this( channel, decoder, handler, 4096 );
+    }
+
+    /**
+     * @param channel    the channel to read
+     * @param decoder    splits the input into frames
+     * @param handler    receives the frames
+     * @param bufferSize most bytes taken by one read
+     */
+    public FrameReader( ReadableByteChannel channel, FrameDecoder decoder, FrameHandler handler, int bufferSize )
+    {
+        this.channel = channel;
+        this.decoder = decoder;
+        this.handler = handler;
+        buffer = ByteBuffer.allocateDirect( bufferSize );
+    }
+
+    /**
+     * Read once and pass the frames completed to the handler.  A blocking
+     * channel waits as the port's receive timeout and threshold say.
+     *
+     * @return int bytes read, 0 if none came, -1 at the end of the stream
+     *
+     * @throws IOException
+     */
+    public int read()
+        throws IOException
+    {
+        buffer.clear();
+        int n = channel.read( buffer );
+        if( n > 0 )
+        {
+            buffer.flip();
+            decoder.decode( buffer, handler );
+        }
+        return n;
+    }
+
+    /**
+     * @return FrameDecoder the decoder in use
+     */
+    public FrameDecoder getDecoder()
+    {
+        return decoder;
+    }
+}
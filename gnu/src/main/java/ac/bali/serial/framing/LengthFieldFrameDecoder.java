@@ -0,0 +1,119 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frames with a header holding their length.  The header is
+ * lengthOffset bytes followed by an unsigned length field of lengthSize
+ * bytes.  The frame is the header plus the field value plus
+ * lengthAdjustment bytes, and is delivered header included.
+ *
+ * A frame longer than the maximum is skipped.  A length giving less
+ * than the header is taken as noise: the header is dropped and decoding
+ * starts over with the next byte.
+ */
+public class LengthFieldFrameDecoder
+    extends AbstractFrameDecoder
+{
+    private final int lengthOffset;
+    private final int lengthSize;
+    private final int lengthAdjustment;
+    private final boolean bigEndian;
+    private final int headerLength;
+
+    /* length of the current frame once its header is in, else -1 */
+    private int frameLength = -1;
+    /* bytes of a dropped frame still to skip */
+    private long skip = 0;
+
+    /**
+     * @param lengthOffset     bytes before the length field
+     * @param lengthSize       bytes of the length field, 1 to 4
+     * @param lengthAdjustment added to the field value, for instance to
+     *                         count a checksum after the payload
+     * @param order            byte order of the length field
+     * @param maxFrameLength   longest frame, header included
+     *
+     * @throws IllegalArgumentException if the sizes do not fit together
+     */
+    public LengthFieldFrameDecoder( int lengthOffset, int lengthSize, int lengthAdjustment, ByteOrder order,
+                                    int maxFrameLength )
+    {
+        super( maxFrameLength );
+        if( lengthOffset < 0 || lengthSize < 1 || lengthSize > 4 || maxFrameLength - lengthSize < lengthOffset )
+        {
+            throw new IllegalArgumentException( "Unexpected length field " + lengthOffset + "/" + lengthSize );
+        }
+        this.lengthOffset = lengthOffset;
+        this.lengthSize = lengthSize;
+        this.lengthAdjustment = lengthAdjustment;
+        bigEndian = ( order == ByteOrder.BIG_ENDIAN );
+        headerLength = lengthOffset + lengthSize;
+    }
+
+    public void decode( ByteBuffer in, FrameHandler handler )
+    {
+        while( in.hasRemaining() )
+        {
+            if( skip > 0 )
+            {
+                int n = (int) Math.min( skip, in.remaining() );
+                in.position( in.position() + n );
+                skip -= n;
+                continue;
+            }
+            if( frameLength < 0 )
+            {
+                int n = Math.min( headerLength - length, in.remaining() );
+                in.get( frame, length, n );
+                length += n;
+                if( length < headerLength )
+                {
+                    return;
+                }
+                long total = headerLength + lengthField() + lengthAdjustment;
+                if( total < headerLength )
+                {
+                    dropped();
+                    System.arraycopy( frame, 1, frame, 0, --length );
+                    continue;
+                }
+                if( total > frame.length )
+                {
+                    dropped();
+                    skip = total - headerLength;
+                    length = 0;
+                    continue;
+                }
+                frameLength = (int) total;
+            }
+            int n = Math.min( frameLength - length, in.remaining() );
+            in.get( frame, length, n );
+            length += n;
+            if( length == frameLength )
+            {
+                frameLength = -1;
+                emit( handler, length );
+            }
+        }
+    }
+
+    public void reset()
+    {
+        super.reset();
+        frameLength = -1;
+        skip = 0;
+    }
+
+    private long lengthField()
+    {
+        long value = 0;
+        for( int i = 0; i < lengthSize; i++ )
+        {
+            int b = frame[ lengthOffset + ( bigEndian ? i : lengthSize - 1 - i ) ] & 0xff;
+            value = ( value << 8 ) | b;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,107 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SLIP frames, RFC 1055.  Frames end with END, and END and ESC inside a
+ * frame are sent as ESC ESC_END and ESC ESC_ESC.  Empty frames, such as
+ * the END many senders put before a frame, are skipped.  A frame with a
+ * bad escape or longer than the maximum is dropped.
+ */
+public class SlipFrameDecoder
+    extends AbstractFrameDecoder
+{
+    /**
+     * Ends a frame
+     */
+    public static final byte END = (byte) 0xC0;
+
+    /**
+     * Starts an escape
+     */
+    public static final byte ESC = (byte) 0xDB;
+
+    /**
+     * END inside a frame, after ESC
+     */
+    public static final byte ESC_END = (byte) 0xDC;
+
+    /**
+     * ESC inside a frame, after ESC
+     */
+    public static final byte ESC_ESC = (byte) 0xDD;
+
+    private boolean escaped = false;
+    /* the frame is bad, skip to the next END */
+    private boolean discarding = false;
+
+    /**
+     * @param maxFrameLength longest decoded frame
+     */
+    public SlipFrameDecoder( int maxFrameLength )
+    {
+        super( maxFrameLength );
+    }
+
+    public void decode( ByteBuffer in, FrameHandler handler )
+    {
+        while( in.hasRemaining() )
+        {
+            byte b = in.get();
+            if( b == END )
+            {
+                if( escaped && !discarding )
+                {
+                    dropped();
+                }
+                else if( length > 0 && !discarding )
+                {
+                    emit( handler, length );
+                }
+                reset();
+                continue;
+            }
+            if( discarding )
+            {
+                continue;
+            }
+            if( escaped )
+            {
+                escaped = false;
+                if( b == ESC_END )
+                {
+                    b = END;
+                }
+                else if( b == ESC_ESC )
+                {
+                    b = ESC;
+                }
+                else
+                {
+                    dropped();
+                    discarding = true;
+                    continue;
+                }
+            }
+            else if( b == ESC )
+            {
+                escaped = true;
+                continue;
+            }
+            if( length == frame.length )
+            {
+                dropped();
+                discarding = true;
+                continue;
+            }
+            frame[ length++ ] = b;
+        }
+    }
+
+    public void reset()
+    {
+        super.reset();
+        escaped = false;
+        discarding = false;
+    }
+}
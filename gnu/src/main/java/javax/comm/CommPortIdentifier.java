@@ -61,9 +61,14 @@ import ac.bali.serial.RXTXCommDriver;
 import ac.bali.serial.RXTXPort;
 import ac.bali.serial.SerialManager;
 import java.io.FileDescriptor;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Set;
 import java.util.Vector;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 * @author Trent Jarvi
@@ -83,8 +88,27 @@ public class CommPortIdentifier
 	private String Owner;    
 	private RXTXPort commport;
 	private CommDriver RXTXDriver;
- 	static CommPortIdentifier   CommPortIndex;
-	CommPortIdentifier next;
+	/*
+	   The registered ports by name, and in the order they were added
+	   for getPortIdentifiers().  Both are read without a lock and
+	   changed holding Sync.
+	*/
+	static final ConcurrentHashMap<String, CommPortIdentifier> PortIndex =
+		new ConcurrentHashMap<String, CommPortIdentifier>();
+	static final CopyOnWriteArrayList<CommPortIdentifier> PortList =
+		new CopyOnWriteArrayList<CommPortIdentifier>();
+	/* one rescan at a time, lookups do not wait for it */
+	private static final ReentrantLock RefreshLock = new ReentrantLock();
+	/* names added by the rescan in progress, null between rescans */
+	private static volatile Set<String> Rescanned;
+	/* System.nanoTime() of the last rescan */
+	private static volatile long LastRefresh;
+	/*
+	   getPortIdentifiers() rescans at most once per this many
+	   milliseconds, 0 to rescan on every call
+	*/
+	private static final long RefreshInterval = TimeUnit.MILLISECONDS.toNanos(
+		Long.getLong("ac.bali.serial.PortRefreshMillis", 1000L).longValue());
 	private int PortType;
 	private final static boolean debug = false;
 	static Object Sync;
@@ -110,6 +134,7 @@ public class CommPortIdentifier
 		{
 			CommDriver RXTXDriver = (CommDriver) Class.forName("ac.bali.serial.RXTXCommDriver").newInstance();
 			RXTXDriver.initialize();
+			LastRefresh = System.nanoTime();
 		} 
 		catch (Throwable e) 
 		{
@@ -127,7 +152,6 @@ public class CommPortIdentifier
 		PortName        = pn;
 		commport        = cp;
 		PortType        = pt;
-		next            = null;
 		RXTXDriver      = driver;
 
 	}
@@ -136,7 +160,7 @@ public class CommPortIdentifier
 	addPortName()
 	accept:         Name of the port s, Port type, 
                         reverence to RXTXCommDriver.
-	perform:        place a new CommPortIdentifier in the linked list
+	perform:        register a port, unless it is known already
 	return: 	none.
 	exceptions:     none.
 	comments:
@@ -147,34 +171,111 @@ public class CommPortIdentifier
 		if(debug) System.out.println("CommPortIdentifier:addPortName("+s+")");
 		AddIdentifierToList(new CommPortIdentifier(s, null, type, c));
 	}
+/*------------------------------------------------------------------------------
+	removePortName()
+	accept:         Name of the port s
+	perform:        forget a port that went away, unless it is open
+	return: 	none.
+	exceptions:     none.
+	comments:       used by ac.bali.serial.PortWatcher
+------------------------------------------------------------------------------*/
+	public static void removePortName(String s) 
+	{ 
+		if(debug) System.out.println("CommPortIdentifier:removePortName("+s+")");
+		synchronized (Sync) 
+		{
+			CommPortIdentifier cpi = PortIndex.get(s);
+			if (cpi != null && cpi.Available)
+			{
+				PortIndex.remove(s, cpi);
+				PortList.remove(cpi);
+			}
+		}
+	}
 /*------------------------------------------------------------------------------
 	AddIdentifierToList()
 	accept:        The cpi to add to the list. 
-	perform:        
+	perform:       add cpi to the index, or take the driver of cpi for a
+	               port of that name and type already there
 	return: 	
 	exceptions:    
-	comments:
+	comments:      A known port keeps its CommPortIdentifier, so
+	               clients holding it still see ownership events.
 ------------------------------------------------------------------------------*/
 	private static void AddIdentifierToList( CommPortIdentifier cpi)
 	{
 		if(debug) System.out.println("CommPortIdentifier:AddIdentifierToList()");
 		synchronized (Sync) 
 		{
-			if (CommPortIndex == null) 
+			Set<String> seen = Rescanned;
+			if (seen != null)
+				seen.add(cpi.PortName);
+			CommPortIdentifier old = PortIndex.get(cpi.PortName);
+			if (old != null && old.PortType == cpi.PortType)
 			{
-				CommPortIndex = cpi;
-				if(debug) System.out.println("CommPortIdentifier:AddIdentifierToList() null");
+				old.RXTXDriver = cpi.RXTXDriver;
+				return;
 			}
-			else
-			{ 
-				CommPortIdentifier index  = CommPortIndex; 
-				while (index.next != null)
+			if (old != null)
+				PortList.remove(old);
+			PortIndex.put(cpi.PortName, cpi);
+			PortList.add(cpi);
+		}
+	}
+/*------------------------------------------------------------------------------
+	refreshPorts()
+	accept:        force: rescan even if the last rescan is recent
+	perform:       let the driver register the ports again and drop the
+	               ports it no longer finds, unless they are open
+	return:        none
+	exceptions:    none
+	comments:      Without force, a caller finding a rescan in progress
+	               returns at once and uses the ports known so far.
+------------------------------------------------------------------------------*/
+	private static void refreshPorts(boolean force)
+	{
+		if (!force && System.nanoTime() - LastRefresh < RefreshInterval)
+			return;
+		if (!RefreshLock.tryLock())
+		{
+			if (!force)
+				return;
+			/* the rescan running now will do */
+			RefreshLock.lock();
+			RefreshLock.unlock();
+			return;
+		}
+		try
+		{
+			Rescanned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			//Initialize RXTX: This leads to detecting all ports
+			//and registering them through our method
+			//{@link #addPortName(java.lang.String, int, ac.bali.serial.CommDriver)}
+			RXTXCommDriver RXTXDriver = new RXTXCommDriver();
+			RXTXDriver.initialize();
+			synchronized (Sync)
+			{
+				for (CommPortIdentifier cpi : PortList)
 				{
-					index = index.next;
-					if(debug) System.out.println("CommPortIdentifier:AddIdentifierToList() index.next");
+					/* an open port fails the probe, it is still there */
+					if (!Rescanned.contains(cpi.PortName) && cpi.Available)
+					{
+						PortIndex.remove(cpi.PortName, cpi);
+						PortList.remove(cpi);
+					}
 				}
-				index.next = cpi;
-			} 
+			}
+			LastRefresh = System.nanoTime();
+		}
+		catch (Throwable e)
+		{
+			System.err.println(e + " thrown while loading " + "ac.bali.serial.RXTXCommDriver");
+			System.err.flush();
+		}
+		finally
+		{
+			Rescanned = null;
+			RefreshLock.unlock();
 		}
 	}
 /*------------------------------------------------------------------------------
@@ -236,31 +337,20 @@ public class CommPortIdentifier
 	perform:
 	return:
 	exceptions:
-	comments:   
+	comments:      a known port is found without a lock or a rescan
 ------------------------------------------------------------------------------*/
 	static public CommPortIdentifier getPortIdentifier(String s) throws NoSuchPortException 
 	{ 
 		if(debug) System.out.println("CommPortIdentifier:getPortIdentifier(" + s +")");
-		CommPortIdentifier index;
-
-		synchronized (Sync) 
-		{
-		 	index = CommPortIndex;
-			while (index != null && !index.PortName.equals(s)) { 
-				index = index.next;
-			}
-			if (index == null) {
-				/* This may slow things down but if you pass the string for the port after
-				   a device is plugged in, you can find it now.
+		CommPortIdentifier index = PortIndex.get(s);
+		if (index == null) {
+			/* This may slow things down but if you pass the string for the port after
+			   a device is plugged in, you can find it now.
 
-				   http://bugzilla.qbang.org/show_bug.cgi?id=48
-				*/
-				getPortIdentifiers();
-			 	index = CommPortIndex;
-				while (index != null && !index.PortName.equals(s)) { 
-					index = index.next;
-				}
-			}
+			   http://bugzilla.qbang.org/show_bug.cgi?id=48
+			*/
+			refreshPorts(true);
+			index = PortIndex.get(s);
 		}
 		if (index != null) return index;
 		else
@@ -282,15 +372,11 @@ public class CommPortIdentifier
 		throws NoSuchPortException 	
 	{ 
 		if(debug) System.out.println("CommPortIdentifier:getPortIdentifier(CommPort)");
-		CommPortIdentifier c;
-		synchronized( Sync )
+		for (CommPortIdentifier c : PortList)
 		{
-			c = CommPortIndex;
-			while ( c != null && c.commport != p )
-				c = c.next;
+			if ( c.commport == p )
+				return (c);
 		}
-		if ( c != null )
-			return (c);
 
 		if ( debug )
 			System.out.println("not found!" + p.getName());
@@ -299,66 +385,20 @@ public class CommPortIdentifier
 /*------------------------------------------------------------------------------
 	getPortIdentifiers()
 	accept:
-	perform:
-	return:
+	perform:       rescan if the last rescan is older than
+	               ac.bali.serial.PortRefreshMillis
+	return:        the ports known, as they were when called
 	exceptions:
 	comments:
 ------------------------------------------------------------------------------*/
-	@SuppressWarnings("unchecked")
+	@SuppressWarnings("rawtypes")
 	static public Enumeration getPortIdentifiers() 
 	{ 
 		if(debug) System.out.println("static CommPortIdentifier:getPortIdentifiers()");
-		//Do not allow anybody get any ports while we are re-initializing
-		//because the CommPortIndex points to invalid instances during that time
-		synchronized(Sync) {
-			//Remember old ports in order to restore them for ownership events later
-			HashMap oldPorts = new HashMap();
-			CommPortIdentifier p = CommPortIndex;
-			while(p!=null) {
-				oldPorts.put(p.PortName, p);
-				p = p.next;
-			}
-			CommPortIndex = null;
-			try 
-			{
-				//Initialize RXTX: This leads to detecting all ports
-				//and writing them into our CommPortIndex through our method
-				//{@link #addPortName(java.lang.String, int, ac.bali.serial.CommDriver)}
-				//This works while lock on Sync is held
-				RXTXCommDriver RXTXDriver = new RXTXCommDriver();
-				RXTXDriver.initialize();
-				//Restore old CommPortIdentifier objects where possible, 
-				//in order to support proper ownership event handling.
-				//Clients might still have references to old identifiers!
-				CommPortIdentifier curPort = CommPortIndex;
-				CommPortIdentifier prevPort = null;
-				while(curPort!=null) {
-					CommPortIdentifier matchingOldPort = (CommPortIdentifier)oldPorts.get(curPort.PortName);
-					if(matchingOldPort!=null && matchingOldPort.PortType == curPort.PortType) {
-						//replace new port by old one
-						matchingOldPort.RXTXDriver = curPort.RXTXDriver;
-						matchingOldPort.next = curPort.next;
-						if(prevPort==null) {
-							CommPortIndex = matchingOldPort;
-						} else {
-							prevPort.next = matchingOldPort;
-						}
-						prevPort = matchingOldPort;
-					} else {
-						prevPort = curPort;
-					}
-					curPort = curPort.next;
-				}
-			} 
-			catch (Throwable e) 
-			{
-				System.err.println(e + " thrown while loading " + "ac.bali.serial.RXTXCommDriver");
-				System.err.flush();
-			}
-		}
-		return new CommPortEnumerator();
+		refreshPorts(false);
+		return Collections.enumeration(PortList);
 	}
-	
+
 /*------------------------------------------------------------------------------
 	getPortType()
 	accept:
@@ -536,47 +576,5 @@ public class CommPortIdentifier
 				c = (CommPortOwnershipListener) e.nextElement();
 		}
 	}
-
-    /**
-    * @author Trent Jarvi
-    * @version %I%, %G%
-    * @since JDK1.0
-    */
-
-
-    @SuppressWarnings("unchecked")
-    private static class CommPortEnumerator
-        implements Enumeration
-    {
-        private CommPortIdentifier index;
-
-        static
-        {
-            if (debug)
-                System.out.println("CommPortEnumerator:{}");
-        }
-
-        public Object nextElement()
-        {
-            if(debug) System.out.println("CommPortEnumerator:nextElement()");
-            synchronized ( Sync )
-            {
-                if(index != null) index = index.next;
-                else index= CommPortIndex;
-                return(index);
-            }
-        }
-
-        public boolean hasMoreElements()
-        {
-            if(debug) System.out.println("CommPortEnumerator:hasMoreElements() " + CommPortIndex == null ? false : true );
-            synchronized ( Sync )
-            {
-                if(index != null) return index.next == null ? false : true;
-                else return CommPortIndex == null ?
-                    false : true;
-            }
-        }
-    }
 }
 
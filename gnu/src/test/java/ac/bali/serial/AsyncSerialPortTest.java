@@ -0,0 +1,199 @@
+package ac.bali.serial;
+
+import ac.bali.serial.framing.DelimiterFrameDecoder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.ReadPendingException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncSerialPortTest
+{
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private AsyncSerialPort async;
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        async = new AsyncSerialPort( port );
+    }
+
+    @After
+    public void close()
+    {
+        async.close();
+    }
+
+    @Test
+    public void writesARequestAndReadsTheResponseFrame()
+        throws Exception
+    {
+        final DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( new byte[]{ '\n' }, 256, true );
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final CountDownLatch done = new CountDownLatch( 1 );
+        final CompletionHandler<ByteBuffer, String> onFrame = new CompletionHandler<ByteBuffer, String>()
+        {
+            public void completed( ByteBuffer frame, String request )
+            {
+                byte b[] = new byte[ frame.remaining() ];
+                frame.get( b );
+                result.set( new String( b, ASCII ) );
+                done.countDown();
+            }
+
+            public void failed( Throwable failure, String request )
+            {
+                result.set( failure );
+                done.countDown();
+            }
+        };
+        async.write( ByteBuffer.wrap( "REQ 1\n".getBytes( ASCII ) ), 1, TimeUnit.SECONDS, "REQ 1",
+                     new CompletionHandler<Integer, String>()
+                     {
+                         public void completed( Integer written, String request )
+                         {
+                             async.readFrame( decoder, 1, TimeUnit.SECONDS, request, onFrame );
+                         }
+
+                         public void failed( Throwable failure, String request )
+                         {
+                             onFrame.failed( failure, request );
+                         }
+                     } );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( "REQ 1", result.get() );
+    }
+
+    @Test
+    public void movesALargeBufferBothWays()
+        throws Exception
+    {
+        byte big[] = new byte[ 100000 ];
+        for( int i = 0; i < big.length; i++ )
+        {
+            big[ i ] = (byte) ( i * 7 );
+        }
+        Future<Integer> written = async.write( ByteBuffer.wrap( big ) );
+        ByteBuffer got = ByteBuffer.allocate( big.length );
+        while( got.hasRemaining() )
+        {
+            assertTrue( async.read( got ).get( 5, TimeUnit.SECONDS ) > 0 );
+        }
+        assertEquals( big.length, (int) written.get( 5, TimeUnit.SECONDS ) );
+        assertArrayEquals( big, got.array() );
+    }
+
+    @Test
+    public void timesOutAReadWithNoInput()
+        throws Exception
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch( 1 );
+        long start = System.nanoTime();
+        async.read( ByteBuffer.allocate( 10 ), 200, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Object>()
+        {
+            public void completed( Integer n, Object attachment )
+            {
+                done.countDown();
+            }
+
+            public void failed( Throwable t, Object attachment )
+            {
+                failure.set( t );
+                done.countDown();
+            }
+        } );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( failure.get() instanceof InterruptedByTimeoutException );
+        assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 150 ) );
+    }
+
+    @Test
+    public void allowsOneReadAtATime()
+        throws Exception
+    {
+        Future<Integer> pending = async.read( ByteBuffer.allocate( 10 ) );
+        try
+        {
+            async.read( ByteBuffer.allocate( 1 ) );
+            fail( "started a second read" );
+        }
+        catch( ReadPendingException e )
+        {
+            /* expected */
+        }
+        async.write( ByteBuffer.wrap( "x".getBytes( ASCII ) ) );
+        assertEquals( 1, (int) pending.get( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void closeFailsAPendingRead()
+        throws Exception
+    {
+        Future<Integer> pending = async.read( ByteBuffer.allocate( 10 ) );
+        Thread.sleep( 50 );
+        async.close();
+        assertFalse( async.isOpen() );
+        try
+        {
+            pending.get( 5, TimeUnit.SECONDS );
+            fail( "read completed after close" );
+        }
+        catch( ExecutionException e )
+        {
+            assertTrue( e.getCause() instanceof AsynchronousCloseException );
+        }
+    }
+
+    @Test
+    public void onlyAnAsyncWriteMakesThePortNonBlocking()
+        throws Exception
+    {
+        File info = new File( "/proc/self/fdinfo/" + port.getFileDescriptor() );
+        Assume.assumeTrue( info.exists() );
+        assertFalse( nonBlocking( info ) );
+        async.write( ByteBuffer.wrap( "x".getBytes( ASCII ) ) ).get( 5, TimeUnit.SECONDS );
+        assertTrue( nonBlocking( info ) );
+    }
+
+    /* O_NONBLOCK in the octal flags line of Linux fdinfo */
+    private static boolean nonBlocking( File info )
+        throws IOException
+    {
+        for( String line : Files.readAllLines( info.toPath(), ASCII ) )
+        {
+            if( line.startsWith( "flags:" ) )
+            {
+                return ( Integer.parseInt( line.substring( 6 ).trim(), 8 ) & 04000 ) != 0;
+            }
+        }
+        throw new IOException( "no flags in " + info );
+    }
+}
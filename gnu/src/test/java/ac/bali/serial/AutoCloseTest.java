@@ -0,0 +1,64 @@
+package ac.bali.serial;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AutoCloseTest
+{
+    private static final String PORTS_PROPERTY = "ac.bali.serial.SerialPorts";
+
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    @After
+    public void clearProperty()
+    {
+        System.clearProperty( PORTS_PROPERTY );
+    }
+
+    @Test
+    public void tryWithResourcesClosesAnRXTXPort()
+        throws Exception
+    {
+        RXTXPort closed;
+        try( RXTXPort port = new RXTXPort( pty.getName() ) )
+        {
+            port.getOutputStream().write( 'x' );
+            closed = port;
+        }
+        assertEquals( 0, closed.getFileDescriptor() );
+        new RXTXPort( pty.getName() ).close();
+    }
+
+    @Test
+    public void tryWithResourcesDisconnectsAnNRSerialPort()
+        throws Exception
+    {
+        /* a pty is not found by the scan, name it */
+        System.setProperty( PORTS_PROPERTY, pty.getName() );
+        NRSerialPort closed;
+        try( NRSerialPort port = new NRSerialPort( pty.getName(), 115200 ) )
+        {
+            assertTrue( port.connect() );
+            port.getOutputStream().write( 'x' );
+            closed = port;
+        }
+        assertFalse( closed.isConnected() );
+        new RXTXPort( pty.getName() ).close();
+    }
+
+    @Test
+    public void closingTwiceIsHarmless()
+        throws Exception
+    {
+        RXTXPort port = new RXTXPort( pty.getName() );
+        port.close();
+        port.close();
+        new NRSerialPort( pty.getName(), 115200 ).close();
+    }
+}
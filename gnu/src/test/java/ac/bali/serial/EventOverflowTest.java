@@ -0,0 +1,116 @@
+package ac.bali.serial;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventOverflowTest
+{
+    private static final int EVENTS = 5000;
+
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private SerialPortMetrics metrics;
+    private final CountDownLatch go = new CountDownLatch( 1 );
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicBoolean last = new AtomicBoolean();
+    private final SerialPortEventListener listener = new SerialPortEventListener()
+    {
+        public void serialEvent( SerialPortEvent event )
+        {
+            try
+            {
+                go.await();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            if( event.getEventType() == SerialPortEvent.CTS )
+            {
+                last.set( event.getNewValue() );
+                seen.incrementAndGet();
+            }
+        }
+    };
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        metrics = port.enableMetrics();
+    }
+
+    @After
+    public void close()
+    {
+        go.countDown();
+        port.close();
+    }
+
+    @Test
+    public void aStuckListenerLosesNoLatestState()
+        throws Exception
+    {
+        port.addEventListener( listener );
+        port.notifyOnCTS( true );
+        storm();
+    }
+
+    @Test
+    public void aStuckExecutorLosesNoLatestState()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            port.addEventListener( listener, 1 << SerialPortEvent.CTS, executor );
+            port.notifyOnCTS( true );
+            storm();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /* more CTS toggles than the ring holds, ending high */
+    private void storm()
+        throws Exception
+    {
+        int events[] = new int[ 100 ];
+        for( int sent = 0; sent < EVENTS; sent += events.length )
+        {
+            for( int i = 0; i < events.length; i++ )
+            {
+                events[ i ] = SerialPortEvent.CTS | ( ( ( sent + i ) & 1 ) != 0 ? RXTXPort.EVENT_STATE_TRUE : 0 );
+            }
+            port.sendEvents( events, events.length );
+        }
+        go.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+        while( seen.get() + metrics.getEventsDropped() < EVENTS && System.nanoTime() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        Thread.sleep( 100 );
+        assertEquals( EVENTS, seen.get() + metrics.getEventsDropped() );
+        assertTrue( metrics.getEventsDropped() > 0 );
+        assertTrue( last.get() );
+    }
+}
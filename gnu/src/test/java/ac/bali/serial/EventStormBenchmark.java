@@ -0,0 +1,82 @@
+package ac.bali.serial;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events per second from the native event loop to a listener: each
+ * operation hands sendEvents() a wakeup of 64 CTS toggles, as a noisy
+ * modem line gives, and stays within the dispatcher's ring so that no
+ * event is dropped.  Run with -prof gc to see the allocation per event.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EventStormBenchmark
+{
+    private static final int BATCH = 64;
+    /* events in flight, well within the ring of the dispatcher */
+    private static final int WINDOW = 768;
+
+    private final AtomicLong seen = new AtomicLong();
+    private final int events[] = new int[ BATCH ];
+    private long sent;
+    private PtyPeer peer;
+    private RXTXPort port;
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        port = new RXTXPort( peer.getName() );
+        port.addEventListener( new SerialPortEventListener()
+        {
+            public void serialEvent( SerialPortEvent event )
+            {
+                seen.incrementAndGet();
+            }
+        } );
+        port.notifyOnCTS( true );
+        for( int i = 0; i < BATCH; i++ )
+        {
+            events[ i ] = SerialPortEvent.CTS | ( ( i & 1 ) != 0 ? RXTXPort.EVENT_STATE_TRUE : 0 );
+        }
+    }
+
+    @TearDown
+    public void close()
+    {
+        port.close();
+        peer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public void wakeup()
+    {
+        port.sendEvents( events, BATCH );
+        sent += BATCH;
+        while( sent - seen.get() > WINDOW )
+        {
+            Thread.yield();
+        }
+    }
+}
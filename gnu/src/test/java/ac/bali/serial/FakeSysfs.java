@@ -0,0 +1,102 @@
+package ac.bali.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * A sysfs tree and device directory made of plain files and links, as
+ * SerialPortInfo.scan( File, String ) reads them.
+ */
+final class FakeSysfs
+{
+    private final Path sysfs;
+    private final Path dev;
+
+    FakeSysfs( File root )
+        throws IOException
+    {
+        sysfs = Files.createDirectories( root.toPath().resolve( "sys" ) );
+        dev = Files.createDirectories( root.toPath().resolve( "dev" ) );
+        Files.createDirectories( sysfs.resolve( "class/tty" ) );
+    }
+
+    File getSysfs()
+    {
+        return sysfs.toFile();
+    }
+
+    /**
+     * @return String the device directory, ending with a /
+     */
+    String getDeviceDir()
+    {
+        return dev + "/";
+    }
+
+    /**
+     * A tty with no device, like a console or a pty
+     */
+    void addVirtual( String name )
+        throws IOException
+    {
+        Files.createDirectories( sysfs.resolve( "class/tty/" + name ) );
+        Files.createFile( dev.resolve( name ) );
+    }
+
+    /**
+     * A platform UART; type 0 is a port with no UART found
+     */
+    void addUart( String name, int type )
+        throws IOException
+    {
+        Path device = Files.createDirectories( sysfs.resolve( "devices/platform/serial8250/tty/" + name ) );
+        write( sysfs.resolve( "class/tty/" + name + "/type" ), Integer.toString( type ) );
+        link( device, "serial8250", sysfs.resolve( "class/tty/" + name ) );
+    }
+
+    /**
+     * A USB adapter with its ids, on bus 1 port n
+     */
+    void addUsb( String name, int n, String driver, String vendorId, String productId, String serial )
+        throws IOException
+    {
+        Path usb = sysfs.resolve( "devices/pci0000:00/0000:00:14.0/usb1/1-" + n );
+        write( usb.resolve( "idVendor" ), vendorId );
+        write( usb.resolve( "idProduct" ), productId );
+        write( usb.resolve( "serial" ), serial );
+        write( usb.resolve( "manufacturer" ), "FTDI" );
+        write( usb.resolve( "product" ), "FT232R USB UART" );
+        Path device = Files.createDirectories( usb.resolve( "1-" + n + ":1.0" ) );
+        link( device, driver, Files.createDirectories( sysfs.resolve( "class/tty/" + name ) ) );
+    }
+
+    /**
+     * Remove the device file of a tty, as when udev has not made it yet
+     */
+    void removeDevice( String name )
+        throws IOException
+    {
+        Files.delete( dev.resolve( name ) );
+    }
+
+    private void link( Path device, String driver, Path tty )
+        throws IOException
+    {
+        Path drivers = Files.createDirectories( sysfs.resolve( "bus/drivers/" + driver ) );
+        Files.createSymbolicLink( device.resolve( "driver" ), drivers );
+        Files.createDirectories( tty );
+        Files.createSymbolicLink( tty.resolve( "device" ), device );
+        Files.createFile( dev.resolve( tty.getFileName().toString() ) );
+    }
+
+    private static void write( Path file, String value )
+        throws IOException
+    {
+        Files.createDirectories( file.getParent() );
+        Files.write( file, Collections.singletonList( value ), Charset.forName( "US-ASCII" ) );
+    }
+}
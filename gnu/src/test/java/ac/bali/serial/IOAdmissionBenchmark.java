@@ -0,0 +1,76 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stream calls of several threads on one port, each admitted by
+ * enterIO() and exitIO(): four threads write single bytes while one
+ * reads the echo back.
+ */
+@State( Scope.Group )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class IOAdmissionBenchmark
+{
+    private PtyPeer peer;
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+    private final byte one[] = { 7 };
+    private final byte echo[] = new byte[ 4096 ];
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        port = new RXTXPort( peer.getName() );
+        port.enableReceiveTimeout( 50 );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @TearDown
+    public void close()
+    {
+        port.close();
+        peer.close();
+    }
+
+    @Benchmark
+    @Group( "port" )
+    @GroupThreads( 4 )
+    public void write()
+        throws IOException
+    {
+        out.write( one );
+    }
+
+    @Benchmark
+    @Group( "port" )
+    @GroupThreads( 1 )
+    public int read()
+        throws IOException
+    {
+        return in.read( echo );
+    }
+}
@@ -0,0 +1,72 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IOAdmissionTest
+{
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    @Test
+    public void closeReturnsWhileAWriterKeepsWriting()
+        throws Exception
+    {
+        RXTXPort port = new RXTXPort( pty.getName() );
+        final OutputStream out = port.getOutputStream();
+        final AtomicBoolean closed = new AtomicBoolean();
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    while( !closed.get() )
+                    {
+                        out.write( 1 );
+                    }
+                }
+                catch( IOException e )
+                {
+                    /* closing */
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep( 50 );
+
+        long start = System.nanoTime();
+        port.close();
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 2 ) );
+        closed.set( true );
+        writer.join( 2000 );
+        assertFalse( writer.isAlive() );
+    }
+
+    @Test
+    public void availableAfterCloseDoesNotTouchTheFd()
+        throws Exception
+    {
+        RXTXPort port = new RXTXPort( pty.getName() );
+        port.close();
+        assertEquals( -1, port.nativeavailable() );
+        try
+        {
+            port.availableIO();
+            fail( "admitted after close" );
+        }
+        catch( IOException e )
+        {
+            /* closing */
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ac.bali.serial;
+
+import javax.comm.PortInUseException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+public class LockingTest
+{
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    @After
+    public void clearProperty()
+    {
+        System.clearProperty( RXTXPort.LOCKING_PROPERTY );
+    }
+
+    @Test
+    public void flockKeepsASecondOpenOut()
+        throws Exception
+    {
+        RXTXPort port = new RXTXPort( pty.getName(), RXTXPort.LOCK_FLOCK );
+        try
+        {
+            assertInUse();
+        }
+        finally
+        {
+            port.close();
+        }
+        new RXTXPort( pty.getName(), RXTXPort.LOCK_FLOCK ).close();
+    }
+
+    @Test
+    public void flockKeepsAnotherProcessOut()
+        throws Exception
+    {
+        Process holder = new ProcessBuilder( "python3", "-c",
+                                             "import fcntl, os, sys\n" +
+                                             "f = os.open(sys.argv[1], os.O_RDWR | os.O_NOCTTY | os.O_NONBLOCK)\n" +
+                                             "fcntl.flock(f, fcntl.LOCK_EX)\n" +
+                                             "print('held', flush=True)\n" +
+                                             "sys.stdin.read()\n", pty.getName() ).start();
+        try
+        {
+            holder.getInputStream().read();
+            assertInUse();
+        }
+        finally
+        {
+            holder.getOutputStream().close();
+            holder.waitFor();
+        }
+        new RXTXPort( pty.getName(), RXTXPort.LOCK_FLOCK ).close();
+    }
+
+    @Test
+    public void thePropertySelectsFlock()
+        throws Exception
+    {
+        System.setProperty( RXTXPort.LOCKING_PROPERTY, "flock" );
+        RXTXPort port = new RXTXPort( pty.getName() );
+        try
+        {
+            assertInUse();
+        }
+        finally
+        {
+            port.close();
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAnUnknownMode()
+        throws Exception
+    {
+        new RXTXPort( pty.getName(), 7 );
+    }
+
+    private void assertInUse()
+    {
+        try
+        {
+            new RXTXPort( pty.getName(), RXTXPort.LOCK_FLOCK ).close();
+            fail( "opened a locked port" );
+        }
+        catch( PortInUseException e )
+        {
+            /* expected */
+        }
+    }
+}
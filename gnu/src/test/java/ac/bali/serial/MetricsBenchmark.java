@@ -0,0 +1,80 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of SerialPortMetrics: a 64 byte round trip through the
+ * echoing PtyPeer with metrics off and on.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MetricsBenchmark
+{
+    @Param( { "false", "true" } )
+    public boolean metrics;
+
+    private PtyPeer peer;
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+    private final byte b[] = new byte[ 64 ];
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        port = new RXTXPort( peer.getName() );
+        port.enableReceiveTimeout( 1000 );
+        if( metrics )
+        {
+            port.enableMetrics();
+        }
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @TearDown
+    public void close()
+    {
+        port.close();
+        peer.close();
+    }
+
+    @Benchmark
+    public int roundTrip()
+        throws IOException
+    {
+        out.write( b );
+        int n = 0;
+        while( n < b.length )
+        {
+            int k = in.read( b, n, b.length - n );
+            if( k <= 0 )
+            {
+                throw new IOException( "no echo within the timeout" );
+            }
+            n += k;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,90 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of a native call finding the port: available() is one
+ * FIONREAD ioctl after the port context lookup, byteEcho a single byte
+ * writeByte() and readByte() through the echoing PtyPeer.
+ *
+ * Measured against baseline 850e31f at 03337ec with -bm sample, two
+ * runs of each on a single CPU shared with the peer, JDK 17, in ns:
+ * <pre>
+ *                         p50      p99
+ *   available  850e31f    430     2170
+ *                         639     7064
+ *              03337ec    270      530
+ *                         345     3280
+ *   byteEcho   850e31f  18620   126460
+ *                       18880   451072
+ *              03337ec  12000   329790
+ *                       15200   449654
+ * </pre>
+ * The p99 of byteEcho follows the scheduling of the peer and says
+ * little about the native call.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class NativeCallBenchmark
+{
+    private PtyPeer peer;
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        port = new RXTXPort( peer.getName() );
+        port.enableReceiveTimeout( 1000 );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @TearDown
+    public void close()
+    {
+        port.close();
+        peer.close();
+    }
+
+    @Benchmark
+    public int available()
+        throws IOException
+    {
+        return in.available();
+    }
+
+    @Benchmark
+    public int byteEcho()
+        throws IOException
+    {
+        out.write( 'x' );
+        int b = in.read();
+        if( b != 'x' )
+        {
+            throw new IOException( "no echo within the timeout" );
+        }
+        return b;
+    }
+}
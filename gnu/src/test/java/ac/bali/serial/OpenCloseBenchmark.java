@@ -0,0 +1,60 @@
+package ac.bali.serial;
+
+import java.util.concurrent.TimeUnit;
+import javax.comm.PortInUseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Opening and closing a port over and over, with either way of locking
+ * it.  Run with -prof gc to see what each open leaves to the collector
+ * now that ports are released by a Cleaner rather than a finalizer.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class OpenCloseBenchmark
+{
+    @Param( { "files", "flock" } )
+    public String locking;
+
+    private PtyPeer peer;
+    private int mode;
+
+    @Setup
+    public void start()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        mode = "flock".equals( locking ) ? RXTXPort.LOCK_FLOCK : RXTXPort.LOCK_FILES;
+    }
+
+    @TearDown
+    public void stop()
+    {
+        peer.close();
+    }
+
+    @Benchmark
+    public void openClose()
+        throws PortInUseException
+    {
+        try( RXTXPort port = new RXTXPort( peer.getName(), mode ) )
+        {
+            /* nothing */
+        }
+    }
+}
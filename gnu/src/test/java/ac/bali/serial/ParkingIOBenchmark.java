@@ -0,0 +1,133 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many ports served by a thread each: one operation is a 16 byte echo on
+ * every port at once.  With threads=virtual and parking=true the reads
+ * park rather than pin their carrier thread.  Virtual threads need Java
+ * 21; on older JVMs run with -p threads=platform.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ParkingIOBenchmark
+{
+    @Param( { "false", "true" } )
+    public boolean parking;
+
+    @Param( { "platform", "virtual" } )
+    public String threads;
+
+    @Param( "64" )
+    public int ports;
+
+    private final List<PtyPeer> peers = new ArrayList<PtyPeer>();
+    private final List<RXTXPort> opened = new ArrayList<RXTXPort>();
+    private final List<Callable<Void>> echoes = new ArrayList<Callable<Void>>();
+    private ExecutorService executor;
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        if( "virtual".equals( threads ) )
+        {
+            executor = (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        else
+        {
+            executor = Executors.newCachedThreadPool();
+        }
+        for( int i = 0; i < ports; i++ )
+        {
+            PtyPeer peer = PtyPeer.start();
+            peers.add( peer );
+            RXTXPort port = new RXTXPort( peer.getName() );
+            port.setParkingIO( parking );
+            port.enableReceiveTimeout( 1000 );
+            opened.add( port );
+            echoes.add( new Echo( port ) );
+        }
+    }
+
+    @TearDown
+    public void close()
+    {
+        executor.shutdown();
+        for( RXTXPort port : opened )
+        {
+            port.close();
+        }
+        for( PtyPeer peer : peers )
+        {
+            peer.close();
+        }
+    }
+
+    @Benchmark
+    public void echoAll()
+        throws Exception
+    {
+        for( Future<Void> echo : executor.invokeAll( echoes ) )
+        {
+            echo.get();
+        }
+    }
+
+    private static final class Echo
+        implements Callable<Void>
+    {
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte message[] = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        private final byte b[] = new byte[ 16 ];
+
+        Echo( RXTXPort port )
+        {
+            in = port.getInputStream();
+            out = port.getOutputStream();
+        }
+
+        public Void call()
+            throws IOException
+        {
+            out.write( message );
+            int n = 0;
+            while( n < b.length )
+            {
+                int k = in.read( b, n, b.length - n );
+                if( k <= 0 )
+                {
+                    throw new IOException( "no echo within the timeout" );
+                }
+                n += k;
+            }
+            return null;
+        }
+    }
+}
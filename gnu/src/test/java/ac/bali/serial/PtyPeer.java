@@ -0,0 +1,109 @@
+package ac.bali.serial;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A port for tests and benchmarks that echoes everything written to it.
+ *
+ * By default this is the slave side of a pty made by a python3 script,
+ * which writes back all it reads on the master side.  The script ends
+ * when its stdin closes, so it does not outlive the JVM.  A real port
+ * with its TX wired to its RX can be used instead by naming it in the
+ * system property ac.bali.serial.test.port.
+ */
+final class PtyPeer
+    implements Closeable
+{
+    /**
+     * System property: a looped back port to use instead of a pty
+     */
+    static final String PORT_PROPERTY = "ac.bali.serial.test.port";
+
+    private static final String SCRIPT =
+        "import os, pty, select, sys, tty\n" +
+        "m, s = pty.openpty()\n" +
+        "tty.setraw(s)\n" +
+        "sys.stdout.write(os.ttyname(s) + '\\n')\n" +
+        "sys.stdout.flush()\n" +
+        "while True:\n" +
+        "    r = select.select([m, 0], [], [])[0]\n" +
+        "    if 0 in r and not os.read(0, 1):\n" +
+        "        break\n" +
+        "    if m in r:\n" +
+        "        try:\n" +
+        "            d = os.read(m, 65536)\n" +
+        "        except OSError:\n" +
+        "            break\n" +
+        "        while d:\n" +
+        "            d = d[os.write(m, d):]\n";
+
+    private final Process process;
+    private final String name;
+
+    private PtyPeer( Process process, String name )
+    {
+        this.process = process;
+        this.name = name;
+    }
+
+    /**
+     * @return PtyPeer a new echoing pty, or the port of PORT_PROPERTY
+     *
+     * @throws IOException if there is no python3 or it made no pty
+     */
+    static PtyPeer start()
+        throws IOException
+    {
+        String port = System.getProperty( PORT_PROPERTY );
+        if( port != null )
+        {
+            return new PtyPeer( null, port );
+        }
+        Process p = new ProcessBuilder( "python3", "-c", SCRIPT ).start();
+        String name = new BufferedReader( new InputStreamReader( p.getInputStream(), "US-ASCII" ) ).readLine();
+        if( name == null )
+        {
+            p.destroy();
+            throw new IOException( "python3 made no pty" );
+        }
+        return new PtyPeer( p, name );
+    }
+
+    /**
+     * @return String the name to open the port with
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    public void close()
+    {
+        if( process == null )
+        {
+            return;
+        }
+        try
+        {
+            process.getOutputStream().close();
+            if( !process.waitFor( 5, TimeUnit.SECONDS ) )
+            {
+                /* stuck writing to a pty nobody reads */
+                process.destroy();
+            }
+        }
+        catch( IOException e )
+        {
+            process.destroy();
+        }
+        catch( InterruptedException e )
+        {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
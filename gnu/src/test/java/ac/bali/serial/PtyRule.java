@@ -0,0 +1,53 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import org.junit.AssumptionViolatedException;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Runs each test with a PtyPeer to open.  The test is skipped rather
+ * than failed if there is no pty to be had.
+ */
+public final class PtyRule
+    implements TestRule
+{
+    private PtyPeer peer;
+
+    /**
+     * @return String the port of the running test
+     */
+    public String getName()
+    {
+        return peer.getName();
+    }
+
+    public Statement apply( final Statement base, Description description )
+    {
+        return new Statement()
+        {
+            public void evaluate()
+                throws Throwable
+            {
+                try
+                {
+                    peer = PtyPeer.start();
+                }
+                catch( IOException e )
+                {
+                    throw new AssumptionViolatedException( "no pty: " + e.getMessage() );
+                }
+                try
+                {
+                    base.evaluate();
+                }
+                finally
+                {
+                    peer.close();
+                    peer = null;
+                }
+            }
+        };
+    }
+}
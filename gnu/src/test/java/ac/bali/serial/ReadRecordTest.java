@@ -0,0 +1,179 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadRecordTest
+{
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final byte CRLF[] = { '\r', '\n' };
+
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+    private final byte b[] = new byte[ 256 ];
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        port.enableReceiveTimeout( 1000 );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @After
+    public void close()
+    {
+        port.close();
+    }
+
+    @Test
+    public void readsOneRecordAtATime()
+        throws Exception
+    {
+        out.write( "$GPGGA,1*47\r\n$GPRMC,2*11\r\n".getBytes( ASCII ) );
+        assertEquals( "$GPGGA,1*47\r\n", record( CRLF ) );
+        assertEquals( "$GPRMC,2*11\r\n", record( CRLF ) );
+    }
+
+    @Test
+    public void keepsAPartialRecordOnTimeout()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 100 );
+        out.write( "AT+OK".getBytes( ASCII ) );
+        assertEquals( 0, port.readRecord( b, 0, b.length, CRLF ) );
+        out.write( "\r\n".getBytes( ASCII ) );
+        port.enableReceiveTimeout( 1000 );
+        assertEquals( "AT+OK\r\n", record( CRLF ) );
+    }
+
+    @Test
+    public void endsARecordWithALongDelimiter()
+        throws Exception
+    {
+        out.write( "abcENDdef".getBytes( ASCII ) );
+        assertEquals( "abcEND", record( "END".getBytes( ASCII ) ) );
+    }
+
+    @Test
+    public void leavesTheBytesAfterTheRecordToOtherReads()
+        throws Exception
+    {
+        out.write( "one|two|three".getBytes( ASCII ) );
+        Thread.sleep( 50 );
+        assertEquals( "one|", record( new byte[]{ '|' } ) );
+        assertEquals( 't', in.read() );
+        int n = 0;
+        int k;
+        while( n < 8 && ( k = in.read( b, n, 8 - n ) ) > 0 )
+        {
+            n += k;
+        }
+        assertEquals( "wo|three", new String( b, 0, n, ASCII ) );
+    }
+
+    @Test
+    public void returnsALongRecordInPieces()
+        throws Exception
+    {
+        out.write( "0123456789ABCDEF\n".getBytes( ASCII ) );
+        byte nl[] = { '\n' };
+        assertEquals( 10, port.readRecord( b, 0, 10, nl ) );
+        assertEquals( 7, port.readRecord( b, 10, 10, nl ) );
+        assertEquals( "0123456789ABCDEF\n", new String( b, 0, 17, ASCII ) );
+    }
+
+    @Test
+    public void selectsAPortWithARecordReadAhead()
+        throws Exception
+    {
+        SerialSelector selector = SerialSelector.open();
+        try
+        {
+            port.getChannel().configureBlocking( false ).register( selector, SerialSelectionKey.OP_READ );
+            out.write( "a\nb\n".getBytes( ASCII ) );
+            Thread.sleep( 50 );
+            assertEquals( "a\n", record( new byte[]{ '\n' } ) );
+            /* b is in the carry, not in the driver */
+            selector.selectNow();
+            selector.selectedKeys().clear();
+            assertEquals( 1, selector.select( 1000 ) );
+        }
+        finally
+        {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void concurrentReadersGetEachRecordOnce()
+        throws Exception
+    {
+        final int lines = 2000;
+        final Set<String> seen = Collections.synchronizedSet( new HashSet<String>() );
+        final AtomicInteger duplicates = new AtomicInteger();
+        Thread readers[] = new Thread[ 3 ];
+        for( int r = 0; r < readers.length; r++ )
+        {
+            readers[ r ] = new Thread()
+            {
+                public void run()
+                {
+                    byte own[] = new byte[ 64 ];
+                    try
+                    {
+                        int n;
+                        while( ( n = port.readRecord( own, 0, own.length, CRLF ) ) > 0 )
+                        {
+                            if( !seen.add( new String( own, 0, n, ASCII ) ) )
+                            {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            };
+            readers[ r ].start();
+        }
+        StringBuilder text = new StringBuilder();
+        for( int i = 0; i < lines; i++ )
+        {
+            text.append( "$GPGGA," ).append( i ).append( "*47\r\n" );
+        }
+        out.write( text.toString().getBytes( ASCII ) );
+        for( Thread reader : readers )
+        {
+            reader.join( 10000 );
+        }
+        assertEquals( 0, duplicates.get() );
+        assertEquals( lines, seen.size() );
+    }
+
+    private String record( byte delimiter[] )
+        throws Exception
+    {
+        return new String( b, 0, port.readRecord( b, 0, b.length, delimiter ), ASCII );
+    }
+}
@@ -0,0 +1,104 @@
+package ac.bali.serial;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadTimeoutTest
+{
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+
+    @After
+    public void close()
+    {
+        if( port != null )
+        {
+            port.close();
+        }
+    }
+
+    @Test
+    public void readTimesOutAfterTheReceiveTimeout()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        port.enableReceiveTimeout( 300 );
+        InputStream in = port.getInputStream();
+
+        long start = System.nanoTime();
+        assertEquals( -1, in.read() );
+        long ms = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "timed out after " + ms + " ms", ms >= 250 && ms < 1000 );
+
+        start = System.nanoTime();
+        assertEquals( 0, in.read( new byte[ 8 ] ) );
+        ms = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "timed out after " + ms + " ms", ms >= 250 && ms < 1000 );
+    }
+
+    @Test
+    public void readReturnsAsSoonAsDataArrives()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        port.enableReceiveTimeout( 5000 );
+        final OutputStream out = port.getOutputStream();
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 100 );
+                    out.write( "abc".getBytes( "US-ASCII" ) );
+                }
+                catch( Exception e )
+                {
+                    /* the read times out and the test fails */
+                }
+            }
+        };
+        writer.start();
+
+        byte b[] = new byte[ 3 ];
+        long start = System.nanoTime();
+        int n = 0;
+        while( n < b.length )
+        {
+            int k = port.getInputStream().read( b, n, b.length - n );
+            assertTrue( k > 0 );
+            n += k;
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        writer.join();
+        assertArrayEquals( "abc".getBytes( "US-ASCII" ), b );
+        assertTrue( "read took " + ms + " ms", ms < 2000 );
+    }
+
+    @Test
+    public void thresholdReadEndsAtTheDeadline()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        port.enableReceiveTimeout( 300 );
+        port.enableReceiveThreshold( 10 );
+        port.getOutputStream().write( "abc".getBytes( "US-ASCII" ) );
+
+        byte b[] = new byte[ 16 ];
+        long start = System.nanoTime();
+        int n = port.getInputStream().read( b );
+        long ms = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertEquals( 3, n );
+        assertTrue( "read took " + ms + " ms", ms < 1000 );
+    }
+}
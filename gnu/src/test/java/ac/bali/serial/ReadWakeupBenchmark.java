@@ -0,0 +1,81 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How soon a read blocked in read_byte_array() returns once its byte
+ * arrives: one byte sent to the echoing PtyPeer and read back with a
+ * receive timeout, so the read waits in poll() until the echo.
+ *
+ * Measured against baseline 850e31f at 03337ec, two runs of each in
+ * sample mode on a single CPU shared with the peer, JDK 17, in us:
+ * <pre>
+ *             p50    p99
+ *   850e31f   22.4   68.5
+ *             24.5  104.4
+ *   03337ec   23.4   81.4
+ *             23.4   81.7
+ * </pre>
+ * The python peer dominates the round trip, so the wakeup is the same
+ * within the noise.  A one byte echo wakes the read once in either;
+ * the single deadline changes reads that wake several times.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SampleTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ReadWakeupBenchmark
+{
+    private PtyPeer peer;
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+    private final byte b[] = new byte[ 1 ];
+
+    @Setup
+    public void open()
+        throws Exception
+    {
+        peer = PtyPeer.start();
+        port = new RXTXPort( peer.getName() );
+        port.enableReceiveTimeout( 1000 );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @TearDown
+    public void close()
+    {
+        port.close();
+        peer.close();
+    }
+
+    @Benchmark
+    public int echo()
+        throws IOException
+    {
+        out.write( b );
+        int n = in.read( b );
+        if( n != 1 )
+        {
+            throw new IOException( "no echo within the timeout" );
+        }
+        return n;
+    }
+}
@@ -0,0 +1,142 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SerialInputStreamTest
+{
+    private static final int BYTES = 200000;
+
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @After
+    public void close()
+    {
+        port.close();
+    }
+
+    @Test
+    public void availableDoesNotWaitForABlockedRead()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 2000 );
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    in.read( new byte[ 16 ] );
+                }
+                catch( IOException e )
+                {
+                    /* closing */
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep( 200 );
+        long start = System.nanoTime();
+        assertEquals( 0, in.available() );
+        assertTrue( System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos( 500 ) );
+        out.write( 'x' );
+        reader.join( 3000 );
+    }
+
+    @Test
+    public void concurrentReadersGetEachByteOnce()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 500 );
+        final int counts[][] = new int[ 2 ][ 256 ];
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread readers[] = new Thread[ counts.length ];
+        for( int r = 0; r < readers.length; r++ )
+        {
+            final int count[] = counts[ r ];
+            final boolean single = ( r == 0 );
+            readers[ r ] = new Thread()
+            {
+                public void run()
+                {
+                    byte b[] = new byte[ 97 ];
+                    try
+                    {
+                        for( ; ; )
+                        {
+                            if( single )
+                            {
+                                int c = in.read();
+                                if( c < 0 )
+                                {
+                                    return;
+                                }
+                                count[ c ]++;
+                                continue;
+                            }
+                            int n = in.read( b );
+                            if( n <= 0 )
+                            {
+                                return;
+                            }
+                            for( int i = 0; i < n; i++ )
+                            {
+                                count[ b[ i ] & 0xff ]++;
+                            }
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        failure.set( e );
+                    }
+                }
+            };
+            readers[ r ].start();
+        }
+        byte sent[] = new byte[ BYTES ];
+        int expected[] = new int[ 256 ];
+        for( int i = 0; i < sent.length; i++ )
+        {
+            sent[ i ] = (byte) ( i * 31 );
+            expected[ sent[ i ] & 0xff ]++;
+        }
+        out.write( sent );
+        int got[] = new int[ 256 ];
+        for( int r = 0; r < readers.length; r++ )
+        {
+            readers[ r ].join( 10000 );
+            for( int i = 0; i < 256; i++ )
+            {
+                got[ i ] += counts[ r ][ i ];
+            }
+        }
+        assertNull( failure.get() );
+        assertArrayEquals( expected, got );
+    }
+}
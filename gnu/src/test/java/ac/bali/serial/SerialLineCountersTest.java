@@ -0,0 +1,60 @@
+package ac.bali.serial;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SerialLineCountersTest
+{
+    @Test
+    public void mapsTheDriverFields()
+    {
+        SerialLineCounters counters = new SerialLineCounters( 5, new int[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 } );
+        assertEquals( 5, counters.getNanoTime() );
+        assertEquals( 1, counters.getCts() );
+        assertEquals( 2, counters.getDsr() );
+        assertEquals( 3, counters.getRng() );
+        assertEquals( 4, counters.getDcd() );
+        assertEquals( 5, counters.getRx() );
+        assertEquals( 6, counters.getTx() );
+        assertEquals( 7, counters.getFrame() );
+        assertEquals( 8, counters.getOverrun() );
+        assertEquals( 9, counters.getParity() );
+        assertEquals( 10, counters.getBrk() );
+        assertEquals( 11, counters.getBufOverrun() );
+    }
+
+    @Test
+    public void readsTheCountsUnsigned()
+    {
+        SerialLineCounters counters = new SerialLineCounters( 0, counts( -1 ) );
+        assertEquals( 0xffffffffL, counters.getRx() );
+    }
+
+    @Test
+    public void subtractsAnEarlierSnapshot()
+    {
+        SerialLineCounters earlier = new SerialLineCounters( 1000, counts( 100 ) );
+        SerialLineCounters later = new SerialLineCounters( 4000, counts( 250 ) );
+        SerialLineCounters delta = later.since( earlier );
+        assertEquals( 3000, delta.getNanoTime() );
+        assertEquals( 150, delta.getRx() );
+        assertEquals( 150, delta.getOverrun() );
+    }
+
+    @Test
+    public void subtractsAcrossTheWrapAt2To32()
+    {
+        SerialLineCounters earlier = new SerialLineCounters( 0, counts( 0xfffffff0 ) );
+        SerialLineCounters later = new SerialLineCounters( 0, counts( 0x10 ) );
+        assertEquals( 0x20, later.since( earlier ).getRx() );
+    }
+
+    private static int[] counts( int value )
+    {
+        int counts[] = new int[ SerialEventReactor.ICOUNT_FIELDS ];
+        Arrays.fill( counts, value );
+        return counts;
+    }
+}
@@ -0,0 +1,184 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialPollerTest
+{
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private InputStream in;
+    private OutputStream out;
+    private final byte b[] = new byte[ 64 ];
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        port.setParkingIO( true );
+        in = port.getInputStream();
+        out = port.getOutputStream();
+    }
+
+    @After
+    public void close()
+    {
+        port.close();
+    }
+
+    @Test
+    public void echoesWhileParking()
+        throws Exception
+    {
+        assertTrue( port.isParkingIO() );
+        final byte big[] = new byte[ 100000 ];
+        for( int i = 0; i < big.length; i++ )
+        {
+            big[ i ] = (byte) i;
+        }
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    out.write( big );
+                }
+                catch( IOException e )
+                {
+                    /* shows as a short read below */
+                }
+            }
+        };
+        writer.start();
+        byte got[] = new byte[ big.length ];
+        port.enableReceiveTimeout( 2000 );
+        int n = 0;
+        int k;
+        while( n < got.length && ( k = in.read( got, n, got.length - n ) ) > 0 )
+        {
+            n += k;
+        }
+        writer.join( 2000 );
+        assertArrayEquals( big, got );
+    }
+
+    @Test
+    public void parksNoLongerThanTheTimeout()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 300 );
+        long start = System.nanoTime();
+        assertEquals( 0, in.read( b ) );
+        long took = System.nanoTime() - start;
+        assertTrue( took >= TimeUnit.MILLISECONDS.toNanos( 250 ) );
+        assertTrue( took < TimeUnit.SECONDS.toNanos( 2 ) );
+    }
+
+    @Test
+    public void waitsForTheThreshold()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 300 );
+        port.enableReceiveThreshold( 5 );
+        out.write( "abc".getBytes( "US-ASCII" ) );
+        Thread.sleep( 50 );
+        out.write( "defghij".getBytes( "US-ASCII" ) );
+        int n = 0;
+        int k;
+        while( n < 10 && ( k = in.read( b, n, b.length - n ) ) > 0 )
+        {
+            assertTrue( k >= 5 || n + k == 10 );
+            n += k;
+        }
+        assertEquals( "abcdefghij", new String( b, 0, n, "US-ASCII" ) );
+    }
+
+    @Test
+    public void interruptEndsAParkedRead()
+        throws Exception
+    {
+        final Thread reading = Thread.currentThread();
+        new Thread()
+        {
+            public void run()
+            {
+                pause( 200 );
+                reading.interrupt();
+            }
+        }.start();
+        try
+        {
+            in.read( b );
+            fail( "read returned" );
+        }
+        catch( InterruptedIOException e )
+        {
+            /* expected */
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void closeWakesAParkedReader()
+        throws Exception
+    {
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    result.set( in.read( b ) );
+                }
+                catch( IOException e )
+                {
+                    result.set( e );
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep( 200 );
+        assertTrue( reader.isAlive() );
+        long start = System.nanoTime();
+        port.close();
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 2 ) );
+        reader.join( 2000 );
+        assertFalse( reader.isAlive() );
+        /* no bytes: the end of the stream or a failed read */
+        assertTrue( result.get() instanceof IOException || Integer.valueOf( -1 ).equals( result.get() ) );
+    }
+
+    private static void pause( long ms )
+    {
+        try
+        {
+            Thread.sleep( ms );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ac.bali.serial;
+
+import java.io.File;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SerialPortInfoTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSysfs sysfs;
+
+    @Before
+    public void build()
+        throws Exception
+    {
+        sysfs = new FakeSysfs( folder.getRoot() );
+    }
+
+    @Test
+    public void listsTheHardwarePortsInOrder()
+        throws Exception
+    {
+        sysfs.addVirtual( "tty0" );
+        sysfs.addVirtual( "ptmx" );
+        sysfs.addUsb( "ttyUSB0", 2, "ftdi_sio", "0403", "6001", "A50285BI" );
+        sysfs.addUart( "ttyS0", 4 );
+        sysfs.addUart( "ttyS1", 0 );
+        sysfs.addUsb( "ttyACM0", 3, "cdc_acm", "2341", "0043", "7563" );
+
+        List<SerialPortInfo> ports = scan();
+        assertEquals( 3, ports.size() );
+        assertEquals( "ttyACM0", ports.get( 0 ).getName() );
+        assertEquals( "ttyS0", ports.get( 1 ).getName() );
+        assertEquals( "ttyUSB0", ports.get( 2 ).getName() );
+    }
+
+    @Test
+    public void describesAUsbAdapter()
+        throws Exception
+    {
+        sysfs.addUsb( "ttyUSB0", 2, "ftdi_sio", "0403", "6001", "A50285BI" );
+
+        SerialPortInfo port = scan().get( 0 );
+        assertEquals( sysfs.getDeviceDir() + "ttyUSB0", port.getPath() );
+        assertEquals( "ftdi_sio", port.getDriver() );
+        assertEquals( "0403", port.getVendorId() );
+        assertEquals( "6001", port.getProductId() );
+        assertEquals( "A50285BI", port.getSerialNumber() );
+        assertEquals( "FTDI", port.getManufacturer() );
+        assertEquals( "FT232R USB UART", port.getProduct() );
+    }
+
+    @Test
+    public void describesAUartWithoutUsbIds()
+        throws Exception
+    {
+        sysfs.addUart( "ttyS0", 4 );
+
+        SerialPortInfo port = scan().get( 0 );
+        assertEquals( "serial8250", port.getDriver() );
+        assertNull( port.getVendorId() );
+        assertNull( port.getSerialNumber() );
+    }
+
+    @Test
+    public void skipsAPortWithNoDeviceFile()
+        throws Exception
+    {
+        sysfs.addUsb( "ttyUSB0", 2, "ftdi_sio", "0403", "6001", "A50285BI" );
+        sysfs.removeDevice( "ttyUSB0" );
+
+        assertEquals( 0, scan().size() );
+    }
+
+    @Test
+    public void findsNothingWithoutATtyClass()
+    {
+        assertNull( SerialPortInfo.scan( new File( folder.getRoot(), "none" ), sysfs.getDeviceDir() ) );
+    }
+
+    private List<SerialPortInfo> scan()
+    {
+        return SerialPortInfo.scan( sysfs.getSysfs(), sysfs.getDeviceDir() );
+    }
+}
@@ -0,0 +1,188 @@
+package ac.bali.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialSelectorTest
+{
+    @Rule
+    public final PtyRule pty = new PtyRule();
+
+    private RXTXPort port;
+    private SerialChannel channel;
+    private SerialSelector selector;
+
+    @Before
+    public void open()
+        throws Exception
+    {
+        port = new RXTXPort( pty.getName() );
+        channel = port.getChannel().configureBlocking( false );
+        selector = SerialSelector.open();
+    }
+
+    @After
+    public void close()
+        throws Exception
+    {
+        selector.close();
+        port.close();
+    }
+
+    @Test
+    public void selectsAPortOnceItIsReadable()
+        throws Exception
+    {
+        SerialSelectionKey key = channel.register( selector, SerialSelectionKey.OP_READ, "attached" );
+        assertEquals( 0, selector.selectNow() );
+        assertEquals( 0, channel.read( ByteBuffer.allocate( 8 ) ) );
+
+        channel.write( ByteBuffer.wrap( "ping".getBytes( "US-ASCII" ) ) );
+        assertEquals( 1, selector.select( 2000 ) );
+        assertTrue( selector.selectedKeys().contains( key ) );
+        assertTrue( key.isReadable() );
+        assertSame( channel, key.channel() );
+        assertEquals( "attached", key.attachment() );
+
+        ByteBuffer in = ByteBuffer.allocateDirect( 8 );
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 2 );
+        while( in.position() < 4 && System.nanoTime() < deadline )
+        {
+            channel.read( in );
+        }
+        in.flip();
+        assertEquals( ByteBuffer.wrap( "ping".getBytes( "US-ASCII" ) ), in );
+    }
+
+    @Test
+    public void selectsAWritablePort()
+        throws Exception
+    {
+        SerialSelectionKey key = channel.register( selector, SerialSelectionKey.OP_READ | SerialSelectionKey.OP_WRITE );
+        assertEquals( 1, selector.selectNow() );
+        assertTrue( key.isWritable() );
+        assertFalse( key.isReadable() );
+        selector.selectedKeys().clear();
+
+        key.interestOps( SerialSelectionKey.OP_READ );
+        assertEquals( 0, selector.selectNow() );
+    }
+
+    @Test
+    public void wakeupEndsASelect()
+        throws Exception
+    {
+        channel.register( selector, SerialSelectionKey.OP_READ );
+        new Thread()
+        {
+            public void run()
+            {
+                pause( 200 );
+                selector.wakeup();
+            }
+        }.start();
+        long start = System.nanoTime();
+        assertEquals( 0, selector.select() );
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 2 ) );
+    }
+
+    @Test
+    public void interruptEndsASelect()
+        throws Exception
+    {
+        channel.register( selector, SerialSelectionKey.OP_READ );
+        final Thread selecting = Thread.currentThread();
+        new Thread()
+        {
+            public void run()
+            {
+                pause( 200 );
+                selecting.interrupt();
+            }
+        }.start();
+        long start = System.nanoTime();
+        assertEquals( 0, selector.select( 5000 ) );
+        assertTrue( Thread.interrupted() );
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 2 ) );
+    }
+
+    @Test
+    public void closingTheChannelCancelsItsKeys()
+        throws Exception
+    {
+        SerialSelectionKey key = channel.register( selector, SerialSelectionKey.OP_READ );
+        channel.close();
+        assertFalse( key.isValid() );
+        assertFalse( channel.isOpen() );
+        assertTrue( selector.keys().isEmpty() );
+        try
+        {
+            channel.register( selector, SerialSelectionKey.OP_READ );
+            fail( "registered a closed channel" );
+        }
+        catch( ClosedChannelException e )
+        {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void aReadWaitsForTheReadInProgress()
+        throws Exception
+    {
+        port.enableReceiveTimeout( 500 );
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    port.getInputStream().read( new byte[ 8 ] );
+                }
+                catch( IOException e )
+                {
+                    /* closing */
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep( 100 );
+        long start = System.nanoTime();
+        assertEquals( 0, channel.read( ByteBuffer.allocate( 8 ) ) );
+        assertTrue( System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos( 250 ) );
+        reader.join( 2000 );
+    }
+
+    @Test( expected = ClosedSelectorException.class )
+    public void aClosedSelectorSelectsNothing()
+        throws Exception
+    {
+        selector.close();
+        selector.select();
+    }
+
+    private static void pause( long ms )
+    {
+        try
+        {
+            Thread.sleep( ms );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ac.bali.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enumerating ports from sysfs: fakeTree scans 256 ttys of which half
+ * are USB adapters, a quarter UARTs and a quarter virtual, host scans
+ * the /sys of the machine running the benchmark.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SysfsScanBenchmark
+{
+    private File root;
+    private FakeSysfs sysfs;
+
+    @Setup
+    public void build()
+        throws IOException
+    {
+        root = Files.createTempDirectory( "sysfs" ).toFile();
+        sysfs = new FakeSysfs( root );
+        for( int i = 0; i < 256; i++ )
+        {
+            switch( i % 4 )
+            {
+            case 0:
+                sysfs.addUart( "ttyS" + i, ( i % 8 == 0 ) ? 0 : 4 );
+                break;
+            case 1:
+                sysfs.addVirtual( "tty" + i );
+                break;
+            case 2:
+                sysfs.addUsb( "ttyUSB" + i, i, "ftdi_sio", "0403", "6001", "A" + i );
+                break;
+            default:
+                sysfs.addUsb( "ttyACM" + i, i, "cdc_acm", "2341", "0043", "A" + i );
+                break;
+            }
+        }
+    }
+
+    @TearDown
+    public void remove()
+        throws IOException
+    {
+        Files.walkFileTree( root.toPath(), new SimpleFileVisitor<Path>()
+        {
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attributes )
+                throws IOException
+            {
+                Files.delete( file );
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory( Path dir, IOException e )
+                throws IOException
+            {
+                Files.delete( dir );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    @Benchmark
+    public List<SerialPortInfo> fakeTree()
+    {
+        return SerialPortInfo.scan( sysfs.getSysfs(), sysfs.getDeviceDir() );
+    }
+
+    @Benchmark
+    public List<SerialPortInfo> host()
+    {
+        return SerialPortInfo.scan();
+    }
+}
@@ -0,0 +1,86 @@
+package ac.bali.serial.framing;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class CobsFrameDecoderTest
+{
+    private final FrameCollector frames = new FrameCollector();
+
+    @Test
+    public void restoresTheZeros()
+    {
+        CobsFrameDecoder decoder = new CobsFrameDecoder( 64 );
+        frames.decode( decoder, bytes( 3, 'a', 'b', 2, 'c', 0, 1, 1, 1, 0 ), 1 );
+        assertEquals( Arrays.asList( "ab\0c", "\0\0" ), frames.frames );
+    }
+
+    @Test
+    public void decodesARunOfMoreThan254()
+    {
+        byte payload[] = new byte[ 300 ];
+        Arrays.fill( payload, (byte) 'q' );
+        payload[ 260 ] = 0;
+        CobsFrameDecoder decoder = new CobsFrameDecoder( 300 );
+        decoder.decode( ByteBuffer.wrap( encode( payload ) ), frames );
+        assertEquals( Arrays.asList( new String( payload, FrameCollector.BYTES ) ), frames.frames );
+    }
+
+    @Test
+    public void skipsEmptyFramesAndDropsBadOnes()
+    {
+        CobsFrameDecoder decoder = new CobsFrameDecoder( 64 );
+        decoder.decode( ByteBuffer.wrap( bytes( 0, 0, 5, 1, 0, 2, 'x', 0 ) ), frames );
+        assertEquals( Arrays.asList( "x" ), frames.frames );
+        assertEquals( 1, decoder.getDroppedFrames() );
+    }
+
+    @Test
+    public void dropsAFrameTooLong()
+    {
+        CobsFrameDecoder decoder = new CobsFrameDecoder( 4 );
+        decoder.decode( ByteBuffer.wrap( encode( bytes( "abcdefgh" ) ) ), frames );
+        decoder.decode( ByteBuffer.wrap( encode( bytes( "abcd" ) ) ), frames );
+        assertEquals( Arrays.asList( "abcd" ), frames.frames );
+        assertEquals( 1, decoder.getDroppedFrames() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAnEmptyFrame()
+    {
+        new CobsFrameDecoder( 0 );
+    }
+
+    static byte[] encode( byte payload[] )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte block[] = new byte[ 254 ];
+        int n = 0;
+        for( int i = 0; i <= payload.length; i++ )
+        {
+            if( i == payload.length || payload[ i ] == 0 )
+            {
+                out.write( n + 1 );
+                out.write( block, 0, n );
+                n = 0;
+            }
+            else
+            {
+                block[ n++ ] = payload[ i ];
+                if( n == 254 )
+                {
+                    out.write( 0xff );
+                    out.write( block, 0, n );
+                    n = 0;
+                }
+            }
+        }
+        out.write( 0 );
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class DelimiterFrameDecoderTest
+{
+    private static final byte CRLF[] = { '\r', '\n' };
+
+    private final FrameCollector frames = new FrameCollector();
+
+    @Test
+    public void stripsTheDelimiter()
+    {
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( CRLF, 64, true );
+        decoder.decode( ByteBuffer.wrap( bytes( "$GPGGA,1*47\r\n\r\nAT\r\n" ) ), frames );
+        assertEquals( Arrays.asList( "$GPGGA,1*47", "", "AT" ), frames.frames );
+    }
+
+    @Test
+    public void keepsTheDelimiter()
+    {
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( CRLF, 64, false );
+        decoder.decode( ByteBuffer.wrap( bytes( "OK\r\nERROR\r\n" ) ), frames );
+        assertEquals( Arrays.asList( "OK\r\n", "ERROR\r\n" ), frames.frames );
+    }
+
+    @Test
+    public void findsADelimiterSplitAcrossReads()
+    {
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( bytes( "END" ), 64, true );
+        frames.decode( decoder, bytes( "abcENDdeENfENDxEND" ), 1 );
+        assertEquals( Arrays.asList( "abc", "deENf", "x" ), frames.frames );
+    }
+
+    @Test
+    public void dropsAFrameTooLong()
+    {
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( bytes( "END" ), 5, false );
+        decoder.decode( ByteBuffer.wrap( bytes( "abENDtoolongxxxEND12345ENDxEN" ) ), frames );
+        decoder.decode( ByteBuffer.wrap( bytes( "D" ) ), frames );
+        assertEquals( Arrays.asList( "abEND", "12345END", "xEND" ), frames.frames );
+        assertEquals( 1, decoder.getDroppedFrames() );
+    }
+
+    @Test
+    public void resetForgetsAPartialFrame()
+    {
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder( CRLF, 64, true );
+        decoder.decode( ByteBuffer.wrap( bytes( "stale" ) ), frames );
+        decoder.reset();
+        decoder.decode( ByteBuffer.wrap( bytes( "OK\r\n" ) ), frames );
+        assertEquals( Arrays.asList( "OK" ), frames.frames );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAnEmptyDelimiter()
+    {
+        new DelimiterFrameDecoder( new byte[ 0 ], 64, true );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAnEmptyFrame()
+    {
+        new DelimiterFrameDecoder( CRLF, 0, true );
+    }
+}
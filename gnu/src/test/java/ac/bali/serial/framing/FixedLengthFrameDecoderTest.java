@@ -0,0 +1,38 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class FixedLengthFrameDecoderTest
+{
+    private final FrameCollector frames = new FrameCollector();
+
+    @Test
+    public void cutsTheStreamIntoFrames()
+    {
+        FixedLengthFrameDecoder decoder = new FixedLengthFrameDecoder( 4 );
+        frames.decode( decoder, bytes( "0123456789ab" ), 5 );
+        decoder.decode( ByteBuffer.wrap( bytes( "cd" ) ), frames );
+        assertEquals( Arrays.asList( "0123", "4567", "89ab" ), frames.frames );
+    }
+
+    @Test
+    public void resetForgetsAPartialFrame()
+    {
+        FixedLengthFrameDecoder decoder = new FixedLengthFrameDecoder( 4 );
+        decoder.decode( ByteBuffer.wrap( bytes( "xy" ) ), frames );
+        decoder.reset();
+        decoder.decode( ByteBuffer.wrap( bytes( "0123" ) ), frames );
+        assertEquals( Arrays.asList( "0123" ), frames.frames );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAnEmptyFrame()
+    {
+        new FixedLengthFrameDecoder( 0 );
+    }
+}
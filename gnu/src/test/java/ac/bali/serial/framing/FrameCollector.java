@@ -0,0 +1,50 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the frames a decoder delivers, one char per byte.
+ */
+class FrameCollector
+    implements FrameHandler
+{
+    static final Charset BYTES = Charset.forName( "ISO-8859-1" );
+
+    final List<String> frames = new ArrayList<String>();
+
+    public void frame( ByteBuffer frame )
+    {
+        byte b[] = new byte[ frame.remaining() ];
+        frame.get( b );
+        frames.add( new String( b, BYTES ) );
+    }
+
+    /**
+     * Feed the decoder a few bytes at a time.
+     */
+    void decode( FrameDecoder decoder, byte stream[], int piece )
+    {
+        for( int i = 0; i < stream.length; i += piece )
+        {
+            decoder.decode( ByteBuffer.wrap( stream, i, Math.min( piece, stream.length - i ) ), this );
+        }
+    }
+
+    static byte[] bytes( String s )
+    {
+        return s.getBytes( BYTES );
+    }
+
+    static byte[] bytes( int... b )
+    {
+        byte r[] = new byte[ b.length ];
+        for( int i = 0; i < b.length; i++ )
+        {
+            r[ i ] = (byte) b[ i ];
+        }
+        return r;
+    }
+}
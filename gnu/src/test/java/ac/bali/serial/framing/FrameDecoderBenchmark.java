@@ -0,0 +1,152 @@
+package ac.bali.serial.framing;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a megabyte of random frames handed over in uneven pieces, as
+ * reads of a port return them.  The score is streams per second; run
+ * with -prof gc to see that decoding allocates nothing.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class FrameDecoderBenchmark
+{
+    @Param( { "delimiter", "length", "slip", "cobs", "fixed" } )
+    public String framing;
+
+    private FrameDecoder decoder;
+    private ByteBuffer stream;
+    private int pieces[];
+
+    @Setup
+    public void prepare()
+        throws Exception
+    {
+        Random random = new Random( 1 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while( out.size() < 1 << 20 )
+        {
+            byte payload[] = new byte[ "fixed".equals( framing ) ? 64 : 1 + random.nextInt( 600 ) ];
+            random.nextBytes( payload );
+            if( "delimiter".equals( framing ) )
+            {
+                for( int i = 0; i < payload.length; i++ )
+                {
+                    payload[ i ] = (byte) ( 'A' + ( payload[ i ] & 15 ) );
+                }
+                out.write( payload );
+                out.write( '\r' );
+                out.write( '\n' );
+            }
+            else if( "length".equals( framing ) )
+            {
+                out.write( payload.length >> 8 );
+                out.write( payload.length );
+                out.write( payload );
+            }
+            else if( "slip".equals( framing ) )
+            {
+                out.write( SlipFrameDecoder.END );
+                for( byte b : payload )
+                {
+                    if( b == SlipFrameDecoder.END )
+                    {
+                        out.write( SlipFrameDecoder.ESC );
+                        out.write( SlipFrameDecoder.ESC_END );
+                    }
+                    else if( b == SlipFrameDecoder.ESC )
+                    {
+                        out.write( SlipFrameDecoder.ESC );
+                        out.write( SlipFrameDecoder.ESC_ESC );
+                    }
+                    else
+                    {
+                        out.write( b );
+                    }
+                }
+                out.write( SlipFrameDecoder.END );
+            }
+            else if( "cobs".equals( framing ) )
+            {
+                out.write( CobsFrameDecoderTest.encode( payload ) );
+            }
+            else
+            {
+                out.write( payload );
+            }
+        }
+        byte b[] = out.toByteArray();
+        stream = ByteBuffer.allocateDirect( b.length );
+        stream.put( b );
+
+        pieces = new int[ 64 ];
+        for( int i = 0; i < pieces.length; i++ )
+        {
+            pieces[ i ] = 1 + random.nextInt( 4096 );
+        }
+
+        if( "delimiter".equals( framing ) )
+        {
+            decoder = new DelimiterFrameDecoder( new byte[]{ '\r', '\n' }, 1024, true );
+        }
+        else if( "length".equals( framing ) )
+        {
+            decoder = new LengthFieldFrameDecoder( 0, 2, 0, ByteOrder.BIG_ENDIAN, 1024 );
+        }
+        else if( "slip".equals( framing ) )
+        {
+            decoder = new SlipFrameDecoder( 1024 );
+        }
+        else if( "cobs".equals( framing ) )
+        {
+            decoder = new CobsFrameDecoder( 1024 );
+        }
+        else
+        {
+            decoder = new FixedLengthFrameDecoder( 64 );
+        }
+    }
+
+    @Benchmark
+    public long decode( final Blackhole blackhole )
+    {
+        FrameHandler handler = new FrameHandler()
+        {
+            public void frame( ByteBuffer frame )
+            {
+                blackhole.consume( frame.remaining() );
+            }
+        };
+        decoder.reset();
+        int position = 0;
+        int end = stream.capacity();
+        for( int i = 0; position < end; i++ )
+        {
+            int n = Math.min( end - position, pieces[ i & ( pieces.length - 1 ) ] );
+            stream.limit( position + n ).position( position );
+            decoder.decode( stream, handler );
+            position += n;
+        }
+        return decoder.getDroppedFrames();
+    }
+}
@@ -0,0 +1,46 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrameQueueTest
+{
+    @Test
+    public void copiesTheFramesOfADecoder()
+        throws Exception
+    {
+        FrameQueue queue = new FrameQueue( 4, 16 );
+        new DelimiterFrameDecoder( bytes( "\n" ), 16, true ).decode( ByteBuffer.wrap( bytes( "one\ntwo\n" ) ), queue );
+        assertEquals( 2, queue.size() );
+        ByteBuffer frame = queue.take();
+        assertEquals( ByteBuffer.wrap( bytes( "one" ) ), frame );
+        queue.release( frame );
+        frame = queue.poll( 1, TimeUnit.SECONDS );
+        assertEquals( ByteBuffer.wrap( bytes( "two" ) ), frame );
+        queue.release( frame );
+        assertNull( queue.poll( 10, TimeUnit.MILLISECONDS ) );
+    }
+
+    @Test
+    public void dropsFramesWhenNoBufferIsFree()
+        throws Exception
+    {
+        FrameQueue queue = new FrameQueue( 2, 16 );
+        for( int i = 0; i < 3; i++ )
+        {
+            queue.frame( ByteBuffer.wrap( bytes( "frame" ) ) );
+        }
+        queue.frame( ByteBuffer.wrap( new byte[ 17 ] ) );
+        assertEquals( 2, queue.size() );
+        assertEquals( 2, queue.getDroppedFrames() );
+
+        queue.release( queue.take() );
+        queue.frame( ByteBuffer.wrap( bytes( "again" ) ) );
+        assertEquals( 2, queue.size() );
+    }
+}
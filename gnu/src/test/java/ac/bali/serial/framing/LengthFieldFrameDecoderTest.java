@@ -0,0 +1,56 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class LengthFieldFrameDecoderTest
+{
+    private final FrameCollector frames = new FrameCollector();
+
+    @Test
+    public void deliversTheHeaderWithTheFrame()
+    {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder( 0, 2, 0, ByteOrder.BIG_ENDIAN, 64 );
+        frames.decode( decoder, bytes( 0, 3, 'a', 'b', 'c', 0, 0, 0, 1, 'z' ), 1 );
+        assertEquals( Arrays.asList( "\0\3abc", "\0\0", "\0\1z" ), frames.frames );
+    }
+
+    @Test
+    public void readsALittleEndianField()
+    {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder( 0, 2, 0, ByteOrder.LITTLE_ENDIAN, 300 );
+        byte stream[] = new byte[ 2 + 258 ];
+        stream[ 0 ] = 2;
+        stream[ 1 ] = 1;
+        decoder.decode( ByteBuffer.wrap( stream ), frames );
+        assertEquals( 1, frames.frames.size() );
+        assertEquals( stream.length, frames.frames.get( 0 ).length() );
+    }
+
+    @Test
+    public void skipsAFrameTooLong()
+    {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder( 1, 1, 1, ByteOrder.BIG_ENDIAN, 6 );
+        decoder.decode( ByteBuffer.wrap( bytes( 'h', 2, 'a', 'b', 'c', 'h', 9, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 'h', 0, 'z' ) ),
+                        frames );
+        assertEquals( Arrays.asList( "h\2abc", "h\0z" ), frames.frames );
+        assertEquals( 1, decoder.getDroppedFrames() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAWideField()
+    {
+        new LengthFieldFrameDecoder( 0, 5, 0, ByteOrder.BIG_ENDIAN, 64 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsAHeaderLongerThanTheFrame()
+    {
+        new LengthFieldFrameDecoder( 8, 2, 0, ByteOrder.BIG_ENDIAN, 8 );
+    }
+}
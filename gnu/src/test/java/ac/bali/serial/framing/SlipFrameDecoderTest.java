@@ -0,0 +1,40 @@
+package ac.bali.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static ac.bali.serial.framing.FrameCollector.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class SlipFrameDecoderTest
+{
+    private final FrameCollector frames = new FrameCollector();
+
+    @Test
+    public void unescapesTheFrame()
+    {
+        SlipFrameDecoder decoder = new SlipFrameDecoder( 64 );
+        frames.decode( decoder, bytes( 0xC0, 'a', 0xDB, 0xDC, 'b', 0xDB, 0xDD, 0xC0, 0xC0, 'c', 0xC0 ), 1 );
+        assertEquals( Arrays.asList( "a\u00C0b\u00DB", "c" ), frames.frames );
+        assertEquals( 0, decoder.getDroppedFrames() );
+    }
+
+    @Test
+    public void dropsABadEscape()
+    {
+        SlipFrameDecoder decoder = new SlipFrameDecoder( 64 );
+        decoder.decode( ByteBuffer.wrap( bytes( 'a', 0xDB, 'x', 'b', 0xC0, 'a', 0xDB, 0xC0, 'c', 0xC0 ) ), frames );
+        assertEquals( Arrays.asList( "c" ), frames.frames );
+        assertEquals( 2, decoder.getDroppedFrames() );
+    }
+
+    @Test
+    public void dropsAFrameTooLong()
+    {
+        SlipFrameDecoder decoder = new SlipFrameDecoder( 3 );
+        decoder.decode( ByteBuffer.wrap( bytes( 'a', 'b', 'c', 'd', 0xC0, 'a', 'b', 'c', 0xC0 ) ), frames );
+        assertEquals( Arrays.asList( "abc" ), frames.frames );
+        assertEquals( 1, decoder.getDroppedFrames() );
+    }
+}